@@ -1,3 +1,5 @@
-javac -sourcepath src -d src/net/gadgetfactory/papilio/loader src/net/gadgetfactory/papilio/loader/PapilioLoader.java
+# All sources, not only those PapilioLoader reaches: HeadlessLoader, LoaderDaemon and
+# FakeProgrammer are started from the jar as well.
+javac -sourcepath src -d src/net/gadgetfactory/papilio/loader src/net/gadgetfactory/papilio/loader/*.java src/net/gadgetfactory/papilio/loader/jtag/*.java
 jar cfm0 papilio-loader.jar PapilioLoader.mf -C src/net/gadgetfactory/papilio/loader/ .
 #java -jar papilio-loader.jar
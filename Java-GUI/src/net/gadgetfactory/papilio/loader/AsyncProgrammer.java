@@ -0,0 +1,1571 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Programs one board: [Scan], [Merge], [Erase], [Write to] and [Verify], as selected,
+ * by running papilio-prog, srec_cat and data2mem.
+ * <P>
+ * Used to be an inner class of PapilioLoader. It no longer depends on Swing, so that
+ * HeadlessLoader can run the very same pipeline without initializing AWT; everything
+ * meant for the user goes through a ProgrammerListener.
+ * <P>
+ */
+public class AsyncProgrammer implements Runnable, MessageConsumer
+{
+	// papilio-prog reads a .bit file named "-" from StdIn.
+	private static final String STDIN_BIT_FILE = "-";
+
+	/** Result of [Merge]: a .bit file on disk, or in memory if it never had to go there. */
+	public static class MergedBitstream
+	{
+		private final File file;
+		private final byte[] image;
+
+		MergedBitstream(File file, byte[] image)
+		{
+			this.file = file;
+			this.image = image;
+		}
+
+		/** @return merged .bit file, null if it is only held in memory */
+		public File getFile() {
+			return file;
+		}
+
+		/** @return contents of the merged .bit file if it is held in memory, null otherwise */
+		public byte[] getImage() {
+			return image;
+		}
+	}
+
+	private final ProgrammerTools tools;
+	private final ProgrammerListener listener;
+	private File finalBitFile, bscanSPIBitFile;
+	private byte[] bscanSPIImage = null;	// bscanSPIBitFile from ProxyBitstreamCache
+	// Merged .bit file when it never had to go to disk; papilio-prog gets it on StdIn.
+	private byte[] finalBitImage = null;
+	// Scratch files of this job only.
+	private final JobWorkspace workspace = new JobWorkspace();
+	// Target .bit, .bmm and program .hex file, as they were when [Do Selected Operation] was clicked.
+	private File targetBitFile, targetBmmFile, programHexFile;
+	// Header of the target .bit file, read before anything else is done.
+	private BitFileHeader bitHeader = null;
+	private String q_papilio_prog_exe, q_srec_cat_exe, q_data_2_mem_exe;
+	private WriteTargets useTarget;
+	private BoardTarget board;
+	// Written by [Scan] step, read by the steps depending on it.
+	private volatile String deviceID = "";
+	private ProgrammerSession session = null;
+	private boolean useSession, bscanInSession = false;
+	/*	Selected operations, as they were when [Do Selected Operation] was clicked.
+		Several AsyncProgrammers may be running while the user changes the selection. */
+	private boolean doMerge, doErase, doVerify, doWrite;
+	// [Write to] SPI Flash always erases and verifies in Simple mode.
+	private boolean simpleMode = true;
+	private Future<MergedBitstream> sharedMerge = null;
+	// Only the AsyncProgrammer of a single board run re-enables [Do Selected Operation].
+	private boolean standalone;
+	private int errorCount = 0;
+	// Prepended to each output line when several boards are programmed at once.
+	private String outputPrefix = "";
+	// When not null, output lines are collected here instead of being shown.
+	private List<String> capturedLines = null;
+	private final ProgressParser progressParser = new ProgressParser();
+	private boolean useProgressLines;
+	// Convert the program .hex file with IntelHexReader rather than srec_cat.
+	private boolean useHexReader;
+	// Put the program into the block RAMs with BramPatcher, once it has learnt from data2mem where it goes.
+	private boolean useInProcessMerge;
+	// Let [Write to] SPI Flash rewrite only the sectors which differ, if papilio-prog can.
+	private boolean useDeltaSpi;
+	// Leave the SPI Flash alone if it already holds the final .bit file.
+	private boolean programIfDifferent;
+	// Put the step timings of OperationGraph into the Output log.
+	private boolean reportTimings = PapilioLoader.DEBUG;
+	// What this run did to the SPI Flash, for BoardLedger.
+	private boolean spiErased = false, spiWritten = false, spiVerified = false;
+	// Session command which wrote the SPI Flash, null if papilio-prog was spawned instead.
+	private String spiCommand = null;
+	private final RunRecord runRecord;
+	private volatile boolean usedSession = false;
+	private String eol = System.getProperty("line.separator");
+
+	/**
+	 * Creates a programmer for a single board. Files and operations have to be set with
+	 * setFiles and setOperations before it is kicked off.
+	 * @param diskBitFile	merged .bit file to create if selTarget is DISK_FILE, null otherwise
+	 */
+	public AsyncProgrammer(ProgrammerTools tools, Properties settings, ProgrammerListener listener, 
+						   WriteTargets selTarget, File diskBitFile, BoardTarget selBoard)
+	{
+		this.tools = tools;
+		this.listener = listener;
+		q_papilio_prog_exe = ProgrammerTools.CanonicalPath(tools.getPapilioProgrammerFile());
+		q_srec_cat_exe = ProgrammerTools.CanonicalPath(tools.getSrecCatFile());
+		q_data_2_mem_exe = ProgrammerTools.CanonicalPath(tools.getDataToMemFile());
+		useTarget = selTarget;
+		finalBitFile = diskBitFile;
+		board = selBoard;
+		useSession = Boolean.parseBoolean(settings.getProperty("ProgrammerSession"));
+		useProgressLines = Boolean.parseBoolean(settings.getProperty("ProgressLines"));
+		useHexReader = Boolean.parseBoolean(settings.getProperty("JavaHexReader"));
+		useInProcessMerge = Boolean.parseBoolean(settings.getProperty("InProcessMerge"));
+		useDeltaSpi = Boolean.parseBoolean(settings.getProperty("DeltaSpiFlash"));
+		programIfDifferent = Boolean.parseBoolean(settings.getProperty("ProgramIfDifferent"));
+		standalone = true;
+		runRecord = new RunRecord(board.toString(), useTarget.toString());
+	}
+
+	/**
+	 * Creates a programmer for one board of a multi-board run.
+	 */
+	public AsyncProgrammer(AsyncProgrammer template, BoardTarget selBoard)
+	{
+		tools = template.tools;
+		listener = template.listener;
+		targetBitFile = template.targetBitFile;
+		targetBmmFile = template.targetBmmFile;
+		programHexFile = template.programHexFile;
+		simpleMode = template.simpleMode;
+		q_papilio_prog_exe = template.q_papilio_prog_exe;
+		q_srec_cat_exe = template.q_srec_cat_exe;
+		q_data_2_mem_exe = template.q_data_2_mem_exe;
+		useTarget = template.useTarget;
+		finalBitFile = template.finalBitFile;
+		board = selBoard;
+		useSession = template.useSession;
+		useProgressLines = template.useProgressLines;
+		useHexReader = template.useHexReader;
+		useInProcessMerge = template.useInProcessMerge;
+		useDeltaSpi = template.useDeltaSpi;
+		programIfDifferent = template.programIfDifferent;
+		reportTimings = template.reportTimings;
+		doMerge = template.doMerge;
+		doErase = template.doErase;
+		doVerify = template.doVerify;
+		doWrite = template.doWrite;
+		standalone = false;
+		outputPrefix = "[" + selBoard + "] ";
+		runRecord = new RunRecord(board.toString(), useTarget.toString());
+	}
+
+	/**
+	 * @param bitFile	target .bit file (the final one unless merging)
+	 * @param bmmFile	target .bmm file, only used for [Merge]
+	 * @param hexFile	program .hex file, only used for [Merge]
+	 */
+	public void setFiles(File bitFile, File bmmFile, File hexFile)
+	{
+		targetBitFile = bitFile;
+		targetBmmFile = bmmFile;
+		programHexFile = hexFile;
+	}
+
+	/**
+	 * Takes note of the selected operations. Several AsyncProgrammers may be running
+	 * while the user changes the selection, so they must not be looked up later.
+	 * @param simpleMode	true if [Write to] SPI Flash is to erase and verify as well
+	 */
+	public void setOperations(boolean merge, boolean erase, boolean verify, boolean write, boolean simpleMode)
+	{
+		doMerge = merge;
+		doErase = erase;
+		doVerify = verify;
+		doWrite = write;
+		this.simpleMode = simpleMode;
+	}
+
+	/**
+	 * @param ifDifferent	true to skip [Write to] SPI Flash if the flash already holds
+	 * 						the final .bit file, overriding preference ProgramIfDifferent
+	 */
+	public void setProgramIfDifferent(boolean ifDifferent) {
+		programIfDifferent = ifDifferent;
+	}
+
+	/**
+	 * @param timings	true to report how long each step took, e.g. for HeadlessLoader -t
+	 */
+	public void setReportTimings(boolean timings) {
+		reportTimings = timings;
+	}
+
+	/** @return true if [Merge] has to be done before [Write to] */
+	public boolean isMergeAndWrite() {
+		return doWrite && doMerge;
+	}
+
+	public BoardTarget getBoard() {
+		return board;
+	}
+
+	/** @return true unless this programmer is one of a multi-board run */
+	public boolean isStandalone() {
+		return standalone;
+	}
+
+	public int getErrorCount() {
+		return errorCount;
+	}
+
+	public void KickOff()
+	{
+		Thread thread;
+
+		thread = new Thread(this, "Async-Papilio-Programmer");
+		// It is better to set the priority of AsyncProgrammer thread same as that of
+		// MessageSiphon thread (but greater than priority of EDT).
+		// Anyway, this (AsyncProgrammer thread) is going to block (wait) on MessageSiphon 
+		// threads, so everything will work out.
+		thread.setPriority(Thread.MAX_PRIORITY-2);
+		thread.start();
+	}
+
+	/**
+	 * Burns the .bit file produced by a merge which runs elsewhere. [Scan] of this
+	 * board goes ahead while the merge is still running.
+	 */
+	public void UseMergedBitFile(Future<MergedBitstream> mergedBitFile) {
+		sharedMerge = mergedBitFile;
+	}
+
+	/**
+	 * Only merges .bit, .bmm and .hex files.
+	 * @return merged .bit file, null if merging failed
+	 */
+	public MergedBitstream MergeOnly()
+	{
+		if (!MergeBitBmmHexFiles())
+			return null;
+		return new MergedBitstream(finalBitFile, finalBitImage);
+	}
+
+	/**
+	 * Runs papilio-prog -l.
+	 * @return lines printed by papilio-prog, one per attached FTDI device
+	 */
+	public List<String> ListDevices()
+	{
+		List<String> lines = new ArrayList<String>();
+
+		capturedLines = lines;
+		execSynchronously(new String[] {q_papilio_prog_exe, "-l"}, tools.getProgrammerPath(), false, 
+						  ProcessWatchdog.Deadline(LastOperations.SCAN, 0), runRecord.Begin("list", 0));
+		capturedLines = null;
+		return lines;
+	}
+
+	
+	@Override
+	public void run()
+	{
+		board.MarkStarted();
+		runRecord.Start();
+		ProgramBoard();
+		CloseSession();
+		if (errorCount > 0)
+		// => Board may have been swapped or its chain is not what we think it is.
+			DeviceIdentityCache.Invalidate(board.getCacheKey());
+		UpdateBoardLedger();
+		board.MarkFinished(errorCount);
+		for (ProgressEvent phase : progressParser.PhaseSummaries())
+			listener.Output(outputPrefix + phase.Summary() + eol);
+		runRecord.Finish(errorCount, usedSession, progressParser.PhaseSummaries());
+		runRecord.Append();
+		workspace.Delete();
+
+		listener.Finished(this);
+	}
+
+	private void ProgramBoard()
+	{
+		OperationGraph graph = new OperationGraph(Thread.currentThread().getName());
+		final LastOperations WRITE_STEP = (useTarget == WriteTargets.SPI_FLASH) ? 
+										  LastOperations.WRITE_TO_SPI_FLASH : LastOperations.WRITE_TO_FPGA;
+
+//		    System.out.println("AsyncProgrammer thread: " + Thread.currentThread().getName());
+	    if (doWrite == false)
+	    // => Anything out of {[Scan], [Erase], [Verify]} is selected, but at least one is selected.
+	    // => [Write to] and [Merge] is definitely not selected.
+	    // => Any of the files specified in Target XXX file textboxes need be ignored completely.
+	    {
+	    	graph.Add(LastOperations.SCAN, new OperationGraph.Step() {
+				@Override
+				public boolean Run() {
+					bscanSPIBitFile = DetectJTAGchain();
+					return (bscanSPIBitFile != null);
+				}
+			});
+	    	if (doErase)
+		    	graph.Add(LastOperations.ERASE, new OperationGraph.Step() {
+					@Override
+					public boolean Run() {
+			    		EraseSPIFlash();	// Erase also does verification
+						return true;
+					}
+				}, LastOperations.SCAN);
+	    	else if (doVerify)
+		    	graph.Add(LastOperations.VERIFY, new OperationGraph.Step() {
+					@Override
+					public boolean Run() {
+			    		VerifySPIFlash();
+						return true;
+					}
+				}, LastOperations.SCAN);
+	    }
+	    else
+	    // => [Write to] is selected, [Merge] may or may not be selected.
+	    // => [Scan] is always implied.
+	    // => [Erase] and [Verify], if selected, are applicable in the context of [Write to].
+	    // => [Merge] and [Scan] do not depend on each other, so they run at the same time.
+	    {
+	    	if (!ReadBitFileHeader())
+	    	// => Not worth opening the programmer for.
+	    		return;
+
+		    if (sharedMerge != null)
+		    // => MultiBoardProgrammer merges the files once for all boards.
+		    	graph.Add(LastOperations.MERGE, new OperationGraph.Step() {
+					@Override
+					public boolean Run() {
+						MergedBitstream merged = WaitForSharedMerge();
+						if (merged == null)
+							return false;
+						finalBitFile = merged.getFile();
+						finalBitImage = merged.getImage();
+						return true;
+					}
+				});
+		    else if (!doMerge)
+	    	// => The file specified in "Target .bit file:" text box is the final .bit
+		    //	  file to be burned, i.e. the result of .bit + .bmm + .hex merging. 
+			// Even if user has specified "Target .bmm file:" and/or "Program .hex file:",
+		    // they are ignored.
+		    	finalBitFile = targetBitFile;
+		    
+		    else
+		    	graph.Add(LastOperations.MERGE, new OperationGraph.Step() {
+					@Override
+					public boolean Run() {
+						return MergeBitBmmHexFiles();
+					}
+				});
+
+			switch (useTarget) {
+			case FPGA:
+				/*	Writing to FPGA needs no bscan_spi bit file, but opening the programmer
+					session (which identifies the board) can still overlap with [Merge]. */
+				if (useSession && !ProgrammerSession.isUnsupported())
+					graph.Add(LastOperations.SCAN, new OperationGraph.Step() {
+						@Override
+						public boolean Run() {
+							OpenSession();		// Falls back to spawning papilio-prog on failure.
+							return true;
+						}
+					});
+				break;
+			case SPI_FLASH:
+				graph.Add(LastOperations.SCAN, new OperationGraph.Step() {
+					@Override
+					public boolean Run() {
+						bscanSPIBitFile = DetectJTAGchain();
+						return (bscanSPIBitFile != null);
+					}
+				});
+				break;
+			case DISK_FILE:
+				// Do nothing.
+				// MergeBitBmmHexFiles already does that if selected target is disk file
+				break;
+			}
+			
+			if (useTarget != WriteTargets.DISK_FILE)
+				graph.Add(WRITE_STEP, new OperationGraph.Step() {
+					@Override
+					public boolean Run() {
+						if (useTarget == WriteTargets.FPGA)
+							BurnToFPGA();
+						else if (!doVerify && !doErase && !simpleMode)
+							BurnToSPIFlashOnly();
+						else
+							BurnToSPIFlash();
+						return true;
+					}
+				}, LastOperations.MERGE, LastOperations.SCAN);
+	    }
+
+	    if (!graph.isEmpty()) {
+	    	graph.Run();
+	    	if (reportTimings)
+	    		listener.Output(outputPrefix + graph.Timings() + eol);
+	    }
+	}
+
+	/**
+	 * @return merged .bit file shared by all boards, null if merging failed
+	 */
+	private MergedBitstream WaitForSharedMerge()
+	{
+		MergedBitstream mergedBitFile = null;
+		boolean waiting = true;
+		RunRecord.PhaseTiming timing = runRecord.Begin("merge_wait", 0);
+
+		while (waiting) {
+			try {
+				mergedBitFile = sharedMerge.get();
+				waiting = false;
+			}
+			catch (InterruptedException ignored) { }
+			catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+				waiting = false;
+			}
+		}
+		timing.End((mergedBitFile == null) ? 1 : 0);
+		if (mergedBitFile == null)
+		// => This board cannot be programmed.
+			AddErrors(1);
+		return mergedBitFile;
+	}
+	
+	/**
+	 * @return papilio-prog command line addressing the board of this AsyncProgrammer
+	 */
+	private String[] ProgCommand(String... args)
+	{
+		final String PROGRESS_SWITCH = "-P";
+		String[] deviceSwitches = board.getDeviceSwitches();
+		/*	papilio-prog binaries older than -P reject it, so it is passed only once a
+			session banner has said it is known. Starting a session is safe either way:
+			such binaries reject -i as well and then run without it. */
+		boolean progress = useProgressLines && (ProgrammerSession.hasProgressLines() || 
+												Arrays.asList(args).contains(ProgrammerSession.SESSION_SWITCH));
+		int nProgress = progress ? 1 : 0;
+		String[] commandLine = new String[1 + deviceSwitches.length + nProgress + args.length];
+
+		commandLine[0] = q_papilio_prog_exe;
+		System.arraycopy(deviceSwitches, 0, commandLine, 1, deviceSwitches.length);
+		if (progress)
+			commandLine[1 + deviceSwitches.length] = PROGRESS_SWITCH;
+		System.arraycopy(args, 0, commandLine, 1 + deviceSwitches.length + nProgress, args.length);
+		return commandLine;
+	}
+
+	/**
+	 * Reads the header of the target .bit file, so that a file which is not a .bit file
+	 * at all, or has been cut short, is refused before there is any USB traffic.
+	 */
+	private boolean ReadBitFileHeader()
+	{
+		try {
+			bitHeader = BitFileHeader.Read(targetBitFile);
+		}
+		catch (IOException e) {
+			listener.Output(outputPrefix + ProgrammerTools.CanonicalPath(targetBitFile) + ": " + e.getMessage() + eol);
+			AddErrors(1);
+			return false;
+		}
+		listener.Output(outputPrefix + "Target .bit file: " + bitHeader.Summary() + eol);
+		return true;
+	}
+
+	/**
+	 * The FPGA would refuse a .bit file built for another part only after all of it has
+	 * been shifted in, and a SPI Flash would take it without complaint.
+	 * @return false if the board is known to hold another FPGA than the .bit file is for
+	 */
+	private boolean CheckPart()
+	{
+		String boardID = deviceID.isEmpty() ? DeviceIdentityCache.Peek(board.getCacheKey()) : deviceID;
+
+		DeviceDatabase.Device device;
+
+		if ((bitHeader == null) || (boardID == null))
+			return true;
+		if (!bitHeader.Matches(boardID, DeviceDatabase.Load(tools.getProgrammerPath()))) {
+			listener.Output(outputPrefix + "Target .bit file was built for " + bitHeader.getPartName() + 
+							", but the board has " + boardID + ". Nothing written." + eol);
+			AddErrors(1);
+			return false;
+		}
+		device = KnownDevice(boardID);
+		// Compressed bitstreams are shorter, but none is longer.
+		if ((device != null) && (device.getBitstreamBits() > 0) && 
+			(8 * bitHeader.getPayloadLength() > device.getBitstreamBits()))
+			listener.Output(outputPrefix + "Warning: target .bit file has " + 8 * bitHeader.getPayloadLength() + 
+							" bits, a " + boardID + " bitstream only " + device.getBitstreamBits() + "." + eol);
+		return true;
+	}
+
+	/**
+	 * @return false if the board is known to have too little SPI Flash for the image
+	 */
+	private boolean CheckFlashSize()
+	{
+		String boardID = deviceID.isEmpty() ? DeviceIdentityCache.Peek(board.getCacheKey()) : deviceID;
+		DeviceDatabase.Device device = (boardID == null) ? null : KnownDevice(boardID);
+
+		if ((device == null) || (device.getFlashBytes() == 0) || (FlashImageBytes() <= device.getFlashBytes()))
+			return true;
+		listener.Output(outputPrefix + "SPI Flash of a " + boardID + " board holds " + device.getFlashBytes() / 1024 + 
+						" KB, too little for " + FlashImageBytes() / 1024 + " KB. Nothing written." + eol);
+		AddErrors(1);
+		return false;
+	}
+
+	/** @return entry of devlist.txt for a description found by the JTAG chain scan, null if none */
+	private DeviceDatabase.Device KnownDevice(String boardID) {
+		return DeviceDatabase.Load(tools.getProgrammerPath()).Lookup(boardID);
+	}
+
+	private synchronized void AddErrors(int errors)
+	{
+		errorCount += errors;
+		listener.Errors(errors);
+	}
+	
+	/**
+	 * [Merge], unless the very same files have been merged before and MergeCache still
+	 * has the result.
+	 */
+	private boolean MergeBitBmmHexFiles()
+	{
+		RunRecord.PhaseTiming timing;
+		String cacheKey = null;
+		byte[] cached;
+
+		finalBitImage = null;
+		try {
+			cacheKey = MergeCache.Key(tools, targetBitFile, targetBmmFile, programHexFile);
+		}
+		catch (IOException e) {
+			System.err.println(e.getMessage());
+		}
+		if (cacheKey != null) {
+			timing = runRecord.Begin("merge_cache", 0);
+			cached = MergeCache.Lookup(cacheKey);
+			if ((cached != null) && ((finalBitFile == null) || WriteFile(finalBitFile, cached))) {
+				if (finalBitFile == null)
+				// => User has selected either "FPGA" or "SPI Flash" in Write to combobox.
+					finalBitImage = cached;
+				timing.End(0);
+				listener.Output(outputPrefix + "Merged .bit file taken from cache (" + cacheKey.substring(0, 8) + ")" + eol);
+				return true;
+			}
+			// Exit code 1 marks a miss.
+			timing.End(1);
+		}
+
+		try {
+			if (!MergeWithTools())
+				return false;
+		}
+		finally {
+			workspace.Delete();
+		}
+		if (cacheKey != null) {
+			try {
+				MergeCache.Store(cacheKey, (finalBitImage != null) ? finalBitImage : BramPatcher.ReadFile(finalBitFile));
+			}
+			catch (IOException e) {
+				System.err.println(e.getMessage());
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Merges with srec_cat or IntelHexReader, then data2mem or BramPatcher. Whatever
+	 * files they need are made in the workspace, which the caller deletes.
+	 */
+	private boolean MergeWithTools()
+	{
+		final String OUTPUT_MEM_FILE = "out.mem";
+		final String FINAL_BIT_FILE = "out.bit";
+		final File workFolder, outputMemFile, workBitFile;
+
+		// srec_cat writes to StdOut, which is filtered straight into "out.mem".
+		String[] srecCatCommand = {q_srec_cat_exe, 
+								   ProgrammerTools.CanonicalPath(programHexFile), 
+								   "-Intel", "-Byte_Swap", "2", "-Data_Only", 
+								   "-o", "-", "-vmem", "8"};
+		RunRecord.PhaseTiming conversion;
+		IntelHexReader hexReader = null;
+		BramPatcher patcher = null;
+		String layoutKey = null;
+		OutputStream memStream;
+//			String[] commandLine = {"cmd.exe", "/C", "dir", "/S", "C:\\WINDOWS\\System32\\"};
+		String[] data2memCommand = {q_data_2_mem_exe, 
+									"-bm", ProgrammerTools.CanonicalPath(targetBmmFile), 
+									"-bt", ProgrammerTools.CanonicalPath(targetBitFile), 
+									"-bd", OUTPUT_MEM_FILE, 
+									"-o", "b", FINAL_BIT_FILE};
+
+		try {
+			workFolder = workspace.getFolder();
+		}
+		catch (IOException e) {
+			listener.Output(outputPrefix + e.getMessage() + eol);
+			AddErrors(1);
+			return false;
+		}
+		outputMemFile = new File(workFolder, OUTPUT_MEM_FILE);
+		workBitFile = new File(workFolder, FINAL_BIT_FILE);
+
+		if (useHexReader)
+		/*	Read program .hex file, then either put it into the .bit file right here or
+			create "out.mem" for data2mem. */
+		{
+			conversion = runRecord.Begin("hex_to_mem", programHexFile.length());
+			try {
+				hexReader = IntelHexReader.Read(programHexFile);
+				if (useInProcessMerge) {
+					layoutKey = BramPatcher.Key(targetBitFile, targetBmmFile);
+					if (layoutKey != null)
+						patcher = BramPatcher.Lookup(layoutKey);
+				}
+				if (patcher == null)
+					hexReader.WriteMem(outputMemFile, 2);
+			}
+			catch (IOException e) {
+				listener.Output(outputPrefix + ProgrammerTools.CanonicalPath(programHexFile) + ": " + e.getMessage() + eol);
+				AddErrors(1);
+				outputMemFile.delete();
+				hexReader = null;
+			}
+			conversion.End((hexReader != null) ? 0 : 1);
+			if (hexReader == null)
+				return false;
+			if (patcher != null) {
+				if (PatchBitFile(patcher, hexReader))
+					return true;
+				// => Program does not fit the block RAMs as learnt, leave it to data2mem.
+				try {
+					hexReader.WriteMem(outputMemFile, 2);
+				}
+				catch (IOException e) {
+					listener.Output(outputPrefix + e.getMessage() + eol);
+				}
+			}
+			if (!outputMemFile.isFile()) {
+				AddErrors(1);
+				return false;
+			}
+		}
+		else
+		/*	Run srec_cat on program .hex file and convert its output to a format which
+			is understood by data2mem on the fly. */
+		{
+			try {
+				memStream = new VmemAddressStripper(new BufferedOutputStream(new FileOutputStream(outputMemFile), 65536));
+			}
+			catch (IOException e) {
+				System.err.println(e.getMessage());
+				AddErrors(1);
+				return false;
+			}
+			execSynchronously(srecCatCommand, workFolder, false, 
+							  ProcessWatchdog.Deadline(LastOperations.MERGE, programHexFile.length()), 
+							  runRecord.Begin("srec_cat", programHexFile.length()), null, memStream);
+			try {
+				memStream.close();
+			}
+			catch (IOException e) {
+				System.err.println(e.getMessage());
+				outputMemFile.delete();
+			}
+			if (!outputMemFile.isFile() || (outputMemFile.length() == 0))
+				return false;
+		}
+		
+
+		/*	Run data2mem to combine .bit (unprogrammed empty processor) file, 
+			.bmm memory map file and program .hex file into final .bit file. */
+		
+		if (finalBitFile != null) {
+		// => User has selected "Disk File" in Write to combobox.
+			data2memCommand[data2memCommand.length - 1] = ProgrammerTools.CanonicalPath(finalBitFile);
+			finalBitFile.delete();
+		}
+		execSynchronously(data2memCommand, workFolder, false, 
+						  ProcessWatchdog.Deadline(LastOperations.MERGE, targetBitFile.length()), 
+						  runRecord.Begin("data2mem", targetBitFile.length()));
+
+		if (finalBitFile == null) {
+		// => User has selected either "FPGA" or "SPI Flash" in Write to combobox. 
+		//	  The workspace goes, the merged .bit file stays in memory until it is burnt.
+			try {
+				if (workBitFile.isFile())
+					finalBitImage = BramPatcher.ReadFile(workBitFile);
+			}
+			catch (IOException e) {
+				System.err.println(e.getMessage());
+			}
+			if (finalBitImage == null)
+				return false;
+		}
+		else if (!finalBitFile.isFile())
+			return false;
+
+		if (layoutKey != null)
+		// => Next time round, data2mem should not be needed.
+			BramPatcher.LearnInBackground(layoutKey, targetBitFile, targetBmmFile, tools.getDataToMemFile());
+		return true;
+	}
+
+	/**
+	 * Merges with the layout BramPatcher learnt from data2mem. The result is only written to disk
+	 * if "Disk File" is the target; for FPGA and SPI Flash it is kept in finalBitImage
+	 * and sent to papilio-prog on StdIn.
+	 * @return false if data2mem has to do it
+	 */
+	private boolean PatchBitFile(BramPatcher patcher, IntelHexReader hexReader)
+	{
+		RunRecord.PhaseTiming timing = runRecord.Begin("bram_patch", targetBitFile.length());
+		byte[] merged;
+
+		try {
+			merged = patcher.Patch(BramPatcher.ReadFile(targetBitFile), hexReader.ToByteStream(2));
+		}
+		catch (IOException e) {
+			listener.Output(outputPrefix + e.getMessage() + eol);
+			merged = null;
+		}
+		if (merged == null) {
+			timing.End(1);
+			return false;
+		}
+		if (finalBitFile == null)
+		// => User has selected either "FPGA" or "SPI Flash" in Write to combobox. 
+			finalBitImage = merged;
+		else if (!WriteFile(finalBitFile, merged)) {
+			timing.End(1);
+			return false;
+		}
+		timing.End(0);
+		listener.Output(outputPrefix + "Merged " + programHexFile.getName() + " into " + 
+						((finalBitFile != null) ? finalBitFile.getName() : "the bitstream") + 
+						" with the block RAM layout learnt from data2mem" + eol);
+		return true;
+	}
+
+	private static boolean WriteFile(File file, byte[] contents)
+	{
+		FileOutputStream fout = null;
+
+		try {
+			fout = new FileOutputStream(file);
+			fout.write(contents);
+			fout.close();
+			return true;
+		}
+		catch (IOException e) {
+			System.err.println(e.getMessage());
+			if (fout != null) {
+				try {
+					fout.close();
+				}
+				catch (IOException ignored) { }
+			}
+			file.delete();
+			return false;
+		}
+	}
+
+
+	private File DetectJTAGchain()
+	{
+		File bscanBitFile = null;
+		DeviceDatabase.Device device;
+		String cachedID = null, boardKey = board.getCacheKey();
+		long scanStart;
+
+		/*	A programmer session has to scan the JTAG chain when it starts anyway, so the
+			cache only helps when papilio-prog is spawned per step. */
+		if (!useSession || ProgrammerSession.isUnsupported())
+			cachedID = DeviceIdentityCache.Lookup(boardKey);
+
+		if (cachedID != null) {
+			runRecord.Begin("scan_cached", 0).End(0);
+			deviceID = cachedID;
+			listener.Output(outputPrefix + "JTAG chain scan skipped, using cached Desc: " + deviceID + 
+								" (saved " + DeviceIdentityCache.getScanMillis(boardKey) + " ms)" + eol);
+		}
+		else {
+			deviceID = "";
+			scanStart = System.nanoTime();
+			// Opening a programmer session scans the JTAG chain as well.
+			if (!OpenSession())
+				execSynchronously(ProgCommand("-j"), tools.getProgrammerPath(), true, ProcessWatchdog.Deadline(LastOperations.SCAN, 0), 
+								  runRecord.Begin("scan", 0));
+			if (!deviceID.isEmpty())
+				DeviceIdentityCache.Store(boardKey, deviceID, (System.nanoTime() - scanStart) / 1000000);
+		}
+		
+		//txtOutput.append("In DetectJTAG: " + deviceID);
+		
+		if (!deviceID.isEmpty()) {
+			//txtOutput.append("In isEmpty: " + deviceID);
+			device = KnownDevice(deviceID);
+			if ((device != null) && (device.getProxyBitFile() != null))
+				bscanBitFile = new File(tools.getRootProgrammerPath(), device.getProxyBitFile());
+		}
+		bscanSPIImage = (bscanBitFile != null) ? ProxyBitstreamCache.Get(deviceID, bscanBitFile) : null;
+		
+		return bscanBitFile;
+	}
+	
+	private void BurnToFPGA()
+	{
+		if (!CheckPart())
+			return;
+		PrepareFinalBitFile();
+		String[] commandLine = ProgCommand("-v", "-f", FinalBitArgument());
+		
+		if (!RunInSession(new String[] {"fpga " + FinalBitArgument()}))
+			execSynchronously(commandLine, tools.getProgrammerPath(), false, 
+							  ProcessWatchdog.Deadline(LastOperations.WRITE_TO_FPGA, FinalBitLength()), 
+							  runRecord.Begin("fpga", FinalBitLength()), finalBitImage, null);
+	}
+
+	public void EraseSPIFlash()
+	{
+		String[] commandLine = ProgCommand("-v", 
+								"-b", ProgrammerTools.CanonicalPath(bscanSPIBitFile), 
+								"-se");
+
+		if (!RunInSession(new String[] {BscanSessionCommand(), "spi e"}))
+			execSynchronously(commandLine, tools.getProgrammerPath(), false, 
+							  ProcessWatchdog.Deadline(LastOperations.ERASE, FlashImageBytes()), 
+							  runRecord.Begin("spi_erase", FlashImageBytes()));
+		spiErased = true;
+	}
+	
+	private void BurnToSPIFlash()
+	{
+		// bscanSPIBitFile has been found by [Scan] step.
+		if ((bscanSPIBitFile != null) && CheckPart())
+		{
+			PrepareFinalBitFile();
+			if (!CheckFlashSize())
+				return;
+			String[] commandLine = ProgCommand("-v", 
+									"-f", FinalBitArgument(), 
+									"-b", ProgrammerTools.CanonicalPath(bscanSPIBitFile), 
+									"-sa", "-r");
+			
+			switch (CheckFlashImage()) {
+			case 0:
+				listener.Output(outputPrefix + "SPI Flash is already current, nothing written." + eol);
+				// The FPGA runs bscan_spi now, so it still has to load the design from flash.
+				RunInSession(new String[] {"reconfigure", "status"});
+				return;
+			case -1:
+				return;
+			}
+			spiWritten = spiVerified = true;
+			spiCommand = SpiProgramCommand();
+			if (RunInSession(new String[] {BscanSessionCommand(), 
+							 spiCommand + " " + FinalBitArgument(), 
+							 "reconfigure", "status"}))
+				ReportLedgerSkip();
+			else
+			{
+				spiCommand = null;
+				execSynchronously(commandLine, tools.getProgrammerPath(), false, 
+								  ProcessWatchdog.Deadline(LastOperations.WRITE_TO_SPI_FLASH, FinalBitLength()), 
+								  runRecord.Begin("spi_program", FinalBitLength()), finalBitImage, null);
+
+				execSynchronously(ProgCommand("-c"), tools.getProgrammerPath(), false, 
+								  ProcessWatchdog.Deadline(LastOperations.SCAN, 0), runRecord.Begin("status", 0));
+			}
+		}
+	}
+
+	private void BurnToSPIFlashOnly()
+	{
+		// bscanSPIBitFile has been found by [Scan] step.
+		//txtOutput.append("In SPI Flash Burn: " + bscanSPIBitFile);
+		
+		if ((bscanSPIBitFile != null) && CheckPart())
+		{
+			PrepareFinalBitFile();
+			if (!CheckFlashSize())
+				return;
+			String[] commandLine = ProgCommand("-v", 
+									"-f", FinalBitArgument(), 
+									"-b", ProgrammerTools.CanonicalPath(bscanSPIBitFile), 
+									"-sp", "-r");
+			
+			spiWritten = true;
+			if (!RunInSession(new String[] {BscanSessionCommand(), 
+							  "spi p " + FinalBitArgument(), 
+							  "reconfigure", "status"}))
+			{
+				execSynchronously(commandLine, tools.getProgrammerPath(), false, 
+								  ProcessWatchdog.Deadline(LastOperations.WRITE_TO_SPI_FLASH, FinalBitLength()), 
+								  runRecord.Begin("spi_write", FinalBitLength()), finalBitImage, null);
+
+				execSynchronously(ProgCommand("-c"), tools.getProgrammerPath(), false, 
+								  ProcessWatchdog.Deadline(LastOperations.SCAN, 0), runRecord.Begin("status", 0));
+			}
+		}
+	}		
+	
+	private void VerifySPIFlash()
+	{
+		String[] commandLine = ProgCommand("-v", 
+								"-b", ProgrammerTools.CanonicalPath(bscanSPIBitFile), 
+								"-sv");
+
+		if (!RunInSession(new String[] {BscanSessionCommand(), "spi v"}))
+			execSynchronously(commandLine, tools.getProgrammerPath(), false, 
+							  ProcessWatchdog.Deadline(LastOperations.VERIFY, FlashImageBytes()), 
+							  runRecord.Begin("spi_verify", FlashImageBytes()));
+	}
+
+
+	/**
+	 * Starts papilio-prog in session mode, unless it is already running, disabled in
+	 * preferences or not supported by the installed papilio-prog.
+	 * Starting the session scans the JTAG chain, so deviceID is filled in on return.
+	 * @return
+	 * 		true if subsequent steps can be sent to the session
+	 * 		false if each step has to spawn papilio-prog on its own
+	 */
+	private boolean OpenSession()
+	{
+		boolean opened;
+		RunRecord.PhaseTiming timing;
+
+		if (session != null)
+			return session.isOpen();
+		if (!useSession || ProgrammerSession.isUnsupported())
+			return false;
+
+		StepConsumer sessionConsumer = new StepConsumer(true);
+		session = new ProgrammerSession(sessionConsumer);
+		timing = runRecord.Begin("scan", 0);
+		opened = session.Open(ProgCommand("-v", ProgrammerSession.SESSION_SWITCH), tools.getProgrammerPath(), 
+							  ProcessWatchdog.Deadline(LastOperations.SCAN, 0));
+		timing.End(opened ? 0 : 1);
+		// Only the scan done while opening the session is of interest.
+		sessionConsumer.StopParsing();
+		if (sessionConsumer.getDesc() != null)
+			deviceID = sessionConsumer.getDesc();
+
+		if (!opened) {
+		// => Fall back to one papilio-prog per step for the rest of this run.
+			session = null;
+			useSession = false;
+		}
+		else
+			usedSession = true;
+		return opened;
+	}
+
+	/**
+	 * Sends a sequence of commands to the programmer session, stopping at the first
+	 * one which fails. 
+	 * @return
+	 * 		true if the commands were handled by the session (successfully or not)
+	 * 		false if the session is not available and the caller has to spawn papilio-prog
+	 */
+	private boolean RunInSession(String[] commands)
+	{
+		int rc;
+		RunRecord.PhaseTiming timing;
+
+		if (!OpenSession())
+			return false;
+
+		for (int i = 0; i < commands.length; i++) {
+			if (commands[i] == null)
+				continue;
+			if (PapilioLoader.ECHO_COMMAND)
+				listener.Output(outputPrefix + "Session: " + commands[i] + "\n\n");
+
+			timing = runRecord.Begin(SessionPhase(commands[i]), SessionBytes(commands[i]));
+			rc = session.SendCommand(commands[i], SessionBitFile(commands[i]), SessionDeadline(commands[i]));
+			timing.End(rc);
+			if (rc == -1) {
+			// => papilio-prog has gone away in the middle of the session.
+				boolean killed = session.wasKilled();
+				// Reaps the process and stops its watchdog and StdErr siphon.
+				CloseSession();
+				useSession = false;
+				if ((i == 0) && !killed)
+					return false;
+				// Do not retry a command which timed out or was cancelled.
+				AddErrors(1);
+				return true;
+			}
+			if (commands[i].startsWith("bscan "))
+				bscanInSession = (rc == 0);
+			else if (commands[i].startsWith("spi a") || commands[i].startsWith("spi d") || 
+					 commands[i].startsWith("spi n") || commands[i].startsWith("spi w") || 
+					 commands[i].equals("reconfigure"))
+				bscanInSession = false;
+
+			if (rc != 0) {
+				AddErrors(rc);
+				return true;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return deadline for a programmer session command, see ProcessWatchdog.Deadline
+	 */
+	private long SessionDeadline(String command)
+	{
+		if (command.startsWith("bscan "))
+			return ProcessWatchdog.Deadline(LastOperations.WRITE_TO_FPGA, BscanLength());
+		else if (command.startsWith("fpga "))
+			return ProcessWatchdog.Deadline(LastOperations.WRITE_TO_FPGA, FinalBitLength());
+		else if (command.startsWith("spi a") || command.startsWith("spi d") || command.startsWith("spi p") || 
+				 command.startsWith("spi n") || command.startsWith("spi w"))
+			return ProcessWatchdog.Deadline(LastOperations.WRITE_TO_SPI_FLASH, FinalBitLength());
+		else if (command.startsWith("spi e"))
+			return ProcessWatchdog.Deadline(LastOperations.ERASE, FlashImageBytes());
+		else if (command.startsWith("spi v"))
+			return ProcessWatchdog.Deadline(LastOperations.VERIFY, FlashImageBytes());
+		else
+			return ProcessWatchdog.Deadline(LastOperations.SCAN, 0);
+	}
+
+	/**
+	 * @return name of a programmer session command in RunRecord
+	 */
+	private String SessionPhase(String command)
+	{
+		if (command.startsWith("bscan "))
+			return "bscan";
+		else if (command.startsWith("fpga "))
+			return "fpga";
+		else if (command.startsWith("spi a") || command.startsWith("spi n") || command.startsWith("spi w"))
+			return "spi_program";
+		else if (command.startsWith("spi d"))
+			return "spi_delta";
+		else if (command.startsWith("spi c"))
+			return "spi_check";
+		else if (command.startsWith("spi p"))
+			return "spi_write";
+		else if (command.startsWith("spi e"))
+			return "spi_erase";
+		else if (command.startsWith("spi v"))
+			return "spi_verify";
+		else
+			return command;		// reconfigure, status, scan
+	}
+
+	/**
+	 * @return bytes transferred by a programmer session command, for RunRecord
+	 */
+	private long SessionBytes(String command)
+	{
+		if (command.startsWith("bscan "))
+			return BscanLength();
+		else if (command.startsWith("fpga ") || command.startsWith("spi a") || command.startsWith("spi d") || 
+				 command.startsWith("spi p") || command.startsWith("spi c") || command.startsWith("spi n") || 
+				 command.startsWith("spi w"))
+			return FinalBitLength();
+		else if (command.startsWith("spi e") || command.startsWith("spi v"))
+			return FlashImageBytes();
+		else
+			return 0;
+	}
+
+	/**
+	 * @return size of the image in SPI Flash as far as it is known, for deadlines
+	 */
+	private long FlashImageBytes()
+	{
+		if (finalBitImage != null)
+			return finalBitImage.length;
+		if ((finalBitFile != null) && finalBitFile.isFile())
+			return finalBitFile.length();
+		if ((targetBitFile != null) && targetBitFile.isFile())
+			return targetBitFile.length();
+		return 0;
+	}
+
+	/**
+	 * @return contents of the .bit file a programmer session command names as "-", null if none
+	 */
+	private byte[] SessionBitFile(String command)
+	{
+		if (command.equals("bscan " + STDIN_BIT_FILE))
+			return bscanSPIImage;
+		if ((command.startsWith("fpga ") || command.startsWith("spi a") || command.startsWith("spi d") || 
+			 command.startsWith("spi p") || command.startsWith("spi c") || command.startsWith("spi n") || 
+			 command.startsWith("spi w")) && 
+			command.endsWith(" " + STDIN_BIT_FILE))
+			return finalBitImage;
+		return null;
+	}
+
+	/** @return size of the bscan_spi .bit file */
+	private long BscanLength() {
+		return (bscanSPIImage != null) ? bscanSPIImage.length : bscanSPIBitFile.length();
+	}
+
+	/** @return size of the final .bit file */
+	private long FinalBitLength() {
+		return (finalBitImage != null) ? finalBitImage.length : finalBitFile.length();
+	}
+
+	/** @return final .bit file as papilio-prog argument, "-" if it is sent on StdIn */
+	private String FinalBitArgument() {
+		return (finalBitImage != null) ? STDIN_BIT_FILE : ProgrammerTools.CanonicalPath(finalBitFile);
+	}
+
+	/*	The merged .bit file goes to disk unless a session banner has confirmed that
+		papilio-prog reads .bit files from StdIn: older binaries, which also have no
+		session mode, would look for a file named "-". */
+	private void PrepareFinalBitFile()
+	{
+		File spillFile;
+
+		if (finalBitImage == null)
+			return;
+		OpenSession();
+		if (ProgrammerSession.hasStdinBitFiles())
+			return;
+		try {
+			spillFile = workspace.NewFile("out.bit");
+		}
+		catch (IOException e) {
+			System.err.println(e.getMessage());
+			return;
+		}
+		if (WriteFile(spillFile, finalBitImage)) {
+			finalBitFile = spillFile;
+			finalBitImage = null;
+		}
+	}
+
+	/**
+	 * Asks papilio-prog whether the SPI Flash holds the final .bit file already: "spi c"
+	 * compares the marker page written along with the image, and the first and last
+	 * page of the image, which takes a few page reads instead of a full erase, write
+	 * and verify.
+	 * @return
+	 * 		0 if the SPI Flash is current
+	 * 		1 if it is not, or this cannot be told (not wanted, no session or an older papilio-prog)
+	 * 		-1 if the session failed, errors have been counted
+	 */
+	private int CheckFlashImage()
+	{
+		RunRecord.PhaseTiming timing;
+		String command = "spi c " + FinalBitArgument();
+		int errorsBefore = errorCount, rc;
+
+		if (!programIfDifferent || doErase || !OpenSession() || !session.canCheckSpiImage())
+			return 1;
+		if (!RunInSession(new String[] {BscanSessionCommand()}))
+			return 1;
+		if (errorCount > errorsBefore)
+			return -1;
+
+		if (PapilioLoader.ECHO_COMMAND)
+			listener.Output(outputPrefix + "Session: " + command + "\n\n");
+		timing = runRecord.Begin(SessionPhase(command), SessionBytes(command));
+		rc = session.SendCommand(command, SessionBitFile(command), SessionDeadline(command));
+		timing.End(rc);
+		if (rc == -1) {
+			CloseSession();
+			useSession = false;
+			AddErrors(1);
+		}
+		return rc;
+	}
+
+	/**
+	 * Sectors which already hold the right bytes are left alone by "spi d", unless the
+	 * user has asked for [Erase] explicitly. Otherwise BoardLedger may tell that the
+	 * flash has been erased since it was last written ("spi w" skips erase and blank
+	 * check), or that this board's flash erases reliably because it was written and
+	 * verified before ("spi n" skips the blank check). Verify is never skipped.
+	 * @return session command which erases, writes and verifies the SPI Flash
+	 */
+	private String SpiProgramCommand()
+	{
+		BoardLedger.Entry entry;
+
+		if (doErase || !OpenSession())
+			return "spi a";
+		entry = BoardLedger.Lookup(board.getCacheKey());
+		/*	Only a serial number makes sure the ledger entry is about this very board, and
+			papilio-prog still erases if the flash turns out not to be blank. */
+		if ((entry != null) && (entry.getState() == BoardLedger.State.ERASED) && board.isSelectedBySerial() &&
+			session.canSkipErase())
+			return "spi w";
+		if (useDeltaSpi && session.canProgramSpiDelta())
+			return "spi d";
+		if ((entry != null) && session.canSkipBlankCheck())
+			return "spi n";
+		return "spi a";
+	}
+
+	/**
+	 * Tells the user which steps spiCommand has left out thanks to BoardLedger, and how
+	 * long they took when they were last done on this board.
+	 */
+	private void ReportLedgerSkip()
+	{
+		BoardLedger.Entry entry = BoardLedger.Lookup(board.getCacheKey());
+		String steps;
+		long savedMillis = 0;
+
+		if ((entry == null) || (errorCount > 0))
+			return;
+		if (spiCommand.equals("spi w")) {
+			steps = "erase and blank check";
+			BoardLedger.CountSkip(entry.getEraseMillis());
+			BoardLedger.CountSkip(entry.getBlankCheckMillis());
+			savedMillis = Math.max(0, entry.getEraseMillis()) + Math.max(0, entry.getBlankCheckMillis());
+		}
+		else if (spiCommand.equals("spi n")) {
+			steps = "blank check";
+			BoardLedger.CountSkip(entry.getBlankCheckMillis());
+			savedMillis = Math.max(0, entry.getBlankCheckMillis());
+		}
+		else
+			return;
+		listener.Output(outputPrefix + "Board ledger: flash " + BoardLedger.Describe(entry) + ", skipped " + steps + 
+						((savedMillis > 0) ? " (about " + savedMillis + " ms)" : "") + "." + eol);
+	}
+
+	/**
+	 * Takes note of what this run did to the SPI Flash. Only an image which has been
+	 * verified is recorded, anything else leaves the flash contents unknown.
+	 */
+	private void UpdateBoardLedger()
+	{
+		String boardKey = board.getCacheKey();
+		long eraseMillis = -1, blankCheckMillis = -1;
+
+		if (!spiErased && !spiWritten)
+			return;
+		if ((errorCount > 0) || (spiWritten && !spiVerified)) {
+			BoardLedger.Forget(boardKey);
+			return;
+		}
+		if (!spiWritten) {
+			BoardLedger.RecordErase(boardKey);
+			return;
+		}
+
+		// Only a full erase of the image's sectors is worth remembering; "spi d" and "spi w" erase less.
+		if ((spiCommand == null) || spiCommand.equals("spi a") || spiCommand.equals("spi n")) {
+			for (ProgressEvent phase : progressParser.PhaseSummaries()) {
+				if (phase.getPhase() == ProgressEvent.Phase.ERASE)
+					eraseMillis = phase.getElapsedMillis();
+				else if (phase.getPhase() == ProgressEvent.Phase.BLANK_CHECK)
+					blankCheckMillis = phase.getElapsedMillis();
+			}
+		}
+		try {
+			BoardLedger.RecordProgram(boardKey, FinalBitSha1(), FinalBitLength(), eraseMillis, blankCheckMillis);
+		}
+		catch (IOException e) {
+			System.err.println(e.getMessage());
+			BoardLedger.Forget(boardKey);
+		}
+	}
+
+	/** @return SHA-1 of the final .bit file as hex digits */
+	private String FinalBitSha1() throws IOException
+	{
+		BitstreamImage image = (finalBitImage != null) ? BitstreamImage.Wrap(finalBitImage) : BitstreamImage.Open(finalBitFile);
+		StringBuilder sb = new StringBuilder();
+		MessageDigest sha1;
+
+		try {
+			sha1 = MessageDigest.getInstance("SHA-1");
+			image.Digest(sha1);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage());
+		}
+		finally {
+			image.Close();
+		}
+		for (byte b : sha1.digest())
+			sb.append(String.format("%02x", b & 0xFF));
+		return sb.toString();
+	}
+
+	/**
+	 * @return
+	 * 		command to upload bscan_spi bit file into the session
+	 * 		null if it has already been uploaded 
+	 */
+	private String BscanSessionCommand()
+	{
+		if (bscanInSession)
+			return null;
+		if ((bscanSPIImage != null) && (session != null) && session.canStreamBitFiles())
+			return "bscan " + STDIN_BIT_FILE;
+		return "bscan " + ProgrammerTools.CanonicalPath(bscanSPIBitFile);
+	}
+
+	private void CloseSession()
+	{
+		if (session != null) {
+			session.Close();
+			session = null;
+		}
+		bscanInSession = false;
+	}
+
+
+	/**
+	 * Runs a console program and waits for it to finish, or to be destroyed by
+	 * ProcessWatchdog when it runs past timeoutMillis or the user cancels.
+	 * @param timing	phase of RunRecord this program belongs to, begun by the caller
+	 */
+	private void execSynchronously(String[] command, File workingDir, boolean parseStdOut, long timeoutMillis, 
+								   RunRecord.PhaseTiming timing) {
+		execSynchronously(command, workingDir, parseStdOut, timeoutMillis, timing, null, null);
+	}
+
+	/**
+	 * @param stdIn		data fed to the console program's StdIn, null for none
+	 * @param stdOut	where the console program's StdOut goes, as is, instead of the
+	 * 					Output log; null for the Output log
+	 */
+	private void execSynchronously(String[] command, File workingDir, boolean parseStdOut, long timeoutMillis, 
+								   RunRecord.PhaseTiming timing, byte[] stdIn, OutputStream stdOut)
+	{
+	    final long SIPHON_DRAIN_TIMEOUT = 5000;		// milliseconds
+	    Process process = null;
+	    ProcessWatchdog watchdog;
+	    int exitCode = 0;
+	    
+	    if (PapilioLoader.ECHO_COMMAND) {
+	    	String execCommand = "Executing...\n";
+	    	for (String item : command) {
+				execCommand += item + " ";
+			}
+			listener.Output(outputPrefix + execCommand + "\n\n");
+	    }
+	    
+	    StepConsumer consumer = new StepConsumer(parseStdOut);
+
+	    if (ProcessWatchdog.isCancelled()) {
+	    	timing.End(-1);
+	    	AddErrors(1);
+	    	return;
+	    }
+	    
+	    try {
+	      process = Runtime.getRuntime().exec(command, null, workingDir);
+	    } catch (IOException e) {
+	      System.err.println(e.getMessage());
+	      timing.End(-1);
+	      AddErrors(1);
+	      return;
+	    }
+	    timing.Spawned();
+	    watchdog = ProcessWatchdog.Watch(process, timeoutMillis, new File(command[0]).getName());
+	    
+	    // any output?
+	    MessageSiphon in = null;
+	    StreamPump outPump = null;
+	    if (stdOut == null)
+	    	in = new MessageSiphon("Message-Siphon-StdOut", process.getInputStream(), consumer);
+	    else
+	    	outPump = new StreamPump("Stream-Pump-StdOut", process.getInputStream(), stdOut, false);
+	    // any error message?
+	    MessageSiphon err = new MessageSiphon("Message-Siphon-StdErr", process.getErrorStream(), consumer);
+	    // any input?
+	    StreamPump inPump = null;
+	    if (stdIn != null)
+	    	inPump = new StreamPump("Stream-Pump-StdIn", new ByteArrayInputStream(stdIn), process.getOutputStream(), true);
+
+	    // Kick all of them off.
+	    err.KickOff();
+	    if (in != null)
+	    	in.KickOff();
+	    else
+	    	outPump.KickOff();
+	    if (inPump != null)
+	    	inPump.KickOff();
+
+	    // wait for the exec'd process to finish.  if interrupted
+	    // before waitFor returns, continue waiting
+	    boolean burning = true;
+	    while (burning) {
+	      try {
+/*	------------------------------------------------------------------------------------
+ * 		waitFor causes the current thread to wait, if necessary, until the process 
+ * 		represented by the Process object on which .waitFor() is called, has terminated. 
+ * 		waitFor method returns immediately if the subprocess has already terminated. 
+ * 		If the subprocess has not yet terminated, the calling thread will be blocked 
+ * 		until the subprocess exits. ProcessWatchdog makes sure that it does terminate.
+ *	------------------------------------------------------------------------------------ */
+			exitCode = process.waitFor();
+			watchdog.Done();
+			System.out.println("Exit code is " + exitCode);
+			if (watchdog.isKilled() && (exitCode == 0))
+			// => Destroyed process may still report success on some platforms.
+				exitCode = 1;
+			timing.End(exitCode);
+			AddErrors(exitCode);
+
+/*	------------------------------------------------------------------------------------
+ * 		One thread can wait for another thread to terminate by using one of the other
+ * 		thread's join methods.
+ * 		When in.getThread().join(millis) returns, in.run has finished unless the time
+ * 		ran out, which only happens if something else still holds the pipe open. The
+ * 		streams are closed then, and the (daemon) siphon thread is left to die.
+ *	------------------------------------------------------------------------------------ */
+			JoinSiphon((in != null) ? in.getThread() : outPump.getThread(), process.getInputStream(), SIPHON_DRAIN_TIMEOUT);
+			JoinSiphon(err.getThread(), process.getErrorStream(), SIPHON_DRAIN_TIMEOUT);
+			if ((outPump != null) && (outPump.getFailure() != null)) {
+				listener.Output(outputPrefix + outPump.getFailure().getMessage() + eol);
+				AddErrors(1);
+			}
+
+			burning = false;
+	      } catch (InterruptedException ignored) { }
+	    }
+	    if (watchdog.isExpired())
+	    	listener.Output(outputPrefix + new File(command[0]).getName() + 
+	    						" did not finish within " + timeoutMillis / 1000 + " s and has been stopped." + eol);
+
+	    if (parseStdOut)
+	    	deviceID = (consumer.getDesc() != null) ? consumer.getDesc() : "";
+	}
+
+	private void JoinSiphon(Thread siphonThread, InputStream stream, long timeoutMillis) 
+		throws InterruptedException
+	{
+		if (siphonThread == null)
+			return;
+		siphonThread.join(timeoutMillis);
+		if (siphonThread.isAlive()) {
+			try {
+				stream.close();
+			}
+			catch (IOException e) {
+				System.err.println(e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Receives output of one console program (or programmer session) and passes it
+	 * on to DeliverMessage. Optionally picks up the FPGA description from the
+	 * "Desc: " line printed by JTAG chain scan. Being one per console program, steps
+	 * running at the same time do not see each other's output.
+	 */
+	private class StepConsumer implements MessageConsumer
+	{
+		private volatile boolean lookforDesc;
+		private volatile String desc = null;
+
+		public StepConsumer(boolean lookforDesc) {
+			this.lookforDesc = lookforDesc;
+		}
+
+		public String getDesc() {
+			return desc;
+		}
+
+		public void StopParsing() {
+			lookforDesc = false;
+		}
+
+		@Override
+		public void DeliverMessage(String stdline)
+		{
+			AsyncProgrammer.this.DeliverMessage(stdline);
+
+			if ((lookforDesc) && (desc == null)) {
+				int pos = stdline.lastIndexOf("Desc: ");
+				if (pos != -1) {
+					if (ProgrammerTools.runningonWindows)
+						desc = stdline.substring(pos + "Desc: ".length(), stdline.length() - 2);
+					else
+						desc = stdline.substring(pos + "Desc: ".length(), stdline.length() - 1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Part of the MessageConsumer interface.
+	 * This is called whenever a piece (usually a line) of error message is
+	 * spewed out from the compiler. The errors are parsed for their contents
+	 * and line number, which is then reported back to Editor.
+	 * The line is only queued for the Output log view, so that the calling
+	 * MessageSiphon thread goes straight back to reading the console program.
+	 */
+	@Override
+	public void DeliverMessage(final String stdline)
+	{
+		int pos = ProgressParser.ProgressOffset(stdline);
+
+		if (pos > 0) {
+		// => Progress line glued to a message without a line end.
+			DeliverMessage(stdline.substring(0, pos) + eol);
+			DeliverMessage(stdline.substring(pos));
+			return;
+		}
+		if (pos == 0) {
+		// => Machine readable progress of papilio-prog -P, not meant for the Output log.
+			ProgressEvent event = progressParser.Parse(stdline);
+			if (event != null) {
+				board.setProgress(event);
+				listener.Progress(this, event);
+			}
+			return;
+		}
+		if (capturedLines != null) {
+			synchronized (capturedLines) {
+				capturedLines.add(stdline);
+			}
+		}
+		else
+			listener.Output(outputPrefix + stdline);
+	}
+
+}
@@ -0,0 +1,230 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Header of a Xilinx .bit file, read the way BitFile::readFile of papilio-prog reads
+ * it: 13 bytes which are skipped, then fields a (design name), b (part name), c (date)
+ * and d (time), each a key byte and a 16-bit length followed by a zero terminated
+ * string, and finally e, a key byte and the 32-bit length of the configuration data
+ * which follows. Unknown fields are skipped.
+ * <P>
+ * Only the header is read, so this is cheap enough to do whenever the target .bit
+ * file changes, and lets the loader check a .bit file before papilio-prog sees it.
+ * <P>
+ */
+public class BitFileHeader
+{
+	private static final int SKIPPED_BYTES = 13;
+
+	private String designName = "", partName = "", date = "", time = "";
+	private long payloadOffset, payloadLength;
+
+	private BitFileHeader() {
+	}
+
+	/**
+	 * @throws IOException if the file cannot be read, is not a .bit file or is shorter
+	 * 		   than its header says
+	 */
+	public static BitFileHeader Read(File bitFile) throws IOException
+	{
+		InputStream is = new BufferedInputStream(new FileInputStream(bitFile), 512);
+		BitFileHeader header;
+
+		try {
+			header = Parse(is);
+		}
+		finally {
+			is.close();
+		}
+		if (header.payloadOffset + header.payloadLength > bitFile.length())
+			throw new IOException("truncated, " + (header.payloadOffset + header.payloadLength) + 
+								  " bytes expected but only " + bitFile.length() + " found");
+		return header;
+	}
+
+	/**
+	 * @param bitFile	whole .bit file
+	 */
+	public static BitFileHeader Parse(byte[] bitFile) throws IOException {
+		return Parse(ByteBuffer.wrap(bitFile));
+	}
+
+	/**
+	 * @param bitFile	whole .bit file from its position to its limit, which are left alone
+	 */
+	public static BitFileHeader Parse(ByteBuffer bitFile) throws IOException
+	{
+		final ByteBuffer source = bitFile.duplicate();
+		BitFileHeader header = Parse(new InputStream() {
+			@Override
+			public int read() {
+				return source.hasRemaining() ? (source.get() & 0xFF) : -1;
+			}
+		});
+
+		if (header.payloadOffset + header.payloadLength > bitFile.remaining())
+			throw new IOException("truncated");
+		return header;
+	}
+
+	/**
+	 * Reads the header from is, leaving is at the first byte of configuration data.
+	 */
+	public static BitFileHeader Parse(InputStream is) throws IOException
+	{
+		DataInputStream dis = new DataInputStream(is);
+		BitFileHeader header = new BitFileHeader();
+		long offset = SKIPPED_BYTES;
+		int key, length;
+		String value;
+
+		try {
+			dis.readFully(new byte[SKIPPED_BYTES]);
+			while (true) {
+				key = dis.read();
+				if (key == -1)
+					throw new EOFException();
+				offset++;
+				if (key == 'e') {
+					header.payloadLength = dis.readInt() & 0xFFFFFFFFL;
+					header.payloadOffset = offset + 4;
+					if (header.payloadLength == 0)
+						throw new IOException("not a Xilinx .bit file (no configuration data)");
+					return header;
+				}
+				length = dis.readUnsignedShort();
+				value = ReadString(dis, length);
+				offset += 2 + length;
+				switch (key) {
+				case 'a': header.designName = value; break;
+				case 'b': header.partName = value; break;
+				case 'c': header.date = value; break;
+				case 'd': header.time = value; break;
+				default:
+					if ((key < 'a') || (key > 'z'))
+					// => Not a .bit file at all rather than a field of a newer one.
+						throw new IOException("not a Xilinx .bit file (unknown field " + key + ")");
+				}
+			}
+		}
+		catch (EOFException e) {
+			throw new IOException("not a Xilinx .bit file (unexpected end of file)");
+		}
+	}
+
+	/** @return e.g. "top.ncd;UserID=0xFFFFFFFF" */
+	public String getDesignName() {
+		return designName;
+	}
+
+	/** @return e.g. "3s500evq100" */
+	public String getPartName() {
+		return partName;
+	}
+
+	/** @return e.g. "2011/09/22" */
+	public String getDate() {
+		return date;
+	}
+
+	/** @return e.g. "10:50:18" */
+	public String getTime() {
+		return time;
+	}
+
+	/** @return offset of the first byte of configuration data */
+	public long getPayloadOffset() {
+		return payloadOffset;
+	}
+
+	/** @return bytes of configuration data */
+	public long getPayloadLength() {
+		return payloadLength;
+	}
+
+	/**
+	 * @param deviceID	FPGA description found by JTAG chain scan, e.g. "XC3S500E"
+	 * @param devices	known FPGAs, which tell a family suffix from a package, e.g. the
+	 * 					"t" of XC6SLX45T from the "tqg144" of an XC6SLX9
+	 * @return false if this .bit file is known to be for another FPGA
+	 */
+	public boolean Matches(String deviceID, DeviceDatabase devices)
+	{
+		String device = deviceID.trim().toLowerCase(), part = partName.toLowerCase(), name;
+		char next;
+
+		if (!device.startsWith("xc") || part.isEmpty())
+		// => Nothing to compare with.
+			return true;
+		device = device.substring(2);
+		if (part.startsWith("xc"))
+			part = part.substring(2);
+		if (!part.startsWith(device))
+			return false;
+
+		// The part name adds package and speed grade. If it starts with a longer FPGA
+		// name, it is for that FPGA: "3s500evq100" is no XC3S500.
+		for (DeviceDatabase.Device known : devices.getDevices()) {
+			name = known.getName().toLowerCase();
+			if (name.startsWith("xc"))
+				name = name.substring(2);
+			if ((name.length() > device.length()) && name.startsWith(device) && part.startsWith(name))
+				return false;
+		}
+		if (part.length() == device.length())
+			return true;
+		// FPGAs missing from the list: a digit continues the number ("3s50" is no
+		// "3s500"), and no package starts like the e, a and an families of Spartan-3.
+		next = part.charAt(device.length());
+		return !Character.isDigit(next) && (next != 'e') && (next != 'a') && (next != 'n');
+	}
+
+	/** @return one line for the user, e.g. "3s500evq100, top.ncd, 2011/09/22 10:50:18, 169216 bytes" */
+	public String Summary()
+	{
+		int pos = designName.indexOf(';');
+
+		return partName + ", " + ((pos == -1) ? designName : designName.substring(0, pos)) + ", " + 
+			   date + " " + time + ", " + payloadLength + " bytes";
+	}
+
+	private static String ReadString(DataInputStream dis, int length) throws IOException
+	{
+		byte[] bytes = new byte[length];
+
+		dis.readFully(bytes);
+		// Zero terminated
+		while ((length > 0) && (bytes[length - 1] == 0))
+			length--;
+		return new String(bytes, 0, length, "US-ASCII");
+	}
+
+}
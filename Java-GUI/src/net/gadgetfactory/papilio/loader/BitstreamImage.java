@@ -0,0 +1,208 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * Read-only view of a whole .bit file, read once or memory-mapped. Parsing the header,
+ * hashing and slicing out the configuration data all work on that one buffer, so a
+ * bitstream is not copied again unless ToByteArray is called.
+ * <P>
+ * Files shorter than MAP_THRESHOLD, which takes in every Spartan-3E and Spartan-6
+ * bitstream of the Papilio boards, are simply read: setting up and tearing down a
+ * mapping costs more than copying a few hundred KB, and hashing or writing out a heap
+ * array is faster than going through a mapped buffer.
+ * <P>
+ * Windows does not let a mapped file be replaced, and Java only unmaps a file once
+ * the buffer has been garbage collected. Close therefore unmaps at once where the JVM
+ * allows it; an image must not be used after it has been closed.
+ * <P>
+ */
+public class BitstreamImage
+{
+	public static final int MAP_THRESHOLD = 4 * 1024 * 1024;
+	private static final int CHUNK_BYTES = 65536;
+
+	// Read-only view handed out, and the mapping or array behind it (null if none).
+	private ByteBuffer buffer;
+	private MappedByteBuffer mapping;
+	private byte[] array;
+	private BitFileHeader header = null;
+
+	private BitstreamImage(ByteBuffer buffer)
+	{
+		this.buffer = buffer.asReadOnlyBuffer();
+		mapping = (buffer instanceof MappedByteBuffer) ? (MappedByteBuffer) buffer : null;
+		// Read-only views never expose their array, so keep it for the bulk operations.
+		array = (buffer.hasArray() && (buffer.arrayOffset() == 0)) ? buffer.array() : null;
+	}
+
+	/**
+	 * @throws IOException if the file cannot be read or is larger than 2 GB
+	 */
+	public static BitstreamImage Open(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		FileChannel channel = raf.getChannel();
+		ByteBuffer buffer;
+
+		try {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException(file.getName() + " is too large");
+			if (channel.size() >= MAP_THRESHOLD)
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			else {
+				buffer = ByteBuffer.allocate((int) channel.size());
+				while (buffer.hasRemaining() && (channel.read(buffer) != -1))
+					;
+				buffer.flip();
+			}
+		}
+		finally {
+			// The mapping stays valid once the file is closed.
+			raf.close();
+		}
+		return new BitstreamImage(buffer);
+	}
+
+	/**
+	 * @param contents	whole .bit file, not copied
+	 */
+	public static BitstreamImage Wrap(byte[] contents) {
+		return new BitstreamImage(ByteBuffer.wrap(contents));
+	}
+
+	public int getLength() {
+		return buffer.limit();
+	}
+
+	/** @return whole file, positioned at 0; its position and limit are the caller's */
+	public ByteBuffer getBuffer() {
+		return buffer.duplicate();
+	}
+
+	/**
+	 * @throws IOException if this is not a .bit file, or is shorter than its header says
+	 */
+	public synchronized BitFileHeader getHeader() throws IOException
+	{
+		if (header == null)
+			header = BitFileHeader.Parse(getBuffer());
+		return header;
+	}
+
+	/** @return bytes [offset, offset + length) of the file */
+	public ByteBuffer Slice(int offset, int length)
+	{
+		ByteBuffer slice = getBuffer();
+
+		slice.position(offset);
+		slice.limit(offset + length);
+		return slice.slice();
+	}
+
+	/** @return configuration data which follows the header */
+	public ByteBuffer getPayload() throws IOException
+	{
+		BitFileHeader bitHeader = getHeader();
+
+		return Slice((int) bitHeader.getPayloadOffset(), (int) bitHeader.getPayloadLength());
+	}
+
+	/**
+	 * Feeds the whole file to digest.
+	 */
+	public void Digest(MessageDigest digest)
+	{
+		if (array != null)
+			digest.update(array, 0, getLength());
+		else
+			digest.update(getBuffer());
+	}
+
+	public void WriteTo(OutputStream os) throws IOException
+	{
+		ByteBuffer source = getBuffer();
+		byte[] chunk;
+		int count;
+
+		if (array != null) {
+			os.write(array, 0, getLength());
+			return;
+		}
+		chunk = new byte[CHUNK_BYTES];
+		while (source.hasRemaining()) {
+			count = Math.min(chunk.length, source.remaining());
+			source.get(chunk, 0, count);
+			os.write(chunk, 0, count);
+		}
+	}
+
+	/** @return copy of the whole file, which may be changed */
+	public byte[] ToByteArray()
+	{
+		byte[] contents;
+
+		if (array != null)
+			return array.clone();
+		contents = new byte[getLength()];
+		getBuffer().get(contents);
+		return contents;
+	}
+
+	/**
+	 * Unmaps the file, so that it can be replaced right away.
+	 */
+	public synchronized void Close()
+	{
+		buffer = ByteBuffer.allocate(0);
+		array = null;
+		if (mapping != null)
+			Unmap(mapping);
+		mapping = null;
+	}
+
+	/*	There is no public API for it before Java 9 (sun.misc.Unsafe.invokeCleaner); on
+		JVMs which do not allow this the mapping goes away with the garbage collector. */
+	private static void Unmap(ByteBuffer mapped)
+	{
+		Method cleanerMethod;
+		Object cleaner;
+
+		try {
+			cleanerMethod = mapped.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			cleaner = cleanerMethod.invoke(mapped);
+			if (cleaner != null)
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+		}
+		catch (Exception ignored) { }
+	}
+
+}
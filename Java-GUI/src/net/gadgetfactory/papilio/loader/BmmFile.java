@@ -0,0 +1,205 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The parts of a .bmm memory map (as written by the Xilinx tools for data2mem) which
+ * Papilio Loader cares about: address spaces and the block RAMs, with their bit lanes
+ * and placement, which make them up.
+ * <PRE>
+ * ADDRESS_SPACE bootram RAMB16 [0x00000000:0x00003FFF]
+ *     BUS_BLOCK
+ *         zpu/ram/RAMB16_S4_S4_inst0 [31:28] LOC = X0Y3;
+ *         ...
+ *     END_BUS_BLOCK;
+ * END_ADDRESS_SPACE;
+ * </PRE>
+ */
+public class BmmFile
+{
+	private static final Pattern ADDRESS_SPACE = Pattern.compile(
+			"ADDRESS_SPACE\\s+(\\S+)\\s+(\\S+)\\s*\\[\\s*(\\w+)\\s*:\\s*(\\w+)\\s*\\]", Pattern.CASE_INSENSITIVE);
+	private static final Pattern BIT_LANE = Pattern.compile(
+			"(\\S+)\\s*\\[\\s*(\\d+)\\s*:\\s*(\\d+)\\s*\\](.*)", Pattern.CASE_INSENSITIVE);
+	private static final Pattern PLACEMENT = Pattern.compile(
+			"(?:LOC|PLACED)\\s*=\\s*(\\w+)", Pattern.CASE_INSENSITIVE);
+
+	/** One block RAM and the bits of the bus it holds. */
+	public static class BitLane
+	{
+		private final String instance, location;
+		private final int msb, lsb;
+
+		BitLane(String instance, int msb, int lsb, String location)
+		{
+			this.instance = instance;
+			this.msb = msb;
+			this.lsb = lsb;
+			this.location = location;
+		}
+
+		public String getInstance() {
+			return instance;
+		}
+
+		public int getMsb() {
+			return msb;
+		}
+
+		public int getLsb() {
+			return lsb;
+		}
+
+		/** @return e.g. X0Y3, empty if the .bmm file does not say where it was placed */
+		public String getLocation() {
+			return location;
+		}
+	}
+
+	public static class AddressSpace
+	{
+		private final String name, memoryType;
+		private final long start, end;
+		private final List<BitLane> lanes = new ArrayList<BitLane>();
+
+		AddressSpace(String name, String memoryType, long start, long end)
+		{
+			this.name = name;
+			this.memoryType = memoryType;
+			this.start = start;
+			this.end = end;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getMemoryType() {
+			return memoryType;
+		}
+
+		public long getStart() {
+			return start;
+		}
+
+		/** @return last address, inclusive */
+		public long getEnd() {
+			return end;
+		}
+
+		public long getSizeBytes() {
+			return end - start + 1;
+		}
+
+		public List<BitLane> getLanes() {
+			return Collections.unmodifiableList(lanes);
+		}
+	}
+
+	private final List<AddressSpace> spaces = new ArrayList<AddressSpace>();
+
+	/**
+	 * @throws IOException if the file cannot be read or does not look like a .bmm file
+	 */
+	public static BmmFile Read(File bmmFile) throws IOException
+	{
+		BmmFile bmm = new BmmFile();
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(bmmFile), "US-ASCII"));
+		AddressSpace current = null;
+		String sLine, upper, location;
+		Matcher matcher, placement;
+		int lineNumber = 0, pos;
+
+		try {
+			while ((sLine = br.readLine()) != null) {
+				lineNumber++;
+				pos = sLine.indexOf("//");
+				if (pos != -1)
+					sLine = sLine.substring(0, pos);
+				sLine = sLine.trim();
+				if (sLine.isEmpty())
+					continue;
+				upper = sLine.toUpperCase();
+
+				if (upper.startsWith("ADDRESS_SPACE")) {
+					matcher = ADDRESS_SPACE.matcher(sLine);
+					if (!matcher.lookingAt())
+						throw new IOException(bmmFile.getName() + " line " + lineNumber + ": bad ADDRESS_SPACE");
+					current = new AddressSpace(matcher.group(1), matcher.group(2),
+											   ParseNumber(matcher.group(3)), ParseNumber(matcher.group(4)));
+					bmm.spaces.add(current);
+				}
+				else if (upper.startsWith("END_ADDRESS_SPACE"))
+					current = null;
+				else if ((current != null) && !upper.startsWith("BUS_BLOCK") && !upper.startsWith("END_BUS_BLOCK")) {
+					matcher = BIT_LANE.matcher(sLine);
+					if (matcher.lookingAt()) {
+						placement = PLACEMENT.matcher(matcher.group(4));
+						location = placement.find() ? placement.group(1) : "";
+						current.lanes.add(new BitLane(matcher.group(1), Integer.parseInt(matcher.group(2)),
+													  Integer.parseInt(matcher.group(3)), location));
+					}
+				}
+			}
+		}
+		catch (NumberFormatException e) {
+			throw new IOException(bmmFile.getName() + " line " + lineNumber + ": " + e.getMessage());
+		}
+		finally {
+			br.close();
+		}
+		if (bmm.spaces.isEmpty())
+			throw new IOException(bmmFile.getName() + " has no ADDRESS_SPACE");
+		return bmm;
+	}
+
+	public List<AddressSpace> getAddressSpaces() {
+		return Collections.unmodifiableList(spaces);
+	}
+
+	/** @return bytes of all address spaces together */
+	public long getMemoryBytes()
+	{
+		long total = 0;
+
+		for (AddressSpace space : spaces)
+			total += space.getSizeBytes();
+		return total;
+	}
+
+	private static long ParseNumber(String number)
+	{
+		if (number.startsWith("0x") || number.startsWith("0X"))
+			return Long.parseLong(number.substring(2), 16);
+		return Long.parseLong(number);
+	}
+
+}
@@ -0,0 +1,291 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * What Papilio Loader last did to the SPI Flash of each board, kept in board-ledger.txt
+ * of the settings folder so that it outlives the program: the SHA-1 and length of the
+ * image written, or that the flash was erased, when, and how long erasing and blank
+ * checking took the last time they were done.
+ * <P>
+ * Boards are told apart by BoardTarget.getCacheKey, i.e. by the papilio-prog switches
+ * which select them, so another board plugged in instead gets the entry of the one
+ * before, and the flash may have been written by another tool or PC since. Skipping
+ * the blank check is safe anyway, as the verify pass finds what it would have found.
+ * The erase is only skipped for boards selected by FTDI serial number, and only with
+ * "spi w", which first reads a page of every sector the image goes to and erases
+ * after all if one of them is not blank. Callers must Forget a board as soon as an
+ * operation on it fails, so that the next run erases again.
+ * <P>
+ * Shared by all AsyncProgrammer threads.
+ */
+public class BoardLedger
+{
+	private static final String LEDGER_FILE = "board-ledger.txt";
+
+	public enum State
+	{
+		ERASED, PROGRAMMED
+	}
+
+	/** Last known contents of the SPI Flash of one board. */
+	public static class Entry
+	{
+		private State state;
+		private String sha1 = "-";
+		private long imageBytes = 0, timeMillis;
+		// Measured on this board, -1 if never.
+		private long eraseMillis = -1, blankCheckMillis = -1;
+
+		public State getState() {
+			return state;
+		}
+
+		/** @return SHA-1 of the image written, "-" if erased */
+		public String getSha1() {
+			return sha1;
+		}
+
+		public long getImageBytes() {
+			return imageBytes;
+		}
+
+		/** @return when the flash was last written or erased */
+		public long getTimeMillis() {
+			return timeMillis;
+		}
+
+		/** @return how long the last erase before writing took, -1 if unknown */
+		public long getEraseMillis() {
+			return eraseMillis;
+		}
+
+		/** @return how long the last blank check took, -1 if unknown */
+		public long getBlankCheckMillis() {
+			return blankCheckMillis;
+		}
+
+		@Override
+		public String toString() {
+			return state + " " + sha1 + " " + imageBytes + " " + timeMillis + " " + eraseMillis + " " + blankCheckMillis;
+		}
+
+		static Entry Parse(String value)
+		{
+			String[] fields = value.trim().split("\\s+");
+			Entry entry = new Entry();
+
+			if (fields.length != 6)
+				return null;
+			try {
+				entry.state = State.valueOf(fields[0]);
+				entry.sha1 = fields[1];
+				entry.imageBytes = Long.parseLong(fields[2]);
+				entry.timeMillis = Long.parseLong(fields[3]);
+				entry.eraseMillis = Long.parseLong(fields[4]);
+				entry.blankCheckMillis = Long.parseLong(fields[5]);
+			}
+			catch (IllegalArgumentException e) {
+				return null;
+			}
+			return entry;
+		}
+	}
+
+	private static File ledgerFile = null;
+	// Read from ledgerFile on first use.
+	private static Map<String, Entry> entries = null;
+	private static long skips = 0, savedMillis = 0;
+
+	/**
+	 * @param folder	settings folder, null to turn the ledger off
+	 */
+	public static synchronized void setFolder(File folder)
+	{
+		ledgerFile = (folder == null) ? null : new File(folder, LEDGER_FILE);
+		entries = null;
+	}
+
+	/**
+	 * @param boardKey	identifies the board, see BoardTarget.getCacheKey
+	 * @return what the SPI Flash of the board holds, null if unknown or the ledger is off
+	 */
+	public static synchronized Entry Lookup(String boardKey)
+	{
+		if (ledgerFile == null)
+			return null;
+		return Entries().get(boardKey);
+	}
+
+	/**
+	 * Takes note that the whole SPI Flash of the board has been erased. How long that
+	 * took is not remembered, as erasing before writing only erases the image's sectors.
+	 */
+	public static synchronized void RecordErase(String boardKey)
+	{
+		Entry entry;
+
+		if (ledgerFile == null)
+			return;
+		entry = NewEntry(boardKey, State.ERASED);
+		entry.sha1 = "-";
+		entry.imageBytes = 0;
+		Save();
+	}
+
+	/**
+	 * Takes note of an image written to and verified in the SPI Flash of the board.
+	 * @param eraseMillis		how long erasing before writing took, -1 if not measured
+	 * @param blankCheckMillis	how long the blank check took, -1 if not measured
+	 */
+	public static synchronized void RecordProgram(String boardKey, String sha1, long imageBytes, 
+												  long eraseMillis, long blankCheckMillis)
+	{
+		Entry entry;
+
+		if (ledgerFile == null)
+			return;
+		entry = NewEntry(boardKey, State.PROGRAMMED);
+		entry.sha1 = sha1;
+		entry.imageBytes = imageBytes;
+		if (eraseMillis >= 0)
+			entry.eraseMillis = eraseMillis;
+		if (blankCheckMillis >= 0)
+			entry.blankCheckMillis = blankCheckMillis;
+		Save();
+	}
+
+	public static synchronized void Forget(String boardKey)
+	{
+		if ((ledgerFile == null) || (Entries().remove(boardKey) == null))
+			return;
+		Save();
+	}
+
+	/**
+	 * Counts a step skipped thanks to the ledger.
+	 * @param millis	how long it took when it was last done, -1 if unknown
+	 */
+	public static synchronized void CountSkip(long millis)
+	{
+		skips++;
+		if (millis > 0)
+			savedMillis += millis;
+	}
+
+	/** @return e.g. "Board ledger: 2 steps skipped, about 5400 ms saved" */
+	public static synchronized String Statistics() {
+		return "Board ledger: " + skips + ((skips == 1) ? " step" : " steps") + " skipped, about " + 
+			   savedMillis + " ms saved";
+	}
+
+	/** @return e.g. "erased on Sun Oct 18 10:50:18 CEST 2026" */
+	public static String Describe(Entry entry)
+	{
+		return ((entry.state == State.ERASED) ? "erased" : "written") + " on " + 
+			   new Date(entry.timeMillis);
+	}
+
+	/*	Timings measured earlier stay with the board whatever happens to its flash. */
+	private static Entry NewEntry(String boardKey, State state)
+	{
+		Entry previous = Entries().get(boardKey), entry = new Entry();
+
+		entry.state = state;
+		entry.timeMillis = System.currentTimeMillis();
+		if (previous != null) {
+			entry.eraseMillis = previous.eraseMillis;
+			entry.blankCheckMillis = previous.blankCheckMillis;
+		}
+		entries.put(boardKey, entry);
+		return entry;
+	}
+
+	private static Map<String, Entry> Entries()
+	{
+		Properties stored = new Properties();
+		InputStream is;
+		Entry entry;
+
+		if (entries != null)
+			return entries;
+		entries = new HashMap<String, Entry>();
+		if (!ledgerFile.isFile())
+			return entries;
+		try {
+			is = new FileInputStream(ledgerFile);
+			try {
+				stored.load(is);
+			}
+			finally {
+				is.close();
+			}
+		}
+		catch (IOException e) {
+			System.err.println(ledgerFile + ": " + e.getMessage());
+			return entries;
+		}
+		for (String boardKey : stored.stringPropertyNames()) {
+			entry = Entry.Parse(stored.getProperty(boardKey));
+			if (entry != null)
+				entries.put(boardKey, entry);
+		}
+		return entries;
+	}
+
+	/*	Written under a temporary name and renamed, so that a crash leaves the old ledger. */
+	private static void Save()
+	{
+		Properties stored = new Properties();
+		File tmpFile = new File(ledgerFile.getPath() + ".tmp");
+		OutputStream os;
+
+		for (Map.Entry<String, Entry> entry : entries.entrySet())
+			stored.setProperty(entry.getKey(), entry.getValue().toString());
+		try {
+			os = new FileOutputStream(tmpFile);
+			try {
+				stored.store(os, "Papilio Loader board ledger: state sha1 bytes time erase_ms blank_check_ms");
+			}
+			finally {
+				os.close();
+			}
+			ledgerFile.delete();
+			if (!tmpFile.renameTo(ledgerFile))
+				tmpFile.delete();
+		}
+		catch (IOException e) {
+			System.err.println(ledgerFile + ": " + e.getMessage());
+			tmpFile.delete();
+		}
+	}
+
+}
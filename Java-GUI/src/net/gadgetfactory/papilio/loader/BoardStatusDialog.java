@@ -0,0 +1,163 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.BorderFactory;
+import javax.swing.JDialog;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.Timer;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * Non-modal window listing the boards of a multi-board run with their status and timing.
+ * <P>
+ * BoardTarget is updated by the worker threads; this dialog simply repaints the table a
+ * few times a second on the EDT while it is visible.
+ * <P>
+ */
+public class BoardStatusDialog extends JDialog implements ActionListener
+{
+	private final int REFRESH_INTERVAL = 250;	// milliseconds
+	private final String[] COLUMN_NAMES = {"Board", "Status", "Progress", "Time (s)", "Errors"};
+
+	private List<BoardTarget> boards = new ArrayList<BoardTarget>();
+	private BoardTableModel boardModel = new BoardTableModel();
+	private JLabel lblSummary = new JLabel(" ");
+	private Timer refreshTimer = new Timer(REFRESH_INTERVAL, this);
+	private long runStartNanos, runElapsedNanos = -1;
+
+	public BoardStatusDialog(JFrame owner)
+	{
+		super(owner, "Boards", false);
+
+		JTable tblBoards = new JTable(boardModel);
+		tblBoards.getColumnModel().getColumn(0).setPreferredWidth(220);
+		tblBoards.getColumnModel().getColumn(2).setPreferredWidth(200);
+
+		lblSummary.setBorder(BorderFactory.createEmptyBorder(5, 10, 5, 10));
+		this.getContentPane().add(new JScrollPane(tblBoards), BorderLayout.CENTER);
+		this.getContentPane().add(lblSummary, BorderLayout.SOUTH);
+		this.setPreferredSize(new Dimension(600, 250));
+		this.pack();
+		this.setLocationRelativeTo(owner);
+	}
+
+	/**
+	 * Shows boards of a run which is about to start. Must be called on the EDT.
+	 */
+	public void StartRun(List<BoardTarget> runBoards)
+	{
+		boards = new ArrayList<BoardTarget>(runBoards);
+		runStartNanos = System.nanoTime();
+		runElapsedNanos = -1;
+		boardModel.fireTableDataChanged();
+		refreshTimer.start();
+		this.setVisible(true);
+	}
+
+	/**
+	 * Freezes the summary line once all boards are done. Must be called on the EDT.
+	 */
+	public void EndRun()
+	{
+		runElapsedNanos = System.nanoTime() - runStartNanos;
+		refreshTimer.stop();
+		Refresh();
+	}
+
+	/**	Called by refreshTimer on the EDT. */
+	@Override
+	public void actionPerformed(ActionEvent e) {
+		Refresh();
+	}
+
+	private void Refresh()
+	{
+		int done = 0, failed = 0;
+		long sumMillis = 0, elapsedMillis;
+
+		for (BoardTarget board : boards) {
+			if (board.getStatus() == BoardTarget.Status.DONE)
+				done++;
+			else if (board.getStatus() == BoardTarget.Status.FAILED)
+				failed++;
+			sumMillis += board.getElapsedMillis();
+		}
+		elapsedMillis = ((runElapsedNanos >= 0) ? runElapsedNanos : System.nanoTime() - runStartNanos) / 1000000;
+
+		lblSummary.setText(String.format("%d of %d done, %d failed. Wall time %.1f s, sum of board times %.1f s",
+										 done, boards.size(), failed, elapsedMillis / 1000.0, sumMillis / 1000.0));
+		if (boards.size() > 0)
+			boardModel.fireTableRowsUpdated(0, boards.size() - 1);
+	}
+
+
+	private class BoardTableModel extends AbstractTableModel
+	{
+		@Override
+		public int getRowCount() {
+			return boards.size();
+		}
+
+		@Override
+		public int getColumnCount() {
+			return COLUMN_NAMES.length;
+		}
+
+		@Override
+		public String getColumnName(int column) {
+			return COLUMN_NAMES[column];
+		}
+
+		@Override
+		public Object getValueAt(int row, int column)
+		{
+			BoardTarget board = boards.get(row);
+
+			switch (column) {
+			case 0:
+				return board.toString();
+			case 1:
+				return board.getStatus().toString();
+			case 2:
+				if ((board.getStatus() != BoardTarget.Status.RUNNING) || (board.getProgress() == null))
+					return "";
+				return board.getProgress().toString();
+			case 3:
+				if (board.getStatus() == BoardTarget.Status.WAITING)
+					return "";
+				return String.format("%.1f", board.getElapsedMillis() / 1000.0);
+			default:
+				return (board.getStatus() == BoardTarget.Status.WAITING) ? "" : "" + board.getErrorCount();
+			}
+		}
+	}
+
+}
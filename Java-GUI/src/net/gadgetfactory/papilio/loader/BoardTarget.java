@@ -0,0 +1,209 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/**
+ * One attached Papilio board, i.e. one FTDI device, and how far programming it has got.
+ * <P>
+ * The Board Name text box accepts a single FTDI device description (as before), a comma
+ * separated list of descriptions, or ALL_BOARDS to program every attached board. In the
+ * last case boards are told apart by their FTDI serial number, since boards of the same
+ * kind share one description.
+ * <P>
+ */
+public class BoardTarget
+{
+	public static final String ALL_BOARDS = "*";
+	private static final String LISTING_DEVICE = "Device: ";
+	private static final String LISTING_SERIAL = "Serial: ";
+
+	public enum Status
+	{
+		WAITING("Waiting"), RUNNING("Running"), DONE("Done"), FAILED("Failed");
+
+		private String displayStr;
+
+		private Status(String displayStr) { this.displayStr = displayStr; }
+		@Override
+		public String toString() {
+			return displayStr;
+		}
+	}
+
+	private final String label;
+	private final String[] deviceSwitches;
+
+	private volatile Status status = Status.WAITING;
+	private volatile long startNanos = 0, elapsedNanos = 0;
+	private volatile int errorCount = 0;
+	private volatile ProgressEvent progress = null;
+
+	private BoardTarget(String label, String[] deviceSwitches)
+	{
+		this.label = label;
+		this.deviceSwitches = deviceSwitches;
+	}
+
+	/**
+	 * @param boardName		FTDI device description, may be empty to use the first device
+	 */
+	public static BoardTarget ByName(String boardName)
+	{
+		if (boardName.isEmpty())
+			return new BoardTarget("", new String[0]);
+		return new BoardTarget(boardName, new String[] {"-d", "\"" + boardName + "\""});
+	}
+
+	public static BoardTarget BySerial(String serial, String description)
+	{
+		String label = description.isEmpty() ? serial : description + " (" + serial + ")";
+		return new BoardTarget(label, new String[] {"-S", serial});
+	}
+
+	/**
+	 * @return true if boardName asks for more than one board
+	 */
+	public static boolean IsBoardList(String boardName)
+	{
+		String trimmed = boardName.trim();
+		return trimmed.equals(ALL_BOARDS) || (trimmed.indexOf(',') != -1);
+	}
+
+	/**
+	 * Splits a comma separated list of FTDI device descriptions. Duplicates are dropped.
+	 */
+	public static List<BoardTarget> ParseList(String boardName)
+	{
+		LinkedHashSet<String> names = new LinkedHashSet<String>();
+		List<BoardTarget> boards = new ArrayList<BoardTarget>();
+		StringTokenizer st = new StringTokenizer(boardName, ",");
+		String sName;
+
+		while (st.hasMoreTokens()) {
+			sName = st.nextToken().trim();
+			if (!sName.equals(""))
+				names.add(sName);
+		}
+		for (String name : names)
+			boards.add(ByName(name));
+		return boards;
+	}
+
+	/**
+	 * Parses output of papilio-prog -l, i.e. lines "Device: &lt;description&gt;\tSerial: &lt;serial&gt;".
+	 * Devices without a serial number cannot be told apart and are addressed by description.
+	 */
+	public static List<BoardTarget> ParseDeviceListing(List<String> lines)
+	{
+		List<BoardTarget> boards = new ArrayList<BoardTarget>();
+		LinkedHashSet<String> seen = new LinkedHashSet<String>();
+		String description, serial;
+		int posDevice, posSerial;
+
+		for (String line : lines) {
+			posDevice = line.indexOf(LISTING_DEVICE);
+			posSerial = line.indexOf(LISTING_SERIAL);
+			if ((posDevice == -1) || (posSerial == -1) || (posSerial < posDevice))
+				continue;
+			description = line.substring(posDevice + LISTING_DEVICE.length(), posSerial).trim();
+			serial = line.substring(posSerial + LISTING_SERIAL.length()).trim();
+
+			if (!serial.isEmpty()) {
+				if (seen.add("S:" + serial))
+					boards.add(BySerial(serial, description));
+			}
+			else if (!description.isEmpty()) {
+				if (seen.add("D:" + description))
+					boards.add(ByName(description));
+			}
+		}
+		return boards;
+	}
+
+	public String getLabel() {
+		return label;
+	}
+
+	/** @return key which identifies this board in DeviceIdentityCache and BoardLedger */
+	public String getCacheKey() {
+		return Arrays.toString(deviceSwitches);
+	}
+
+	/** @return true if this board is selected by its FTDI serial number, not by description */
+	public boolean isSelectedBySerial() {
+		return (deviceSwitches.length == 2) && deviceSwitches[0].equals("-S");
+	}
+
+	/** @return papilio-prog switches which select this board, empty for the first device */
+	public String[] getDeviceSwitches() {
+		return deviceSwitches;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public int getErrorCount() {
+		return errorCount;
+	}
+
+	/** @return latest progress reported while programming this board, null if none */
+	public ProgressEvent getProgress() {
+		return progress;
+	}
+
+	public void setProgress(ProgressEvent progress) {
+		this.progress = progress;
+	}
+
+	/** @return time spent programming this board so far, in milliseconds */
+	public long getElapsedMillis()
+	{
+		if (status == Status.RUNNING)
+			return (System.nanoTime() - startNanos) / 1000000;
+		return elapsedNanos / 1000000;
+	}
+
+	public void MarkStarted()
+	{
+		startNanos = System.nanoTime();
+		progress = null;
+		status = Status.RUNNING;
+	}
+
+	public void MarkFinished(int errorCount)
+	{
+		this.errorCount = errorCount;
+		elapsedNanos = System.nanoTime() - startNanos;
+		status = (errorCount == 0) ? Status.DONE : Status.FAILED;
+	}
+
+	@Override
+	public String toString() {
+		return label.isEmpty() ? "(first board)" : label;
+	}
+
+}
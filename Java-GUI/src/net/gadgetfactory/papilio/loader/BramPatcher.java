@@ -0,0 +1,550 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Puts the program into the block RAMs of a Spartan-3 family bitstream the way
+ * data2mem did it for an earlier merge with the same placement, without running
+ * data2mem again.
+ * <P>
+ * This is not a data2mem of its own. Where each bit of the memory ends up in the frame
+ * data depends on the device, the block RAM LOCs and bit lanes of the .bmm file and
+ * the frame layout of block RAM contents, which Xilinx does not document; BramPatcher
+ * does not work it out from the .bmm file. Only the address space size is taken from
+ * there. The layout is learnt from data2mem itself instead: data2mem merges a .mem
+ * file of zeros (the baseline), then one probe per bit of the memory bit index, probe
+ * i setting every memory bit whose index + 1 has bit i set. The frame bits which change between baseline and probes spell out, in
+ * binary, the memory bit they hold. Two final random probes, one filling the memory
+ * and one only half of it, are merged both ways and must come out byte for byte
+ * identical, CRCs included, before the layout is trusted.
+ * <P>
+ * Learning takes about twenty data2mem runs, so it is done in the background after a
+ * merge which had to use data2mem; data2mem stays a requirement, and the first merge
+ * for every new placement runs it as before. A layout holds for every .bit file with the same
+ * .bmm file (which has the block RAM placement) and the same configuration packets,
+ * i.e. part, length and frame data offsets; a rebuild of the design which keeps the
+ * placement uses it without learning again. Layouts are kept in the bram-maps folder
+ * of the settings folder under the SHA-1 of these, at most LIMIT_BYTES of them, least
+ * recently used going first. Merging is then a copy of the target .bit file with the
+ * bits of every memory byte the program covers set or cleared, and the CRCs recomputed. Like data2mem, this leaves the block RAM
+ * contents past the end of the program as the target .bit file has them.
+ * <P>
+ */
+public class BramPatcher
+{
+	/** Most bytes of layouts kept in the bram-maps folder. */
+	public static final long LIMIT_BYTES = 16L * 1024 * 1024;
+	private static final int FILE_MAGIC = 0x50424D32;		// "PBM2"
+	private static final String CACHE_SUBFOLDER = "bram-maps";
+	private static final String SUFFIX = ".map";
+	private static final int MAX_LOADED = 4;
+	private static final long DATA2MEM_TIMEOUT = 60000;	// milliseconds
+
+	private static File cacheFolder = null;
+	private static boolean learningEnabled = true;
+	// Most recently used layouts, by Key.
+	private static final Map<String, BramPatcher> loaded = new LinkedHashMap<String, BramPatcher>(8, 0.75f, true);
+	private static final Set<String> learning = new HashSet<String>();
+
+	private final int memoryBytes;
+	// ConfigBitstream.getStructure of the bitstreams this layout is for.
+	private final String structure;
+	/*	Memory bit i (byte i / 8, bit i % 8) is held by bit framePos[i] (byte / 8, bit % 8)
+		counted from the start of the configuration data, -1 if none. */
+	private final int[] framePos;
+
+	private BramPatcher(int memoryBytes, String structure, int[] framePos)
+	{
+		this.memoryBytes = memoryBytes;
+		this.structure = structure;
+		this.framePos = framePos;
+	}
+
+	/**
+	 * @param folder	settings folder, null to neither load nor learn layouts
+	 */
+	public static synchronized void setCacheFolder(File folder) {
+		cacheFolder = (folder == null) ? null : new File(folder, CACHE_SUBFOLDER);
+	}
+
+	/**
+	 * @param enabled	false to only use layouts learnt by earlier runs, e.g. for a
+	 * 					short-lived process whose learner thread would not get to finish
+	 */
+	public static synchronized void setLearning(boolean enabled) {
+		learningEnabled = enabled;
+	}
+
+	/**
+	 * @return key naming the layout of this .bit and .bmm pair, null if bitFile is not
+	 * 		   a Spartan-3 family bitstream BramPatcher can handle
+	 */
+	public static String Key(File bitFile, File bmmFile) throws IOException
+	{
+		ConfigBitstream layout = new ConfigBitstream(ReadFile(bitFile));
+		MessageDigest sha1;
+		StringBuilder sb = new StringBuilder();
+
+		if (!layout.isPatchable())
+			return null;
+		try {
+			sha1 = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage());
+		}
+		sha1.update(layout.getStructure().getBytes("US-ASCII"));
+		sha1.update((byte) 0);
+		Digest(sha1, bmmFile);
+		for (byte b : sha1.digest())
+			sb.append(String.format("%02x", b & 0xFF));
+		return sb.toString();
+	}
+
+	/**
+	 * @return layout learnt earlier, null if there is none (yet)
+	 */
+	public static BramPatcher Lookup(String key)
+	{
+		BramPatcher patcher;
+		File mapFile;
+
+		synchronized (BramPatcher.class) {
+			patcher = loaded.get(key);
+			if ((patcher != null) || (cacheFolder == null))
+				return patcher;
+			mapFile = new File(cacheFolder, key + SUFFIX);
+		}
+		if (!mapFile.isFile())
+			return null;
+		try {
+			patcher = Load(mapFile);
+		}
+		catch (IOException e) {
+			System.err.println(mapFile.getName() + ": " + e.getMessage());
+			mapFile.delete();
+			return null;
+		}
+		// Eviction goes by date.
+		mapFile.setLastModified(System.currentTimeMillis());
+		Remember(key, patcher);
+		return patcher;
+	}
+
+	/**
+	 * @param bitFile	target .bit file with the same Key as the one the layout was learnt from
+	 * @param stream	bytes of the memory from address 0, as IntelHexReader.ToByteStream gives them
+	 * @return merged .bit file, null if stream or bitFile do not fit this layout
+	 */
+	public byte[] Patch(byte[] bitFile, byte[] stream)
+	{
+		ConfigBitstream layout = new ConfigBitstream(bitFile);
+		byte[] merged;
+		int pos, configStart = layout.getConfigStart();
+		boolean set;
+
+		if ((stream.length > memoryBytes) || !layout.isPatchable() || !layout.getStructure().equals(structure))
+			return null;
+		merged = bitFile.clone();
+		for (int i = 0; i < stream.length; i++) {
+			for (int bit = 0; bit < 8; bit++) {
+				set = ((stream[i] >>> bit) & 1) != 0;
+				pos = framePos[i * 8 + bit];
+				if (pos < 0) {
+					if (set)
+					// => data2mem would have put this bit somewhere we do not know of.
+						return null;
+					continue;
+				}
+				pos += configStart * 8;
+				if (set)
+					merged[pos >>> 3] |= (byte) (1 << (pos & 7));
+				else
+					merged[pos >>> 3] &= (byte) ~(1 << (pos & 7));
+			}
+		}
+		layout.UpdateCrcs(merged);
+		return merged;
+	}
+
+	/**
+	 * Learns the layout of bitFile and bmmFile on a background thread, unless it is
+	 * already known, being learnt or cannot be used (e.g. Spartan-6).
+	 * @param dataToMemFile		data2mem executable
+	 */
+	public static void LearnInBackground(final String key, final File bitFile, final File bmmFile, final File dataToMemFile)
+	{
+		Thread thread;
+
+		synchronized (BramPatcher.class) {
+			if (!learningEnabled || (cacheFolder == null) || loaded.containsKey(key) || learning.contains(key))
+				return;
+			learning.add(key);
+		}
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run()
+			{
+				BramPatcher patcher;
+				long start = System.nanoTime();
+
+				try {
+					patcher = Learn(bitFile, bmmFile, dataToMemFile);
+					if (patcher != null) {
+						Save(patcher, key);
+						Remember(key, patcher);
+						System.out.println("Learnt block RAM layout of " + bitFile.getName() + " in " +
+										   (System.nanoTime() - start) / 1000000 + " ms");
+					}
+				}
+				catch (IOException e) {
+					System.err.println("Cannot learn block RAM layout of " + bitFile.getName() + ": " + e.getMessage());
+				}
+				finally {
+					synchronized (BramPatcher.class) {
+						learning.remove(key);
+						BramPatcher.class.notifyAll();
+					}
+				}
+			}
+		}, "BRAM-Layout-Learner");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Blocks until no layout is being learnt, for callers about to exit.
+	 */
+	public static synchronized void WaitForLearning()
+	{
+		while (!learning.isEmpty()) {
+			try {
+				BramPatcher.class.wait();
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return layout, null if bitFile is not a Spartan-3 family bitstream or the layout
+	 * 		   does not reproduce what data2mem does
+	 */
+	static BramPatcher Learn(File bitFile, File bmmFile, File dataToMemFile) throws IOException
+	{
+		BmmFile bmm = BmmFile.Read(bmmFile);
+		File workFolder;
+		byte[] zeros, probe, merged, expected, target;
+		ConfigBitstream baselineLayout;
+		Map<Integer, Integer> codes = new HashMap<Integer, Integer>();
+		int memoryBytes, memoryBits, probes, code, diff;
+		int[] framePos;
+		Random random;
+		BramPatcher patcher;
+
+		if ((bmm.getAddressSpaces().size() != 1) || (bmm.getAddressSpaces().get(0).getStart() != 0) ||
+			(bmm.getMemoryBytes() > (Integer.MAX_VALUE / 8)))
+		// => .mem files without addresses fill a single address space from 0.
+			return null;
+		memoryBytes = (int) bmm.getMemoryBytes();
+		memoryBits = memoryBytes * 8;
+		probes = 32 - Integer.numberOfLeadingZeros(memoryBits);
+
+		workFolder = File.createTempFile("papilio-bram", "");
+		workFolder.delete();
+		if (!workFolder.mkdir())
+			throw new IOException("Cannot create " + workFolder);
+		try {
+			zeros = new byte[memoryBytes];
+			byte[] baseline = RunDataToMem(dataToMemFile, workFolder, bitFile, bmmFile, zeros);
+			baselineLayout = new ConfigBitstream(baseline);
+			if (!baselineLayout.isPatchable())
+				return null;
+
+			for (int i = 0; i < probes; i++) {
+				probe = new byte[memoryBytes];
+				for (int bit = 0; bit < memoryBits; bit++) {
+					if ((((bit + 1) >>> i) & 1) != 0)
+						probe[bit >>> 3] |= (byte) (1 << (bit & 7));
+				}
+				merged = RunDataToMem(dataToMemFile, workFolder, bitFile, bmmFile, probe);
+				if (merged.length != baseline.length)
+					return null;
+				for (int pos = baselineLayout.getConfigStart(); pos < baseline.length; pos++) {
+					diff = (merged[pos] ^ baseline[pos]) & 0xFF;
+					if ((diff == 0) || baselineLayout.isCrcWord(pos))
+						continue;
+					if (!baselineLayout.isFrameData(pos))
+					// => data2mem changed more than block RAM contents.
+						return null;
+					for (int bit = 0; bit < 8; bit++) {
+						if ((diff & (1 << bit)) != 0) {
+							Integer key = Integer.valueOf(pos * 8 + bit);
+							Integer previous = codes.get(key);
+							codes.put(key, Integer.valueOf(((previous == null) ? 0 : previous.intValue()) | (1 << i)));
+						}
+					}
+				}
+			}
+
+			framePos = new int[memoryBits];
+			Arrays.fill(framePos, -1);
+			for (Map.Entry<Integer, Integer> entry : codes.entrySet()) {
+				code = entry.getValue().intValue();
+				if ((code > memoryBits) || (framePos[code - 1] != -1))
+				// => Not a one to one mapping of memory bits to frame bits.
+					return null;
+				framePos[code - 1] = entry.getKey().intValue() - baselineLayout.getConfigStart() * 8;
+			}
+			patcher = new BramPatcher(memoryBytes, baselineLayout.getStructure(), framePos);
+
+			/*	Prove it on data neither the baseline nor the probes had, once for the whole
+				memory and once for a program which leaves the upper half as it was. */
+			target = ReadFile(bitFile);
+			random = new Random(bitFile.length());
+			for (int length : new int[] {memoryBytes, memoryBytes / 2}) {
+				probe = new byte[length];
+				random.nextBytes(probe);
+				expected = RunDataToMem(dataToMemFile, workFolder, bitFile, bmmFile, probe);
+				merged = patcher.Patch(target, probe);
+				if ((merged == null) || (merged.length != expected.length))
+					return null;
+				for (int pos = baselineLayout.getConfigStart(); pos < expected.length; pos++) {
+					if (merged[pos] != expected[pos])
+						return null;
+				}
+			}
+			return patcher;
+		}
+		finally {
+			for (File file : workFolder.listFiles())
+				file.delete();
+			workFolder.delete();
+		}
+	}
+
+	private static byte[] RunDataToMem(File dataToMemFile, File workFolder, File bitFile, File bmmFile, byte[] memory)
+			throws IOException
+	{
+		File memFile = new File(workFolder, "probe.mem"), outFile = new File(workFolder, "probe.bit");
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(memFile), 65536);
+		String[] command = {ProgrammerTools.CanonicalPath(dataToMemFile),
+							"-bm", ProgrammerTools.CanonicalPath(bmmFile),
+							"-bt", ProgrammerTools.CanonicalPath(bitFile),
+							"-bd", memFile.getName(),
+							"-o", "b", outFile.getName()};
+		Process process;
+		ProcessWatchdog watchdog;
+		StreamPump errPump;
+		InputStream is;
+		byte[] output;
+
+		try {
+			IntelHexReader.WriteMem(os, memory);
+		}
+		finally {
+			os.close();
+		}
+		outFile.delete();
+
+		process = Runtime.getRuntime().exec(command, null, workFolder);
+		watchdog = ProcessWatchdog.Watch(process, DATA2MEM_TIMEOUT, "data2mem");
+		// Nobody reads what data2mem says, but it must not block on a full pipe.
+		errPump = new StreamPump("Stream-Pump-StdErr", process.getErrorStream(), new ByteArrayOutputStream(), false);
+		errPump.KickOff();
+		try {
+			is = process.getInputStream();
+			while (is.read() != -1)
+				;
+			is.close();
+			process.waitFor();
+			if (errPump.getThread() != null)
+				errPump.getThread().join();
+		}
+		catch (InterruptedException e) {
+			process.destroy();
+			throw new IOException("Interrupted");
+		}
+		finally {
+			watchdog.Done();
+		}
+		if ((process.exitValue() != 0) || !outFile.isFile())
+			throw new IOException("data2mem failed with exit code " + process.exitValue());
+
+		output = ReadFile(outFile);
+		outFile.delete();
+		return output;
+	}
+
+	private static void Remember(String key, BramPatcher patcher)
+	{
+		Iterator<String> eldest;
+
+		synchronized (BramPatcher.class) {
+			loaded.put(key, patcher);
+			if (loaded.size() > MAX_LOADED) {
+				eldest = loaded.keySet().iterator();
+				eldest.next();
+				eldest.remove();
+			}
+		}
+	}
+
+	private static void Save(BramPatcher patcher, String key) throws IOException
+	{
+		File folder, mapFile, tmpFile;
+		DataOutputStream dos;
+
+		synchronized (BramPatcher.class) {
+			folder = cacheFolder;
+		}
+		if (folder == null)
+			return;
+		if (!folder.isDirectory() && !folder.mkdirs())
+			throw new IOException("Cannot create " + folder);
+		mapFile = new File(folder, key + SUFFIX);
+		tmpFile = new File(folder, key + ".tmp");
+
+		dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 65536));
+		try {
+			dos.writeInt(FILE_MAGIC);
+			dos.writeInt(patcher.memoryBytes);
+			dos.writeUTF(patcher.structure);
+			for (int pos : patcher.framePos)
+				dos.writeInt(pos);
+		}
+		finally {
+			dos.close();
+		}
+		// Whole files only, should two loaders learn the same layout at once.
+		mapFile.delete();
+		if (!tmpFile.renameTo(mapFile))
+			tmpFile.delete();
+		Evict(folder);
+	}
+
+	/*	Deletes the least recently used layouts until the rest fit into LIMIT_BYTES, as
+		MergeCache does with merged .bit files. */
+	private static void Evict(File folder)
+	{
+		File[] files = folder.listFiles();
+		long total = 0;
+
+		if (files == null)
+			return;
+		for (File file : files)
+			total += file.length();
+		if (total <= LIMIT_BYTES)
+			return;
+
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				long m1 = f1.lastModified(), m2 = f2.lastModified();
+				return (m1 < m2) ? -1 : ((m1 == m2) ? 0 : 1);
+			}
+		});
+		for (File file : files) {
+			if (total <= LIMIT_BYTES)
+				break;
+			if (!file.getName().endsWith(SUFFIX))
+			// => Being written by someone else.
+				continue;
+			total -= file.length();
+			file.delete();
+		}
+	}
+
+	private static BramPatcher Load(File mapFile) throws IOException
+	{
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(mapFile), 65536));
+		int memoryBytes;
+		String structure;
+		int[] framePos;
+
+		try {
+			if (dis.readInt() != FILE_MAGIC)
+				throw new IOException("not a block RAM layout");
+			memoryBytes = dis.readInt();
+			structure = dis.readUTF();
+			framePos = new int[memoryBytes * 8];
+			for (int i = 0; i < framePos.length; i++)
+				framePos[i] = dis.readInt();
+		}
+		finally {
+			dis.close();
+		}
+		return new BramPatcher(memoryBytes, structure, framePos);
+	}
+
+	static byte[] ReadFile(File file) throws IOException
+	{
+		DataInputStream dis = new DataInputStream(new FileInputStream(file));
+		byte[] contents = new byte[(int) file.length()];
+
+		try {
+			dis.readFully(contents);
+		}
+		finally {
+			dis.close();
+		}
+		return contents;
+	}
+
+	private static void Digest(MessageDigest digest, File file) throws IOException
+	{
+		BitstreamImage image = BitstreamImage.Open(file);
+
+		try {
+			image.Digest(digest);
+		}
+		finally {
+			image.Close();
+		}
+		// Keeps "ab" + "c" apart from "a" + "bc".
+		digest.update((byte) 0);
+	}
+
+}
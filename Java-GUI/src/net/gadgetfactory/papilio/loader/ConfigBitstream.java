@@ -0,0 +1,243 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Configuration packets of a Spartan-3 family .bit file, as far as needed to change
+ * frame data and keep the bitstream valid.
+ * <P>
+ * The FPGA checks a 16-bit CRC (polynomial x^16 + x^15 + x^2 + 1, bit reflected) over
+ * every register write: the 32 data bits LSB first, then the 5 register address bits.
+ * The CRC is checked by the AutoCRC word which follows the frame data of each FDRI
+ * write and by writes to the CRC register, each of which starts a new CRC, as does the
+ * RCRC command. UpdateCrcs recomputes all of them after frame data has been changed.
+ * <P>
+ * Spartan-6 uses 16-bit packets and a different CRC; such bitstreams are reported as
+ * not patchable.
+ * <P>
+ */
+public class ConfigBitstream
+{
+	private static final int SYNC_WORD = 0xAA995566;
+	private static final int REG_CRC = 0, REG_FDRI = 2, REG_CMD = 4;
+	private static final int CMD_RCRC = 7;
+	private static final int OP_WRITE = 2;
+	private static final int[] CRC_TABLE = new int[256];
+
+	static {
+		int crc;
+
+		for (int i = 0; i < 256; i++) {
+			crc = i;
+			for (int bit = 0; bit < 8; bit++)
+				crc = ((crc & 1) != 0) ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+			CRC_TABLE[i] = crc;
+		}
+	}
+
+	private String partName = "";
+	private int configStart = -1, configEnd = -1;
+	// Byte offsets [start, end) of FDRI frame data, and of every CRC word.
+	private final List<int[]> frameData = new ArrayList<int[]>();
+	private final Set<Integer> crcWords = new HashSet<Integer>();
+	private boolean patchable = false;
+
+	/**
+	 * @param bitFile	whole .bit file, header included
+	 */
+	public ConfigBitstream(byte[] bitFile)
+	{
+		if (!ParseHeader(bitFile))
+			return;
+		if (!partName.toLowerCase().startsWith("3s"))
+		// => Not a Spartan-3 family part.
+			return;
+		patchable = WalkPackets(bitFile, false, true);
+	}
+
+	/**
+	 * @return true if this is a Spartan-3 family bitstream whose CRCs check out
+	 */
+	public boolean isPatchable() {
+		return patchable;
+	}
+
+	/** @return part name from the .bit header, e.g. 3s500evq100 */
+	public String getPartName() {
+		return partName;
+	}
+
+	/** @return offset of the first configuration byte, -1 if the header is broken */
+	public int getConfigStart() {
+		return configStart;
+	}
+
+	/**
+	 * @return part name, configuration data length and the frame data ranges relative
+	 * 		   to the configuration data; bitstreams which agree on these keep block RAM
+	 * 		   contents at the same offsets
+	 */
+	public String getStructure()
+	{
+		StringBuilder sb = new StringBuilder(partName);
+
+		sb.append(' ').append(configEnd - configStart);
+		for (int[] range : frameData)
+			sb.append(' ').append(range[0] - configStart).append('-').append(range[1] - configStart);
+		return sb.toString();
+	}
+
+	public boolean isFrameData(int offset)
+	{
+		for (int[] range : frameData) {
+			if ((offset >= range[0]) && (offset < range[1]))
+				return true;
+		}
+		return false;
+	}
+
+	public boolean isCrcWord(int offset)
+	{
+		// Packets, and so CRC words, are aligned to 4 bytes from the start of the configuration data.
+		return crcWords.contains(Integer.valueOf(offset - ((offset - configStart) & 3)));
+	}
+
+	/**
+	 * Recomputes every CRC of bitFile, which must have the same packet layout as the
+	 * bitstream this object was created from.
+	 */
+	public void UpdateCrcs(byte[] bitFile) {
+		WalkPackets(bitFile, true, false);
+	}
+
+	private boolean ParseHeader(byte[] bitFile)
+	{
+		BitFileHeader header;
+
+		try {
+			header = BitFileHeader.Parse(bitFile);
+		}
+		catch (IOException e) {
+			return false;
+		}
+		partName = header.getPartName();
+		configStart = (int) header.getPayloadOffset();
+		configEnd = configStart + (int) header.getPayloadLength();
+		return true;
+	}
+
+	/**
+	 * @param rewrite	true to overwrite CRC words with the computed values
+	 * @param record	true to take note of frame data and CRC word offsets
+	 * @return true if every CRC word matched the computed value (always true if rewriting)
+	 */
+	private boolean WalkPackets(byte[] data, boolean rewrite, boolean record)
+	{
+		int pos = configStart, word, type, op, reg = -1, count;
+		int crc = 0;
+		boolean consistent = true, synced = false;
+
+		while (pos + 4 <= configEnd) {
+			word = Word32(data, pos);
+			pos += 4;
+			if (!synced) {
+				synced = (word == SYNC_WORD);
+				continue;
+			}
+
+			type = word >>> 29;
+			op = (word >>> 27) & 0x3;
+			if (type == 1) {
+				reg = (word >>> 13) & 0x3FFF;
+				count = word & 0x7FF;
+			}
+			else if (type == 2)
+				count = word & 0x07FFFFFF;
+			else
+				continue;
+			if (op != OP_WRITE)
+			// => NOOP or read; reads have no data in the bitstream.
+				continue;
+			if (pos + 4L * count > configEnd)
+				return false;
+
+			if (reg == REG_CRC) {
+				for (int i = 0; i < count; i++, pos += 4)
+					consistent &= CheckCrc(data, pos, crc, rewrite, record);
+				crc = 0;
+			}
+			else if ((reg == REG_CMD) && (count == 1) && (Word32(data, pos) == CMD_RCRC)) {
+				crc = 0;
+				pos += 4;
+			}
+			else {
+				for (int i = 0; i < count; i++, pos += 4)
+					crc = Crc(crc, Word32(data, pos), reg);
+				if ((reg == REG_FDRI) && (count > 0)) {
+				// => AutoCRC word follows the frame data.
+					if (record)
+						frameData.add(new int[] {pos - 4 * count, pos});
+					if (pos + 4 > configEnd)
+						return false;
+					consistent &= CheckCrc(data, pos, crc, rewrite, record);
+					pos += 4;
+					crc = 0;
+				}
+			}
+		}
+		return synced && consistent;
+	}
+
+	private boolean CheckCrc(byte[] data, int pos, int crc, boolean rewrite, boolean record)
+	{
+		if (record)
+			crcWords.add(Integer.valueOf(pos));
+		if (rewrite) {
+			data[pos] = 0;
+			data[pos + 1] = 0;
+			data[pos + 2] = (byte) (crc >>> 8);
+			data[pos + 3] = (byte) crc;
+			return true;
+		}
+		return (Word32(data, pos) & 0xFFFF) == crc;
+	}
+
+	private static int Crc(int crc, int value, int reg)
+	{
+		for (int i = 0; i < 4; i++)
+			crc = (crc >>> 8) ^ CRC_TABLE[(crc ^ (value >>> (8 * i))) & 0xFF];
+		for (int bit = 0; bit < 5; bit++)
+			crc = (((crc ^ (reg >>> bit)) & 1) != 0) ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+		return crc;
+	}
+
+	private static int Word32(byte[] data, int pos)
+	{
+		return ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16) |
+			   ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+	}
+
+}
@@ -0,0 +1,292 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JTAG devices Papilio Loader knows about, read from devlist.txt next to papilio-prog,
+ * the same file papilio-prog's DeviceDB reads, so a new part is added in one place and
+ * without recompiling either. Papilio Loader also reads the optional columns after
+ * the description:
+ * <PRE>
+ * # IDCODE  IR Length  Text      [proxy=...]                  [bits=...]     [flash=...]
+ * 01C22093  6          XC3S500E  proxy=bscan_spi_xc3s500e.bit  bits=2270208  flash=512K/64K
+ * </PRE>
+ * proxy names the bscan_spi .bit file in programmer/ which gives access to SPI Flash,
+ * bits is the length of an uncompressed bitstream and flash the size and erase sector
+ * size of the smallest SPI Flash on a Papilio board with the part.
+ * <P>
+ * A database is immutable once loaded. Load keeps one per file and reads the file
+ * again only when it has changed; without a readable file the list built into
+ * papilio-prog (devlist.h) is used.
+ */
+public class DeviceDatabase
+{
+	public static final String FILE_NAME = "devlist.txt";
+	// The top 4 bits of an IDCODE are the revision.
+	private static final int IDCODE_MASK = 0x0fffffff;
+	// Same as fb_string in papilio-prog/devlist.h.
+	private static final String[] BUILT_IN = {
+		"01C10093 6 XC3S100E proxy=bscan_spi_xc3s100e.bit bits=581344",
+		"01C1A093 6 XC3S250E proxy=bscan_spi_xc3s250e.bit bits=1353728 flash=512K/64K",
+		"01C22093 6 XC3S500E proxy=bscan_spi_xc3s500e.bit bits=2270208 flash=512K/64K",
+		"01C2E093 6 XC3S1200E bits=3841184",
+		"01C3A093 6 XC3S1600E bits=5969696",
+		"04000093 6 XC6SLX4 proxy=bscan_spi_xc6slx4.bit bits=2724832",
+		"04001093 6 XC6SLX9 proxy=bscan_spi_xc6slx9.bit bits=2724832 flash=2M/64K",
+		"04002093 6 XC6SLX16 bits=3731264",
+		"04004093 6 XC6SLX25 bits=6440432",
+		"04008093 6 XC6SLX45 bits=11939296",
+	};
+
+	public static class Device
+	{
+		private final int idcode, irLength;
+		private final String name, proxyBitFile;
+		private final long bitstreamBits, flashBytes, flashSectorBytes;
+
+		Device(int idcode, int irLength, String name, String proxyBitFile, 
+			   long bitstreamBits, long flashBytes, long flashSectorBytes)
+		{
+			this.idcode = idcode;
+			this.irLength = irLength;
+			this.name = name;
+			this.proxyBitFile = proxyBitFile;
+			this.bitstreamBits = bitstreamBits;
+			this.flashBytes = flashBytes;
+			this.flashSectorBytes = flashSectorBytes;
+		}
+
+		/** @return IDCODE without the revision bits */
+		public int getIdcode() {
+			return idcode;
+		}
+
+		public int getIRLength() {
+			return irLength;
+		}
+
+		/** @return description as papilio-prog prints it after "Desc: ", e.g. XC3S500E */
+		public String getName() {
+			return name;
+		}
+
+		/** @return name of the bscan_spi .bit file in programmer/, null if there is none */
+		public String getProxyBitFile() {
+			return proxyBitFile;
+		}
+
+		/** @return length of an uncompressed bitstream, 0 if unknown */
+		public long getBitstreamBits() {
+			return bitstreamBits;
+		}
+
+		/** @return size of SPI Flash on the smallest board, 0 if unknown */
+		public long getFlashBytes() {
+			return flashBytes;
+		}
+
+		/** @return erase sector size of that SPI Flash, 0 if unknown */
+		public long getFlashSectorBytes() {
+			return flashSectorBytes;
+		}
+	}
+
+	private static final Map<File, DeviceDatabase> loaded = new HashMap<File, DeviceDatabase>();
+	private static DeviceDatabase builtIn = null;
+
+	private final Map<Integer, Device> byIdcode;
+	private final Map<String, Device> byName;
+	private final String source;
+	private final long lastModified;
+
+	private DeviceDatabase(Map<Integer, Device> byIdcode, Map<String, Device> byName, String source, long lastModified)
+	{
+		this.byIdcode = Collections.unmodifiableMap(byIdcode);
+		this.byName = Collections.unmodifiableMap(byName);
+		this.source = source;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * @param programmerPath	folder of papilio-prog, see ProgrammerTools.getProgrammerPath
+	 * @return database from devlist.txt in programmerPath, or the built-in one
+	 */
+	public static synchronized DeviceDatabase Load(File programmerPath)
+	{
+		File file = new File(programmerPath, FILE_NAME).getAbsoluteFile();
+		DeviceDatabase database = loaded.get(file);
+
+		if ((database != null) && (database.lastModified == file.lastModified()))
+			return database;
+		if (file.isFile()) {
+			try {
+				database = Read(file);
+				loaded.put(file, database);
+				return database;
+			}
+			catch (IOException e) {
+				System.err.println(file + ": " + e.getMessage());
+			}
+		}
+		loaded.remove(file);
+		return BuiltIn();
+	}
+
+	/** @return the devices papilio-prog knows without devlist.txt */
+	public static synchronized DeviceDatabase BuiltIn()
+	{
+		Map<Integer, Device> byIdcode = new HashMap<Integer, Device>();
+		Map<String, Device> byName = new HashMap<String, Device>();
+
+		if (builtIn == null) {
+			for (String sLine : BUILT_IN)
+				Add(ParseLine(sLine), byIdcode, byName);
+			builtIn = new DeviceDatabase(byIdcode, byName, "built-in device list", 0);
+		}
+		return builtIn;
+	}
+
+	/**
+	 * @param idcode	as read by a JTAG chain scan, revision bits included
+	 * @return null if unknown
+	 */
+	public Device Lookup(int idcode) {
+		return byIdcode.get(Integer.valueOf(idcode & IDCODE_MASK));
+	}
+
+	/**
+	 * @param name	description found by a JTAG chain scan, e.g. "XC3S500E"
+	 * @return null if unknown
+	 */
+	public Device Lookup(String name) {
+		return byName.get(name.trim().toUpperCase());
+	}
+
+	/** @return file the devices were read from */
+	public String getSource() {
+		return source;
+	}
+
+	public int getDeviceCount() {
+		return byIdcode.size();
+	}
+
+	public Collection<Device> getDevices() {
+		return byIdcode.values();
+	}
+
+	private static DeviceDatabase Read(File file) throws IOException
+	{
+		Map<Integer, Device> byIdcode = new HashMap<Integer, Device>();
+		Map<String, Device> byName = new HashMap<String, Device>();
+		long lastModified = file.lastModified();
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "US-ASCII"));
+		String sLine;
+
+		try {
+			while ((sLine = br.readLine()) != null)
+				Add(ParseLine(sLine), byIdcode, byName);
+		}
+		finally {
+			br.close();
+		}
+		return new DeviceDatabase(byIdcode, byName, file.getPath(), lastModified);
+	}
+
+	/*	Like papilio-prog, which stops at the first match, the first of several entries
+		for an IDCODE or description wins. */
+	private static void Add(Device device, Map<Integer, Device> byIdcode, Map<String, Device> byName)
+	{
+		Integer key;
+
+		if (device == null)
+			return;
+		key = Integer.valueOf(device.getIdcode());
+		if (!byIdcode.containsKey(key))
+			byIdcode.put(key, device);
+		if (!byName.containsKey(device.getName().toUpperCase()))
+			byName.put(device.getName().toUpperCase(), device);
+	}
+
+	/**
+	 * @return null for comments, blank lines and lines papilio-prog would skip as well
+	 */
+	private static Device ParseLine(String sLine)
+	{
+		String[] fields = sLine.trim().split("\\s+");
+		String proxy = null, key, value;
+		long bits = 0, flash = 0, sector = 0;
+		int idcode, irLength, pos;
+
+		if ((fields.length < 3) || fields[0].startsWith("#"))
+			return null;
+		try {
+			idcode = (int) Long.parseLong(fields[0], 16) & IDCODE_MASK;
+			irLength = Integer.parseInt(fields[1]);
+			for (int i = 3; i < fields.length; i++) {
+				pos = fields[i].indexOf('=');
+				if (pos == -1)
+					continue;
+				key = fields[i].substring(0, pos).toLowerCase();
+				value = fields[i].substring(pos + 1);
+				if (key.equals("proxy"))
+					proxy = value;
+				else if (key.equals("bits"))
+					bits = Long.parseLong(value);
+				else if (key.equals("flash")) {
+					pos = value.indexOf('/');
+					flash = ParseSize((pos == -1) ? value : value.substring(0, pos));
+					sector = (pos == -1) ? 0 : ParseSize(value.substring(pos + 1));
+				}
+			}
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+		return new Device(idcode, irLength, fields[2], proxy, bits, flash, sector);
+	}
+
+	/** @return bytes of e.g. "512K" or "2M" */
+	private static long ParseSize(String size)
+	{
+		char unit;
+
+		if (size.isEmpty())
+			throw new NumberFormatException("size missing");
+		unit = Character.toUpperCase(size.charAt(size.length() - 1));
+
+		if (unit == 'K')
+			return Long.parseLong(size.substring(0, size.length() - 1)) * 1024;
+		if (unit == 'M')
+			return Long.parseLong(size.substring(0, size.length() - 1)) * 1024 * 1024;
+		return Long.parseLong(size);
+	}
+
+}
@@ -0,0 +1,184 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers which FPGA was found on which board by the last JTAG chain scan.
+ * <P>
+ * An entry is used for at most ttlMillis, and all entries are dropped as soon as the USB
+ * topology changes, i.e. a board has been unplugged, plugged in or reset so that it was
+ * enumerated again. On Linux the topology is read from sysfs; elsewhere only the time
+ * limit applies. Callers must Invalidate an entry when an operation on the board fails.
+ * <P>
+ * Shared by all AsyncProgrammer threads.
+ */
+public class DeviceIdentityCache
+{
+	public static final long DEFAULT_TTL_MILLIS = 30000;
+	private static final File USB_DEVICES = new File("/sys/bus/usb/devices");
+
+	private static class Entry
+	{
+		String deviceID;
+		long storedMillis;
+		long scanMillis;	// How long the scan which found deviceID took.
+	}
+
+	private static final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private static String usbFingerprint = null;
+	private static long ttlMillis = DEFAULT_TTL_MILLIS;
+	private static long hits = 0, misses = 0, savedMillis = 0;
+
+	public static synchronized void setTTLMillis(long millis) {
+		ttlMillis = millis;
+	}
+
+	/**
+	 * @param boardKey	identifies the board, see BoardTarget.getCacheKey
+	 * @return FPGA description (e.g. "XC3S500E") found by an earlier scan, null if unknown
+	 */
+	public static synchronized String Lookup(String boardKey)
+	{
+		Entry entry;
+
+		CheckTopology();
+		entry = entries.get(boardKey);
+		if ((entry != null) && (System.currentTimeMillis() - entry.storedMillis > ttlMillis)) {
+			entries.remove(boardKey);
+			entry = null;
+		}
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		savedMillis += entry.scanMillis;
+		return entry.deviceID;
+	}
+
+	/**
+	 * Like Lookup, but for checks which would not scan the JTAG chain anyway, so it
+	 * counts as neither hit nor miss.
+	 */
+	public static synchronized String Peek(String boardKey)
+	{
+		Entry entry = entries.get(boardKey);
+
+		if ((entry == null) || (System.currentTimeMillis() - entry.storedMillis > ttlMillis))
+			return null;
+		return entry.deviceID;
+	}
+
+	/** @return how long the scan took which is skipped by using the entry for boardKey */
+	public static synchronized long getScanMillis(String boardKey)
+	{
+		Entry entry = entries.get(boardKey);
+		return (entry == null) ? 0 : entry.scanMillis;
+	}
+
+	public static synchronized void Store(String boardKey, String deviceID, long scanMillis)
+	{
+		Entry entry = new Entry();
+
+		if (ttlMillis <= 0)
+			return;
+		CheckTopology();
+		entry.deviceID = deviceID;
+		entry.storedMillis = System.currentTimeMillis();
+		entry.scanMillis = scanMillis;
+		entries.put(boardKey, entry);
+	}
+
+	public static synchronized void Invalidate(String boardKey) {
+		entries.remove(boardKey);
+	}
+
+	public static synchronized String Statistics()
+	{
+		return String.format("JTAG scan cache: %d hits, %d misses, %d ms saved", hits, misses, savedMillis);
+	}
+
+	/*	Drops all entries if the set of enumerated USB devices has changed. A board which
+		is re-plugged gets a new device number, so even swapping one board for another of
+		the same kind is noticed. */
+	private static void CheckTopology()
+	{
+		String currFingerprint = UsbFingerprint();
+
+		if ((usbFingerprint != null) && !usbFingerprint.equals(currFingerprint))
+			entries.clear();
+		usbFingerprint = currFingerprint;
+	}
+
+	private static String UsbFingerprint()
+	{
+		StringBuilder sb = new StringBuilder();
+		String[] names;
+
+		if (!USB_DEVICES.isDirectory())
+			return "";
+		names = USB_DEVICES.list();
+		if (names == null)
+			return "";
+		Arrays.sort(names);
+		for (String name : names) {
+			sb.append(name).append(':');
+			sb.append(ReadFirstLine(new File(new File(USB_DEVICES, name), "devnum"))).append(';');
+		}
+		return sb.toString();
+	}
+
+	private static String ReadFirstLine(File file)
+	{
+		BufferedReader br = null;
+		String sLine = null;
+
+		if (!file.isFile())
+			return "";
+		try {
+			br = new BufferedReader(new FileReader(file));
+			sLine = br.readLine();
+		}
+		catch (IOException e) {
+			// Device went away while we were looking at it; that changes the fingerprint anyway.
+		}
+		finally
+		{
+			if (br != null) {
+				try {
+					br.close();
+				}
+				catch (IOException ioex) {
+					System.err.println(ioex.getMessage());
+				}
+			}
+		}
+		return (sLine == null) ? "" : sLine.trim();
+	}
+
+}
@@ -0,0 +1,609 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Stand-in for papilio-prog which needs no board, to measure and stress Papilio Loader
+ * itself: the GUI, HeadlessLoader, LoaderDaemon and multi-board runs. It takes the
+ * switches AsyncProgrammer passes (-j, -l, -f, -b, -s e|v|p|a|n|w|d|c, -c, -r, -d,
+ * -S, -v, -P, -i), prints what papilio-prog prints where the loader looks at it (the
+ * "Desc: " line, device listing, @@session, @@done and @@progress lines) and takes
+ * about as long as a Papilio One on an FT2232D. Run the loader with
+ * <PRE>
+ * java -Dpapilio.programmer=papilio-prog-sim -jar papilio-loader.jar ...
+ * </PRE>
+ * to have it spawn programmer/linux32/papilio-prog-sim, which starts this class.
+ * <P>
+ * Environment variables:
+ * <UL>
+ * <LI>PAPILIO_SIM_DEVICE - FPGA reported by the chain scan, XC3S500E by default
+ * <LI>PAPILIO_SIM_BOARDS - boards listed by -l, 1 by default; -d and -S pick one
+ * <LI>PAPILIO_SIM_TIME_SCALE - factor for all delays, 0 for none, 1 by default
+ * <LI>PAPILIO_SIM_FAIL_RATE - probability that an operation fails, 0 by default
+ * <LI>PAPILIO_SIM_SEED - makes failures repeatable
+ * <LI>PAPILIO_SIM_CLASSPATH - where papilio-prog-sim finds this class, if not in papilio-loader.jar
+ * </UL>
+ * SPI Flash contents are kept per board in papilio-prog-sim in the temporary folder,
+ * so that check, delta and verify see what an earlier run wrote.
+ */
+public class FakeProgrammer
+{
+	private static final String SESSION_FEATURES = "stdin delta check noblank noerase progress";
+	private static final String USB_DESCRIPTION = "Papilio Sim";
+	// Papilio One 500K on an FT2232D at 6 MHz, roughly.
+	private static final long SCAN_MILLIS = 150, STATUS_MILLIS = 20, RECONFIGURE_MILLIS = 300;
+	private static final long SECTOR_ERASE_MILLIS = 400, CHIP_ERASE_MILLIS = 4000;
+	private static final double FPGA_KB_PER_SECOND = 600, WRITE_KB_PER_SECOND = 45, READ_KB_PER_SECOND = 170;
+	private static final int SECTOR_SIZE = 65536;
+	private static final long PROGRESS_INTERVAL_MILLIS = 100;
+
+	private final String device;
+	private final int boards;
+	private final double timeScale, failRate;
+	private final Random random;
+	private final InputStream stdIn = new BufferedInputStream(System.in);
+	private boolean verbose = false, progressLines = false;
+	private String boardSerial = "SIM00001A";
+	private boolean bscanLoaded = false;
+
+	public static void main(String[] args) {
+		System.exit(new FakeProgrammer().Run(args));
+	}
+
+	public FakeProgrammer()
+	{
+		String seed = System.getenv("PAPILIO_SIM_SEED");
+
+		device = Environment("PAPILIO_SIM_DEVICE", "XC3S500E");
+		boards = (int) EnvironmentNumber("PAPILIO_SIM_BOARDS", 1);
+		timeScale = EnvironmentNumber("PAPILIO_SIM_TIME_SCALE", 1);
+		failRate = EnvironmentNumber("PAPILIO_SIM_FAIL_RATE", 0);
+		random = (seed != null) ? new Random(Long.parseLong(seed)) : new Random();
+	}
+
+	/**
+	 * @return exit code, as papilio-prog's
+	 */
+	public int Run(String[] args)
+	{
+		String fpgaFile = null, bscanFile = null, desc = null, serial = null, arg, value;
+		char spiOption = 'a';
+		boolean detectChain = false, listDevices = false, session = false, status = false, reconfigure = false;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				arg = args[i];
+				if ((arg.length() < 2) || (arg.charAt(0) != '-'))
+					continue;
+				switch (arg.charAt(1)) {
+				case 'j': detectChain = true; continue;
+				case 'l': listDevices = true; continue;
+				case 'i': session = true; continue;
+				case 'c': case 'C': status = true; continue;
+				case 'r': reconfigure = true; continue;
+				case 'v': verbose = true; continue;
+				case 'P': progressLines = true; continue;
+				case 'f': case 'b': case 's': case 'd': case 'S': case 'A': case 'a':
+					break;
+				default:
+					System.err.println("Unknown option `" + arg + "'.");
+					return 1;
+				}
+				// getopt style: the argument may follow in the same word.
+				if (arg.length() > 2)
+					value = arg.substring(2);
+				else if (++i < args.length)
+					value = args[i];
+				else {
+					System.err.println("Option " + arg + " requires an argument.");
+					return 1;
+				}
+				switch (arg.charAt(1)) {
+				case 'f': fpgaFile = value; break;
+				case 'b': bscanFile = value; break;
+				case 's': spiOption = Character.toLowerCase(value.charAt(0)); break;
+				case 'd': desc = value; break;
+				case 'S': serial = value; break;
+				}
+			}
+
+			if (listDevices) {
+				for (int i = 1; i <= boards; i++)
+					System.out.println("Device: " + UsbDescription(i) + "\tSerial: " + Serial(i));
+				return 0;
+			}
+			if ((bscanFile == null) && (fpgaFile == null) && !status && !detectChain && !reconfigure && !session) {
+				System.out.println("No or ambiguous options specified.");
+				return 0;
+			}
+			if ((bscanFile != null) && (spiOption != 'e') && (fpgaFile == null)) {
+				System.out.println("Please specify main bit file (-f <bitfile>)");
+				return 1;
+			}
+
+			if (session) {
+				System.out.println("@@session sim " + SESSION_FEATURES);
+				System.out.flush();
+			}
+			if (!OpenBoard(desc, serial))
+				return 1;
+			if (!Scan())
+				return 1;
+			if (detectChain)
+				return 0;
+			if (session)
+				return RunSession();
+
+			if (status)
+				return Status() ? 0 : 1;
+			if (bscanFile != null) {
+				if (!Upload(bscanFile, true))
+					return 1;
+				if (!Spi(spiOption, fpgaFile))
+					return 1;
+				if (reconfigure && (spiOption != 'e'))
+					Reconfigure();
+				return 0;
+			}
+			if (reconfigure) {
+				System.out.println("Triggering a reconfiguration of the FPGA.");
+				Reconfigure();
+				return 0;
+			}
+			return Upload(fpgaFile, false) ? 0 : 1;
+		}
+		catch (IOException e) {
+			System.err.println("IOException: " + e.getMessage());
+			return 1;
+		}
+		finally {
+			System.out.flush();
+		}
+	}
+
+	private int RunSession() throws IOException
+	{
+		String line, command, arg;
+		int rc, pos;
+
+		Done(0);
+		while ((line = ReadLine()) != null) {
+			line = line.trim();
+			if (line.isEmpty())
+				continue;
+			pos = line.indexOf(' ');
+			command = (pos == -1) ? line : line.substring(0, pos);
+			arg = (pos == -1) ? "" : line.substring(pos + 1).trim();
+
+			rc = 0;
+			try {
+				if (command.equals("quit")) {
+					Done(0);
+					return 0;
+				}
+				else if (command.equals("scan"))
+					rc = Scan() ? 0 : 1;
+				else if (command.equals("fpga") || command.equals("bscan")) {
+					if (arg.isEmpty()) {
+						System.err.println("Please specify a bit file for " + command + ".");
+						rc = 1;
+					}
+					else
+						rc = Upload(arg, command.equals("bscan")) ? 0 : 1;
+				}
+				else if (command.equals("spi")) {
+					pos = arg.indexOf(' ');
+					if (arg.isEmpty() || ("evpandcw".indexOf(arg.charAt(0)) == -1)) {
+						System.err.println("Unknown SPI Flash option \"" + arg + "\".");
+						rc = 1;
+					}
+					else if (!bscanLoaded) {
+						System.err.println("Please upload the bscan_spi bit file first (bscan <bitfile>).");
+						rc = 1;
+					}
+					else if ((arg.charAt(0) != 'e') && (pos == -1)) {
+						System.out.println("Please specify main bit file (spi " + arg.charAt(0) + " <bitfile>)");
+						rc = 1;
+					}
+					else
+						rc = Spi(arg.charAt(0), (pos == -1) ? null : arg.substring(pos + 1).trim()) ? 0 : 1;
+				}
+				else if (command.equals("reconfigure")) {
+					System.out.println("Triggering a reconfiguration of the FPGA.");
+					Reconfigure();
+				}
+				else if (command.equals("status"))
+					rc = Status() ? 0 : 1;
+				else {
+					System.err.println("Unknown session command \"" + command + "\".");
+					rc = 1;
+				}
+			}
+			catch (IOException e) {
+				System.err.println("IOException: " + e.getMessage());
+				rc = 1;
+				if (arg.endsWith("-")) {
+					Done(rc);
+					System.err.println("Bit file on stdin is incomplete, leaving session mode.");
+					return 1;
+				}
+			}
+			Done(rc);
+		}
+		return 0;
+	}
+
+	private boolean OpenBoard(String desc, String serial)
+	{
+		// BoardTarget quotes descriptions for the Windows command line.
+		if ((desc != null) && (desc.length() > 1) && desc.startsWith("\"") && desc.endsWith("\""))
+			desc = desc.substring(1, desc.length() - 1);
+		for (int i = 1; i <= boards; i++) {
+			if (((serial == null) || serial.equals(Serial(i))) && ((desc == null) || desc.equals(UsbDescription(i)))) {
+				boardSerial = Serial(i);
+				return true;
+			}
+		}
+		System.err.println("Could not access USB device 0403:6010. If this is linux then make sure you can access " + 
+						   "the  device or use sudo.");
+		return false;
+	}
+
+	private boolean Scan()
+	{
+		Delay(SCAN_MILLIS);
+		if (Fails()) {
+			System.err.println("No JTAG device found.");
+			return false;
+		}
+		System.out.println(String.format("JTAG chainpos: %d Device IDCODE = 0x%08x\tDesc: %s", 0, IdCode(), device));
+		return true;
+	}
+
+	private boolean Upload(String fileName, boolean bscan) throws IOException
+	{
+		BitFileHeader header;
+		byte[] payload = ReadBitFile(fileName);
+
+		header = lastHeader;
+		if (!bscan) {
+			System.out.println("Created from NCD file: " + header.getDesignName());
+			System.out.println("Target device: " + header.getPartName());
+			System.out.println("Created: " + header.getDate() + " " + header.getTime());
+			System.out.println("Bitstream length: " + 8L * payload.length + " bits");
+		}
+		System.out.print("\nUploading \"" + fileName + "\". ");
+		if (!Transfer("fpga", payload.length, FPGA_KB_PER_SECOND)) {
+			System.err.println("Device failed to configure, INSTRUCTION_CAPTURE is 0x11");
+			bscanLoaded = false;
+			return true;	// papilio-prog does not fail on this either
+		}
+		bscanLoaded = bscan;
+		return true;
+	}
+
+	/**
+	 * @param option	letter of -s
+	 * @param fileName	main .bit file, null for erase
+	 * @return true if the operation succeeded, or the check found the image
+	 */
+	private boolean Spi(char option, String fileName) throws IOException
+	{
+		byte[] image, flash;
+		boolean ok = true;
+		int sectors, changed = 0;
+
+		if (option == 'e') {
+			System.out.println("Erasing External Flash Memory.");
+			if (!Phase("erase", 0, CHIP_ERASE_MILLIS) || !SaveFlash(new byte[0])) {
+				System.out.println("Error occured.");
+				return false;
+			}
+			return true;
+		}
+
+		image = ReadBitFile(fileName);
+		flash = LoadFlash();
+		if (option == 'c')
+			System.out.println("\nChecking External Flash Memory for \"" + fileName + "\".");
+		else
+			System.out.println("\nProgramming External Flash Memory with \"" + fileName + "\".");
+		sectors = (image.length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+
+		switch (option) {
+		case 'c':
+			ok = Transfer("compare", 3 * 256, READ_KB_PER_SECOND) && Arrays.equals(image, flash);
+			System.out.println(ok ? "SPI Flash already holds this image." : "SPI Flash does not hold this image.");
+			return ok;
+		case 'v':
+			ok = Transfer("verify", image.length, READ_KB_PER_SECOND) && Arrays.equals(image, flash);
+			break;
+		case 'd':
+			ok = Transfer("compare", image.length, READ_KB_PER_SECOND);
+			for (int s = 0; ok && (s < sectors); s++) {
+				if ((flash == null) || !SameRange(image, flash, s * SECTOR_SIZE, SECTOR_SIZE))
+					changed++;
+			}
+			System.out.println("Delta: " + changed + " of " + sectors + " sectors rewritten (" + 
+							   Math.min(image.length, changed * SECTOR_SIZE) + " bytes).");
+			changed = Math.min(image.length, changed * SECTOR_SIZE);
+			ok = ok && Phase("erase", changed, sectors * SECTOR_ERASE_MILLIS * changed / image.length) && 
+				 Transfer("write", changed, WRITE_KB_PER_SECOND) && 
+				 Transfer("verify", image.length, READ_KB_PER_SECOND);
+			break;
+		case 'p':
+			// Writing can only clear bits.
+			ok = Transfer("write", image.length, WRITE_KB_PER_SECOND) && ((flash != null) && isBlank(flash));
+			break;
+		default:
+			// a, n, w; w reads a page per sector first and erases if one is not blank.
+			if ((option == 'w') && ((flash == null) || !isBlank(flash))) {
+				System.out.println("SPI Flash is not blank, erasing it after all.");
+				option = 'a';
+			}
+			if (option != 'w')
+				ok = Phase("erase", image.length, sectors * SECTOR_ERASE_MILLIS);
+			if (ok && (option == 'a'))
+				ok = Transfer("blank", image.length, READ_KB_PER_SECOND);
+			if (ok)
+				ok = Transfer("write", image.length, WRITE_KB_PER_SECOND);
+			if (ok)
+				ok = Transfer("verify", image.length, READ_KB_PER_SECOND);
+		}
+
+		if (option != 'v')
+			SaveFlash(ok ? image : null);
+		if (!ok) {
+			System.out.println("Error occured.");
+			return false;
+		}
+		if ((option == 'a') || (option == 'n') || (option == 'w') || (option == 'd'))
+			bscanLoaded = false;	// JPROGRAM
+		if (verbose)
+			System.out.println("Done.");
+		return true;
+	}
+
+	private boolean Status()
+	{
+		Delay(STATUS_MILLIS);
+		System.out.println();
+		System.out.println("ISC_Done       = 1");
+		System.out.println("ISC_Enabled    = 0");
+		System.out.println("House Cleaning = 1");
+		System.out.println("DONE           = 1");
+		return true;
+	}
+
+	private void Reconfigure()
+	{
+		Delay(RECONFIGURE_MILLIS);
+		bscanLoaded = false;
+	}
+
+	/**
+	 * Takes as long as moving bytes at kbPerSecond would, with progress output.
+	 * @return false if the operation is to fail
+	 */
+	private boolean Transfer(String phase, long bytes, double kbPerSecond) {
+		return Phase(phase, bytes, (long) (bytes / 1024.0 / kbPerSecond * 1000));
+	}
+
+	private boolean Phase(String phase, long bytes, long millis)
+	{
+		// Progress is reported about as often as papilio-prog does, whatever the time scale.
+		long steps = Math.max(1, (long) (millis * timeScale) / PROGRESS_INTERVAL_MILLIS), failAt = Fails() ? random.nextInt((int) steps) : -1;
+
+		for (long step = 0; step < steps; step++) {
+			Progress(phase, bytes * step / steps, bytes);
+			if (step == failAt)
+				return false;
+			Delay(millis / steps);
+		}
+		Progress(phase, bytes, bytes);
+		return true;
+	}
+
+	private void Progress(String phase, long done, long total)
+	{
+		if (progressLines)
+			System.out.println("@@progress " + phase + " " + done + " " + total);
+		else if ((done == total) && verbose)
+			System.out.print(".");
+		System.out.flush();
+	}
+
+	private void Done(int rc)
+	{
+		System.out.println("@@done " + rc);
+		System.out.flush();
+	}
+
+	private boolean Fails() {
+		return (failRate > 0) && (random.nextDouble() < failRate);
+	}
+
+	private void Delay(long millis)
+	{
+		long scaled = (long) (millis * timeScale);
+
+		if (scaled <= 0)
+			return;
+		try {
+			Thread.sleep(scaled);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private BitFileHeader lastHeader;
+
+	/**
+	 * @return configuration data of a .bit file, read from StdIn if fileName is "-"
+	 */
+	private byte[] ReadBitFile(String fileName) throws IOException
+	{
+		InputStream is = fileName.equals("-") ? stdIn : new BufferedInputStream(new FileInputStream(fileName));
+		byte[] payload;
+
+		try {
+			lastHeader = BitFileHeader.Parse(is);
+			payload = new byte[(int) lastHeader.getPayloadLength()];
+			new DataInputStream(is).readFully(payload);
+		}
+		finally {
+			if (is != stdIn)
+				is.close();
+		}
+		return payload;
+	}
+
+	/*	Session commands are ASCII lines, but .bit files sent with them are binary, so
+		StdIn is read byte by byte rather than through a Reader. */
+	private String ReadLine() throws IOException
+	{
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+
+		while ((b = stdIn.read()) != -1) {
+			if (b == '\n')
+				return line.toString("US-ASCII");
+			line.write(b);
+		}
+		return (line.size() > 0) ? line.toString("US-ASCII") : null;
+	}
+
+	/*	SPI Flash of the current board: null if unknown, empty if erased. */
+	private byte[] LoadFlash() throws IOException
+	{
+		File file = FlashFile();
+		byte[] contents;
+		InputStream is;
+
+		if (!file.isFile())
+			return null;
+		contents = new byte[(int) file.length()];
+		is = new FileInputStream(file);
+		try {
+			new DataInputStream(is).readFully(contents);
+		}
+		finally {
+			is.close();
+		}
+		return contents;
+	}
+
+	/**
+	 * @param contents	null if unknown, e.g. after a failed write
+	 */
+	private boolean SaveFlash(byte[] contents)
+	{
+		File file = FlashFile();
+		OutputStream os;
+
+		file.getParentFile().mkdirs();
+		if (contents == null)
+			return file.delete() || !file.exists();
+		try {
+			os = new FileOutputStream(file);
+			try {
+				os.write(contents);
+			}
+			finally {
+				os.close();
+			}
+			return true;
+		}
+		catch (IOException e) {
+			System.err.println(file + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	private File FlashFile() {
+		return new File(new File(System.getProperty("java.io.tmpdir"), "papilio-prog-sim"), boardSerial + ".flash");
+	}
+
+	private static boolean isBlank(byte[] flash)
+	{
+		// Erased flash is stored as an empty file.
+		return flash.length == 0;
+	}
+
+	private static boolean SameRange(byte[] image, byte[] flash, int start, int length)
+	{
+		int end = Math.min(image.length, start + length);
+
+		if (flash.length < end)
+			return false;
+		for (int i = start; i < end; i++) {
+			if (image[i] != flash[i])
+				return false;
+		}
+		return true;
+	}
+
+	private int IdCode()
+	{
+		// papilio-prog-sim is started in the folder of devlist.txt, as papilio-prog is.
+		DeviceDatabase.Device known = DeviceDatabase.Load(new File(".")).Lookup(device);
+
+		return (known != null) ? known.getIdcode() : 0x01c22093;
+	}
+
+	private static String UsbDescription(int board) {
+		return (board == 1) ? USB_DESCRIPTION + " A" : USB_DESCRIPTION + " " + board + " A";
+	}
+
+	private static String Serial(int board) {
+		return String.format("SIM%05dA", board);
+	}
+
+	private static String Environment(String name, String defaultValue)
+	{
+		String value = System.getenv(name);
+		return ((value == null) || value.isEmpty()) ? defaultValue : value;
+	}
+
+	private static double EnvironmentNumber(String name, double defaultValue)
+	{
+		try {
+			return Double.parseDouble(Environment(name, "" + defaultValue));
+		}
+		catch (NumberFormatException e) {
+			System.err.println(name + ": " + e.getMessage());
+			return defaultValue;
+		}
+	}
+
+}
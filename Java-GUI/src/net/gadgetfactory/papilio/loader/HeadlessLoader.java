@@ -0,0 +1,217 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Programs a board from the command line, without a window:
+ * <PRE>
+ * java -cp papilio-loader.jar net.gadgetfactory.papilio.loader.HeadlessLoader
+ *      -f design.bit [-b design.bmm -p program.hex] [-w fpga|spi|disk] [-o merged.bit]
+ *      [-d "board name"] [-e] [-v] [-n] [-i] [-s] [-t] [-L]
+ * </PRE>
+ * The options are those of ProgrammingJob, plus -t and -L. Block RAM layouts which
+ * BramPatcher learnt in the GUI or LoaderDaemon are used, but learning one takes
+ * about twenty data2mem runs, which a one-shot run would wait for; -L does that, so
+ * that later runs with the same placement skip data2mem. The same AsyncProgrammer pipeline
+ * as [Do Selected Operation] does the work and the same preferences.txt applies, but
+ * neither AWT nor Swing is ever loaded. That keeps
+ * start-up cheap enough for build scripts and production stations which program one
+ * board after another; with -t the time from main to the start of the pipeline is
+ * reported and checked against STARTUP_BUDGET_MILLIS.
+ * <P>
+ * "HeadlessLoader bench ..." runs LoaderBenchmarks instead. To load test without a
+ * board, add -Dpapilio.programmer=papilio-prog-sim so that FakeProgrammer stands in
+ * for papilio-prog.
+ * <P>
+ * Exit code is 0 if the board was programmed, 1 if anything failed and 2 for a bad
+ * command line.
+ * <P>
+ */
+public class HeadlessLoader implements ProgrammerListener
+{
+	/** Time main may take to get the pipeline going, JVM start-up excluded. */
+	public static final long STARTUP_BUDGET_MILLIS = 250;
+
+	private static final int EXIT_OK = 0, EXIT_FAILED = 1, EXIT_USAGE = 2;
+
+	private final long mainNanos;
+	private ProgrammingJob job;
+	private boolean reportTiming = false, learnLayout = false;
+	private int errorCount = 0;
+
+	private HeadlessLoader(long mainNanos) {
+		this.mainNanos = mainNanos;
+	}
+
+	public static void main(String[] args)
+	{
+		long mainNanos = System.nanoTime();
+		HeadlessLoader loader;
+
+		// Before anything else, should some library touch AWT behind our back.
+		System.setProperty("java.awt.headless", "true");
+
+		if ((args.length >= 1) && args[0].equals("bench"))
+			System.exit(LoaderBenchmarks.Run(new ProgrammerTools(ProgrammerTools.AppPath()), 
+											 Arrays.copyOfRange(args, 1, args.length)));
+
+		loader = new HeadlessLoader(mainNanos);
+		if (!loader.ParseArguments(args)) {
+			Usage();
+			System.exit(EXIT_USAGE);
+		}
+		System.exit(loader.Program());
+	}
+
+	private static void Usage()
+	{
+		System.err.println("Usage: HeadlessLoader -f file.bit [options]");
+		System.err.println("       HeadlessLoader bench hex <program.hex> [runs]");
+		System.err.println("       HeadlessLoader bench bitstreams <.bit file or folder> [runs]");
+		System.err.println("       HeadlessLoader bench jtag one|pro <.bit file> [runs]");
+		System.err.println("  -f <file>   target .bit file");
+		System.err.println("  -b <file>   target .bmm file, merged with -p into the .bit file");
+		System.err.println("  -p <file>   program .hex file, merged with -b into the .bit file");
+		System.err.println("  -w <target> write to fpga, spi (default) or disk");
+		System.err.println("  -o <file>   merged .bit file to create, with -w disk");
+		System.err.println("  -d <name>   FTDI device description of the board, default first board");
+		System.err.println("  -e          erase SPI Flash (alone, without -f)");
+		System.err.println("  -v          verify SPI Flash (alone, without -f)");
+		System.err.println("  -n          write SPI Flash without erasing and verifying");
+		System.err.println("  -i          leave SPI Flash alone if it already holds the .bit file");
+		System.err.println("  -s          only scan the JTAG chain");
+		System.err.println("  -t          report start-up time and step timings");
+		System.err.println("  -L          learn the block RAM layout for later runs, waiting for it");
+	}
+
+	/**
+	 * @return false if the command line does not make sense
+	 */
+	private boolean ParseArguments(String[] args)
+	{
+		List<String> others = new ArrayList<String>();
+
+		try {
+			job = ProgrammingJob.Parse(args, others);
+			job.Validate();
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			return false;
+		}
+		for (String arg : others) {
+			if (arg.equals("-t"))
+				reportTiming = true;
+			else if (arg.equals("-L"))
+				learnLayout = true;
+			else {
+				System.err.println("Unknown option " + arg + ".");
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return exit code
+	 */
+	private int Program()
+	{
+		ProgrammerTools tools = new ProgrammerTools(ProgrammerTools.AppPath());
+		Properties defaultSettings = new Properties(), settings;
+		File settingsPath = LoaderSettings.SettingsFolder();
+		String missing;
+		AsyncProgrammer programmer;
+
+		missing = ProgrammingJob.MissingTool(tools);
+		if (missing == null)
+			missing = job.MissingInput();
+		if (missing != null) {
+			System.err.println(missing);
+			return EXIT_FAILED;
+		}
+
+		LoaderSettings.AddProgrammerDefaults(defaultSettings);
+		settings = new Properties(defaultSettings);
+		if (settingsPath != null)
+			LoaderSettings.LoadPreferences(settings, settingsPath);
+		LoaderSettings.ApplyProgrammerSettings(settings, settingsPath);
+		BramPatcher.setLearning(learnLayout);
+
+		programmer = job.NewProgrammer(tools, settings, this);
+		programmer.setReportTimings(reportTiming);
+		if (reportTiming)
+			ReportStartup();
+		// No window to keep responsive, so the pipeline runs on this thread.
+		programmer.run();
+		if (learnLayout)
+		// => The learner thread would die with this JVM.
+			BramPatcher.WaitForLearning();
+
+		return (errorCount == 0) ? EXIT_OK : EXIT_FAILED;
+	}
+
+	private void ReportStartup()
+	{
+		long startupMillis = (System.nanoTime() - mainNanos) / 1000000;
+
+		System.out.println("Start-up took " + startupMillis + " ms (budget " + STARTUP_BUDGET_MILLIS + " ms).");
+		if (startupMillis > STARTUP_BUDGET_MILLIS)
+			System.err.println("Warning: start-up exceeded its budget of " + STARTUP_BUDGET_MILLIS + " ms.");
+	}
+
+	/* ---- ProgrammerListener ---- */
+
+	@Override
+	public void Output(String text) {
+		System.out.print(text);
+	}
+
+	@Override
+	public void Progress(AsyncProgrammer programmer, ProgressEvent event)
+	{
+		// A line per phase would do for a log file; a terminal gets a running figure.
+		if (reportTiming)
+			System.out.print("\r" + event + "    " + (event.isComplete() ? System.getProperty("line.separator") : ""));
+	}
+
+	@Override
+	public synchronized void Errors(int errors) {
+		errorCount += errors;
+	}
+
+	@Override
+	public void Finished(AsyncProgrammer programmer)
+	{
+		if (reportTiming) {
+			System.out.println(DeviceIdentityCache.Statistics());
+			System.out.println(MergeCache.Statistics());
+			System.out.println(BoardLedger.Statistics());
+			System.out.println(ProxyBitstreamCache.Statistics());
+		}
+	}
+
+}
@@ -0,0 +1,357 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reads a program .hex file (Intel HEX) and writes the .mem file data2mem expects,
+ * i.e. what
+ * <PRE>
+ * srec_cat program.hex -Intel -Byte_Swap 2 -Data_Only -o tmp.mem -vmem 8
+ * </PRE>
+ * followed by stripping the @address of every line used to produce, without spawning
+ * srec_cat.
+ * <P>
+ * The file is parsed straight from a byte buffer: no String per line, one reusable
+ * record buffer, and data records which follow each other (the usual case) are
+ * appended to the same run of memory. Data, extended segment address (02) and
+ * extended linear address (04) records are honoured; start address records (03, 05)
+ * are ignored, as srec_cat -Data_Only does. Every checksum is verified.
+ * <P>
+ * Like the srec_cat route, gaps between runs are closed up in the .mem file. Records
+ * are not expected to overlap; should they, the bytes of the run starting at the higher
+ * address win.
+ * <P>
+ */
+public class IntelHexReader
+{
+	private static final int BYTES_PER_MEM_LINE = 16;
+	private static final byte[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7',
+											  '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+	/** Bytes at consecutive addresses. */
+	private static class Run
+	{
+		final long start;
+		byte[] data;
+		int length = 0;
+
+		Run(long start, int capacity)
+		{
+			this.start = start;
+			data = new byte[capacity];
+		}
+
+		long End() {
+			return start + length;
+		}
+
+		void Append(byte[] bytes, int offset, int count)
+		{
+			if (length + count > data.length) {
+				byte[] larger = new byte[Math.max(data.length * 2, length + count)];
+				System.arraycopy(data, 0, larger, 0, length);
+				data = larger;
+			}
+			System.arraycopy(bytes, offset, data, length, count);
+			length += count;
+		}
+	}
+
+	private final List<Run> runs = new ArrayList<Run>();
+	private long dataBytes = 0;
+	private int recordCount = 0;
+
+	// Parser state
+	private byte[] buffer = new byte[65536];
+	private int bufferPos = 0, bufferEnd = 0;
+	private InputStream in;
+	private int lineNumber = 0;
+
+	/**
+	 * Reads the whole of hexFile.
+	 * @throws IOException if the file cannot be read or is not valid Intel HEX
+	 */
+	public static IntelHexReader Read(File hexFile) throws IOException
+	{
+		IntelHexReader reader = new IntelHexReader();
+		InputStream is = new FileInputStream(hexFile);
+
+		try {
+			reader.Read(is);
+		}
+		finally {
+			is.close();
+		}
+		return reader;
+	}
+
+	/**
+	 * Reads Intel HEX records until the end of file record or the end of stream.
+	 */
+	public void Read(InputStream is) throws IOException
+	{
+		byte[] record = new byte[5 + 255];	// count, address (2), type, data, checksum
+		int count, b, sum, type;
+		long base = 0, address;
+		Run current = null;
+
+		in = is;
+		while (true) {
+			// Skip line endings and blanks up to the start code.
+			do {
+				b = NextByte();
+				if (b == '\n')
+					lineNumber++;
+			} while ((b == '\n') || (b == '\r') || (b == ' ') || (b == '\t'));
+			if (b == -1)
+				break;
+			if (b != ':')
+				throw Error("record does not start with ':'");
+
+			record[0] = (byte) NextHexByte();
+			count = record[0] & 0xFF;
+			sum = count;
+			for (int i = 1; i < count + 5; i++) {
+				record[i] = (byte) NextHexByte();
+				sum += record[i] & 0xFF;
+			}
+			if ((sum & 0xFF) != 0)
+				throw Error("checksum mismatch");
+			recordCount++;
+
+			type = record[3] & 0xFF;
+			switch (type) {
+			case 0x00:		// Data
+				address = base + (((record[1] & 0xFF) << 8) | (record[2] & 0xFF));
+				if ((current == null) || (current.End() != address)) {
+					current = new Run(address, Math.max(4096, count));
+					runs.add(current);
+				}
+				current.Append(record, 4, count);
+				dataBytes += count;
+				break;
+			case 0x01:		// End of file
+				return;
+			case 0x02:		// Extended segment address
+				if (count != 2)
+					throw Error("bad extended segment address record");
+				base = (((record[4] & 0xFF) << 8) | (record[5] & 0xFF)) << 4;
+				break;
+			case 0x04:		// Extended linear address
+				if (count != 2)
+					throw Error("bad extended linear address record");
+				base = (((long) (record[4] & 0xFF) << 8) | (record[5] & 0xFF)) << 16;
+				break;
+			case 0x03:		// Start segment address
+			case 0x05:		// Start linear address
+				break;
+			default:
+				throw Error("unknown record type " + type);
+			}
+		}
+	}
+
+	public long getDataBytes() {
+		return dataBytes;
+	}
+
+	public int getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * @param swapWidth		bytes per word whose byte order is reversed (srec_cat -Byte_Swap),
+	 * 						a power of two; 1 for none
+	 * @return all data bytes in address order, gaps closed up, byte swapped
+	 */
+	public byte[] ToByteStream(int swapWidth)
+	{
+		List<Run> merged = MergedRuns();
+		byte[] stream = new byte[(int) MergedLength(merged)];
+		int pos = 0, mask = swapWidth - 1;
+		long word, lastWord = -1;
+		Run run, owner;
+
+		for (int r = 0; r < merged.size(); r++) {
+			run = merged.get(r);
+			for (word = run.start & ~mask; word < run.End(); word += swapWidth) {
+				if (word == lastWord)
+				// => Shared with the previous run, already done.
+					continue;
+				lastWord = word;
+				if ((word >= run.start) && (word + swapWidth <= run.End())) {
+				// => Whole word within this run, the usual case.
+					for (int i = swapWidth - 1; i >= 0; i--)
+						stream[pos++] = run.data[(int) (word - run.start) + i];
+				}
+				else {
+					for (int i = swapWidth - 1; i >= 0; i--) {
+						owner = RunAt(merged, word + i);
+						if (owner != null)
+							stream[pos++] = owner.data[(int) (word + i - owner.start)];
+					}
+				}
+			}
+		}
+		return stream;
+	}
+
+	/**
+	 * Writes the .mem file data2mem expects: hex bytes separated by blanks, Unix line endings.
+	 * @param swapWidth		see ToByteStream
+	 */
+	public void WriteMem(File memFile, int swapWidth) throws IOException
+	{
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(memFile), 65536);
+
+		try {
+			WriteMem(os, ToByteStream(swapWidth));
+		}
+		finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * Same layout as srec_cat -vmem 8 once the @address of every line is stripped.
+	 */
+	public static void WriteMem(OutputStream os, byte[] stream) throws IOException
+	{
+		byte[] line = new byte[BYTES_PER_MEM_LINE * 3 + 1];
+		int pos, b;
+
+		for (int i = 0; i < stream.length; i += BYTES_PER_MEM_LINE) {
+			pos = 0;
+			for (int j = i; j < Math.min(i + BYTES_PER_MEM_LINE, stream.length); j++) {
+				b = stream[j] & 0xFF;
+				line[pos++] = ' ';
+				line[pos++] = HEX_DIGITS[b >> 4];
+				line[pos++] = HEX_DIGITS[b & 0x0F];
+			}
+			line[pos++] = '\n';		// data2mem expects Unix line endings
+			os.write(line, 0, pos);
+		}
+	}
+
+	/*	Runs sorted by address, overlapping or adjacent ones combined. */
+	private List<Run> MergedRuns()
+	{
+		List<Run> sorted = new ArrayList<Run>(runs), merged = new ArrayList<Run>();
+		Run last = null, combined;
+		long end;
+
+		// Stable, so that of two runs at the same address the later one stays later.
+		Collections.sort(sorted, new Comparator<Run>() {
+			@Override
+			public int compare(Run r1, Run r2) {
+				return (r1.start < r2.start) ? -1 : ((r1.start == r2.start) ? 0 : 1);
+			}
+		});
+		for (Run run : sorted) {
+			if ((last == null) || (run.start > last.End())) {
+				merged.add(run);
+				last = run;
+			}
+			else {
+			// => Overlaps or continues last run; the bytes of run win.
+				end = Math.max(last.End(), run.End());
+				combined = new Run(last.start, (int) (end - last.start));
+				combined.Append(last.data, 0, last.length);
+				combined.length = (int) (end - last.start);
+				System.arraycopy(run.data, 0, combined.data, (int) (run.start - last.start), run.length);
+				merged.set(merged.size() - 1, combined);
+				last = combined;
+			}
+		}
+		return merged;
+	}
+
+	private static long MergedLength(List<Run> merged)
+	{
+		long length = 0;
+
+		for (Run run : merged)
+			length += run.length;
+		return length;
+	}
+
+	private static Run RunAt(List<Run> merged, long address)
+	{
+		int low = 0, high = merged.size() - 1, mid;
+		Run run;
+
+		while (low <= high) {
+			mid = (low + high) >>> 1;
+			run = merged.get(mid);
+			if (address < run.start)
+				high = mid - 1;
+			else if (address >= run.End())
+				low = mid + 1;
+			else
+				return run;
+		}
+		return null;
+	}
+
+	private int NextByte() throws IOException
+	{
+		if (bufferPos == bufferEnd) {
+			bufferEnd = in.read(buffer, 0, buffer.length);
+			bufferPos = 0;
+			if (bufferEnd <= 0) {
+				bufferEnd = 0;
+				return -1;
+			}
+		}
+		return buffer[bufferPos++] & 0xFF;
+	}
+
+	private int NextHexByte() throws IOException {
+		return (HexDigit(NextByte()) << 4) | HexDigit(NextByte());
+	}
+
+	private int HexDigit(int c) throws IOException
+	{
+		if ((c >= '0') && (c <= '9'))
+			return c - '0';
+		if ((c >= 'A') && (c <= 'F'))
+			return c - 'A' + 10;
+		if ((c >= 'a') && (c <= 'f'))
+			return c - 'a' + 10;
+		throw Error((c == -1) ? "unexpected end of file" : "bad hex digit");
+	}
+
+	private IOException Error(String message) {
+		return new IOException("Intel HEX line " + (lineNumber + 1) + ": " + message);
+	}
+
+}
@@ -0,0 +1,79 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Scratch folder of one AsyncProgrammer, for the files console programs insist on
+ * (the .mem file and merged .bit file of data2mem). Each job gets a folder of its own
+ * in the temporary folder, so jobs and loader instances never see each other's files
+ * and the install folder need not be writable.
+ * <P>
+ * The folder is created on first use and removed by Delete.
+ * <P>
+ */
+public class JobWorkspace
+{
+	private static final String PREFIX = "papilio-job";
+
+	private File folder = null;
+
+	/**
+	 * @return the folder, created if necessary
+	 * @throws IOException if it cannot be created
+	 */
+	public synchronized File getFolder() throws IOException
+	{
+		if (folder == null) {
+			folder = File.createTempFile(PREFIX, "");
+			if (!folder.delete() || !folder.mkdir()) {
+				folder = null;
+				throw new IOException("Cannot create a scratch folder in " + System.getProperty("java.io.tmpdir"));
+			}
+		}
+		return folder;
+	}
+
+	/**
+	 * @return file called name in the folder, which is created if necessary
+	 */
+	public File NewFile(String name) throws IOException {
+		return new File(getFolder(), name);
+	}
+
+	/** Removes the folder and everything in it. */
+	public synchronized void Delete()
+	{
+		File[] files;
+
+		if (folder == null)
+			return;
+		files = folder.listFiles();
+		if (files != null) {
+			for (File file : files)
+				file.delete();
+		}
+		folder.delete();
+		folder = null;
+	}
+
+}
@@ -0,0 +1,395 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import net.gadgetfactory.papilio.loader.jtag.FpgaProgrammer;
+import net.gadgetfactory.papilio.loader.jtag.JtagChain;
+import net.gadgetfactory.papilio.loader.jtag.MpsseTransport;
+import net.gadgetfactory.papilio.loader.jtag.SimulatedBoard;
+import net.gadgetfactory.papilio.loader.jtag.SimulatedMpsseChannel;
+import net.gadgetfactory.papilio.loader.jtag.SpiFlashProgrammer;
+
+/**
+ * Micro benchmarks of the steps Papilio Loader does in Java instead of spawning a
+ * console program, run with
+ * <PRE>
+ * java -cp papilio-loader.jar net.gadgetfactory.papilio.loader.HeadlessLoader bench &lt;name&gt; ...
+ * </PRE>
+ * Each benchmark times the Java route and, where the console program is available,
+ * the route it replaces, and checks that both produce the same output.
+ * <P>
+ */
+public class LoaderBenchmarks
+{
+	private static final int DEFAULT_RUNS = 10;
+
+	/**
+	 * @param args	benchmark name followed by its arguments
+	 * @return exit code
+	 */
+	public static int Run(ProgrammerTools tools, String[] args)
+	{
+		if ((args.length >= 2) && args[0].equals("hex"))
+			return HexToMem(tools, new File(args[1]), (args.length >= 3) ? Math.max(1, Integer.parseInt(args[2])) : DEFAULT_RUNS);
+		if ((args.length >= 2) && args[0].equals("bitstreams"))
+			return Bitstreams(new File(args[1]), (args.length >= 3) ? Math.max(1, Integer.parseInt(args[2])) : DEFAULT_RUNS);
+		if ((args.length >= 3) && args[0].equals("jtag"))
+			return Jtag(args[1], new File(args[2]), (args.length >= 4) ? Math.max(1, Integer.parseInt(args[3])) : DEFAULT_RUNS);
+
+		System.err.println("Usage: HeadlessLoader bench hex <program.hex> [runs]");
+		System.err.println("       HeadlessLoader bench bitstreams <.bit file or folder, e.g. bitstream_archive> [runs]");
+		System.err.println("       HeadlessLoader bench jtag one|pro <.bit file> [runs]");
+		return 2;
+	}
+
+	/**
+	 * IntelHexReader against srec_cat + StripVmemAddresses, from program .hex to out.mem.
+	 */
+	private static int HexToMem(ProgrammerTools tools, File hexFile, int runs)
+	{
+		File workFolder, javaMem, srecMem, srecVmem;
+		long[] javaNanos = new long[runs], srecNanos = new long[runs];
+		long start;
+		boolean srecAvailable = tools.getSrecCatFile().isFile();
+		Process process;
+		String[] srecCatCommand;
+
+		try {
+			workFolder = File.createTempFile("papilio-bench", "");
+			workFolder.delete();
+			workFolder.mkdir();
+			javaMem = new File(workFolder, "java.mem");
+			srecMem = new File(workFolder, "srec.mem");
+			srecVmem = new File(workFolder, "tmp.mem");
+			srecCatCommand = new String[] {ProgrammerTools.CanonicalPath(tools.getSrecCatFile()),
+										   ProgrammerTools.CanonicalPath(hexFile),
+										   "-Intel", "-Byte_Swap", "2", "-Data_Only",
+										   "-o", ProgrammerTools.CanonicalPath(srecVmem), "-vmem", "8"};
+
+			for (int i = 0; i < runs; i++) {
+				start = System.nanoTime();
+				IntelHexReader.Read(hexFile).WriteMem(javaMem, 2);
+				javaNanos[i] = System.nanoTime() - start;
+
+				if (srecAvailable) {
+					start = System.nanoTime();
+					try {
+						process = new ProcessBuilder(srecCatCommand).redirectErrorStream(true).start();
+						Drain(process.getInputStream());
+						process.waitFor();
+					}
+					catch (IOException e) {
+						System.err.println("srec_cat cannot be run: " + e.getMessage());
+						srecAvailable = false;
+						continue;
+					}
+					StripVmemAddresses(srecVmem, srecMem);
+					srecNanos[i] = System.nanoTime() - start;
+				}
+			}
+
+			System.out.println(hexFile.getName() + ": " + hexFile.length() + " bytes, " + runs + " runs");
+			System.out.println("  IntelHexReader: " + Statistics(javaNanos, hexFile.length()));
+			if (srecAvailable) {
+				System.out.println("  srec_cat:       " + Statistics(srecNanos, hexFile.length()));
+				System.out.println("  Output " + (SameContents(javaMem, srecMem) ? "identical" : "DIFFERS"));
+			}
+			else
+				System.out.println("  srec_cat:       not available");
+
+			javaMem.delete();
+			srecMem.delete();
+			srecVmem.delete();
+			workFolder.delete();
+		}
+		catch (IOException e) {
+			System.err.println(e.getMessage());
+			return 1;
+		}
+		catch (InterruptedException e) {
+			return 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Reading whole .bit files into the heap against BitstreamImage, each followed by
+	 * what the loader does with a bitstream: parse its header, hash it and get at its
+	 * configuration data.
+	 */
+	private static int Bitstreams(File source, int runs)
+	{
+		File[] bitFiles;
+		long[] streamNanos = new long[runs], mapNanos = new long[runs];
+		long start, totalBytes = 0;
+		byte[] contents, streamDigest, mapDigest;
+		boolean identical = true;
+		BitFileHeader header;
+		BitstreamImage image;
+		MessageDigest sha1;
+
+		if (source.isDirectory())
+			bitFiles = source.listFiles(new FileFilter() {
+				@Override
+				public boolean accept(File file) {
+					return file.isFile() && file.getName().toLowerCase().endsWith(".bit");
+				}
+			});
+		else
+			bitFiles = new File[] {source};
+		if ((bitFiles == null) || (bitFiles.length == 0)) {
+			System.err.println("No .bit files in " + source);
+			return 1;
+		}
+
+		try {
+			sha1 = MessageDigest.getInstance("SHA-1");
+			for (File bitFile : bitFiles)
+				totalBytes += bitFile.length();
+
+			for (int i = 0; i < runs; i++) {
+				for (File bitFile : bitFiles) {
+					start = System.nanoTime();
+					contents = BramPatcher.ReadFile(bitFile);
+					header = BitFileHeader.Parse(contents);
+					sha1.update(contents);
+					streamDigest = sha1.digest();
+					Arrays.copyOfRange(contents, (int) header.getPayloadOffset(), 
+									   (int) (header.getPayloadOffset() + header.getPayloadLength()));
+					streamNanos[i] += System.nanoTime() - start;
+
+					start = System.nanoTime();
+					image = BitstreamImage.Open(bitFile);
+					try {
+						image.getHeader();
+						image.Digest(sha1);
+						mapDigest = sha1.digest();
+						image.getPayload();
+					}
+					finally {
+						image.Close();
+					}
+					mapNanos[i] += System.nanoTime() - start;
+
+					identical &= Arrays.equals(streamDigest, mapDigest);
+				}
+			}
+		}
+		catch (IOException e) {
+			System.err.println(e.getMessage());
+			return 1;
+		}
+		catch (NoSuchAlgorithmException e) {
+			System.err.println(e.getMessage());
+			return 1;
+		}
+
+		System.out.println(bitFiles.length + " .bit files: " + totalBytes + " bytes, " + runs + " runs");
+		System.out.println("  Streams:        " + Statistics(streamNanos, totalBytes));
+		System.out.println("  BitstreamImage: " + Statistics(mapNanos, totalBytes));
+		System.out.println("  Digests " + (identical ? "identical" : "DIFFER"));
+		return 0;
+	}
+
+	/**
+	 * The Java JTAG layer against a simulated Papilio One 500K or Papilio Pro, through
+	 * MpsseTransport and SimulatedMpsseChannel: scan the chain, configure the FPGA with
+	 * the .bit file, then write it to SPI Flash and read it back. Times the Java side only, as the simulated parts take no time; checks
+	 * that the FPGA and the flash got what was sent.
+	 */
+	private static int Jtag(String boardName, File bitFile, int runs)
+	{
+		long[] scanNanos = new long[runs], fpgaNanos = new long[runs], 
+			   programNanos = new long[runs], verifyNanos = new long[runs];
+		long start;
+		byte[] payload = null;
+		boolean correct = true;
+		SimulatedBoard board = null;
+		SimulatedMpsseChannel channel = null;
+		JtagChain chain = null;
+		DeviceDatabase.Device known;
+		SpiFlashProgrammer flash;
+		BitstreamImage image;
+
+		try {
+			image = BitstreamImage.Open(bitFile);
+			try {
+				payload = new byte[(int) image.getHeader().getPayloadLength()];
+				image.getPayload().get(payload);
+			}
+			finally {
+				image.Close();
+			}
+
+			for (int i = 0; i < runs; i++) {
+				board = boardName.equals("pro") ? SimulatedBoard.PapilioPro() : SimulatedBoard.PapilioOne500K();
+				// Through the MPSSE encoding a real FT2232 gets, decoded again in memory.
+				channel = new SimulatedMpsseChannel(board);
+				chain = new JtagChain(new MpsseTransport(channel, 0));
+
+				start = System.nanoTime();
+				if (chain.ScanChain() != 1)
+					throw new IOException("Simulated chain has " + chain.getDeviceCount() + " devices.");
+				known = DeviceDatabase.BuiltIn().Lookup(chain.getDeviceID(0));
+				if (known == null)
+					throw new IOException(String.format("Simulated board has unknown IDCODE 0x%08x.", chain.getDeviceID(0)));
+				chain.setDeviceIRLength(0, known.getIRLength());
+				chain.SelectDevice(0);
+				scanNanos[i] = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				new FpgaProgrammer(chain).Program(payload);
+				fpgaNanos[i] = System.nanoTime() - start;
+				correct &= Arrays.equals(board.getConfigData(), payload);
+
+				flash = new SpiFlashProgrammer(chain);
+				start = System.nanoTime();
+				flash.Identify();
+				flash.Program(payload);
+				programNanos[i] = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				correct &= (flash.Verify(payload) == -1);
+				verifyNanos[i] = System.nanoTime() - start;
+			}
+		}
+		catch (IOException e) {
+			System.err.println(e.getMessage());
+			return 1;
+		}
+
+		System.out.println(bitFile.getName() + " on simulated " + (boardName.equals("pro") ? "Papilio Pro" : "Papilio One 500K") + 
+						   ": " + payload.length + " bytes, " + runs + " runs");
+		System.out.println("  Scan:          " + Statistics(scanNanos, 4));
+		System.out.println("  Configure:     " + Statistics(fpgaNanos, payload.length));
+		System.out.println("  Flash program: " + Statistics(programNanos, payload.length));
+		System.out.println("  Flash verify:  " + Statistics(verifyNanos, payload.length));
+		System.out.println("  " + chain.Statistics());
+		System.out.println("  " + channel.Statistics());
+		System.out.println("  " + board.Statistics());
+		System.out.println("  FPGA and flash contents " + (correct ? "correct" : "WRONG"));
+		return correct ? 0 : 1;
+	}
+
+	/*	First run (cold) separately, then min and median of the others. */
+	private static String Statistics(long[] nanos, long bytes)
+	{
+		long[] warm = Arrays.copyOfRange(nanos, Math.min(1, nanos.length - 1), nanos.length);
+		double median;
+
+		Arrays.sort(warm);
+		median = warm[warm.length / 2] / 1e6;
+		return String.format("first %.2f ms, min %.2f ms, median %.2f ms, %.1f MB/s",
+							 nanos[0] / 1e6, warm[0] / 1e6, median,
+							 (median > 0) ? bytes / 1048576.0 / (median / 1000) : 0.0);
+	}
+
+	/**
+	 * Converts srec_cat -vmem output to a format which is understood by data2mem.
+	 * This means to strip the starting offsets/addresses present on each line and
+	 * changing the line ending to Unix style.
+	 */
+	private static void StripVmemAddresses(File intermediateMemFile, File outputMemFile)
+	{
+		InputStream fin = null;
+		OutputStream fout = null;
+		byte[] buffer = new byte[65536];
+		int count;
+
+		try 
+		{
+			fin = new FileInputStream(intermediateMemFile);
+			fout = new VmemAddressStripper(new BufferedOutputStream(new FileOutputStream(outputMemFile), 65536));
+			while ((count = fin.read(buffer)) != -1)
+				fout.write(buffer, 0, count);
+		}
+		catch (IOException e) {
+			System.err.println(e.getMessage());
+		}
+		finally
+		{
+			try {
+				if (fin != null)
+					fin.close();
+				if (fout != null)
+					fout.close();
+			}
+			catch (IOException ioex) {
+				System.err.println(ioex.getMessage());
+			}
+		}
+	}
+
+	private static void Drain(InputStream is) throws IOException
+	{
+		byte[] buffer = new byte[4096];
+
+		while (is.read(buffer) != -1)
+			;
+		is.close();
+	}
+
+	private static boolean SameContents(File file1, File file2) throws IOException
+	{
+		byte[] buffer1 = new byte[65536], buffer2 = new byte[65536];
+		InputStream is1, is2;
+		int count1, count2;
+
+		if (file1.length() != file2.length())
+			return false;
+		is1 = new FileInputStream(file1);
+		is2 = new FileInputStream(file2);
+		try {
+			while ((count1 = ReadFully(is1, buffer1)) > 0) {
+				count2 = ReadFully(is2, buffer2);
+				if ((count1 != count2) || !Arrays.equals(buffer1, buffer2))
+					return false;
+			}
+		}
+		finally {
+			is1.close();
+			is2.close();
+		}
+		return true;
+	}
+
+	private static int ReadFully(InputStream is, byte[] buffer) throws IOException
+	{
+		int total = 0, count;
+
+		Arrays.fill(buffer, (byte) 0);
+		while ((total < buffer.length) && ((count = is.read(buffer, total, buffer.length - total)) != -1))
+			total += count;
+		return total;
+	}
+
+}
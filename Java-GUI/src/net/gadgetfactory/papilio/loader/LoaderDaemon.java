@@ -0,0 +1,516 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resident loader which takes programming jobs over a local socket, so that build
+ * scripts and test fixtures pay for JVM start-up, reading preferences.txt and the
+ * first JTAG scan of a board once rather than on every flash.
+ * <P>
+ * Listens on 127.0.0.1 only, port DaemonPort of preferences.txt unless given with
+ * -port. A client sends UTF-8 lines:
+ * <PRE>
+ * job &lt;options&gt;             options of ProgrammingJob, e.g. job -f design.bit -w fpga
+ * job -F &lt;size&gt; &lt;options&gt;   the .bit file itself follows the line: size raw bytes
+ * status                      jobs queued and running
+ * shutdown &lt;token&gt;            finish the running job, drop the others and exit
+ * </PRE>
+ * and receives the Output log of its jobs, interleaved with:
+ * <PRE>
+ * @@loader &lt;version&gt;           once, on connecting
+ * @@queued &lt;id&gt; &lt;ahead&gt;        job accepted; number of jobs in the queue before it
+ * @@start &lt;id&gt;                  job is being run
+ * @@progress &lt;phase&gt; &lt;done&gt; &lt;total&gt;   as printed by papilio-prog -P
+ * @@done &lt;id&gt; &lt;errors&gt;         job finished; 0 errors means success
+ * @@error &lt;message&gt;             line rejected
+ * @@status &lt;queued&gt; &lt;running&gt;
+ * </PRE>
+ * Jobs of all clients run one after another through the same AsyncProgrammer pipeline
+ * as [Do Selected Operation]. Jobs of a client which disconnects are dropped, except
+ * the one already running.
+ * <P>
+ * The daemon does not share the working directory of its clients, so all paths of a
+ * job have to be absolute. Any local user can connect, queue jobs and so program the
+ * boards, and have merged .bit files (-o, which has to end in .bit) written wherever
+ * the user running the daemon may write. Stopping it takes the token the daemon puts
+ * in daemon.token in the settings folder, readable by its own user only; without a
+ * settings folder it can only be killed. Request lines are limited to 8 KB and
+ * uploaded .bit files to 16 MB.
+ * <P>
+ */
+public class LoaderDaemon
+{
+	public static final String PROTOCOL_VERSION = "1";
+	private static final String UPLOAD_SWITCH = "-F";
+	private static final String TOKEN_FILE = "daemon.token";
+	// Longest request line and largest uploaded .bit file taken from a client.
+	private static final int MAX_LINE_BYTES = 8192;
+	private static final long MAX_UPLOAD_BYTES = 16L * 1024 * 1024;
+
+	private final ProgrammerTools tools;
+	private final Properties settings;
+	private final LinkedBlockingQueue<Job> queue = new LinkedBlockingQueue<Job>();
+	private final AtomicInteger nextJobID = new AtomicInteger(1);
+	private ServerSocket serverSocket;
+	private volatile Job running = null;
+	private volatile boolean shuttingDown = false;
+	private String shutdownToken = null;
+	// Put in the queue to stop the worker.
+	private final Job STOP = new Job(null, null, 0, null);
+
+	/** A queued job and the client waiting for it. */
+	private class Job implements ProgrammerListener
+	{
+		final Client client;
+		final ProgrammingJob job;
+		final int id;
+		final File uploadedFile;
+		private int errorCount = 0;
+
+		Job(Client client, ProgrammingJob job, int id, File uploadedFile)
+		{
+			this.client = client;
+			this.job = job;
+			this.id = id;
+			this.uploadedFile = uploadedFile;
+		}
+
+		@Override
+		public void Output(String text) {
+			client.Send(text);
+		}
+
+		@Override
+		public void Progress(AsyncProgrammer programmer, ProgressEvent event) {
+			client.SendLine(ProgressParser.Format(event));
+		}
+
+		@Override
+		public synchronized void Errors(int errors) {
+			errorCount += errors;
+		}
+
+		@Override
+		public void Finished(AsyncProgrammer programmer) { }
+	}
+
+	public LoaderDaemon(ProgrammerTools tools, Properties settings)
+	{
+		this.tools = tools;
+		this.settings = settings;
+	}
+
+	public static void main(String[] args)
+	{
+		Properties defaultSettings = new Properties(), settings;
+		File settingsPath;
+		ProgrammerTools tools;
+		LoaderDaemon daemon;
+		File tokenFile = null;
+		String missing;
+		int port;
+
+		System.setProperty("java.awt.headless", "true");
+
+		settingsPath = LoaderSettings.SettingsFolder();
+		LoaderSettings.AddProgrammerDefaults(defaultSettings);
+		settings = new Properties(defaultSettings);
+		if (settingsPath != null)
+			LoaderSettings.LoadPreferences(settings, settingsPath);
+		LoaderSettings.ApplyProgrammerSettings(settings, settingsPath);
+
+		tools = new ProgrammerTools(ProgrammerTools.AppPath());
+		missing = ProgrammingJob.MissingTool(tools);
+		if (missing != null) {
+			System.err.println(missing);
+			System.exit(1);
+		}
+		ProxyBitstreamCache.Preload(tools);
+
+		try {
+			if ((args.length == 2) && args[0].equals("-port"))
+				port = Integer.parseInt(args[1]);
+			else if (args.length == 0)
+				port = Integer.parseInt(settings.getProperty("DaemonPort"));
+			else {
+				System.err.println("Usage: LoaderDaemon [-port <port>]");
+				System.exit(2);
+				return;
+			}
+		}
+		catch (NumberFormatException e) {
+			System.err.println(e.getMessage());
+			System.exit(2);
+			return;
+		}
+
+		daemon = new LoaderDaemon(tools, settings);
+		try {
+			if (settingsPath != null) {
+				tokenFile = new File(settingsPath, TOKEN_FILE);
+				daemon.WriteShutdownToken(tokenFile);
+			}
+		}
+		catch (IOException e) {
+			System.err.println("Cannot write " + tokenFile.getPath() + ", shutdown is disabled: " + e.getMessage());
+			tokenFile = null;
+		}
+		try {
+			daemon.Serve(port);
+		}
+		catch (IOException e) {
+			System.err.println("Cannot listen on port " + port + ": " + e.getMessage());
+			System.exit(1);
+		}
+		finally {
+			if (tokenFile != null)
+				tokenFile.delete();
+		}
+	}
+
+	/**
+	 * Makes up the token a client has to send with shutdown and writes it to a file
+	 * only the user running the daemon may read.
+	 */
+	public void WriteShutdownToken(File file) throws IOException
+	{
+		byte[] random = new byte[16];
+		StringBuilder sb = new StringBuilder();
+		OutputStream os;
+
+		new SecureRandom().nextBytes(random);
+		for (byte b : random)
+			sb.append(String.format("%02x", b & 0xFF));
+
+		file.delete();
+		if (!file.createNewFile() || !file.setReadable(false, false) || !file.setReadable(true, true) ||
+			!file.setWritable(false, false) || !file.setWritable(true, true))
+			throw new IOException("Cannot restrict access to the file.");
+		os = new FileOutputStream(file);
+		try {
+			os.write((sb.toString() + "\n").getBytes("UTF-8"));
+		}
+		finally {
+			os.close();
+		}
+		shutdownToken = sb.toString();
+	}
+
+	/**
+	 * Accepts clients until shutdown is requested, then returns once the running job is done.
+	 */
+	public void Serve(int port) throws IOException
+	{
+		Thread worker;
+		Socket socket;
+
+		serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+		worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				RunJobs();
+			}
+		}, "Loader-Daemon-Worker");
+		worker.setPriority(Thread.MAX_PRIORITY-2);
+		worker.start();
+		System.out.println("Papilio Loader daemon listening on 127.0.0.1:" + serverSocket.getLocalPort());
+
+		while (!shuttingDown) {
+			try {
+				socket = serverSocket.accept();
+			}
+			catch (SocketException e) {
+			// => Closed by shutdown.
+				break;
+			}
+			new Client(socket).KickOff();
+		}
+
+		while (worker.isAlive()) {
+			try {
+				worker.join();
+			}
+			catch (InterruptedException ignored) { }
+		}
+	}
+
+	private void RunJobs()
+	{
+		Job job;
+		AsyncProgrammer programmer;
+
+		while (true) {
+			try {
+				job = queue.take();
+			}
+			catch (InterruptedException e) {
+				continue;
+			}
+			if (job == STOP)
+				return;
+			if (job.client.isClosed()) {
+			// => Nobody is waiting for it any more.
+				DeleteUpload(job);
+				continue;
+			}
+
+			running = job;
+			job.client.SendLine("@@start " + job.id);
+			programmer = job.job.NewProgrammer(tools, settings, job);
+			programmer.run();
+			DeleteUpload(job);
+			job.client.SendLine("@@done " + job.id + " " + job.errorCount);
+			running = null;
+		}
+	}
+
+	private static void DeleteUpload(Job job)
+	{
+		if ((job.uploadedFile != null) && !job.uploadedFile.delete())
+			job.uploadedFile.deleteOnExit();
+	}
+
+	private void Shutdown()
+	{
+		shuttingDown = true;
+		queue.clear();
+		queue.add(STOP);
+		try {
+			serverSocket.close();
+		}
+		catch (IOException e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	/**
+	 * One connected client: reads its lines and queues its jobs. Output of the jobs is
+	 * sent by the worker thread (and the threads of the steps of a job), hence Send is
+	 * synchronized.
+	 */
+	private class Client implements Runnable
+	{
+		private final Socket socket;
+		private DataInputStream in;
+		private BufferedWriter out;
+		private volatile boolean closed = false;
+
+		Client(Socket socket) {
+			this.socket = socket;
+		}
+
+		void KickOff()
+		{
+			Thread thread = new Thread(this, "Loader-Daemon-Client-" + socket.getPort());
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		boolean isClosed() {
+			return closed;
+		}
+
+		synchronized void Send(String text)
+		{
+			if (closed || (out == null))
+				return;
+			try {
+				out.write(text);
+				out.flush();
+			}
+			catch (IOException e) {
+			// => Client went away; the job carries on regardless.
+				closed = true;
+			}
+		}
+
+		void SendLine(String line) {
+			Send(line + "\n");
+		}
+
+		@Override
+		public void run()
+		{
+			String line;
+
+			try {
+				in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+				SendLine("@@loader " + PROTOCOL_VERSION);
+				while (!closed && ((line = ReadLine(in)) != null)) {
+					line = line.trim();
+					if (line.equals("status"))
+						SendLine("@@status " + queue.size() + " " + ((running == null) ? 0 : 1));
+					else if (line.equals("shutdown") || line.startsWith("shutdown ")) {
+						if ((shutdownToken != null) && line.substring(8).trim().equals(shutdownToken)) {
+							Shutdown();
+							break;
+						}
+						SendLine("@@error shutdown needs the token in " + TOKEN_FILE + " of the settings folder.");
+					}
+					else if (line.startsWith("job ") || line.equals("job"))
+						QueueJob(line.substring(3));
+					else if (!line.isEmpty())
+						SendLine("@@error Unknown request " + line);
+				}
+			}
+			catch (IOException e) {
+				SendLine("@@error " + e.getMessage());
+				System.err.println(e.getMessage());
+			}
+			finally
+			{
+				closed = true;
+				try {
+					socket.close();
+				}
+				catch (IOException ioex) {
+					System.err.println(ioex.getMessage());
+				}
+			}
+		}
+
+		private void QueueJob(String options) throws IOException
+		{
+			List<String> tokens = new ArrayList<String>(), others = new ArrayList<String>();
+			ProgrammingJob job;
+			File uploadedFile = null;
+			String missing;
+			long uploadSize = -1;
+			int index, ahead;
+
+			for (String token : ProgrammingJob.Tokenize(options))
+				tokens.add(token);
+			// -F has to be dealt with before anything else: its bytes follow the line.
+			index = tokens.indexOf(UPLOAD_SWITCH);
+			if (index != -1) {
+				try {
+					uploadSize = Long.parseLong(tokens.get(index + 1));
+				}
+				catch (RuntimeException e) {
+					SendLine("@@error " + UPLOAD_SWITCH + " requires the size of the .bit file.");
+					closed = true;		// Cannot tell where the bytes end, so give up on this client.
+					return;
+				}
+				if ((uploadSize <= 0) || (uploadSize > MAX_UPLOAD_BYTES)) {
+					SendLine("@@error " + UPLOAD_SWITCH + " size has to be between 1 and " + MAX_UPLOAD_BYTES + " bytes.");
+					closed = true;
+					return;
+				}
+				tokens.remove(index + 1);
+				tokens.remove(index);
+				uploadedFile = ReceiveFile(uploadSize);
+			}
+
+			try {
+				job = ProgrammingJob.Parse(tokens.toArray(new String[tokens.size()]), others);
+				if (uploadedFile != null)
+					job.setBitFile(uploadedFile);
+				if (!others.isEmpty())
+					throw new IllegalArgumentException("Unknown option " + others.get(0) + ".");
+				job.Validate();
+				job.ValidateForDaemon();
+				missing = job.MissingInput();
+				if (missing != null)
+					throw new IllegalArgumentException(missing);
+			}
+			catch (IllegalArgumentException e) {
+				if (uploadedFile != null)
+					uploadedFile.delete();
+				SendLine("@@error " + e.getMessage());
+				return;
+			}
+
+			synchronized (queue) {
+				ahead = queue.size() + ((running == null) ? 0 : 1);
+				Job queued = new Job(this, job, nextJobID.getAndIncrement(), uploadedFile);
+				SendLine("@@queued " + queued.id + " " + ahead);
+				queue.add(queued);
+			}
+		}
+
+		private File ReceiveFile(long size) throws IOException
+		{
+			File file = File.createTempFile("papilio-job", ".bit");
+			OutputStream os = new FileOutputStream(file);
+			byte[] buffer = new byte[65536];
+			long remaining = size;
+			int count;
+			boolean complete = false;
+
+			try {
+				while (remaining > 0) {
+					count = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+					if (count < 0)
+						throw new IOException("Connection closed after " + (size - remaining) + " of " + size + " bytes.");
+					os.write(buffer, 0, count);
+					remaining -= count;
+				}
+				complete = true;
+			}
+			finally {
+				os.close();
+				if (!complete)
+					file.delete();
+			}
+			return file;
+		}
+	}
+
+	/*	BufferedReader cannot be used, since it would read ahead into the bytes of an
+		uploaded .bit file. */
+	private static String ReadLine(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+
+		while ((b = in.read()) != -1) {
+			if (b == '\n')
+				return line.toString("UTF-8");
+			if (b != '\r')
+				line.write(b);
+			if (line.size() > MAX_LINE_BYTES)
+				throw new IOException("Request line longer than " + MAX_LINE_BYTES + " bytes.");
+		}
+		return (line.size() == 0) ? null : line.toString("UTF-8");
+	}
+
+}
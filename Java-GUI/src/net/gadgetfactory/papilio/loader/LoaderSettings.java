@@ -0,0 +1,136 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package net.gadgetfactory.papilio.loader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Properties;
+
+/**
+ * Settings folder and the preferences.txt settings shared by the Swing front end and
+ * HeadlessLoader, i.e. those which control how boards are programmed. Settings which
+ * only concern the window (UserMode, WindowX, LastProject etc.) stay in PapilioLoader.
+ * <P>
+ * Free of AWT and Swing, see ProgrammerTools.
+ * <P>
+ */
+public class LoaderSettings
+{
+	public static final String SETTINGS_FOLDER = "papilio-loader";
+	public static final String PREFERENCES_FILE = "preferences.txt";
+
+	/**
+	 * @return settings folder, created if necessary; null if it cannot be created
+	 */
+	public static File SettingsFolder()
+	{
+		File settingsPath;
+
+		if (ProgrammerTools.runningonWindows)
+			settingsPath = new File(System.getenv("APPDATA") + "\\" + SETTINGS_FOLDER + "\\");
+		else 
+			settingsPath = new File(System.getProperty("user.home"), "." + SETTINGS_FOLDER);
+
+		if (!settingsPath.isDirectory()) {
+			if (settingsPath.mkdir())
+				return settingsPath;
+			else
+				return null;
+		}
+		else
+			return settingsPath;
+	}
+
+	public static void AddProgrammerDefaults(Properties defaultSettings)
+	{
+		defaultSettings.setProperty("ProgrammerSession", "true");
+		defaultSettings.setProperty("MaxParallelBoards", "4");
+		defaultSettings.setProperty("ScanCacheSeconds", "" + DeviceIdentityCache.DEFAULT_TTL_MILLIS / 1000);
+		defaultSettings.setProperty("WatchdogScale", "1.0");
+		defaultSettings.setProperty("ProgressLines", "true");
+		defaultSettings.setProperty("RunRecords", "true");
+		defaultSettings.setProperty("JavaHexReader", "true");
+		defaultSettings.setProperty("InProcessMerge", "true");
+		// Opt-in: it changes what [Write to] SPI Flash leaves after the image.
+		defaultSettings.setProperty("DeltaSpiFlash", "false");
+		defaultSettings.setProperty("ProgramIfDifferent", "false");
+		defaultSettings.setProperty("BoardLedger", "true");
+		defaultSettings.setProperty("MergeCacheMB", "" + MergeCache.DEFAULT_LIMIT_BYTES / (1024 * 1024));
+		defaultSettings.setProperty("DaemonPort", "47100");
+	}
+
+	/**
+	 * Loads preferences.txt from settingsPath into settings, if it exists.
+	 */
+	public static void LoadPreferences(Properties settings, File settingsPath)
+	{
+		File preferencesFile = new File(settingsPath, PREFERENCES_FILE);
+		InputStreamReader isr = null;
+
+		if (!preferencesFile.isFile())
+			return;
+		try {
+			isr = new InputStreamReader(new FileInputStream(preferencesFile), "UTF-8");
+			settings.load(isr);
+		}
+		catch (IOException e) {
+			System.err.println(e.getMessage());
+		}
+		finally
+		{
+			if (isr != null) {
+				try {
+					isr.close();  
+				}
+				catch (IOException ioex) {
+					System.err.println(ioex.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hands settings over to the static helpers used by every AsyncProgrammer.
+	 * @param settingsPath	settings folder, null if there is none
+	 */
+	public static void ApplyProgrammerSettings(Properties settings, File settingsPath)
+	{
+		try {
+			DeviceIdentityCache.setTTLMillis(Long.parseLong(settings.getProperty("ScanCacheSeconds")) * 1000);
+			ProcessWatchdog.setScale(Double.parseDouble(settings.getProperty("WatchdogScale")));
+			// Merged .bit files go to merge-cache in the settings folder; 0 MB turns it off.
+			long mergeCacheBytes = Long.parseLong(settings.getProperty("MergeCacheMB")) * 1024 * 1024;
+			MergeCache.setFolder((mergeCacheBytes > 0) ? settingsPath : null, mergeCacheBytes);
+		}
+		catch (NumberFormatException e) {
+			System.err.println(e.getMessage());
+		}
+		// Timing of every board programmed goes to runs.csv and runs.jsonl in the settings folder.
+		if (Boolean.parseBoolean(settings.getProperty("RunRecords")))
+			RunRecord.setLogFolder(settingsPath);
+		// Block RAM layouts learnt from data2mem go to bram-maps in the settings folder.
+		if (Boolean.parseBoolean(settings.getProperty("InProcessMerge")))
+			BramPatcher.setCacheFolder(settingsPath);
+		// What was last written to the SPI Flash of each board goes to board-ledger.txt in the settings folder.
+		BoardLedger.setFolder(Boolean.parseBoolean(settings.getProperty("BoardLedger")) ? settingsPath : null);
+	}
+
+}
@@ -0,0 +1,131 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+
+/**
+ * Appends lines which no longer fit in LogView to a log file in the settings folder.
+ * <P>
+ * When the log file grows beyond maxBytes it is renamed to &lt;name&gt;.1, the
+ * previous &lt;name&gt;.1 to &lt;name&gt;.2 and so on; at most maxFiles old files are kept.
+ * <P>
+ */
+public class LogSpill
+{
+	private final File logFile;
+	private final long maxBytes;
+	private final int maxFiles;
+
+	private BufferedWriter bw = null;
+	private long currentBytes = 0;
+	private boolean failed = false;
+
+	public LogSpill(File folder, String fileName, long maxBytes, int maxFiles)
+	{
+		this.logFile = new File(folder, fileName);
+		this.maxBytes = maxBytes;
+		this.maxFiles = maxFiles;
+	}
+
+	public File getLogFile() {
+		return logFile;
+	}
+
+	public void Write(String line)
+	{
+		if (failed)
+			return;
+
+		try {
+			if (bw == null)
+				Open();
+			else if (currentBytes >= maxBytes) {
+				bw.close();
+				bw = null;
+				Rotate();
+				Open();
+			}
+			bw.write(line);
+			bw.write("\n");
+			currentBytes += line.length() + 1;
+		}
+		catch (IOException e) {
+		// => Disk full, folder removed etc. Keep the GUI going without a log file.
+			System.err.println(e.getMessage());
+			failed = true;
+		}
+	}
+
+	public void Flush()
+	{
+		if (bw == null)
+			return;
+		try {
+			bw.flush();
+		}
+		catch (IOException e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public void Close()
+	{
+		if (bw == null)
+			return;
+		try {
+			bw.close();
+		}
+		catch (IOException e) {
+			System.err.println(e.getMessage());
+		}
+		bw = null;
+	}
+
+	private void Open() throws IOException
+	{
+		currentBytes = logFile.isFile() ? logFile.length() : 0;
+		// Append, so that output of earlier runs of Papilio Loader is preserved.
+		bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile, true), "UTF-8"));
+	}
+
+	private void Rotate()
+	{
+		File older, newer;
+
+		older = new File(logFile.getPath() + "." + maxFiles);
+		if (older.isFile())
+			older.delete();
+		for (int i = maxFiles - 1; i >= 1; i--) {
+			newer = new File(logFile.getPath() + "." + i);
+			if (newer.isFile())
+				newer.renameTo(new File(logFile.getPath() + "." + (i + 1)));
+		}
+		if (maxFiles >= 1)
+			logFile.renameTo(new File(logFile.getPath() + ".1"));
+		else
+			logFile.delete();
+	}
+
+}
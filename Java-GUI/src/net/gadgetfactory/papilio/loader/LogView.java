@@ -0,0 +1,243 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.awt.Font;
+
+import javax.swing.AbstractListModel;
+import javax.swing.JList;
+
+/**
+ * Read-only view of console program output which keeps at most a fixed number of lines.
+ * <P>
+ * Lines are held in a ring buffer, so memory use stays constant however long Papilio
+ * Loader runs. Being a JList with a fixed cell height, only the rows which are visible
+ * in the viewport are ever laid out and painted. Lines pushed out of the ring buffer,
+ * as well as lines discarded by Clear, are handed over to LogSpill, if one is set.
+ * <P>
+ * All methods must be called on the EDT.
+ */
+// JList and AbstractListModel only became generic in Java 7; this has to build for Java 6.
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class LogView extends JList
+{
+	public static final int DEFAULT_RETENTION_LINES = 5000;
+	private static final int PROTOTYPE_COLUMNS = 120;
+
+	private RingListModel lineModel;
+	private LogSpill spill = null;
+	// Width of the rows in characters; grows with the widest line held.
+	private int columns = 0;
+	// Text following the last line ending which has been appended so far.
+	private StringBuilder partialLine = new StringBuilder();
+
+	public LogView()
+	{
+		lineModel = new RingListModel(DEFAULT_RETENTION_LINES);
+		this.setModel(lineModel);
+		this.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+		setColumns(PROTOTYPE_COLUMNS);
+	}
+
+	/*	A fixed cell size spares JList from measuring each and every line. The rows are
+		as wide as the widest line held, but at least PROTOTYPE_COLUMNS, so that the
+		viewport can scroll to the end of any line. */
+	private void setColumns(int newColumns)
+	{
+		if (newColumns == columns)
+			return;
+		columns = newColumns;
+		this.setPrototypeCellValue(String.format("%" + columns + "s", ""));
+		// setPrototypeCellValue sets the height as well.
+		this.setFixedCellHeight(this.getFontMetrics(this.getFont()).getHeight() + 2);
+	}
+
+	private void FitColumns() {
+		setColumns(Math.max(lineModel.getWidest(), PROTOTYPE_COLUMNS));
+	}
+
+	/**
+	 * Sets the number of lines kept in memory. Excess lines are spilled immediately.
+	 */
+	public void setRetentionLines(int retentionLines)
+	{
+		RingListModel newModel = new RingListModel(Math.max(retentionLines, 1));
+		int oldSize = lineModel.getSize();
+
+		for (int i = 0; i < oldSize; i++)
+			newModel.Add(lineModel.getElementAt(i).toString(), spill);
+		lineModel = newModel;
+		this.setModel(lineModel);
+		FitColumns();
+	}
+
+	public int getRetentionLines() {
+		return lineModel.getCapacity();
+	}
+
+	public void setSpill(LogSpill spill) {
+		this.spill = spill;
+	}
+
+	public LogSpill getSpill() {
+		return spill;
+	}
+
+	/**
+	 * Appends text, which may contain any number of line endings (Unix or Windows style),
+	 * and scrolls to the last line.
+	 */
+	public void Append(String text)
+	{
+		int start = 0, end, lineEnd;
+		int sizeBefore = lineModel.getSize();
+		long evictedBefore = lineModel.getEvicted();
+
+		while ((end = text.indexOf('\n', start)) != -1) {
+			lineEnd = ((end > start) && (text.charAt(end - 1) == '\r')) ? end - 1 : end;
+			partialLine.append(text, start, lineEnd);
+			lineModel.Add(partialLine.toString(), spill);
+			partialLine.setLength(0);
+			start = end + 1;
+		}
+		partialLine.append(text, start, text.length());
+
+		lineModel.FireAppended(sizeBefore, lineModel.getEvicted() - evictedBefore);
+		if (lineModel.getWidest() > columns)
+			FitColumns();
+		if (spill != null)
+			spill.Flush();
+		if (lineModel.getSize() > 0)
+			this.ensureIndexIsVisible(lineModel.getSize() - 1);
+	}
+
+	/**
+	 * Empties the view. Discarded lines go to the spill file, if any.
+	 */
+	public void Clear()
+	{
+		if (partialLine.length() > 0) {
+			lineModel.Add(partialLine.toString(), spill);
+			partialLine.setLength(0);
+		}
+		lineModel.Clear(spill);
+		FitColumns();
+		if (spill != null)
+			spill.Flush();
+	}
+
+	/**
+	 * Writes all lines still held in memory to the spill file and closes it.
+	 */
+	public void Close()
+	{
+		Clear();
+		if (spill != null)
+			spill.Close();
+	}
+
+
+	/**
+	 * Fixed-capacity list of lines. Once full, adding a line evicts the oldest one.
+	 */
+	private static class RingListModel extends AbstractListModel
+	{
+		private final String[] lines;
+		private int head = 0, size = 0;
+		private long evicted = 0;
+		// Length of the longest line added since the last Clear, evicted or not.
+		private int widest = 0;
+
+		public RingListModel(int capacity) {
+			lines = new String[capacity];
+		}
+
+		public int getCapacity() {
+			return lines.length;
+		}
+
+		public long getEvicted() {
+			return evicted;
+		}
+
+		public int getWidest() {
+			return widest;
+		}
+
+		@Override
+		public int getSize() {
+			return size;
+		}
+
+		@Override
+		public Object getElementAt(int index) {
+			return lines[(head + index) % lines.length];
+		}
+
+		/** Adds a line without notifying listeners; see FireAppended. */
+		public void Add(String line, LogSpill spill)
+		{
+			widest = Math.max(widest, line.length());
+			if (size < lines.length) {
+				lines[(head + size) % lines.length] = line;
+				size++;
+			}
+			else {
+				if (spill != null)
+					spill.Write(lines[head]);
+				lines[head] = line;
+				head = (head + 1) % lines.length;
+				evicted++;
+			}
+		}
+
+		/**
+		 * Notifies listeners about the lines added since the list had sizeBefore lines,
+		 * removedCount of which have been evicted from the front.
+		 */
+		public void FireAppended(int sizeBefore, long removedCount)
+		{
+			int removed = (int) Math.min(removedCount, sizeBefore);
+			int keptBefore = sizeBefore - removed;
+
+			if (removed > 0)
+				fireIntervalRemoved(this, 0, removed - 1);
+			if (size > keptBefore)
+				fireIntervalAdded(this, keptBefore, size - 1);
+		}
+
+		public void Clear(LogSpill spill)
+		{
+			int oldSize = size;
+
+			if (spill != null)
+				for (int i = 0; i < size; i++)
+					spill.Write(getElementAt(i).toString());
+			for (int i = 0; i < lines.length; i++)
+				lines[i] = null;
+			head = 0;
+			size = 0;
+			widest = 0;
+			if (oldSize > 0)
+				fireIntervalRemoved(this, 0, oldSize - 1);
+		}
+	}
+
+}
@@ -0,0 +1,257 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Merged .bit files, kept in the merge-cache folder of the settings folder under the
+ * SHA-1 of what went into them: the target .bit, .bmm and program .hex files, and the
+ * srec_cat and data2mem executables (by name, size and date, standing in for their
+ * versions). Merging the same firmware again is then a file read.
+ * <P>
+ * The folder is kept under a size limit by deleting the least recently used files;
+ * a hit touches the file's date. Several loaders may share the folder: files are
+ * written under a temporary name and renamed, and a file which disappears is a miss.
+ * <P>
+ * Shared by all AsyncProgrammer threads.
+ */
+public class MergeCache
+{
+	public static final long DEFAULT_LIMIT_BYTES = 64L * 1024 * 1024;
+	private static final String CACHE_SUBFOLDER = "merge-cache";
+	private static final String SUFFIX = ".bit";
+	// Bumped when the way merged files are produced changes.
+	private static final int FORMAT = 1;
+
+	/** Digest of a file as long as its size and date stay the same. */
+	private static class FileDigest
+	{
+		long length, lastModified;
+		byte[] sha1;
+	}
+
+	private static File cacheFolder = null;
+	private static long limitBytes = DEFAULT_LIMIT_BYTES;
+	private static final Map<String, FileDigest> digests = new HashMap<String, FileDigest>();
+	private static long hits = 0, misses = 0;
+
+	/**
+	 * @param folder	settings folder, null to turn the cache off
+	 * @param limit		most bytes kept in the cache folder
+	 */
+	public static synchronized void setFolder(File folder, long limit)
+	{
+		cacheFolder = (folder == null) ? null : new File(folder, CACHE_SUBFOLDER);
+		limitBytes = limit;
+	}
+
+	public static synchronized boolean isEnabled() {
+		return (cacheFolder != null);
+	}
+
+	/**
+	 * @return key of the merged .bit file made of these inputs, null if the cache is off
+	 */
+	public static String Key(ProgrammerTools tools, File bitFile, File bmmFile, File hexFile) throws IOException
+	{
+		MessageDigest sha1;
+		StringBuilder sb = new StringBuilder();
+
+		if (!isEnabled())
+			return null;
+		sha1 = NewSha1();
+		sha1.update(("merge " + FORMAT + "\n").getBytes("US-ASCII"));
+		sha1.update(Digest(bitFile));
+		// A program rebuilt within the date resolution of the file system keeps size and
+		// date, so the small .bmm and .hex files are hashed every time.
+		for (File input : new File[] {bmmFile, hexFile})
+			sha1.update(Hash(input));
+		for (File tool : new File[] {tools.getSrecCatFile(), tools.getDataToMemFile()})
+			sha1.update((tool.getName() + " " + tool.length() + " " + tool.lastModified() + "\n").getBytes("US-ASCII"));
+		for (byte b : sha1.digest())
+			sb.append(String.format("%02x", b & 0xFF));
+		return sb.toString();
+	}
+
+	/**
+	 * @return contents of the merged .bit file, null if it is not in the cache
+	 */
+	public static byte[] Lookup(String key)
+	{
+		File cachedFile;
+		byte[] contents;
+
+		synchronized (MergeCache.class) {
+			if (cacheFolder == null)
+				return null;
+			cachedFile = new File(cacheFolder, key + SUFFIX);
+		}
+		try {
+			contents = cachedFile.isFile() ? BramPatcher.ReadFile(cachedFile) : null;
+		}
+		catch (IOException e) {
+			// => Evicted by another loader while being read.
+			contents = null;
+		}
+		synchronized (MergeCache.class) {
+			if (contents == null)
+				misses++;
+			else
+				hits++;
+		}
+		if (contents != null)
+			cachedFile.setLastModified(System.currentTimeMillis());
+		return contents;
+	}
+
+	/**
+	 * Stores a merged .bit file, then evicts the least recently used ones over the limit.
+	 */
+	public static void Store(String key, byte[] contents)
+	{
+		File folder, cachedFile, tmpFile;
+		FileOutputStream fout;
+
+		synchronized (MergeCache.class) {
+			folder = cacheFolder;
+		}
+		if ((folder == null) || (contents.length > limitBytes))
+			return;
+		if (!folder.isDirectory() && !folder.mkdirs())
+			return;
+		cachedFile = new File(folder, key + SUFFIX);
+		tmpFile = new File(folder, key + "." + Thread.currentThread().getId() + ".tmp");
+		try {
+			fout = new FileOutputStream(tmpFile);
+			try {
+				fout.write(contents);
+			}
+			finally {
+				fout.close();
+			}
+			cachedFile.delete();
+			if (!tmpFile.renameTo(cachedFile))
+				tmpFile.delete();
+		}
+		catch (IOException e) {
+			System.err.println(e.getMessage());
+			tmpFile.delete();
+			return;
+		}
+		Evict(folder);
+	}
+
+	/** @return e.g. "Merge cache: 3 hits, 1 miss" */
+	public static synchronized String Statistics() {
+		return "Merge cache: " + hits + ((hits == 1) ? " hit, " : " hits, ") + 
+			   misses + ((misses == 1) ? " miss" : " misses");
+	}
+
+	private static void Evict(File folder)
+	{
+		File[] files = folder.listFiles();
+		long total = 0, limit;
+
+		if (files == null)
+			return;
+		synchronized (MergeCache.class) {
+			limit = limitBytes;
+		}
+		for (File file : files)
+			total += file.length();
+		if (total <= limit)
+			return;
+
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				long m1 = f1.lastModified(), m2 = f2.lastModified();
+				return (m1 < m2) ? -1 : ((m1 == m2) ? 0 : 1);
+			}
+		});
+		for (File file : files) {
+			if (total <= limit)
+				break;
+			if (!file.getName().endsWith(SUFFIX))
+			// => Being written by someone else.
+				continue;
+			total -= file.length();
+			file.delete();
+		}
+	}
+
+	/*	Hashing the target .bit file takes longer than the lookup itself, so its digest is
+		remembered for as long as the file keeps its size and date. */
+	private static byte[] Digest(File file) throws IOException
+	{
+		String path = file.getCanonicalPath();
+		FileDigest digest;
+		long length = file.length(), lastModified = file.lastModified();
+
+		synchronized (MergeCache.class) {
+			digest = digests.get(path);
+			if ((digest != null) && (digest.length == length) && (digest.lastModified == lastModified))
+				return digest.sha1;
+		}
+
+		digest = new FileDigest();
+		digest.length = length;
+		digest.lastModified = lastModified;
+		digest.sha1 = Hash(file);
+		synchronized (MergeCache.class) {
+			digests.put(path, digest);
+		}
+		return digest.sha1;
+	}
+
+	private static byte[] Hash(File file) throws IOException
+	{
+		MessageDigest sha1 = NewSha1();
+		BitstreamImage image = BitstreamImage.Open(file);
+
+		try {
+			image.Digest(sha1);
+		}
+		finally {
+			image.Close();
+		}
+		return sha1.digest();
+	}
+
+	private static MessageDigest NewSha1() throws IOException
+	{
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+}
@@ -39,6 +39,8 @@ public class MessageSiphon implements Runnable
 		// bubble up in time (i.e. compile errors have a weird delay)
 		//thread.setPriority(Thread.MIN_PRIORITY);
 		thread.setPriority(Thread.MAX_PRIORITY-1);
+		// A siphon left behind by a destroyed console program must not keep the JVM alive.
+		thread.setDaemon(true);
 	}
 
 	public Thread getThread() {
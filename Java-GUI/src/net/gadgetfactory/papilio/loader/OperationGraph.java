@@ -0,0 +1,211 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the steps of one [Do Selected Operation] as a dependency graph.
+ * <P>
+ * Each step is one of LastOperations and names the steps it has to wait for. Steps whose
+ * dependencies are satisfied run at the same time, e.g. [Merge] (srec_cat and data2mem,
+ * disk and CPU bound) runs while [Scan] identifies the board over USB. If a step fails,
+ * the steps depending on it are skipped, just as the sequential code used to return early.
+ * <P>
+ * Steps must be added after the steps they depend on. Dependencies on steps which were
+ * never added are ignored, so optional steps such as [Merge] need no special casing.
+ * <P>
+ */
+public class OperationGraph
+{
+	/** One step of the graph. */
+	public interface Step
+	{
+		/** @return false if the steps depending on this one must not run */
+		public boolean Run();
+	}
+
+	private class Node
+	{
+		LastOperations operation;
+		Step step;
+		List<Node> dependencies = new ArrayList<Node>();
+		Future<Boolean> result;
+		volatile long startNanos, endNanos;
+		volatile boolean ran = false;
+	}
+
+	private final Map<LastOperations, Node> nodes = new EnumMap<LastOperations, Node>(LastOperations.class);
+	private final List<Node> order = new ArrayList<Node>();
+	private final String threadPrefix;
+	private long runStartNanos, runEndNanos;
+
+	public OperationGraph(String threadPrefix) {
+		this.threadPrefix = threadPrefix;
+	}
+
+	public void Add(LastOperations operation, Step step, LastOperations... dependsOn)
+	{
+		Node node = new Node();
+		Node dependency;
+
+		node.operation = operation;
+		node.step = step;
+		for (LastOperations iterOperation : dependsOn) {
+			dependency = nodes.get(iterOperation);
+			if (dependency != null)
+				node.dependencies.add(dependency);
+		}
+		nodes.put(operation, node);
+		order.add(node);
+	}
+
+	public boolean isEmpty() {
+		return order.isEmpty();
+	}
+
+	/**
+	 * Runs all steps and returns when every one of them has finished or has been skipped.
+	 * @return true if all steps ran and succeeded
+	 */
+	public boolean Run()
+	{
+		ExecutorService workers;
+		boolean allSucceeded = true;
+
+		runStartNanos = System.nanoTime();
+		if (order.size() == 1) {
+		// => Nothing to overlap; do not bother with another thread.
+			Node node = order.get(0);
+			allSucceeded = RunNode(node);
+			runEndNanos = System.nanoTime();
+			return allSucceeded;
+		}
+
+		workers = Executors.newFixedThreadPool(order.size(), new ThreadFactory() {
+			private int count = 0;
+
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, threadPrefix + "-Step-" + (++count));
+				// Same priority as the AsyncProgrammer thread which owns this graph.
+				thread.setPriority(Thread.MAX_PRIORITY-2);
+				return thread;
+			}
+		});
+		/*	One thread per step, each first waiting for its dependencies. Since steps are
+			added after their dependencies, a step never waits for one queued behind it. */
+		for (final Node node : order) {
+			node.result = workers.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception
+				{
+					for (Node dependency : node.dependencies) {
+						if (!Succeeded(dependency))
+							return Boolean.FALSE;
+					}
+					return Boolean.valueOf(RunNode(node));
+				}
+			});
+		}
+		for (Node node : order) {
+			if (!Succeeded(node))
+				allSucceeded = false;
+		}
+		workers.shutdown();
+		runEndNanos = System.nanoTime();
+		return allSucceeded;
+	}
+
+	/**
+	 * @return wall time, critical path and total step time of the last Run, in milliseconds
+	 */
+	public String Timings()
+	{
+		Map<LastOperations, Long> finishMillis = new EnumMap<LastOperations, Long>(LastOperations.class);
+		StringBuilder sb = new StringBuilder();
+		long criticalPath = 0, sumOfSteps = 0, own, finish;
+
+		for (Node node : order) {
+			if (!node.ran)
+				continue;
+			own = (node.endNanos - node.startNanos) / 1000000;
+			finish = 0;
+			for (Node dependency : node.dependencies) {
+				Long depFinish = finishMillis.get(dependency.operation);
+				if ((depFinish != null) && (depFinish.longValue() > finish))
+					finish = depFinish.longValue();
+			}
+			finish += own;
+			finishMillis.put(node.operation, Long.valueOf(finish));
+			criticalPath = Math.max(criticalPath, finish);
+			sumOfSteps += own;
+			sb.append(String.format(" %s %d ms", node.operation, own));
+		}
+		return String.format("Steps:%s; wall time %d ms, critical path %d ms, sum of steps %d ms",
+							 sb.toString(), (runEndNanos - runStartNanos) / 1000000, criticalPath, sumOfSteps);
+	}
+
+	private boolean RunNode(Node node)
+	{
+		boolean succeeded;
+
+		node.startNanos = System.nanoTime();
+		try {
+			succeeded = node.step.Run();
+		}
+		finally {
+			node.endNanos = System.nanoTime();
+			node.ran = true;
+		}
+		return succeeded;
+	}
+
+	private boolean Succeeded(Node node)
+	{
+		boolean waiting = true, succeeded = false;
+
+		if (node.result == null)
+			return node.ran;
+		while (waiting) {
+			try {
+				succeeded = node.result.get().booleanValue();
+				waiting = false;
+			}
+			catch (InterruptedException ignored) { }
+			catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+				waiting = false;
+			}
+		}
+		return succeeded;
+	}
+
+}
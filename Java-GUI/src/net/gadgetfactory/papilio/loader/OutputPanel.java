@@ -21,22 +21,78 @@ package net.gadgetfactory.papilio.loader;
 
 import java.awt.BorderLayout;
 import java.awt.Dimension;
+import java.awt.EventQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.JButton;
+import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.BorderFactory;
 import javax.swing.JScrollPane;
-import javax.swing.JTextArea;
 import javax.swing.border.Border;
 import javax.swing.border.TitledBorder;
 
 public class OutputPanel extends JPanel
 {
-	final int OUTPUT_ROWS = 5;
-	final int OUTPUT_COLUMNS = 70;
-	
-	private JTextArea txtOutput = new JTextArea(OUTPUT_ROWS, OUTPUT_COLUMNS);
+	private LogView logOutput = new LogView();
+	private OutputPipeline outputPipeline;
+	private JButton btnCancel = new JButton("Cancel");
+	private JProgressBar barProgress = new JProgressBar(0, 100);
+	private JLabel lblProgress = new JLabel(" ");
+	// Latest progress not yet shown, and whether an EDT update for it is queued already.
+	private volatile ProgressEvent pendingProgress = null;
+	private final AtomicBoolean progressQueued = new AtomicBoolean(false);
 	
-	public JTextArea getOutputTextArea() {
-		return txtOutput;
+	public LogView getLogView() {
+		return logOutput;
+	}
+
+	/** Console program output should be routed through this, never appended directly. */
+	public OutputPipeline getOutputPipeline() {
+		return outputPipeline;
+	}
+
+	/** Stops the running console programs; enabled only while [Do Selected Operation] runs. */
+	public JButton getCancelButton() {
+		return btnCancel;
+	}
+
+	/**
+	 * Shows progress of the running operation. May be called from any thread; when
+	 * events come in faster than the EDT repaints, only the latest one is shown.
+	 */
+	public void ShowProgress(ProgressEvent event)
+	{
+		pendingProgress = event;
+		if (!progressQueued.compareAndSet(false, true))
+			return;
+		EventQueue.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				progressQueued.set(false);
+				UpdateProgress(pendingProgress);
+			}
+		});
+	}
+
+	/** Clears the progress bar for the next operation. May be called from any thread. */
+	public void ResetProgress() {
+		ShowProgress(null);
+	}
+
+	private void UpdateProgress(ProgressEvent event)
+	{
+		if (event == null) {
+			barProgress.setIndeterminate(false);
+			barProgress.setValue(0);
+			lblProgress.setText(" ");
+			return;
+		}
+		barProgress.setIndeterminate(event.isIndeterminate());
+		if (!event.isIndeterminate())
+			barProgress.setValue(event.getPercent());
+		lblProgress.setText(event.toString());
 	}
 
 	public OutputPanel(int width, int height, 
@@ -60,21 +116,32 @@ public class OutputPanel extends JPanel
 //                "in any font, all of the text is in the same font.\n\n" + 
 //                "Whatever output generated by loader console executable " + 
 //                "will be captured and displayed herein.");
-		txtOutput.setText("");
-		txtOutput.setEditable(false);
-		txtOutput.setLineWrap(true);
+		outputPipeline = new OutputPipeline(logOutput);
 
 /*	------------------------------------------------------------------------------------
  *	As per the BorderLayout, if the window is enlarged, the center area 
  * 	gets as much of the available space as possible. The other areas expand only 
  * 	as much as necessary to fill all available space. 
  *	------------------------------------------------------------------------------------ */
-		/*	Output text area displays the output produced by running console programs and
-			hence as such, we need to make the Output text area - and hence this JPanel -
+		/*	Output log view displays the output produced by running console programs and
+			hence as such, we need to make the Output log view - and hence this JPanel -
 			as large as possible. 
-			Since Output text area is space-hungry, put it in CENTER.
+			Since Output log view is space-hungry, put it in CENTER.
 		*/
-		this.add(new JScrollPane(txtOutput), BorderLayout.CENTER);	
+		this.add(new JScrollPane(logOutput), BorderLayout.CENTER);	
+
+		/*	Progress bar and throughput of the running operation on the left, 
+			[Cancel] on the right, below the Output log view. */
+		JPanel pnlButtons = new JPanel(new BorderLayout(10, 0));
+		JPanel pnlProgress = new JPanel(new BorderLayout(10, 0));
+		pnlButtons.setBorder(BorderFactory.createEmptyBorder(5, 0, 0, 0));
+		lblProgress.setPreferredSize(new Dimension(190, lblProgress.getPreferredSize().height));
+		pnlProgress.add(barProgress, BorderLayout.CENTER);
+		pnlProgress.add(lblProgress, BorderLayout.EAST);
+		pnlButtons.add(pnlProgress, BorderLayout.CENTER);
+		btnCancel.setEnabled(false);
+		pnlButtons.add(btnCancel, BorderLayout.EAST);
+		this.add(pnlButtons, BorderLayout.SOUTH);
 
 		this.setPreferredSize(new Dimension(width, height));
 //		this.setMaximumSize(new Dimension(Short.MAX_VALUE, Short.MAX_VALUE));
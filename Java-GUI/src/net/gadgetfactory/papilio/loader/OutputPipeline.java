@@ -0,0 +1,156 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.swing.Timer;
+
+/**
+ * Moves the output of console programs into the Output LogView in batches.
+ * <P>
+ * Any thread can Post a line; it is only added to a lock-free queue, so MessageSiphon
+ * threads never wait on the EDT. A Swing Timer drains the queue on the EDT every
+ * flushInterval milliseconds and appends at most maxLinesPerFlush lines with a single
+ * LogView.Append call. Hence the view is updated at most
+ * maxLinesPerFlush * 1000 / flushInterval lines per second, however fast the console
+ * programs write; anything beyond that waits in the queue for the next tick.
+ * <P>
+ */
+public class OutputPipeline implements ActionListener
+{
+	public static final int DEFAULT_FLUSH_INTERVAL = 50;		// milliseconds
+	public static final int DEFAULT_MAX_LINES_PER_FLUSH = 500;
+
+	private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<String>();
+	private final LogView logOutput;
+	private final Timer flushTimer;
+	private final int flushInterval, maxLinesPerFlush;
+
+	private final AtomicLong postedLines = new AtomicLong();
+	private final AtomicLong flushedLines = new AtomicLong();
+	private final AtomicLong flushCount = new AtomicLong();
+	private volatile long firstPostNanos = 0, lastFlushNanos = 0;
+
+	public OutputPipeline(LogView logOutput) {
+		this(logOutput, DEFAULT_FLUSH_INTERVAL, DEFAULT_MAX_LINES_PER_FLUSH);
+	}
+
+	public OutputPipeline(LogView logOutput, int flushInterval, int maxLinesPerFlush)
+	{
+		this.logOutput = logOutput;
+		this.flushInterval = flushInterval;
+		this.maxLinesPerFlush = maxLinesPerFlush;
+
+		// Swing Timer fires actionPerformed on the EDT, so it is safe to touch logOutput there.
+		flushTimer = new Timer(flushInterval, this);
+		flushTimer.setRepeats(true);
+		flushTimer.setCoalesce(true);
+		flushTimer.start();
+	}
+
+	/**
+	 * Queues a piece (usually a line) of output for the Output LogView.
+	 * Never blocks and can be called from any thread.
+	 */
+	public void Post(String text)
+	{
+		if (postedLines.getAndIncrement() == 0)
+			firstPostNanos = System.nanoTime();
+		pending.offer(text);
+	}
+
+	/**
+	 * Discards queued output and empties the Output LogView.
+	 * Must be called on the EDT.
+	 */
+	public void Clear()
+	{
+		pending.clear();
+		logOutput.Clear();
+		postedLines.set(0);
+		flushedLines.set(0);
+		flushCount.set(0);
+		firstPostNanos = 0;
+		lastFlushNanos = 0;
+	}
+
+	/**	Called by flushTimer on the EDT. */
+	@Override
+	public void actionPerformed(ActionEvent e)
+	{
+		StringBuilder batch;
+		String text;
+		int lines = 0;
+
+		if (pending.isEmpty())
+			return;
+
+		batch = new StringBuilder();
+		while ((lines < maxLinesPerFlush) && ((text = pending.poll()) != null)) {
+			batch.append(text);
+			lines++;
+		}
+		logOutput.Append(batch.toString());
+
+		flushedLines.addAndGet(lines);
+		flushCount.incrementAndGet();
+		lastFlushNanos = System.nanoTime();
+	}
+
+	/** @return highest number of lines per second that can reach the Output LogView */
+	public int getLinesPerSecondCeiling() {
+		return (int) ((long) maxLinesPerFlush * 1000 / flushInterval);
+	}
+
+	public long getPostedLines() {
+		return postedLines.get();
+	}
+
+	public long getFlushedLines() {
+		return flushedLines.get();
+	}
+
+	public int getBacklog() {
+		return pending.size();
+	}
+
+	/** @return lines per second actually delivered, from the first Post to the latest flush */
+	public double getDeliveredLinesPerSecond()
+	{
+		long elapsed = lastFlushNanos - firstPostNanos;
+
+		if ((firstPostNanos == 0) || (elapsed <= 0))
+			return 0;
+		return flushedLines.get() * 1e9 / elapsed;
+	}
+
+	public String Statistics()
+	{
+		return String.format("Output: %d lines posted, %d shown in %d batches, " +
+							 "%.0f lines/s (ceiling %d lines/s)",
+							 getPostedLines(), getFlushedLines(), flushCount.get(),
+							 getDeliveredLinesPerSecond(), getLinesPerSecondCeiling());
+	}
+
+}
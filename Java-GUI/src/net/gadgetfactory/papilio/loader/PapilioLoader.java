@@ -27,18 +27,21 @@ import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.Box;
 import javax.swing.BoxLayout;
@@ -48,7 +51,6 @@ import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
-import javax.swing.JTextArea;
 import javax.swing.KeyStroke;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
@@ -64,16 +66,16 @@ public class PapilioLoader extends JFrame implements ActionListener
 	public static final String AUTO_DETECT_FPGA = "Auto-detect onboard FPGA device";
 	public static final boolean DEBUG = false;
 	public static final boolean ECHO_COMMAND = false;
-	public static final String SETTINGS_FOLDER = "papilio-loader";
-	public static final String PREFERENCES_FILE = "preferences.txt";
+	public static final String SETTINGS_FOLDER = LoaderSettings.SETTINGS_FOLDER;
+	public static final String PREFERENCES_FILE = LoaderSettings.PREFERENCES_FILE;
 	private static final String ERASE_SWITCH = "-e";
 	private static final String WRITE_SWITCH = "-q";
 	private static final String QUIT_SWITCH = "-x";
 
 	public int nErrorCount = 0;
 	
-	public static final boolean runningonWindows = System.getProperty("os.name").toLowerCase().startsWith("windows");
-	private static final File AppPath = new File(System.getProperty("java.class.path")).getParentFile();
+	public static final boolean runningonWindows = ProgrammerTools.runningonWindows;
+	private static final File AppPath = ProgrammerTools.AppPath();
 	// GIRISH: What should default operation(s) be for each mode?
 	private static final LastOperations DEFAULT_SIMPLE_OPERATION = LastOperations.WRITE_TO_SPI_FLASH;
 	private static final LastOperations DEFAULT_EXPERT_OPERATION = LastOperations.SCAN;
@@ -85,17 +87,19 @@ public class PapilioLoader extends JFrame implements ActionListener
 	private TargetPanel pnlTarget;
 	private OperationPanel pnlOperations;
 	private OutputPanel pnlOutput;
+	private JButton btnCancel;
 	
 	private FileNameExtensionFilter bitFileFilter = new FileNameExtensionFilter("Bit files", "bit");
 	private JButton btnProceed;
-	private JTextArea txtOutput;
+	private OutputPipeline outputPipeline;
 
 	private PreferencesDialog dlgPreferences;
+	private BoardStatusDialog dlgBoards;
 	private LoaderProject currProject;
 	
-	private File rootProgrammerPath; 
-	private File programmerPath;	// OS dependent folder where papilio-prog.exe, etc are located 
+	private ProgrammerTools tools;
 	private File papilioProgrammerFile, srecCatFile, dataToMemFile;
+	private ProgrammerListener programmerListener = new GuiProgrammerListener();
 
 	private List<File> targetBitFile = new ArrayList<File>(1);
 	private List<File> targetBmmFile = new ArrayList<File>(1);
@@ -146,7 +150,8 @@ public class PapilioLoader extends JFrame implements ActionListener
 	    catch (Exception e) {
 	    	System.out.println(e.getMessage());
 	    }
-		System.getProperties().list(System.out); 
+		if (DEBUG)
+			System.getProperties().list(System.out); 
 //	    System.out.println(Arrays.toString(args));
 //	    System.out.println("Main thread: " + Thread.currentThread().getName());
 	    
@@ -211,23 +216,12 @@ public class PapilioLoader extends JFrame implements ActionListener
 		boolean bCreateNew = false; LastOperations defaultOperation;
 		File lastProjectFile; String sQLastProject;
 
-		rootProgrammerPath = new File(AppPath, "programmer");
-		// Determine locations of Papilio Programmer, srec_cat and data2mem executables
-		// depending on the current platform and architecture.
-		if (runningonWindows)
-		{
-			programmerPath = new File(rootProgrammerPath, "win32");
-			papilioProgrammerFile = new File(programmerPath, "papilio-prog.exe");
-			srecCatFile = new File(programmerPath, "srec_cat.exe");
-			dataToMemFile = new File(programmerPath, "data2mem.exe");
-		}
-		else
-		{
-			programmerPath = new File(rootProgrammerPath, "linux32");
-			papilioProgrammerFile = new File(programmerPath, "papilio-prog");
-			srecCatFile = new File(programmerPath, "srec_cat");
-			dataToMemFile = new File(programmerPath, "data2mem");
-		}
+		// Locations of Papilio Programmer, srec_cat and data2mem executables
+		// depend on the current platform and architecture.
+		tools = new ProgrammerTools(AppPath);
+		papilioProgrammerFile = tools.getPapilioProgrammerFile();
+		srecCatFile = tools.getSrecCatFile();
+		dataToMemFile = tools.getDataToMemFile();
 
 		ReadSettings();
 		
@@ -270,7 +264,17 @@ public class PapilioLoader extends JFrame implements ActionListener
 		
 		pnlOutput = new OutputPanel(formWidth, 200, 5, PANEL_RIGHT_MARGIN, 10, PANEL_LEFT_MARGIN);
 		this.add(pnlOutput);
-		txtOutput = pnlOutput.getOutputTextArea();
+		outputPipeline = pnlOutput.getOutputPipeline();
+		ConfigureOutputLog(pnlOutput.getLogView());
+		btnCancel = pnlOutput.getCancelButton();
+		btnCancel.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				btnCancel.setEnabled(false);
+				outputPipeline.Post("Cancelling..." + System.getProperty("line.separator"));
+				ProcessWatchdog.CancelAll();
+			}
+		});
 
 /*	------------------------------------------------------------------------------------
  * 		After a component is created it is in the invalid state by default. 
@@ -409,6 +413,7 @@ public class PapilioLoader extends JFrame implements ActionListener
 		if (dlgPreferences != null)
 			dlgPreferences.dispose();
 		SaveSettings();
+		pnlOutput.getLogView().Close();
 		System.exit(0);
 	}
 
@@ -1074,30 +1079,14 @@ public class PapilioLoader extends JFrame implements ActionListener
 	}
 
 	
-	private File EnsureSettingsFolder()
-	{
-		File settingsPath;
-
-		if (runningonWindows)
-			settingsPath = new File(System.getenv("APPDATA") + "\\" + SETTINGS_FOLDER + "\\");
-		else 
-			settingsPath = new File(System.getProperty("user.home"), "." + SETTINGS_FOLDER);
-
-		if (!settingsPath.isDirectory()) {
-			if (settingsPath.mkdir())
-				return settingsPath;
-			else
-				return null;
-		}
-		else
-			return settingsPath;
+	private File EnsureSettingsFolder() {
+		return LoaderSettings.SettingsFolder();
 	}
 	
 	private void ReadSettings()
 	{
 		Properties defaultSettings = new Properties();
-		File preferencesFile, settingsPath;
-		InputStreamReader isr = null;
+		File settingsPath;
 
 		Properties installSettings = ReadPapilioInit();
 		
@@ -1122,6 +1111,10 @@ public class PapilioLoader extends JFrame implements ActionListener
 		defaultSettings.setProperty("WindowWidth", "450");
 		defaultSettings.setProperty("WindowHeight", "400");
 		defaultSettings.setProperty("TargetBoard", "0");
+		defaultSettings.setProperty("OutputRetentionLines", "" + LogView.DEFAULT_RETENTION_LINES);
+		defaultSettings.setProperty("OutputLogFileKB", "1024");
+		defaultSettings.setProperty("OutputLogFiles", "4");
+		LoaderSettings.AddProgrammerDefaults(defaultSettings);
 
 		settings = new Properties(defaultSettings);
 
@@ -1131,36 +1124,41 @@ public class PapilioLoader extends JFrame implements ActionListener
 			return;
 		}
 
-		preferencesFile = new File(settingsPath, PREFERENCES_FILE);
-
-		if (preferencesFile.isFile()) {
-			try {
-				isr = new InputStreamReader(new FileInputStream(preferencesFile), "UTF-8");
-				settings.load(isr);
-			}
-			catch (IOException e) {
-				System.err.println(e.getMessage());
-			}
-			finally
-			{
-				if (isr != null) {
-					try {
-						isr.close();  
-					}
-					catch (IOException ioex) {
-						System.err.println(ioex.getMessage());
-					}
-				}
-			}
-		}
+		LoaderSettings.LoadPreferences(settings, settingsPath);
 
 		bSimpleMode = settings.getProperty("UserMode").equalsIgnoreCase(UserModes.Simple.toString());
 		targetBoard = Integer.parseInt(settings.getProperty("TargetBoard"));
+		LoaderSettings.ApplyProgrammerSettings(settings, settingsPath);
 		//pnlTarget.setTargetBoard(targetBoard);
 		
 
 	}
 	
+	/**
+	 * Applies Output log view retention settings. Lines which no longer fit in the
+	 * view go to output.log in the settings folder.
+	 */
+	private void ConfigureOutputLog(LogView logView)
+	{
+		final String OUTPUT_LOG_FILE = "output.log";
+		File settingsPath;
+		int retentionLines = LogView.DEFAULT_RETENTION_LINES, logFileKB = 1024, logFiles = 4;
+
+		try {
+			retentionLines = Integer.parseInt(settings.getProperty("OutputRetentionLines"));
+			logFileKB = Integer.parseInt(settings.getProperty("OutputLogFileKB"));
+			logFiles = Integer.parseInt(settings.getProperty("OutputLogFiles"));
+		}
+		catch (NumberFormatException e) {
+			System.err.println(e.getMessage());
+		}
+		logView.setRetentionLines(retentionLines);
+
+		settingsPath = EnsureSettingsFolder();
+		if ((settingsPath != null) && (logFileKB > 0))
+			logView.setSpill(new LogSpill(settingsPath, OUTPUT_LOG_FILE, logFileKB * 1024L, logFiles));
+	}
+
 	private Properties ReadPapilioInit()
 	{
 		final String INSTALL_INIT_FILE = "papilio-init";
@@ -1322,9 +1320,90 @@ public class PapilioLoader extends JFrame implements ActionListener
 		}
 
 		btnProceed.setEnabled(false);
-		txtOutput.setText("");
+		ProcessWatchdog.ResetCancel();
+		btnCancel.setEnabled(true);
+		outputPipeline.Clear();
+		pnlOutput.ResetProgress();
+		nErrorCount = 0;
 //		System.out.println("Total threads : " + Thread.activeCount());
-		new AsyncProgrammer(selTarget, diskBitFile);
+		if ((selTarget != WriteTargets.DISK_FILE) && BoardTarget.IsBoardList(pnlTarget.getBoardName())) {
+			if (dlgBoards == null)
+				dlgBoards = new BoardStatusDialog(this);
+			new MultiBoardProgrammer(selTarget, pnlTarget.getBoardName()).KickOff();
+		}
+		else
+			NewProgrammer(selTarget, diskBitFile, BoardTarget.ByName(pnlTarget.getBoardName())).KickOff();
+		// [Erase] of Simple mode is a one-shot request; AsyncProgrammer has taken note of it.
+		eraseSelected = false;
+	}
+
+	/**
+	 * Called from any AsyncProgrammer thread, several of which may run at once.
+	 */
+	private synchronized void AddErrorCount(int errors) {
+		nErrorCount += errors;
+	}
+
+	/*	Counters of the output pipeline and the caches, for tuning only. */
+	private void PrintStatistics()
+	{
+		if (!DEBUG)
+			return;
+		System.out.println(outputPipeline.Statistics());
+		System.out.println(DeviceIdentityCache.Statistics());
+		System.out.println(MergeCache.Statistics());
+		System.out.println(BoardLedger.Statistics());
+		System.out.println(ProxyBitstreamCache.Statistics());
+	}
+
+	/**
+	 * Creates a programmer which takes note of files and operations selected right now.
+	 * Must be called on the EDT, after FormValid.
+	 */
+	private AsyncProgrammer NewProgrammer(WriteTargets selTarget, File diskBitFile, BoardTarget board)
+	{
+		AsyncProgrammer programmer = new AsyncProgrammer(tools, settings, programmerListener, 
+														 selTarget, diskBitFile, board);
+
+		programmer.setFiles(targetBitFile.get(0), targetBmmFile.get(0), programHexFile.get(0));
+		programmer.setOperations(mergeSelected, eraseSelected, verifySelected, writeSelected, bSimpleMode);
+		return programmer;
+	}
+
+	/**
+	 * Routes what AsyncProgrammers have to say to the Output log view, the progress bar and
+	 * the buttons of this window.
+	 */
+	private class GuiProgrammerListener implements ProgrammerListener
+	{
+		@Override
+		public void Output(String text) {
+			outputPipeline.Post(text);
+		}
+
+		@Override
+		public void Progress(AsyncProgrammer programmer, ProgressEvent event)
+		{
+			// Boards of a multi-board run show their progress in BoardStatusDialog only.
+			if (programmer.isStandalone())
+				pnlOutput.ShowProgress(event);
+		}
+
+		@Override
+		public void Errors(int errors) {
+			AddErrorCount(errors);
+		}
+
+		@Override
+		public void Finished(AsyncProgrammer programmer)
+		{
+			// Only the AsyncProgrammer of a single board run re-enables [Do Selected Operation].
+			if (programmer.isStandalone()) {
+				PrintStatistics();
+				btnProceed.setEnabled(true);
+				btnCancel.setEnabled(false);
+			}
+		}
 	}
 	
 	
@@ -1388,448 +1467,129 @@ public class PapilioLoader extends JFrame implements ActionListener
 	}
 
 
-	public class AsyncProgrammer implements Runnable, MessageConsumer
+	/**
+	 * Programs the bitstream into several boards at once.
+	 * <P>
+	 * [Merge], if selected, is done only once, while the boards are being identified; the
+	 * resulting .bit file is then handed over to one AsyncProgrammer per board. At most MaxParallelBoards of them run at a time, each
+	 * driving its own papilio-prog. Progress of every board is shown in BoardStatusDialog.
+	 * <P>
+	 */
+	public class MultiBoardProgrammer implements Runnable
 	{
-		private File finalBitFile, bscanSPIBitFile;
-		private String q_papilio_prog_exe, q_srec_cat_exe, q_data_2_mem_exe, boardName;
-		private WriteTargets useTarget;
-		private boolean lookforDesc; private String deviceID;
+		private AsyncProgrammer template;
+		private String boardList;
+		private int maxParallelBoards = 4;
+		private String eol = System.getProperty("line.separator");
 
-		public AsyncProgrammer(WriteTargets selTarget, File diskBitFile)
-		{
-			Thread thread;
-			
-			q_papilio_prog_exe = HelperFunctions.CanonicalPath(papilioProgrammerFile);
-			q_srec_cat_exe = HelperFunctions.CanonicalPath(srecCatFile);
-			q_data_2_mem_exe = HelperFunctions.CanonicalPath(dataToMemFile);
-			useTarget = selTarget;
-			finalBitFile = diskBitFile;
-
-			thread = new Thread(this, "Async-Papilio-Programmer");
-			// It is better to set the priority of AsyncProgrammer thread same as that of
-			// MessageSiphon thread (but greater than priority of EDT).
-			// Anyway, this (AsyncProgrammer thread) is going to block (wait) on MessageSiphon 
-			// threads, so everything will work out.
-			thread.setPriority(Thread.MAX_PRIORITY-2);
-			thread.start();
-		}
-
-		
-		@Override
-		public void run()
-		{
-			nErrorCount = 0;
-			
-//		    System.out.println("AsyncProgrammer thread: " + Thread.currentThread().getName());
-		    if (writeSelected == false)
-		    // => Anything out of {[Scan], [Erase], [Verify]} is selected, but at least one is selected.
-		    // => [Write to] and [Merge] is definitely not selected.
-		    // => Any of the files specified in Target XXX file textboxes need be ignored completely.
-		    {
-		    	bscanSPIBitFile = DetectJTAGchain();
-		    	
-		    	if (bscanSPIBitFile != null) {
-			    	if (eraseSelected)
-			    		EraseSPIFlash();	// Erase also does verification
-			    	else if (verifySelected)
-			    		VerifySPIFlash();
-		    	}
-		    }
-		    else
-		    // => [Write to] is selected, [Merge] may or may not be selected.
-		    // => [Scan] is always implied.
-		    // => [Erase] and [Verify], if selected, are applicable in the context of [Write to].
-		    {
-//		    	if (eraseSelected){
-//		    		bscanSPIBitFile = DetectJTAGchain();
-//		    		if (bscanSPIBitFile != null) {
-//		    			EraseSPIFlash();	// Erase also does verification
-//		    		}
-//		    		btnProceed.setEnabled(true);
-//		    		return;
-//		    	}
-			    if (!mergeSelected)
-		    	// => The file specified in "Target .bit file:" text box is the final .bit
-			    //	  file to be burned, i.e. the result of .bit + .bmm + .hex merging. 
-				// Even if user has specified "Target .bmm file:" and/or "Program .hex file:",
-			    // they are ignored.
-			    	finalBitFile = targetBitFile.get(0);
-			    
-			    else {
-			    	if (!MergeBitBmmHexFiles()) {
-						btnProceed.setEnabled(true);
-			    		return;
-			    	}
-			    }
-
-				switch (useTarget) {
-				case FPGA:
-					BurnToFPGA();
-					break;
-				case SPI_FLASH:
-					if (!verifySelected && !eraseSelected && !bSimpleMode)
-						BurnToSPIFlashOnly();
-					else
-						BurnToSPIFlash();
-					break;
-				case DISK_FILE:
-					// Do nothing.
-					// MergeBitBmmHexFiles already does that if selected target is disk file
-					break;
-				}
-		    }
-			btnProceed.setEnabled(true);
-		}
-		
-		
-		private boolean MergeBitBmmHexFiles()
+		public MultiBoardProgrammer(WriteTargets selTarget, String boardList)
 		{
-			final String INTERMEDIATE_MEM_FILE = "tmp.mem";
-			final File intermediateMemFile = new File(programmerPath, INTERMEDIATE_MEM_FILE);
-			final String OUTPUT_MEM_FILE = "out.mem";
-			final File outputMemFile = new File(programmerPath, OUTPUT_MEM_FILE);
-			final String FINAL_BIT_FILE = "out.bit";
-
-			String[] srecCatCommand = {q_srec_cat_exe, 
-									   HelperFunctions.CanonicalPath(programHexFile.get(0)), 
-									   "-Intel", "-Byte_Swap", "2", "-Data_Only", 
-									   "-o", INTERMEDIATE_MEM_FILE, "-vmem", "8"};
-			FileInputStream fin = null; FileOutputStream fout = null;
-			BufferedReader br = null; BufferedWriter bw = null;
-			String sLine; int pos;
-//			String[] commandLine = {"cmd.exe", "/C", "dir", "/S", "C:\\WINDOWS\\System32\\"};
-			String[] data2memCommand = {q_data_2_mem_exe, 
-										"-bm", HelperFunctions.CanonicalPath(targetBmmFile.get(0)), 
-										"-bt", HelperFunctions.CanonicalPath(targetBitFile.get(0)), 
-										"-bd", OUTPUT_MEM_FILE, 
-										"-o", "b", FINAL_BIT_FILE};
-
-			/*	Run srec_cat to create "tmp.mem" from program .hex file. */
-			
-			execSynchronously(srecCatCommand, programmerPath, false);
-			if (!intermediateMemFile.isFile())
-				return false;
-
-			
-			/* 	Convert "tmp.mem" to a format which is understood by data2mem.
-				This means to strip the starting offsets/addresses present on 
-				each line and changing the line ending to Unix style. The created
-				file is "out.mem". */
-			
-//			txtOutput.append("Converting srec_cat .mem file to data2mem format...\n\n");
-			try 
-			{
-				fin = new FileInputStream(intermediateMemFile);
-				// The "tmp.mem" is ASCII file. 
-				br = new BufferedReader(new InputStreamReader(fin, "US-ASCII"));
-				fout = new FileOutputStream(outputMemFile);
-				// The "out.mem" should also be a ASCII file with Unix line ending.
-				bw = new BufferedWriter(new OutputStreamWriter(fout, "US-ASCII"));
-				
-				while ((sLine = br.readLine()) != null) {
-					pos = sLine.indexOf(" ");
-					if (pos != -1) 
-						sLine = sLine.substring(pos);
-			        bw.write(sLine + "\n");	// data2mem expects "out.mem" to have Unix line ending
-				}
+			// Created on the EDT, so that the template takes note of selected operations right now.
+			template = NewProgrammer(selTarget, null, BoardTarget.ByName(""));
+			this.boardList = boardList;
+			try {
+				maxParallelBoards = Math.max(1, Integer.parseInt(settings.getProperty("MaxParallelBoards")));
 			}
-			catch (IOException e) {
+			catch (NumberFormatException e) {
 				System.err.println(e.getMessage());
 			}
-			finally
-			{
-				if (br != null) {
-					try {
-						br.close();		// This also closes fin FileInputStream.  
-					}
-					catch (IOException ioex) {
-						System.err.println(ioex.getMessage());
-					}
-				}
-				if (bw != null) {
-					try {
-						// Not all line endings are created equal. So, it is better if
-						// flush the BufferedWriter for "out.mem".
-						bw.flush();
-						bw.close();
-						fout.close();
-					}
-					catch (IOException ioex) {
-						System.err.println(ioex.getMessage());
-					}
-				}
-			}
-			if (!outputMemFile.isFile())
-				return false;
-			
-
-			/*	Run data2mem to combine .bit (unprogrammed empty processor) file, 
-				.bmm memory map file and program .hex file into final .bit file. */
-			
-			if (finalBitFile == null)
-			// => User has selected either "FPGA" or "SPI Flash" in Write to combobox. 
-				finalBitFile = new File(programmerPath, FINAL_BIT_FILE);
-			else
-			// => User has selected "Disk File" in Write to combobox.
-				data2memCommand[data2memCommand.length - 1] = HelperFunctions.CanonicalPath(finalBitFile);
-			execSynchronously(data2memCommand, programmerPath, false);
-
-			if (finalBitFile.isFile())
-				return true;
-			else
-				return false;
 		}
 
-
-		private File DetectJTAGchain()
+		public void KickOff()
 		{
-			File bscanBitFile = null;
-			String[] scanJTAG;
-			String[] scanJTAGOrig = {q_papilio_prog_exe, "-j"};
-			String[] scanJTAGID = {q_papilio_prog_exe, "-j", "-d", "\"" + pnlTarget.getBoardName() + "\""};
-			
-			if (pnlTarget.getBoardName().isEmpty())
-				scanJTAG = scanJTAGOrig;
-			else
-				scanJTAG = scanJTAGID;
-
-			execSynchronously(scanJTAG, programmerPath, true);
-			
-			//txtOutput.append("In DetectJTAG: " + deviceID);
-			
-			if (!deviceID.isEmpty()) {
-				//txtOutput.append("In isEmpty: " + deviceID);
-				if (deviceID.equals("XC3S250E"))
-					bscanBitFile = new File(rootProgrammerPath, "bscan_spi_xc3s250e.bit");
-				else if (deviceID.equals("XC3S500E"))
-					bscanBitFile = new File(rootProgrammerPath, "bscan_spi_xc3s500e.bit");
-				else if (deviceID.equals("XC3S100E"))
-					bscanBitFile = new File(rootProgrammerPath, "bscan_spi_xc3s100e.bit");
-				else if (deviceID.equals("XC6SLX9")) 
-					bscanBitFile = new File(rootProgrammerPath, "bscan_spi_xc6slx9.bit");
-				else if (deviceID.equals("XC6SLX4"))
-					bscanBitFile = new File(rootProgrammerPath, "bscan_spi_xc6slx4.bit");
-			}
-			
-			return bscanBitFile;
-		}
-		
-		private void BurnToFPGA()
-		{
-			String[] commandLine;
-			String[] commandLineID = {q_papilio_prog_exe, "-v", "-d", "\"" + pnlTarget.getBoardName() + "\"",
-									"-f", HelperFunctions.CanonicalPath(finalBitFile)};
-			String[] commandLineOrig = {q_papilio_prog_exe, "-v",
-									"-f", HelperFunctions.CanonicalPath(finalBitFile)};
-			
-			if (pnlTarget.getBoardName().isEmpty())
-				commandLine = commandLineOrig;
-			else
-				commandLine = commandLineID;
-			
-			execSynchronously(commandLine, programmerPath, false);
-		}
-
-		public void EraseSPIFlash()
-		{
-			String[] commandLine;
-			String[] commandLineOrig = {q_papilio_prog_exe, "-v", 
-									"-b", HelperFunctions.CanonicalPath(bscanSPIBitFile), 
-									"-se"};
-			String[] commandLineID = {q_papilio_prog_exe, "-v", "-d", "\"" + pnlTarget.getBoardName() + "\"", 
-					"-b", HelperFunctions.CanonicalPath(bscanSPIBitFile), 
-					"-se"};
-			
-			if (pnlTarget.getBoardName().isEmpty())
-				commandLine = commandLineOrig;
-			else
-				commandLine = commandLineID;
-
-			execSynchronously(commandLine, programmerPath, false);
-			eraseSelected = false;
-		}
-		
-		private void BurnToSPIFlash()
-		{
-	    	bscanSPIBitFile = DetectJTAGchain();
-						
-			if (bscanSPIBitFile != null)
-			{
-				String[] commandLine;
-				String[] commandLineOrig = {q_papilio_prog_exe, "-v", 
-										"-f", HelperFunctions.CanonicalPath(finalBitFile), 
-										"-b", HelperFunctions.CanonicalPath(bscanSPIBitFile), 
-										"-sa", "-r"};
-				String[] commandLineID = {q_papilio_prog_exe, "-v", "-d", "\"" + pnlTarget.getBoardName() + "\"",  
-						"-f", HelperFunctions.CanonicalPath(finalBitFile), 
-						"-b", HelperFunctions.CanonicalPath(bscanSPIBitFile), 
-						"-sa", "-r"};				
-				if (pnlTarget.getBoardName().isEmpty())
-					commandLine = commandLineOrig;
-				else
-					commandLine = commandLineID;
-				
-				execSynchronously(commandLine, programmerPath, false);
-
-				execSynchronously(new String[] {q_papilio_prog_exe, "-c"}, programmerPath, false);
-			}
+			Thread thread = new Thread(this, "Async-Multi-Board-Programmer");
+			thread.setPriority(Thread.MAX_PRIORITY-2);
+			thread.start();
 		}
 
-		private void BurnToSPIFlashOnly()
+		@Override
+		public void run()
 		{
-	    	bscanSPIBitFile = DetectJTAGchain();
-			//txtOutput.append("In SPI Flash Burn: " + bscanSPIBitFile);
-			
-			if (bscanSPIBitFile != null)
-			{
-				String[] commandLine;
-				String[] commandLineOrig = {q_papilio_prog_exe, "-v", 
-										"-f", HelperFunctions.CanonicalPath(finalBitFile), 
-										"-b", HelperFunctions.CanonicalPath(bscanSPIBitFile), 
-										"-sp", "-r"};
-				String[] commandLineID = {q_papilio_prog_exe, "-v", "-d", "\"" + pnlTarget.getBoardName() + "\"",
-						"-f", HelperFunctions.CanonicalPath(finalBitFile), 
-						"-b", HelperFunctions.CanonicalPath(bscanSPIBitFile), 
-						"-sp", "-r"};
-				if (pnlTarget.getBoardName().isEmpty())
-					commandLine = commandLineOrig;
-				else
-					commandLine = commandLineID;
-				
-				execSynchronously(commandLine, programmerPath, false);
+			final List<BoardTarget> boards;
+			FutureTask<AsyncProgrammer.MergedBitstream> sharedMerge = null;
+			ExecutorService workers;
 
-				execSynchronously(new String[] {q_papilio_prog_exe, "-c"}, programmerPath, false);
-			}
-		}		
-		
-		private void VerifySPIFlash()
-		{
-			String[] commandLine;
-			String[] commandLineOrig = {q_papilio_prog_exe, "-v", 
-									"-b", HelperFunctions.CanonicalPath(bscanSPIBitFile), 
-									"-sv"};
-			String[] commandLineID = {q_papilio_prog_exe, "-v", "-d", "\"" + pnlTarget.getBoardName() + "\"",
-					"-b", HelperFunctions.CanonicalPath(bscanSPIBitFile), 
-					"-sv"};
-			
-			if (pnlTarget.getBoardName().isEmpty())
-				commandLine = commandLineOrig;
+			if (boardList.trim().equals(BoardTarget.ALL_BOARDS))
+				boards = BoardTarget.ParseDeviceListing(template.ListDevices());
 			else
-				commandLine = commandLineID;
-
-			execSynchronously(commandLine, programmerPath, false);
-		}
+				boards = BoardTarget.ParseList(boardList);
 
+			if (boards.isEmpty()) {
+				outputPipeline.Post("No boards to program." + eol);
+				AddErrorCount(1);
+				btnProceed.setEnabled(true);
+				btnCancel.setEnabled(false);
+				return;
+			}
 
-		private void execSynchronously(String[] command, File workingDir, boolean parseStdOut)
-		{
-		    Process process = null;
-		    int exitCode = 0;
-		    
-		    if (ECHO_COMMAND) {
-		    	String execCommand = "Executing...\n";
-		    	for (String item : command) {
-					execCommand += item + " ";
+			EventQueue.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					dlgBoards.StartRun(boards);
 				}
-				txtOutput.append(execCommand + "\n\n");		// JTextArea .append is thread-safe
-		    }
-		    
-		    lookforDesc = parseStdOut;
-		    if (parseStdOut)
-		    	deviceID = "";
-		    
-		    try {
-		      process = Runtime.getRuntime().exec(command, null, workingDir);
-		    } catch (IOException e) {
-		      System.err.println(e.getMessage());
-		    }
-		    
-		    // any output?
-		    MessageSiphon in = new MessageSiphon("Message-Siphon-StdOut", process.getInputStream(), this);
-		    // any error message?
-		    MessageSiphon err = new MessageSiphon("Message-Siphon-StdErr", process.getErrorStream(), this);
-
-		    // Kick both of them off.
-		    err.KickOff();
-		    in.KickOff();
-
-		    // wait for the exec'd process to finish.  if interrupted
-		    // before waitFor returns, continue waiting
-		    boolean burning = true;
-		    while (burning) {
-		      try {
-	/*	------------------------------------------------------------------------------------
-	 * 		One thread can wait for another thread to terminate by using one of the other
-	 * 		thread's join methods.
-	 * 		When in.getThread().join() returns, in.run is guaranteed to have finished.
-	 * 		If in.run is already finished by the time in.getThread().join() is called,
-	 * 		in.getThread().join() returns immediately. 
-	 *	------------------------------------------------------------------------------------ */
-		    	if (in.getThread() != null)
-		    		in.getThread().join();
-		        
-	/*	------------------------------------------------------------------------------------
-	 * 		One thread can wait for another thread to terminate by using one of the other
-	 * 		thread's join methods.
-	 * 		When err.getThread().join() returns, err.run is guaranteed to have finished.
-	 * 		If err.run is already finished by the time err.getThread().join() is called,
-	 * 		err.getThread().join() returns immediately. 
-	 *	------------------------------------------------------------------------------------ */
-				if (err.getThread() != null)
-					err.getThread().join();
-
-	/*	------------------------------------------------------------------------------------
-	 * 		waitFor causes the current thread to wait, if necessary, until the process 
-	 * 		represented by the Process object on which .waitFor() is called, has terminated. 
-	 * 		waitFor method returns immediately if the subprocess has already terminated. 
-	 * 		If the subprocess has not yet terminated, the calling thread will be blocked 
-	 * 		until the subprocess exits. 
-	 *	------------------------------------------------------------------------------------ */
-				exitCode = process.waitFor();
-				System.out.println("Exit code is " + exitCode);
-				nErrorCount += exitCode;
-
-				burning = false;
-		      } catch (InterruptedException ignored) { }
-		    }
-		}
+			});
 
-		/**
-		 * Part of the MessageConsumer interface.
-		 * This is called whenever a piece (usually a line) of error message is
-		 * spewed out from the compiler. The errors are parsed for their contents
-		 * and line number, which is then reported back to Editor.
-		 */
-		@Override
-		public void DeliverMessage(final String stdline)
-		{
-			try {
-				EventQueue.invokeAndWait(new Runnable() {
+			if (template.isMergeAndWrite()) {
+			// => Merge once, while the boards are being identified.
+				sharedMerge = new FutureTask<AsyncProgrammer.MergedBitstream>(
+										new Callable<AsyncProgrammer.MergedBitstream>() {
 					@Override
-					public void run()
-					{
-						txtOutput.append(stdline);
+					public AsyncProgrammer.MergedBitstream call() {
+						return template.MergeOnly();
 					}
 				});
+				Thread mergeThread = new Thread(sharedMerge, "Async-Multi-Board-Merge");
+				mergeThread.setPriority(Thread.MAX_PRIORITY-2);
+				mergeThread.start();
 			}
-			catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-			catch (InvocationTargetException e) {
-				e.printStackTrace();
+
+			workers = Executors.newFixedThreadPool(Math.min(maxParallelBoards, boards.size()), new ThreadFactory() {
+				private int count = 0;
+
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "Async-Papilio-Programmer-" + (++count));
+					// Same priority as single board AsyncProgrammer thread.
+					thread.setPriority(Thread.MAX_PRIORITY-2);
+					return thread;
+				}
+			});
+			for (BoardTarget board : boards) {
+				AsyncProgrammer boardProgrammer = new AsyncProgrammer(template, board);
+				if (sharedMerge != null)
+					boardProgrammer.UseMergedBitFile(sharedMerge);
+				workers.execute(boardProgrammer);
 			}
-			
-			if ((lookforDesc) && (deviceID.isEmpty())) {
-				int pos = stdline.lastIndexOf("Desc: ");
-				if (pos != -1) {
-					if (runningonWindows)
-						deviceID = stdline.substring(pos + "Desc: ".length(), stdline.length() - 2);
-					else
-						deviceID = stdline.substring(pos + "Desc: ".length(), stdline.length() - 1);
+			workers.shutdown();
+
+			boolean programming = true;
+			while (programming) {
+				try {
+					programming = !workers.awaitTermination(1, TimeUnit.SECONDS);
 				}
+				catch (InterruptedException ignored) { }
 			}
+			FinishRun(boards);
 		}
 
+		private void FinishRun(List<BoardTarget> boards)
+		{
+			outputPipeline.Post(eol);
+			for (BoardTarget board : boards)
+				outputPipeline.Post(String.format("%-40s %-8s %6.1f s%s", board, board.getStatus(),
+												  board.getElapsedMillis() / 1000.0, eol));
+			PrintStatistics();
+
+			EventQueue.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					dlgBoards.EndRun();
+				}
+			});
+			btnProceed.setEnabled(true);
+			btnCancel.setEnabled(false);
+		}
 	}
 
 }
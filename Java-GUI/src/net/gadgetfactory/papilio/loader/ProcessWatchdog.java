@@ -0,0 +1,201 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Destroys a console program which runs past its deadline or when the user cancels.
+ * <P>
+ * Every process spawned by Papilio Loader is registered here for as long as it runs.
+ * A wedged USB transfer then ends with papilio-prog being destroyed, which closes its
+ * pipes, which in turn lets the MessageSiphon threads and the waiting AsyncProgrammer
+ * carry on. papilio-prog, srec_cat and data2mem are spawned directly (not through a
+ * shell) and do not start children of their own, so destroying the process takes down
+ * the whole process tree.
+ * <P>
+ * Deadlines are derived from the size of the bitstream involved, see Deadline.
+ * <P>
+ */
+public class ProcessWatchdog
+{
+	private static final Timer timer = new Timer("Process-Watchdog", true);
+	private static final Set<ProcessWatchdog> active = new HashSet<ProcessWatchdog>();
+	private static volatile boolean cancelled = false;
+	private static volatile double scale = 1.0;
+
+	private final Process process;
+	private final String label;
+	private TimerTask deadlineTask = null;
+	private volatile boolean expired = false, killed = false;
+
+	private ProcessWatchdog(Process process, String label)
+	{
+		this.process = process;
+		this.label = label;
+	}
+
+	/**
+	 * Starts watching process.
+	 * @param timeoutMillis	deadline from now on, 0 for none (Cancel still applies)
+	 */
+	public static ProcessWatchdog Watch(Process process, long timeoutMillis, String label)
+	{
+		ProcessWatchdog watchdog = new ProcessWatchdog(process, label);
+		boolean alreadyCancelled;
+
+		synchronized (active) {
+			active.add(watchdog);
+			alreadyCancelled = cancelled;
+		}
+		if (alreadyCancelled)
+		// => Cancel was clicked while this process was being started.
+			watchdog.Kill();
+		else
+			watchdog.Rearm(timeoutMillis);
+		return watchdog;
+	}
+
+	/**
+	 * Replaces the deadline, e.g. for the next command of a programmer session.
+	 * @param timeoutMillis	deadline from now on, 0 for none
+	 */
+	public synchronized void Rearm(long timeoutMillis)
+	{
+		if (deadlineTask != null)
+			deadlineTask.cancel();
+		deadlineTask = null;
+		if ((timeoutMillis <= 0) || killed)
+			return;
+
+		deadlineTask = new TimerTask() {
+			@Override
+			public void run()
+			{
+				expired = true;
+				System.err.println(label + " did not finish in time and has been stopped.");
+				Kill();
+			}
+		};
+		timer.schedule(deadlineTask, timeoutMillis);
+	}
+
+	/** Stops watching; to be called once the process has exited. */
+	public void Done()
+	{
+		Rearm(0);
+		synchronized (active) {
+			active.remove(this);
+		}
+	}
+
+	/** @return true if the process was destroyed because it ran past its deadline */
+	public boolean isExpired() {
+		return expired;
+	}
+
+	/** @return true if the process was destroyed, either by deadline or by Cancel */
+	public boolean isKilled() {
+		return killed;
+	}
+
+	private void Kill()
+	{
+		killed = true;
+		process.destroy();
+	}
+
+	/**
+	 * Destroys every running console program. Programs started afterwards are destroyed
+	 * straight away, until ResetCancel is called for the next run.
+	 */
+	public static void CancelAll()
+	{
+		List<ProcessWatchdog> victims;
+
+		synchronized (active) {
+			cancelled = true;
+			victims = new ArrayList<ProcessWatchdog>(active);
+		}
+		for (ProcessWatchdog watchdog : victims)
+			watchdog.Kill();
+	}
+
+	public static boolean isCancelled() {
+		return cancelled;
+	}
+
+	public static void ResetCancel() {
+		cancelled = false;
+	}
+
+	/**
+	 * @param newScale	multiplies all deadlines, 0 disables them
+	 */
+	public static void setScale(double newScale) {
+		scale = newScale;
+	}
+
+	/**
+	 * Generous upper bound on how long an operation may take.
+	 * @param operation			step being performed
+	 * @param bitstreamBytes	size of the bitstream (or .hex file for [Merge]) involved, 0 if unknown
+	 * @return deadline in milliseconds, 0 for none
+	 */
+	public static long Deadline(LastOperations operation, long bitstreamBytes)
+	{
+		long kilobytes = bitstreamBytes / 1024, millis;
+
+		switch (operation) {
+		case SCAN:
+			millis = 15000;
+			break;
+		case MERGE:
+		case WRITE_TO_DISK_FILE:
+			millis = 60000 + kilobytes * 100;
+			break;
+		case WRITE_TO_FPGA:
+			// JTAG configuration itself takes a second or two even for an LX9 image.
+			millis = 15000 + kilobytes * 100;
+			break;
+		case WRITE_TO_SPI_FLASH:
+			// Sector erase, page program and read back of every byte.
+			millis = 30000 + kilobytes * 600;
+			break;
+		case ERASE:
+			// Erasing does not depend on the bitstream, but on the size of the flash.
+			millis = 120000 + kilobytes * 300;
+			break;
+		case VERIFY:
+			millis = 20000 + kilobytes * 200;
+			break;
+		default:
+			millis = 60000;
+			break;
+		}
+		return (long) (millis * scale);
+	}
+
+}
@@ -0,0 +1,42 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package net.gadgetfactory.papilio.loader;
+
+/**
+ * Receives what an AsyncProgrammer has to tell while it programs a board. The Swing
+ * front end routes this to the Output log view, progress bar and buttons; HeadlessLoader
+ * to the console.
+ * <P>
+ * All methods are called on the AsyncProgrammer thread (or its siphon threads), never
+ * on the EDT.
+ * <P>
+ */
+public interface ProgrammerListener
+{
+	/** Output of a console program, or a message of the programmer itself, ending in a line separator. */
+	public void Output(String text);
+
+	public void Progress(AsyncProgrammer programmer, ProgressEvent event);
+
+	/** Called whenever programmer counts errors; may be called concurrently for several boards. */
+	public void Errors(int errors);
+
+	/** Called once programmer has finished with its board, successfully or not. */
+	public void Finished(AsyncProgrammer programmer);
+}
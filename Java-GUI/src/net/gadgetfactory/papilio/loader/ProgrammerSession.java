@@ -0,0 +1,313 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A long-lived papilio-prog process driven over its StdIn and StdOut.
+ * <P>
+ * When started with the session switch (-i), papilio-prog opens the FTDI device and
+ * scans the JTAG chain only once. It then executes one command per line read from
+ * StdIn (scan, fpga, bscan, spi, reconfigure, status, quit) and acknowledges each one
+ * with a "@@done &lt;rc&gt;" line on StdOut. All other output is handed over to the
+ * MessageConsumer exactly as MessageSiphon would have done it.
+ * <P>
+ * A papilio-prog whose banner lists the "stdin" feature also takes "-" for a .bit file
+ * name, the .bit file itself following the command line on StdIn. One which lists
+ * "delta" also knows "spi d", which rewrites only the SPI Flash sectors that differ,
+ * and one which lists "check" knows "spi c", which tells whether the SPI Flash holds
+ * a .bit file already. "progress" means that papilio-prog knows -P, which nothing
+ * else tells; papilio-prog binaries without it reject -P like any unknown switch.
+ * <P>
+ */
+public class ProgrammerSession
+{
+	public static final String SESSION_SWITCH = "-i";
+	private static final String BANNER_MARKER = "@@session";
+	private static final String DONE_MARKER = "@@done";
+	private static final long CLOSE_TIMEOUT = 10000;		// milliseconds
+	private static final long SIPHON_DRAIN_TIMEOUT = 5000;	// milliseconds
+
+	/*	papilio-prog binaries built before session mode was introduced reject -i and
+		exit without printing the banner. Remember this for the lifetime of the program
+		so that we do not pay for a useless spawn on every operation. */
+	private static volatile boolean unsupported = false;
+	// Some session banner listed "progress", so papilio-prog takes -P.
+	private static volatile boolean progressLines = false;
+	// Some session banner listed "stdin", so papilio-prog takes -f - outside sessions too.
+	private static volatile boolean stdinBitFiles = false;
+
+	private Process process;
+	// papilio-prog closed its StdOut; the process is kept for Close to reap.
+	private boolean exited = false;
+	private BufferedReader stdOut;
+	private BufferedWriter stdIn;
+	private OutputStream rawStdIn;
+	private MessageSiphon errSiphon;
+	private ProcessWatchdog watchdog = null;
+	private MessageConsumer consumer;
+	private boolean bannerSeen = false;
+	// papilio-prog reads "-" bit files from stdin.
+	private boolean streamsBitFiles = false;
+	// papilio-prog knows "spi d".
+	private boolean programsSpiDelta = false;
+	// papilio-prog knows "spi c".
+	private boolean checksSpiImage = false;
+	// papilio-prog knows "spi n" and "spi w".
+	private boolean skipsBlankCheck = false, skipsErase = false;
+	private String eol = System.getProperty("line.separator");
+
+	public ProgrammerSession(MessageConsumer consumer) {
+		this.consumer = consumer;
+	}
+
+	public static boolean isUnsupported() {
+		return unsupported;
+	}
+
+	/** @return true if papilio-prog is known to read "-" .bit files from StdIn, in or out of a session */
+	public static boolean hasStdinBitFiles() {
+		return stdinBitFiles;
+	}
+
+	/** @return true if papilio-prog is known to print @@progress lines when given -P */
+	public static boolean hasProgressLines() {
+		return progressLines;
+	}
+
+	public boolean isOpen() {
+		return (process != null) && !exited;
+	}
+
+	/** @return true if commands accept "-" for a .bit file sent along with SendCommand */
+	public boolean canStreamBitFiles() {
+		return streamsBitFiles;
+	}
+
+	/** @return true if SPI Flash can be programmed with "spi d" */
+	public boolean canProgramSpiDelta() {
+		return programsSpiDelta;
+	}
+
+	/** @return true if "spi c" tells whether the SPI Flash holds a .bit file */
+	public boolean canCheckSpiImage() {
+		return checksSpiImage;
+	}
+
+	/** @return true if "spi n" programs the SPI Flash without checking that it was erased */
+	public boolean canSkipBlankCheck() {
+		return skipsBlankCheck;
+	}
+
+	/** @return true if "spi w" programs SPI Flash which is known to be blank */
+	public boolean canSkipErase() {
+		return skipsErase;
+	}
+
+	/** @return true if papilio-prog was destroyed by deadline or Cancel */
+	public boolean wasKilled() {
+		return (watchdog != null) && watchdog.isKilled();
+	}
+
+	/**
+	 * Starts papilio-prog in session mode and waits until it has scanned the JTAG chain.
+	 * @param commandLine	papilio-prog command line, including SESSION_SWITCH
+	 * @param workingDir	working directory of papilio-prog
+	 * @param timeoutMillis	deadline for opening the device and scanning the chain, 0 for none
+	 * @return
+	 * 		true if papilio-prog is ready to accept commands
+	 * 		false otherwise, in which case the caller should spawn papilio-prog per step
+	 */
+	public boolean Open(String[] commandLine, File workingDir, long timeoutMillis)
+	{
+		try {
+			process = Runtime.getRuntime().exec(commandLine, null, workingDir);
+		}
+		catch (IOException e) {
+			System.err.println(e.getMessage());
+			process = null;
+			return false;
+		}
+
+		watchdog = ProcessWatchdog.Watch(process, timeoutMillis, "papilio-prog session");
+		stdOut = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		rawStdIn = process.getOutputStream();
+		stdIn = new BufferedWriter(new OutputStreamWriter(rawStdIn));
+		errSiphon = new MessageSiphon("Message-Siphon-Session-StdErr", process.getErrorStream(), consumer);
+		errSiphon.KickOff();
+
+		if (ReadUntilDone() != 0) {
+			Close();
+			return false;
+		}
+		// An idle session must not time out; Cancel still applies.
+		watchdog.Rearm(0);
+		return true;
+	}
+
+	/**
+	 * Sends one command to papilio-prog and blocks until it is acknowledged.
+	 * @param timeoutMillis	deadline for the command, 0 for none
+	 * @return
+	 * 		0 if the command succeeded
+	 * 		papilio-prog return code if the command failed
+	 * 		-1 if the session is broken (papilio-prog has exited or has been destroyed)
+	 */
+	public int SendCommand(String command, long timeoutMillis) {
+		return SendCommand(command, null, timeoutMillis);
+	}
+
+	/**
+	 * Sends one command followed by the .bit file it names as "-", see canStreamBitFiles.
+	 * @param bitFile	contents of the .bit file, null if the command has none
+	 */
+	public int SendCommand(String command, byte[] bitFile, long timeoutMillis)
+	{
+		int rc;
+
+		if ((process == null) || exited)
+			return -1;
+
+		watchdog.Rearm(timeoutMillis);
+		try {
+			stdIn.write(command + "\n");
+			stdIn.flush();
+			if (bitFile != null) {
+				rawStdIn.write(bitFile);
+				rawStdIn.flush();
+			}
+		}
+		catch (IOException e) {
+			System.err.println(e.getMessage());
+			return -1;
+		}
+		rc = ReadUntilDone();
+		watchdog.Rearm(0);
+		return rc;
+	}
+
+	/**
+	 * Asks papilio-prog to quit and releases the FTDI device. Also reaps a papilio-prog
+	 * which has exited in the middle of the session and waits for its StdErr siphon.
+	 */
+	public void Close()
+	{
+		if (process == null) {
+			if (watchdog != null)
+				watchdog.Done();
+			return;
+		}
+
+		watchdog.Rearm(CLOSE_TIMEOUT);
+		try {
+			stdIn.write("quit\n");
+			stdIn.flush();
+			stdIn.close();
+		}
+		catch (IOException e) {
+			// papilio-prog has already exited.
+		}
+
+		boolean closing = true;
+		while (closing) {
+			try {
+				// Drain whatever is left so that papilio-prog never blocks on a full pipe.
+				while (stdOut.readLine() != null)
+					;
+				process.waitFor();
+				Thread errThread = errSiphon.getThread();
+				if (errThread != null)
+					errThread.join(SIPHON_DRAIN_TIMEOUT);
+				closing = false;
+			}
+			catch (IOException e) {
+				closing = false;
+			}
+			catch (InterruptedException ignored) { }
+		}
+		watchdog.Done();
+		process = null;
+	}
+
+	private int ReadUntilDone()
+	{
+		String currentLine;
+		List<String> features;
+		int pos;
+
+		try {
+			while ((currentLine = stdOut.readLine()) != null) {
+				// A message without a line end, e.g. "Uploading ...", may precede the marker.
+				pos = currentLine.indexOf(DONE_MARKER);
+				if (pos != -1) {
+					if ((pos > 0) && (consumer != null))
+						consumer.DeliverMessage(currentLine.substring(0, pos) + eol);
+					try {
+						return Integer.parseInt(currentLine.substring(pos + DONE_MARKER.length()).trim());
+					}
+					catch (NumberFormatException e) {
+						return 1;
+					}
+				}
+				else if (currentLine.startsWith(BANNER_MARKER)) {
+					bannerSeen = true;
+					// @@session <version> <feature>...
+					features = Arrays.asList(currentLine.split("\\s+"));
+					streamsBitFiles = features.contains("stdin");
+					programsSpiDelta = features.contains("delta");
+					checksSpiImage = features.contains("check");
+					skipsBlankCheck = features.contains("noblank");
+					skipsErase = features.contains("noerase");
+					if (features.contains("progress"))
+						progressLines = true;
+					if (streamsBitFiles)
+						stdinBitFiles = true;
+				}
+				else if (consumer != null)
+					consumer.DeliverMessage(currentLine + eol);
+			}
+		}
+		catch (IOException e) {
+			System.err.println(e.getMessage());
+		}
+
+		// papilio-prog has exited. If it did not even print the banner, it does not
+		// know about session mode at all.
+		if (!bannerSeen && (process != null) && !wasKilled())
+			try {
+				process.waitFor();
+				if (process.exitValue() != 0)
+					unsupported = true;
+			}
+			catch (InterruptedException ignored) { }
+		exited = true;
+		return -1;
+	}
+
+}
@@ -0,0 +1,117 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package net.gadgetfactory.papilio.loader;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Locations of papilio-prog, srec_cat, data2mem and the bscan_spi bit files for the
+ * current platform.
+ * <P>
+ * Deliberately free of AWT and Swing, so that HeadlessLoader can use it without
+ * initializing either.
+ * <P>
+ */
+public class ProgrammerTools
+{
+	public static final boolean runningonWindows = System.getProperty("os.name").toLowerCase().startsWith("windows");
+
+	private final File rootProgrammerPath;
+	private final File programmerPath;	// OS dependent folder where papilio-prog.exe, etc are located 
+	private final File papilioProgrammerFile, srecCatFile, dataToMemFile;
+
+	/**
+	 * @param appPath	folder which contains papilio-loader.jar
+	 */
+	public ProgrammerTools(File appPath)
+	{
+		rootProgrammerPath = new File(appPath, "programmer");
+		// Determine locations of Papilio Programmer, srec_cat and data2mem executables
+		// depending on the current platform and architecture.
+		if (runningonWindows)
+		{
+			programmerPath = new File(rootProgrammerPath, "win32");
+			papilioProgrammerFile = ProgrammerFile(programmerPath, "papilio-prog.exe");
+			srecCatFile = new File(programmerPath, "srec_cat.exe");
+			dataToMemFile = new File(programmerPath, "data2mem.exe");
+		}
+		else
+		{
+			programmerPath = new File(rootProgrammerPath, "linux32");
+			papilioProgrammerFile = ProgrammerFile(programmerPath, "papilio-prog");
+			srecCatFile = new File(programmerPath, "srec_cat");
+			dataToMemFile = new File(programmerPath, "data2mem");
+		}
+	}
+
+	/*	The system property papilio.programmer replaces papilio-prog, e.g. by papilio-prog-sim
+		(see FakeProgrammer) for load tests. A relative name is looked up next to papilio-prog. */
+	private static File ProgrammerFile(File programmerPath, String defaultName)
+	{
+		String name = System.getProperty("papilio.programmer");
+		File file;
+
+		if ((name == null) || name.isEmpty())
+			return new File(programmerPath, defaultName);
+		file = new File(name);
+		return file.isAbsolute() ? file : new File(programmerPath, name);
+	}
+
+	/** @return folder which contains papilio-loader.jar, judging by the class path */
+	public static File AppPath() {
+		return new File(System.getProperty("java.class.path")).getParentFile();
+	}
+
+	/** @return folder of the bscan_spi bit files */
+	public File getRootProgrammerPath() {
+		return rootProgrammerPath;
+	}
+
+	/** @return working directory of all console programs */
+	public File getProgrammerPath() {
+		return programmerPath;
+	}
+
+	public File getPapilioProgrammerFile() {
+		return papilioProgrammerFile;
+	}
+
+	public File getSrecCatFile() {
+		return srecCatFile;
+	}
+
+	public File getDataToMemFile() {
+		return dataToMemFile;
+	}
+
+	/** Same as HelperFunctions.CanonicalPath, which cannot be used without loading AWT. */
+	public static String CanonicalPath(File anyFile)
+	{
+		String sQFile = "";
+		try {
+			sQFile = anyFile.getCanonicalPath();
+		}
+		catch (IOException e1) {
+			e1.printStackTrace();
+		}
+		return sQFile;
+	}
+
+}
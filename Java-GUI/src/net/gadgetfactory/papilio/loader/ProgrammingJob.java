@@ -0,0 +1,225 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * What to program into which board, as given on the command line of HeadlessLoader or
+ * in a job line sent to LoaderDaemon:
+ * <PRE>
+ * -f design.bit [-b design.bmm -p program.hex] [-w fpga|spi|disk] [-o merged.bit]
+ * [-d "board name"] [-e] [-v] [-n] [-i] [-s]
+ * </PRE>
+ */
+public class ProgrammingJob
+{
+	private File bitFile = null, bmmFile = null, hexFile = null, diskBitFile = null;
+	private WriteTargets target = WriteTargets.SPI_FLASH;
+	private String boardName = "";
+	private boolean doErase = false, doVerify = false, noErase = false, scanOnly = false;
+	private boolean ifDifferent = false;
+
+	/**
+	 * @param args		options; those not known here are returned, not rejected
+	 * @param others	receives options not known here, e.g. -t of HeadlessLoader
+	 * @throws IllegalArgumentException if the options do not make sense
+	 */
+	public static ProgrammingJob Parse(String[] args, List<String> others)
+	{
+		ProgrammingJob job = new ProgrammingJob();
+		String arg, value;
+
+		for (int i = 0; i < args.length; i++) {
+			arg = args[i];
+			if (arg.equals("-e"))
+				job.doErase = true;
+			else if (arg.equals("-v"))
+				job.doVerify = true;
+			else if (arg.equals("-n"))
+				job.noErase = true;
+			else if (arg.equals("-s"))
+				job.scanOnly = true;
+			else if (arg.equals("-i"))
+				job.ifDifferent = true;
+			else if (arg.equals("-f") || arg.equals("-b") || arg.equals("-p") ||
+					 arg.equals("-w") || arg.equals("-o") || arg.equals("-d"))
+			{
+				if (++i >= args.length)
+					throw new IllegalArgumentException(arg + " requires an argument.");
+				value = args[i];
+				if (arg.equals("-f"))
+					job.bitFile = new File(value);
+				else if (arg.equals("-b"))
+					job.bmmFile = new File(value);
+				else if (arg.equals("-p"))
+					job.hexFile = new File(value);
+				else if (arg.equals("-o"))
+					job.diskBitFile = new File(value);
+				else if (arg.equals("-d"))
+					job.boardName = value;
+				else if (value.equalsIgnoreCase("fpga"))
+					job.target = WriteTargets.FPGA;
+				else if (value.equalsIgnoreCase("spi"))
+					job.target = WriteTargets.SPI_FLASH;
+				else if (value.equalsIgnoreCase("disk"))
+					job.target = WriteTargets.DISK_FILE;
+				else
+					throw new IllegalArgumentException("Unknown write target " + value + ".");
+			}
+			else
+				others.add(arg);
+		}
+		return job;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the options do not add up to something to do
+	 */
+	public void Validate()
+	{
+		if (scanOnly || ((bitFile == null) && (doErase || doVerify)))
+		// => [Scan], [Erase] and/or [Verify] only. Any files given are ignored.
+			return;
+		if (bitFile == null)
+			throw new IllegalArgumentException("No .bit file given.");
+		if ((bmmFile == null) != (hexFile == null))
+			throw new IllegalArgumentException("Merging needs both a .bmm (-b) and a .hex (-p) file.");
+		if ((target == WriteTargets.DISK_FILE) && ((diskBitFile == null) || (bmmFile == null)))
+			throw new IllegalArgumentException("-w disk needs -b, -p and -o.");
+		if (BoardTarget.IsBoardList(boardName))
+			throw new IllegalArgumentException("Only one board at a time can be programmed this way.");
+	}
+
+	/**
+	 * Further checks for a job sent to LoaderDaemon, which neither shares the working
+	 * directory of its client nor knows which local user the client is.
+	 * @throws IllegalArgumentException if a path is relative or -o does not name a .bit file
+	 */
+	public void ValidateForDaemon()
+	{
+		File[] paths = {bitFile, bmmFile, hexFile, diskBitFile};
+
+		for (File path : paths) {
+			if ((path != null) && !path.isAbsolute())
+				throw new IllegalArgumentException(path.getPath() + " is not an absolute path.");
+		}
+		if ((diskBitFile != null) && !diskBitFile.getName().toLowerCase().endsWith(".bit"))
+			throw new IllegalArgumentException("-o has to name a .bit file.");
+	}
+
+	/**
+	 * @return message naming the first input file which does not exist, null if all do
+	 */
+	public String MissingInput()
+	{
+		File[] inputs = {bitFile, bmmFile, hexFile};
+
+		if (scanOnly)
+			return null;
+		for (File input : inputs) {
+			if ((input != null) && !input.isFile())
+				return input.getPath() + " does not exist.";
+		}
+		return null;
+	}
+
+	/**
+	 * @return message naming the first console program which does not exist, null if all do
+	 */
+	public static String MissingTool(ProgrammerTools tools)
+	{
+		File[] required = {tools.getPapilioProgrammerFile(), tools.getSrecCatFile(), tools.getDataToMemFile()};
+
+		for (File tool : required) {
+			if (!tool.isFile())
+				return tool.getPath() + " does not exist on disk. Please reinstall the program.";
+		}
+		return null;
+	}
+
+	/** Replaces the target .bit file, e.g. by one received over the LoaderDaemon socket. */
+	public void setBitFile(File bitFile) {
+		this.bitFile = bitFile;
+	}
+
+	public String getBoardName() {
+		return boardName;
+	}
+
+	public WriteTargets getTarget() {
+		return target;
+	}
+
+	/**
+	 * @return programmer set up for this job, ready to run
+	 */
+	public AsyncProgrammer NewProgrammer(ProgrammerTools tools, Properties settings, ProgrammerListener listener)
+	{
+		boolean doWrite = !scanOnly && (bitFile != null);
+		AsyncProgrammer programmer;
+
+		programmer = new AsyncProgrammer(tools, settings, listener, target, diskBitFile, BoardTarget.ByName(boardName));
+		programmer.setFiles(bitFile, bmmFile, hexFile);
+		// Without -e, -v or -n, [Write to] SPI Flash erases and verifies, as in Simple mode.
+		programmer.setOperations(doWrite && (bmmFile != null),
+								 !scanOnly && doErase, !scanOnly && doVerify, doWrite,
+								 !noErase && !doErase && !doVerify);
+		if (ifDifferent)
+			programmer.setProgramIfDifferent(true);
+		return programmer;
+	}
+
+	/**
+	 * Splits a job line into options. Double quotes group words, e.g. -d "Papilio Pro".
+	 */
+	public static String[] Tokenize(String line)
+	{
+		List<String> tokens = new ArrayList<String>();
+		StringBuilder sb = new StringBuilder();
+		boolean quoted = false, inToken = false;
+		char c;
+
+		for (int i = 0; i < line.length(); i++) {
+			c = line.charAt(i);
+			if (c == '"') {
+				quoted = !quoted;
+				inToken = true;
+			}
+			else if (Character.isWhitespace(c) && !quoted) {
+				if (inToken)
+					tokens.add(sb.toString());
+				sb.setLength(0);
+				inToken = false;
+			}
+			else {
+				sb.append(c);
+				inToken = true;
+			}
+		}
+		if (inToken)
+			tokens.add(sb.toString());
+		return tokens.toArray(new String[tokens.size()]);
+	}
+
+}
@@ -0,0 +1,142 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+/**
+ * How far papilio-prog has got with one phase of an operation, as reported by a
+ * "@@progress &lt;phase&gt; &lt;done&gt; &lt;total&gt;" line. Immutable.
+ * <P>
+ * Throughput is the average since the phase was first reported, so that a slow USB
+ * hub or cable shows up as a low KB/s figure rather than just a long wait.
+ * <P>
+ */
+public class ProgressEvent
+{
+	public enum Phase
+	{
+		ERASE("erase", "Erasing"), BLANK_CHECK("blank", "Blank check"), WRITE("write", "Writing"),
+		VERIFY("verify", "Verifying"), FPGA("fpga", "Configuring FPGA"), COMPARE("compare", "Comparing");
+
+		private String token, displayStr;
+
+		private Phase(String token, String displayStr)
+		{
+			this.token = token;
+			this.displayStr = displayStr;
+		}
+
+		/** @return name of this phase in a progress line */
+		public String getToken() {
+			return token;
+		}
+
+		/** @return phase named token in a progress line, null if unknown */
+		public static Phase FromToken(String token)
+		{
+			for (Phase phase : values()) {
+				if (phase.token.equals(token))
+					return phase;
+			}
+			return null;
+		}
+
+		@Override
+		public String toString() {
+			return displayStr;
+		}
+	}
+
+	private final Phase phase;
+	private final long doneBytes, totalBytes;
+	private final long elapsedNanos;		// Since the phase was first reported.
+	private final long startBytes;			// doneBytes when the phase was first reported.
+
+	public ProgressEvent(Phase phase, long doneBytes, long totalBytes, long startBytes, long elapsedNanos)
+	{
+		this.phase = phase;
+		this.doneBytes = doneBytes;
+		this.totalBytes = totalBytes;
+		this.startBytes = startBytes;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	public Phase getPhase() {
+		return phase;
+	}
+
+	public long getDoneBytes() {
+		return doneBytes;
+	}
+
+	/** @return size of the phase in bytes, 0 if papilio-prog cannot tell (e.g. chip erase) */
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+
+	public boolean isIndeterminate() {
+		return totalBytes <= 0;
+	}
+
+	public boolean isComplete() {
+		return (totalBytes > 0) && (doneBytes >= totalBytes);
+	}
+
+	/** @return 0 to 100, -1 if indeterminate */
+	public int getPercent()
+	{
+		if (isIndeterminate())
+			return -1;
+		return (int) Math.min(100, doneBytes * 100 / totalBytes);
+	}
+
+	public long getElapsedMillis() {
+		return elapsedNanos / 1000000;
+	}
+
+	/** @return average throughput of this phase so far, 0 if not known yet */
+	public double getKBPerSecond()
+	{
+		if ((elapsedNanos <= 0) || (doneBytes <= startBytes))
+			return 0;
+		return (doneBytes - startBytes) / 1024.0 / (elapsedNanos / 1e9);
+	}
+
+	@Override
+	public String toString()
+	{
+		double kbps = getKBPerSecond();
+
+		if (isIndeterminate())
+			return String.format("%s... %.1f s", phase, elapsedNanos / 1e9);
+		if (kbps == 0)
+			return String.format("%s %d%%", phase, getPercent());
+		return String.format("%s %d%%, %.1f KB/s", phase, getPercent(), kbps);
+	}
+
+	/** @return one line summary of a completed phase, e.g. for the Output log */
+	public String Summary()
+	{
+		if (isIndeterminate())
+			return String.format("%s took %.1f s", phase, elapsedNanos / 1e9);
+		return String.format("%s %d KB in %.1f s, %.1f KB/s",
+							 phase, doneBytes / 1024, elapsedNanos / 1e9, getKBPerSecond());
+	}
+
+}
@@ -0,0 +1,110 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/**
+ * Turns the "@@progress &lt;phase&gt; &lt;done&gt; &lt;total&gt;" lines printed by
+ * papilio-prog -P into ProgressEvents.
+ * <P>
+ * One parser follows one board through all its programmer runs (or session commands)
+ * and remembers the last event of every phase, so that the throughput of erase, write
+ * and verify can be reported once the board is done. A phase which is reported again
+ * from the start, e.g. [Verify] after [Write], counts as a new phase.
+ * <P>
+ */
+public class ProgressParser
+{
+	public static final String PROGRESS_MARKER = "@@progress";
+
+	private ProgressEvent.Phase currPhase = null;
+	private long phaseStartNanos, phaseStartBytes, lastDoneBytes;
+	private ProgressEvent latest = null;
+	private List<ProgressEvent> finishedPhases = new ArrayList<ProgressEvent>();
+
+	/**
+	 * papilio-prog prints some messages without a line end, e.g. "Uploading "x.bit". ",
+	 * so the first progress line of an operation may follow one.
+	 * @return offset of the progress line within line, -1 if there is none
+	 */
+	public static int ProgressOffset(String line) {
+		return line.indexOf(PROGRESS_MARKER);
+	}
+
+	/**
+	 * @return progress line describing event, as papilio-prog -P would print it
+	 */
+	public static String Format(ProgressEvent event)
+	{
+		return PROGRESS_MARKER + " " + event.getPhase().getToken() + " " + 
+			   event.getDoneBytes() + " " + event.getTotalBytes();
+	}
+
+	/**
+	 * @return event described by line, null if line is not a well-formed progress line
+	 */
+	public synchronized ProgressEvent Parse(String line)
+	{
+		StringTokenizer st = new StringTokenizer(line.trim());
+		ProgressEvent.Phase phase;
+		long doneBytes, totalBytes, now;
+
+		if ((st.countTokens() != 4) || !st.nextToken().equals(PROGRESS_MARKER))
+			return null;
+		phase = ProgressEvent.Phase.FromToken(st.nextToken());
+		if (phase == null)
+			return null;
+		try {
+			doneBytes = Long.parseLong(st.nextToken());
+			totalBytes = Long.parseLong(st.nextToken());
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+
+		now = System.nanoTime();
+		if ((phase != currPhase) || (doneBytes < lastDoneBytes)) {
+			if (latest != null)
+				finishedPhases.add(latest);
+			currPhase = phase;
+			phaseStartNanos = now;
+			phaseStartBytes = doneBytes;
+		}
+		lastDoneBytes = doneBytes;
+		latest = new ProgressEvent(phase, doneBytes, totalBytes, phaseStartBytes, now - phaseStartNanos);
+		return latest;
+	}
+
+	/**
+	 * @return last event of every phase seen so far, in the order the phases ran
+	 */
+	public synchronized List<ProgressEvent> PhaseSummaries()
+	{
+		List<ProgressEvent> summaries = new ArrayList<ProgressEvent>(finishedPhases);
+
+		if (latest != null)
+			summaries.add(latest);
+		return summaries;
+	}
+
+}
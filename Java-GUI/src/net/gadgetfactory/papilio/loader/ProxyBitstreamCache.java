@@ -0,0 +1,124 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * bscan_spi .bit files, which give papilio-prog access to SPI Flash, read and checked
+ * once per process and kept by FPGA description. A programmer session which takes .bit
+ * files on StdIn gets them from here as "bscan -", so programming one board after
+ * another does not read them from disk again.
+ * <P>
+ * The proxy files are part of the installation and not expected to change while the
+ * loader runs; only a different file for a device replaces its entry.
+ * <P>
+ * Shared by all AsyncProgrammer threads; the arrays handed out must not be modified.
+ */
+public class ProxyBitstreamCache
+{
+	private static class Entry
+	{
+		File bitFile;
+		byte[] image;
+	}
+
+	private static final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private static long hits = 0, misses = 0, savedBytes = 0;
+
+	/**
+	 * @param deviceID	FPGA description found by JTAG chain scan, e.g. "XC3S500E"
+	 * @param bitFile	bscan_spi .bit file for it, see DeviceDatabase.Device.getProxyBitFile
+	 * @return whole .bit file, null if it cannot be read or is broken
+	 */
+	public static synchronized byte[] Get(String deviceID, File bitFile)
+	{
+		String key = deviceID.trim().toUpperCase();
+		Entry entry = entries.get(key);
+
+		if ((entry != null) && entry.bitFile.equals(bitFile)) {
+			hits++;
+			savedBytes += entry.image.length;
+			return entry.image;
+		}
+		misses++;
+		entry = new Entry();
+		entry.bitFile = bitFile;
+		entry.image = Read(bitFile);
+		if (entry.image == null) {
+			entries.remove(key);
+			return null;
+		}
+		entries.put(key, entry);
+		return entry.image;
+	}
+
+	/**
+	 * Reads the proxy of every device in devlist.txt which has one, so that even the
+	 * first board does not wait for them. Neither a hit nor a miss.
+	 */
+	public static void Preload(ProgrammerTools tools)
+	{
+		Entry entry;
+
+		for (DeviceDatabase.Device device : DeviceDatabase.Load(tools.getProgrammerPath()).getDevices()) {
+			if (device.getProxyBitFile() == null)
+				continue;
+			entry = new Entry();
+			entry.bitFile = new File(tools.getRootProgrammerPath(), device.getProxyBitFile());
+			if (!entry.bitFile.isFile())
+				continue;
+			entry.image = Read(entry.bitFile);
+			if (entry.image != null) {
+				synchronized (ProxyBitstreamCache.class) {
+					entries.put(device.getName().toUpperCase(), entry);
+				}
+			}
+		}
+	}
+
+	public static synchronized String Statistics()
+	{
+		return String.format("Proxy bitstream cache: %d hits, %d misses, %d KB not read again", 
+							 hits, misses, savedBytes / 1024);
+	}
+
+	private static byte[] Read(File bitFile)
+	{
+		byte[] image;
+		BitFileHeader header;
+
+		try {
+			image = BramPatcher.ReadFile(bitFile);
+			header = BitFileHeader.Parse(image);
+			if (header.getPayloadOffset() + header.getPayloadLength() > image.length)
+				throw new IOException("configuration data is truncated");
+			return image;
+		}
+		catch (IOException e) {
+			System.err.println(bitFile + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,386 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Timing of one board through [Do Selected Operation], i.e. one AsyncProgrammer run.
+ * <P>
+ * Every step (console program, programmer session command or step done in Java) is
+ * recorded as a PhaseTiming with nanosecond start and end relative to the start of the
+ * run, the time it took to spawn the console program, the bytes involved and the exit
+ * code. The erase/write/verify throughput reported by papilio-prog -P is added when the
+ * run ends.
+ * <P>
+ * Finished records are appended to runs.csv (one row per run, one duration column per
+ * phase) and runs.jsonl (one JSON object per run, all details) in the settings folder,
+ * so that cycle time per station can be trended over many boards. A runs.csv whose
+ * header does not match the current columns (written by an older version) is renamed
+ * to runs-&lt;date&gt;.csv first, so that no file mixes two column layouts.
+ * <P>
+ */
+public class RunRecord
+{
+	/** Phases which get a column of their own in runs.csv. */
+	public static final String[] CSV_PHASES = {
+		"scan", "merge_wait", "merge_cache", "hex_to_mem", "srec_cat", "data2mem", "bram_patch", "fpga", "bscan",
+		"spi_check", "spi_erase", "spi_program", "spi_delta", "spi_write", "spi_verify", "reconfigure", "status"
+	};
+	private static final String CSV_FILE = "runs.csv";
+	private static final String JSONL_FILE = "runs.jsonl";
+
+	private static File logFolder = null;
+	private static String station = null;
+
+	/** One step of a run. */
+	public class PhaseTiming
+	{
+		private final String name;
+		private final long bytes;
+		private final long startNanos;
+		private volatile long spawnNanos = -1, endNanos = -1;
+		private volatile int exitCode = 0;
+
+		private PhaseTiming(String name, long bytes)
+		{
+			this.name = name;
+			this.bytes = bytes;
+			this.startNanos = System.nanoTime();
+		}
+
+		/** To be called as soon as the console program for this phase is running. */
+		public void Spawned() {
+			spawnNanos = System.nanoTime() - startNanos;
+		}
+
+		public void End(int exitCode)
+		{
+			this.exitCode = exitCode;
+			endNanos = System.nanoTime();
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/** @return duration in nanoseconds, -1 if the phase has not ended */
+		public long getDurationNanos() {
+			return (endNanos < 0) ? -1 : endNanos - startNanos;
+		}
+	}
+
+	private final String board, target;
+	private final List<PhaseTiming> phases = new ArrayList<PhaseTiming>();
+	private List<ProgressEvent> transfers = new ArrayList<ProgressEvent>();
+	private long startMillis, startNanos, endNanos;
+	private int errorCount;
+	private boolean session;
+
+	public RunRecord(String board, String target)
+	{
+		this.board = board;
+		this.target = target;
+		Start();
+	}
+
+	/**
+	 * @param folder	folder for runs.csv and runs.jsonl, null to stop recording
+	 */
+	public static synchronized void setLogFolder(File folder) {
+		logFolder = folder;
+	}
+
+	public void Start()
+	{
+		startMillis = System.currentTimeMillis();
+		startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Starts timing a phase. Phases may overlap, e.g. [Merge] and [Scan].
+	 * @param bytes		size of the file transferred or processed, 0 if none
+	 */
+	public PhaseTiming Begin(String name, long bytes)
+	{
+		PhaseTiming phase = new PhaseTiming(name, bytes);
+
+		synchronized (phases) {
+			phases.add(phase);
+		}
+		return phase;
+	}
+
+	/**
+	 * @param errorCount		errors of the board, 0 if it was programmed successfully
+	 * @param usedSession		true if a programmer session did (part of) the work
+	 * @param progressPhases	throughput reported by papilio-prog -P
+	 */
+	public void Finish(int errorCount, boolean usedSession, List<ProgressEvent> progressPhases)
+	{
+		endNanos = System.nanoTime();
+		this.errorCount = errorCount;
+		this.session = usedSession;
+		this.transfers = new ArrayList<ProgressEvent>(progressPhases);
+	}
+
+	/**
+	 * Appends this record to runs.csv and runs.jsonl. Called from several AsyncProgrammer
+	 * threads during a multi-board run, hence synchronized on the class.
+	 */
+	public void Append()
+	{
+		synchronized (RunRecord.class) {
+			if (logFolder == null)
+				return;
+			AppendLine(new File(logFolder, CSV_FILE), CsvHeader(), ToCsv());
+			AppendLine(new File(logFolder, JSONL_FILE), null, ToJson());
+		}
+	}
+
+	private static void AppendLine(File file, String header, String line)
+	{
+		BufferedWriter bw = null;
+		boolean newFile;
+
+		if ((header != null) && file.isFile() && !header.equals(FirstLine(file)))
+			RotateFile(file);
+		newFile = !file.isFile();
+		try {
+			bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+			if (newFile && (header != null)) {
+				bw.write(header);
+				bw.write("\n");
+			}
+			bw.write(line);
+			bw.write("\n");
+		}
+		catch (IOException e) {
+			System.err.println(e.getMessage());
+		}
+		finally
+		{
+			if (bw != null) {
+				try {
+					bw.close();
+				}
+				catch (IOException ioex) {
+					System.err.println(ioex.getMessage());
+				}
+			}
+		}
+	}
+
+	/*	null if the file cannot be read */
+	private static String FirstLine(File file)
+	{
+		BufferedReader br = null;
+
+		try {
+			br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			return br.readLine();
+		}
+		catch (IOException e) {
+			return null;
+		}
+		finally
+		{
+			if (br != null) {
+				try {
+					br.close();
+				}
+				catch (IOException ioex) {
+					System.err.println(ioex.getMessage());
+				}
+			}
+		}
+	}
+
+	/*	runs.csv => runs-20260101-120000.csv, next to it */
+	private static void RotateFile(File file)
+	{
+		String name = file.getName(), stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+		int dot = name.lastIndexOf('.');
+		File rotated = new File(file.getParentFile(), name.substring(0, dot) + "-" + stamp + name.substring(dot));
+
+		if (!file.renameTo(rotated))
+			System.err.println("Could not rename " + file.getPath() + " to " + rotated.getName());
+	}
+
+	private static String CsvHeader()
+	{
+		StringBuilder sb = new StringBuilder("time,station,board,target,result,errors,session,total_ms,spawn_ms,bytes");
+
+		for (String phase : CSV_PHASES)
+			sb.append(',').append(phase).append("_ms");
+		for (ProgressEvent.Phase phase : ProgressEvent.Phase.values())
+			sb.append(',').append(phase.name().toLowerCase()).append("_kbps");
+		return sb.toString();
+	}
+
+	/*	One row per run. A phase which ran more than once (e.g. status) is summed. */
+	private String ToCsv()
+	{
+		StringBuilder sb = new StringBuilder();
+		long spawnNanos = 0, bytes = 0, phaseNanos;
+		boolean found;
+		List<PhaseTiming> snapshot = Phases();
+
+		for (PhaseTiming phase : snapshot) {
+			if (phase.spawnNanos > 0)
+				spawnNanos += phase.spawnNanos;
+			bytes += phase.bytes;
+		}
+		sb.append(Timestamp()).append(',');
+		sb.append(CsvField(Station())).append(',');
+		sb.append(CsvField(board)).append(',');
+		sb.append(CsvField(target)).append(',');
+		sb.append((errorCount == 0) ? "ok" : "failed").append(',');
+		sb.append(errorCount).append(',');
+		sb.append(session).append(',');
+		sb.append(String.format(Locale.US, "%.3f", (endNanos - startNanos) / 1e6)).append(',');
+		sb.append(String.format(Locale.US, "%.3f", spawnNanos / 1e6)).append(',');
+		sb.append(bytes);
+		for (String name : CSV_PHASES) {
+			phaseNanos = 0;
+			found = false;
+			for (PhaseTiming phase : snapshot) {
+				if (phase.name.equals(name) && (phase.getDurationNanos() >= 0)) {
+					phaseNanos += phase.getDurationNanos();
+					found = true;
+				}
+			}
+			sb.append(',');
+			if (found)
+				sb.append(String.format(Locale.US, "%.3f", phaseNanos / 1e6));
+		}
+		for (ProgressEvent.Phase progressPhase : ProgressEvent.Phase.values()) {
+			sb.append(',');
+			for (ProgressEvent transfer : transfers) {
+				if ((transfer.getPhase() == progressPhase) && (transfer.getKBPerSecond() > 0)) {
+					sb.append(String.format(Locale.US, "%.1f", transfer.getKBPerSecond()));
+					break;
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	private String ToJson()
+	{
+		StringBuilder sb = new StringBuilder("{");
+		boolean first = true;
+
+		sb.append("\"time\":").append(JsonString(Timestamp()));
+		sb.append(",\"station\":").append(JsonString(Station()));
+		sb.append(",\"board\":").append(JsonString(board));
+		sb.append(",\"target\":").append(JsonString(target));
+		sb.append(",\"errors\":").append(errorCount);
+		sb.append(",\"session\":").append(session);
+		sb.append(",\"total_ns\":").append(endNanos - startNanos);
+		sb.append(",\"phases\":[");
+		for (PhaseTiming phase : Phases()) {
+			if (!first)
+				sb.append(',');
+			first = false;
+			sb.append("{\"name\":").append(JsonString(phase.name));
+			sb.append(",\"start_ns\":").append(phase.startNanos - startNanos);
+			sb.append(",\"end_ns\":").append((phase.endNanos < 0) ? -1 : phase.endNanos - startNanos);
+			sb.append(",\"spawn_ns\":").append(phase.spawnNanos);
+			sb.append(",\"bytes\":").append(phase.bytes);
+			sb.append(",\"exit\":").append(phase.exitCode).append('}');
+		}
+		sb.append("],\"transfers\":[");
+		first = true;
+		for (ProgressEvent transfer : transfers) {
+			if (!first)
+				sb.append(',');
+			first = false;
+			sb.append("{\"phase\":").append(JsonString(transfer.getPhase().name().toLowerCase()));
+			sb.append(",\"bytes\":").append(transfer.getDoneBytes());
+			sb.append(",\"ms\":").append(transfer.getElapsedMillis());
+			sb.append(",\"kbps\":").append(String.format(Locale.US, "%.1f", transfer.getKBPerSecond())).append('}');
+		}
+		sb.append("]}");
+		return sb.toString();
+	}
+
+	private List<PhaseTiming> Phases()
+	{
+		synchronized (phases) {
+			return new ArrayList<PhaseTiming>(phases);
+		}
+	}
+
+	private String Timestamp() {
+		return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date(startMillis));
+	}
+
+	private static synchronized String Station()
+	{
+		if (station == null) {
+			try {
+				station = InetAddress.getLocalHost().getHostName();
+			}
+			catch (IOException e) {
+				station = "unknown";
+			}
+		}
+		return station;
+	}
+
+	private static String CsvField(String value)
+	{
+		if ((value.indexOf(',') == -1) && (value.indexOf('"') == -1))
+			return value;
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	private static String JsonString(String value)
+	{
+		StringBuilder sb = new StringBuilder("\"");
+		char c;
+
+		for (int i = 0; i < value.length(); i++) {
+			c = value.charAt(i);
+			if ((c == '"') || (c == '\\'))
+				sb.append('\\').append(c);
+			else if (c < ' ')
+				sb.append(String.format("\\u%04x", (int) c));
+			else
+				sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+
+}
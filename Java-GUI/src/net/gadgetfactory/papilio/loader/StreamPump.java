@@ -0,0 +1,95 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Copies bytes from one stream to another on a thread of its own, the binary
+ * counterpart of MessageSiphon. Used to feed a console program's StdIn from memory
+ * and to take its StdOut as data rather than as lines of text.
+ * <P>
+ */
+public class StreamPump implements Runnable
+{
+	private final InputStream from;
+	private final OutputStream to;
+	private final boolean closeTo;
+	private volatile Thread thread;
+	private volatile IOException failure = null;
+
+	/**
+	 * @param closeTo	true to close the destination at end of stream, e.g. so that
+	 * 					the console program sees end of file on StdIn
+	 */
+	public StreamPump(String threadName, InputStream from, OutputStream to, boolean closeTo)
+	{
+		this.from = from;
+		this.to = to;
+		this.closeTo = closeTo;
+
+		thread = new Thread(this, threadName);
+		thread.setPriority(Thread.MAX_PRIORITY-1);
+		// A pump left behind by a destroyed console program must not keep the JVM alive.
+		thread.setDaemon(true);
+	}
+
+	public Thread getThread() {
+		return thread;
+	}
+
+	public void KickOff() {
+		thread.start();
+	}
+
+	/** @return error which stopped the copy, null if none */
+	public IOException getFailure() {
+		return failure;
+	}
+
+	@Override
+	public void run()
+	{
+		byte[] buffer = new byte[65536];
+		int count;
+
+		try {
+			while ((count = from.read(buffer)) != -1)
+				to.write(buffer, 0, count);
+			to.flush();
+		}
+		catch (IOException e) {
+			// Also what happens when the console program exits without reading all of StdIn.
+			failure = e;
+		}
+		finally {
+			if (closeTo) {
+				try {
+					to.close();
+				}
+				catch (IOException ignored) { }
+			}
+			thread = null;
+		}
+	}
+
+}
@@ -20,6 +20,7 @@
 package net.gadgetfactory.papilio.loader;
 
 import static net.gadgetfactory.papilio.loader.PapilioLoader.AUTO_DETECT_FPGA;
+import java.awt.Dimension;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.FocusEvent;
@@ -27,6 +28,7 @@ import java.awt.event.FocusListener;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
+import java.io.IOException;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Properties;
@@ -51,6 +53,8 @@ public class TargetPanel extends JPanel implements ActionListener, FocusListener
 
 	private JComboBox cboBoards;
 	private JTextField txtQBitFile, txtBoardName, txtQBmmFile, txtQHexFile;
+	// Part, design and date from the header of the target .bit file.
+	private JLabel lblBitInfo;
 	
 	private JComboBox cboWriteTargets;
 	private JButton btnProceed;
@@ -172,6 +176,8 @@ public class TargetPanel extends JPanel implements ActionListener, FocusListener
 					break;
 				case 2:			// "Target board name:"
 					txtBoardName = txtQFile;
+					txtBoardName.setToolTipText("FTDI device name. Separate several names with commas, " + 
+												"or enter " + BoardTarget.ALL_BOARDS + " for all attached boards.");
 					break;					
 				case 3:			// "Target .bmm file:"
 					txtQBmmFile = txtQFile;
@@ -259,6 +265,17 @@ public class TargetPanel extends JPanel implements ActionListener, FocusListener
 			this.add(btnProceed);
 		}
 
+		lblCaption = new JLabel("Bitstream:", JLabel.TRAILING);
+		this.add(lblCaption);
+		lblBitInfo = new JLabel(" ");
+		// As wide as the text fields, whatever it shows, so the layout does not change with it.
+		lblBitInfo.setPreferredSize(new Dimension(txtQBitFile.getPreferredSize().width, 
+												  lblBitInfo.getPreferredSize().height));
+		lblCaption.setLabelFor(lblBitInfo);
+		this.add(lblBitInfo);
+		this.add(new JLabel());
+		ShowBitFileHeader();
+
 		// Associate ActionEvent listener with [Run] button.
 		cboBoards.addActionListener(new ActionListener() {
 			@Override
@@ -278,7 +295,7 @@ public class TargetPanel extends JPanel implements ActionListener, FocusListener
 		
         // Lay out the panel.
         HelperFunctions.makeCompactGrid(this,
-                                        labelCaptions.length + (bSimpleMode ? 1 : 0),	//rows 
+                                        labelCaptions.length + (bSimpleMode ? 2 : 1),	//rows 
                                         3, //cols
                                         3, 3,        //initX, initY
                                         6, 6,       //xPad, yPad
@@ -495,6 +512,9 @@ public class TargetPanel extends JPanel implements ActionListener, FocusListener
 	@Override
 	public void insertUpdate(DocumentEvent e)
 	{
+		if (e.getDocument() == txtQBitFile.getDocument())
+			ShowBitFileHeader();
+
 		/* 	In case program is running in Simple mode, Operations panel is not there
 			at all. So, there is no question of selecting / unselecting JToggleButtons
 			to depict operation flow.
@@ -510,6 +530,9 @@ public class TargetPanel extends JPanel implements ActionListener, FocusListener
 	@Override
 	public void removeUpdate(DocumentEvent e)
 	{
+		if (e.getDocument() == txtQBitFile.getDocument())
+			ShowBitFileHeader();
+
 		/* 	In case program is running in Simple mode, Operations panel is not there
 		at all. So, there is no question of selecting / unselecting JToggleButtons
 		to depict operation flow.
@@ -523,6 +546,28 @@ public class TargetPanel extends JPanel implements ActionListener, FocusListener
 	}
 	
 
+	/*	Only the header is read, which takes well under a millisecond, so this is done
+		on every keystroke. */
+	private void ShowBitFileHeader()
+	{
+		File bitFile;
+
+		if (lblBitInfo == null)
+		// => Still being constructed.
+			return;
+		bitFile = new File(txtQBitFile.getText().trim());
+		if (!bitFile.isFile())
+			lblBitInfo.setText(" ");
+		else {
+			try {
+				lblBitInfo.setText(BitFileHeader.Read(bitFile).Summary());
+			}
+			catch (IOException e) {
+				lblBitInfo.setText("Cannot be used: " + e.getMessage());
+			}
+		}
+	}
+
 	@Override
 	public void focusGained(FocusEvent e)
 	{
@@ -0,0 +1,101 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Turns srec_cat -vmem output into the .mem format data2mem understands while it is
+ * being written: the @address starting each line is dropped, up to (not including)
+ * the first blank, and line endings become Unix style. Lines without a blank are
+ * passed on whole.
+ * <P>
+ */
+public class VmemAddressStripper extends FilterOutputStream
+{
+	// Longest line start kept back while looking for its first blank.
+	private final byte[] pending = new byte[256];
+	private int pendingCount = 0;
+	private boolean atLineStart = true, afterCR = false;
+
+	public VmemAddressStripper(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		if (afterCR) {
+			afterCR = false;
+			if (b == '\n')
+			// => Second half of a Windows line ending.
+				return;
+		}
+		if ((b == '\n') || (b == '\r')) {
+			FlushPending();
+			out.write('\n');	// data2mem expects Unix line endings
+			atLineStart = true;
+			afterCR = (b == '\r');
+		}
+		else if (!atLineStart)
+			out.write(b);
+		else if (b == ' ') {
+		// => End of the address, which is dropped.
+			pendingCount = 0;
+			atLineStart = false;
+			out.write(b);
+		}
+		else if (pendingCount < pending.length)
+			pending[pendingCount++] = (byte) b;
+		else {
+		// => Not an address after all.
+			FlushPending();
+			atLineStart = false;
+			out.write(b);
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		for (int i = off; i < off + len; i++)
+			write(b[i]);
+	}
+
+	/** Ends the last line, if the input did not. */
+	@Override
+	public void close() throws IOException
+	{
+		if (!atLineStart || (pendingCount > 0)) {
+			FlushPending();
+			out.write('\n');
+		}
+		super.close();
+	}
+
+	private void FlushPending() throws IOException
+	{
+		out.write(pending, 0, pendingCount);
+		pendingCount = 0;
+	}
+
+}
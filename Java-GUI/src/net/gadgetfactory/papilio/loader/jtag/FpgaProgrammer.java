@@ -0,0 +1,109 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader.jtag;
+
+import java.io.IOException;
+
+/**
+ * Configures a Spartan-3E, -3A or -6 FPGA through JTAG, in the flow ProgAlgXC3S of
+ * papilio-prog uses: JPROGRAM, wait for INIT, JSHUTDOWN, the whole bitstream through
+ * CFG_IN in one DR shift, JSTART, then wait for DONE.
+ */
+public class FpgaProgrammer
+{
+	private static final int CFG_IN = 0x05, JPROGRAM = 0x0b, JSTART = 0x0c, JSHUTDOWN = 0x0d;
+	private static final int ISC_ENABLE = 0x10, ISC_DISABLE = 0x16, BYPASS = 0x3f;
+	// Clocks the startup sequence needs, for the families above.
+	private static final int TCK_LENGTH = 16;
+	private static final int MAX_POLLS = 50;
+	private static final byte[] BIT_REVERSE = new byte[256];
+
+	static {
+		for (int i = 0; i < 256; i++)
+			BIT_REVERSE[i] = (byte) (Integer.reverse(i) >>> 24);
+	}
+
+	private final JtagChain chain;
+
+	/**
+	 * @param chain	with the FPGA selected and its IR length set
+	 */
+	public FpgaProgrammer(JtagChain chain) {
+		this.chain = chain;
+	}
+
+	/**
+	 * @param payload	configuration data of a .bit file, see BitFileHeader.getPayloadOffset
+	 * @throws IOException if the FPGA does not clear or does not come up
+	 */
+	public void Program(byte[] payload) throws IOException
+	{
+		byte[] flipped = new byte[payload.length], capture = new byte[1];
+		int polls = 0;
+
+		// The FPGA takes configuration data MSB first, JTAG shifts LSB first.
+		for (int i = 0; i < payload.length; i++)
+			flipped[i] = BIT_REVERSE[payload[i] & 0xFF];
+
+		chain.ShiftIR(ISC_ENABLE, null);
+		chain.ShiftDR(new byte[1], null, 5);
+		chain.RunTest(TCK_LENGTH);
+		chain.ShiftIR(JPROGRAM, null);
+		do {
+			chain.ShiftIR(CFG_IN, capture);
+			chain.Flush();
+		}
+		while (((capture[0] & 0x10) == 0) && (++polls < MAX_POLLS));
+		if (polls == MAX_POLLS)
+			throw new IOException("FPGA configuration memory did not clear.");
+
+		chain.ShiftIR(JSHUTDOWN, null);
+		chain.RunTest(TCK_LENGTH);
+		chain.ShiftIR(CFG_IN, null);
+		chain.ShiftDR(flipped, null, 8 * flipped.length);
+		chain.RunTest(1);
+		chain.ShiftIR(JSTART, null);
+		chain.RunTest(2 * TCK_LENGTH);
+		chain.ShiftIR(BYPASS, null);
+		chain.ShiftDR(new byte[1], null, 1);
+		chain.RunTest(1);
+		chain.ShiftIR(ISC_DISABLE, null);
+		chain.RunTest(TCK_LENGTH);
+
+		// INSTRUCTION_CAPTURE reads 0x21 or more once DONE is high.
+		polls = 0;
+		while (true) {
+			chain.ShiftIR(BYPASS, capture);
+			chain.Flush();
+			if (((capture[0] & 0x23) == 0x21) || (++polls == MAX_POLLS))
+				break;
+			try {
+				Thread.sleep(1);
+			}
+			catch (InterruptedException e) {
+				throw new IOException("Interrupted while waiting for DONE.");
+			}
+		}
+		if (polls == MAX_POLLS)
+			throw new IOException(String.format("FPGA failed to configure, INSTRUCTION_CAPTURE is 0x%02x.", 
+												capture[0] & 0xFF));
+	}
+
+}
@@ -0,0 +1,259 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader.jtag;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JTAG chain on top of a JtagTransport: tracks the TAP controller state, finds the
+ * devices by their IDCODEs and shifts instructions and data to the selected one while
+ * the others are in BYPASS. The Java counterpart of Jtag in papilio-prog, with the
+ * same device numbering: device 0 is the one nearest to TDI.
+ * <P>
+ * Shifts are only queued on the transport; callers which need the TDO bits of one
+ * must call Flush before looking at them. Not thread safe.
+ */
+public class JtagChain
+{
+	public static final int MAX_DEVICES = 1000;
+	// IDCODEs shifted out of the chain per round trip while scanning it.
+	private static final int SCAN_BATCH = 8;
+
+	private static class Device
+	{
+		int idcode;
+		int irLength;
+	}
+
+	private final JtagTransport transport;
+	private final List<Device> devices = new ArrayList<Device>();
+	// null until the first reset.
+	private TapState state = null;
+	private TapState postDRState = TapState.RUN_TEST_IDLE, postIRState = TapState.RUN_TEST_IDLE;
+	private int deviceIndex = -1;
+	private long irShifts = 0, drShifts = 0, shiftedBits = 0, flushes = 0;
+
+	public JtagChain(JtagTransport transport) {
+		this.transport = transport;
+	}
+
+	public JtagTransport getTransport() {
+		return transport;
+	}
+
+	/** @return state of the TAP controllers, null if unknown */
+	public TapState getState() {
+		return state;
+	}
+
+	public void setPostDRState(TapState state) {
+		postDRState = state;
+	}
+
+	public void setPostIRState(TapState state) {
+		postIRState = state;
+	}
+
+	/**
+	 * Puts all TAP controllers into Test-Logic-Reset, from whatever state they are in.
+	 */
+	public void Reset() throws IOException
+	{
+		transport.ClockTms(new boolean[] {true, true, true, true, true}, true);
+		state = TapState.TEST_LOGIC_RESET;
+	}
+
+	public void GoTo(TapState target) throws IOException
+	{
+		if (state == null)
+			Reset();
+		if (state != target) {
+			transport.ClockTms(state.PathTo(target), true);
+			state = target;
+		}
+	}
+
+	/**
+	 * Reads the IDCODEs of all devices, which Test-Logic-Reset loads into their data
+	 * registers. A device without IDCODE would shift out a single 0 and is not seen,
+	 * as in papilio-prog.
+	 * @return number of devices found
+	 */
+	public int ScanChain() throws IOException
+	{
+		byte[] zeros = new byte[4 * SCAN_BATCH], ids = new byte[4 * SCAN_BATCH];
+		List<Device> found = new ArrayList<Device>();
+		Device device;
+		int id;
+		boolean end = false;
+
+		Reset();
+		GoTo(TapState.SHIFT_DR);
+		while (!end && (found.size() < MAX_DEVICES)) {
+			transport.Shift(zeros, ids, ids.length * 8, false);
+			Flush();
+			for (int i = 0; (i < SCAN_BATCH) && !end; i++) {
+				id = Word32(ids, 4 * i);
+				if ((id == 0) || (id == -1)) {
+					if ((id == -1) && !found.isEmpty())
+						System.err.println("JTAG chain: a broken device follows device " + found.size() + 
+										   ", no further devices can be identified.");
+					end = true;
+				}
+				else {
+					device = new Device();
+					device.idcode = id;
+					found.add(0, device);
+				}
+			}
+		}
+		Reset();
+
+		devices.clear();
+		devices.addAll(found);
+		deviceIndex = -1;
+		return devices.size();
+	}
+
+	public int getDeviceCount() {
+		return devices.size();
+	}
+
+	/** @return IDCODE of device dev, 0 if there is no such device */
+	public int getDeviceID(int dev) {
+		return ((dev < 0) || (dev >= devices.size())) ? 0 : devices.get(dev).idcode;
+	}
+
+	/**
+	 * The instruction register length cannot be read from the chain, it has to be
+	 * looked up by IDCODE.
+	 */
+	public void setDeviceIRLength(int dev, int length) {
+		devices.get(dev).irLength = length;
+	}
+
+	/** @return dev, or -1 if there is no such device */
+	public int SelectDevice(int dev)
+	{
+		deviceIndex = ((dev < 0) || (dev >= devices.size())) ? -1 : dev;
+		return deviceIndex;
+	}
+
+	/**
+	 * Loads instruction into the selected device and BYPASS into all others.
+	 * @param tdo	receives the bits captured by the selected device, null if not needed
+	 */
+	public void ShiftIR(int instruction, byte[] tdo) throws IOException
+	{
+		byte[] tdi = new byte[4];
+
+		for (int i = 0; i < 4; i++)
+			tdi[i] = (byte) (instruction >>> (8 * i));
+		ShiftIR(tdi, tdo);
+	}
+
+	public void ShiftIR(byte[] tdi, byte[] tdo) throws IOException
+	{
+		int pre = 0, post = 0, length;
+
+		if (deviceIndex < 0)
+			return;
+		// BYPASS is all ones, for the devices nearer to TDO first.
+		for (int dev = deviceIndex + 1; dev < devices.size(); dev++)
+			pre += devices.get(dev).irLength;
+		for (int dev = 0; dev < deviceIndex; dev++)
+			post += devices.get(dev).irLength;
+		length = devices.get(deviceIndex).irLength;
+
+		GoTo(TapState.SHIFT_IR);
+		if (pre > 0)
+			transport.Shift(Ones(pre), null, pre, false);
+		transport.Shift(tdi, tdo, length, post == 0);
+		if (post > 0)
+			transport.Shift(Ones(post), null, post, true);
+		state = TapState.EXIT1_IR;
+		GoTo(postIRState);
+		irShifts++;
+		shiftedBits += pre + length + post;
+	}
+
+	/**
+	 * Shifts length bits through the data register of the selected device. The others
+	 * are in BYPASS, which takes one extra bit each.
+	 * @param tdi	null for zeros
+	 * @param tdo	null if not needed
+	 */
+	public void ShiftDR(byte[] tdi, byte[] tdo, int length) throws IOException
+	{
+		int pre = devices.size() - deviceIndex - 1, post = deviceIndex;
+
+		if (deviceIndex < 0)
+			return;
+		GoTo(TapState.SHIFT_DR);
+		if (pre > 0)
+			transport.Shift(null, null, pre, false);
+		transport.Shift(tdi, tdo, length, post == 0);
+		if (post > 0)
+			transport.Shift(null, null, post, true);
+		state = TapState.EXIT1_DR;
+		GoTo(postDRState);
+		drShifts++;
+		shiftedBits += pre + length + post;
+	}
+
+	/**
+	 * Clocks TCK count times in the current state, which should be Run-Test/Idle.
+	 */
+	public void RunTest(int count) throws IOException {
+		transport.ClockTck(count);
+	}
+
+	public void Flush() throws IOException
+	{
+		transport.Flush();
+		flushes++;
+	}
+
+	/** @return e.g. "JTAG: 3 IR shifts, 5 DR shifts, 2750512 bits, 4 round trips" */
+	public String Statistics()
+	{
+		return String.format("JTAG: %d IR shifts, %d DR shifts, %d bits, %d round trips", 
+							 irShifts, drShifts, shiftedBits, flushes);
+	}
+
+	/** @return 32 bits starting at data[offset], LSB first */
+	public static int Word32(byte[] data, int offset)
+	{
+		return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) | 
+			   ((data[offset + 2] & 0xFF) << 16) | ((data[offset + 3] & 0xFF) << 24);
+	}
+
+	private static byte[] Ones(int bitCount)
+	{
+		byte[] ones = new byte[(bitCount + 7) / 8];
+
+		for (int i = 0; i < ones.length; i++)
+			ones[i] = (byte) 0xFF;
+		return ones;
+	}
+
+}
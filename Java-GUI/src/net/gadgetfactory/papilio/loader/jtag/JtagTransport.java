@@ -0,0 +1,57 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader.jtag;
+
+import java.io.IOException;
+
+/**
+ * Drives TCK, TMS and TDI of a JTAG chain and samples TDO, like IOBase in papilio-prog.
+ * <P>
+ * Transports may queue operations and send them in one go: TDO bits asked for are
+ * only guaranteed to be in place once Flush has returned. Bits are stored LSB first,
+ * i.e. bit 0 of byte 0 is the first bit shifted.
+ */
+public interface JtagTransport
+{
+	/**
+	 * Clocks TCK once per element of tms, with TDI held at tdi. TDO is ignored.
+	 */
+	void ClockTms(boolean[] tms, boolean tdi) throws IOException;
+
+	/**
+	 * Shifts bitCount bits with TMS low, except for the last one if exitShift is set,
+	 * which moves the TAP controllers from Shift-xR to Exit1-xR.
+	 * @param tdi	bits to shift in, null for zeros
+	 * @param tdo	receives the bits shifted out, null if they are not needed
+	 */
+	void Shift(byte[] tdi, byte[] tdo, int bitCount, boolean exitShift) throws IOException;
+
+	/**
+	 * Clocks TCK count times with TMS low and TDI high, e.g. to wait in Run-Test/Idle.
+	 */
+	void ClockTck(int count) throws IOException;
+
+	/**
+	 * Sends whatever has been queued and waits until the TDO bits asked for have arrived.
+	 */
+	void Flush() throws IOException;
+
+	void Close() throws IOException;
+}
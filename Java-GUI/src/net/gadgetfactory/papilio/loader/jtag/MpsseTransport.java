@@ -0,0 +1,239 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader.jtag;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JtagTransport for the FTDI FT2232 on Papilio boards, whose channel A runs the JTAG
+ * port in MPSSE mode. Shifts are turned into MPSSE commands, the same ones IOFtdi in
+ * papilio-prog sends, and queued until Flush, so that a whole sequence of IR and DR
+ * shifts costs a single USB round trip.
+ * <P>
+ * Opening the FTDI device and putting it into MPSSE mode (bit mode 0x02, pins 0xfb)
+ * takes D2XX or libftdi, which Java cannot reach on its own; that is left to the
+ * Channel handed in. SimulatedMpsseChannel decodes the commands into a SimulatedBoard,
+ * which is how HeadlessLoader bench jtag runs this class.
+ */
+public class MpsseTransport implements JtagTransport
+{
+	/**
+	 * Bytes to and from an FTDI channel which is in MPSSE mode.
+	 */
+	public interface Channel
+	{
+		void Write(byte[] data, int length) throws IOException;
+
+		/** Blocks until length bytes have been read. */
+		void Read(byte[] buffer, int length) throws IOException;
+
+		void Close() throws IOException;
+	}
+
+	// MPSSE command bits, as named in libftdi.
+	private static final int WRITE_NEG = 0x01, BITMODE = 0x02, READ_NEG = 0x04, LSB = 0x08;
+	private static final int DO_WRITE = 0x10, DO_READ = 0x20, WRITE_TMS = 0x40;
+	private static final int SET_BITS_LOW = 0x80, LOOPBACK_END = 0x85, TCK_DIVISOR = 0x86, SEND_IMMEDIATE = 0x87;
+	// TCK, TDI and TMS are outputs, TMS starts high.
+	private static final int PINS_VALUE = 0x08, PINS_DIRECTION = 0x0b;
+	// Largest block of a byte shift command, and what is queued before sending anyway.
+	private static final int MAX_BLOCK = 65536, SEND_THRESHOLD = 4096;
+
+	/*	Where the TDO bytes, which arrive in command order, have to go. */
+	private static class PendingRead
+	{
+		byte[] tdo;
+		int bitOffset;
+		int bitCount;		// 1 to 8 for a bit command, else a multiple of 8.
+		boolean bitCommand;
+	}
+
+	private final Channel channel;
+	private final ByteArrayOutputStream commands = new ByteArrayOutputStream();
+	private final List<PendingRead> pendingReads = new ArrayList<PendingRead>();
+	private int pendingReadBytes = 0;
+
+	/**
+	 * @param tckDivisor	TCK is 6 MHz / (1 + tckDivisor) on the FT2232D
+	 */
+	public MpsseTransport(Channel channel, int tckDivisor) throws IOException
+	{
+		this.channel = channel;
+		commands.write(LOOPBACK_END);
+		commands.write(SET_BITS_LOW);
+		commands.write(PINS_VALUE);
+		commands.write(PINS_DIRECTION);
+		commands.write(TCK_DIVISOR);
+		commands.write(tckDivisor & 0xFF);
+		commands.write((tckDivisor >> 8) & 0xFF);
+		Flush();
+	}
+
+	@Override
+	public void ClockTms(boolean[] tms, boolean tdi) throws IOException
+	{
+		int count, pattern;
+
+		// Up to 7 TMS bits per command; bit 7 is held on TDI.
+		for (int pos = 0; pos < tms.length; pos += count) {
+			count = Math.min(7, tms.length - pos);
+			pattern = tdi ? 0x80 : 0;
+			for (int i = 0; i < count; i++) {
+				if (tms[pos + i])
+					pattern |= 1 << i;
+			}
+			commands.write(WRITE_TMS | LSB | BITMODE | WRITE_NEG);
+			commands.write(count - 1);
+			commands.write(pattern);
+		}
+		SendIfFull();
+	}
+
+	@Override
+	public void Shift(byte[] tdi, byte[] tdo, int bitCount, boolean exitShift) throws IOException
+	{
+		int dataBits = exitShift ? bitCount - 1 : bitCount;
+		int fullBytes = dataBits / 8, remBits = dataBits % 8, block, lastBit;
+		int read = (tdo != null) ? DO_READ | READ_NEG : 0;
+
+		if (bitCount <= 0)
+			return;
+		for (int pos = 0; pos < fullBytes; pos += block) {
+			block = Math.min(MAX_BLOCK, fullBytes - pos);
+			commands.write(read | DO_WRITE | LSB | WRITE_NEG);
+			commands.write((block - 1) & 0xFF);
+			commands.write(((block - 1) >> 8) & 0xFF);
+			if (tdi != null)
+				commands.write(tdi, pos, block);
+			else
+				commands.write(new byte[block], 0, block);
+			if (tdo != null)
+				AddRead(tdo, 8 * pos, 8 * block, false);
+			SendIfFull();
+		}
+		if (remBits > 0) {
+			commands.write(read | DO_WRITE | LSB | BITMODE | WRITE_NEG);
+			commands.write(remBits - 1);
+			commands.write((tdi != null) ? tdi[fullBytes] : 0);
+			if (tdo != null)
+				AddRead(tdo, 8 * fullBytes, remBits, true);
+		}
+		if (exitShift) {
+			// The last bit goes out with TMS high; TDI is bit 7 of a TMS command.
+			lastBit = (tdi != null) ? (tdi[dataBits / 8] >> (dataBits % 8)) & 1 : 0;
+			commands.write(WRITE_TMS | read | LSB | BITMODE | WRITE_NEG);
+			commands.write(0);
+			commands.write((lastBit << 7) | 0x01);
+			if (tdo != null)
+				AddRead(tdo, dataBits, 1, true);
+		}
+		SendIfFull();
+	}
+
+	@Override
+	public void ClockTck(int count) throws IOException
+	{
+		byte[] ones;
+
+		if (count <= 0)
+			return;
+		ones = new byte[(count + 7) / 8];
+		for (int i = 0; i < ones.length; i++)
+			ones[i] = (byte) 0xFF;
+		Shift(ones, null, count, false);
+	}
+
+	@Override
+	public void Flush() throws IOException
+	{
+		byte[] received;
+		int pos = 0, value;
+
+		if (commands.size() == 0)
+			return;
+		commands.write(SEND_IMMEDIATE);
+		channel.Write(commands.toByteArray(), commands.size());
+		commands.reset();
+		if (pendingReadBytes == 0)
+			return;
+
+		received = new byte[pendingReadBytes];
+		channel.Read(received, received.length);
+		for (PendingRead pending : pendingReads) {
+			if (pending.bitCommand) {
+				// Bits come in from the top of the byte.
+				value = (received[pos++] & 0xFF) >> (8 - pending.bitCount);
+				for (int i = 0; i < pending.bitCount; i++)
+					SetBit(pending.tdo, pending.bitOffset + i, ((value >> i) & 1) != 0);
+			}
+			else {
+				System.arraycopy(received, pos, pending.tdo, pending.bitOffset / 8, pending.bitCount / 8);
+				pos += pending.bitCount / 8;
+			}
+		}
+		pendingReads.clear();
+		pendingReadBytes = 0;
+	}
+
+	@Override
+	public void Close() throws IOException
+	{
+		try {
+			Flush();
+		}
+		finally {
+			channel.Close();
+		}
+	}
+
+	private void AddRead(byte[] tdo, int bitOffset, int bitCount, boolean bitCommand)
+	{
+		PendingRead pending = new PendingRead();
+
+		pending.tdo = tdo;
+		pending.bitOffset = bitOffset;
+		pending.bitCount = bitCount;
+		pending.bitCommand = bitCommand;
+		pendingReads.add(pending);
+		pendingReadBytes += bitCommand ? 1 : bitCount / 8;
+	}
+
+	/*	Long shifts without TDO go out as they are queued; ones which read have to wait
+		for Flush, as the caller decides when to look at TDO. */
+	private void SendIfFull() throws IOException
+	{
+		if ((commands.size() >= SEND_THRESHOLD) && pendingReads.isEmpty()) {
+			channel.Write(commands.toByteArray(), commands.size());
+			commands.reset();
+		}
+	}
+
+	private static void SetBit(byte[] data, int bit, boolean value)
+	{
+		if (value)
+			data[bit / 8] |= 1 << (bit % 8);
+		else
+			data[bit / 8] &= ~(1 << (bit % 8));
+	}
+
+}
@@ -0,0 +1,291 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader.jtag;
+
+import java.util.Arrays;
+
+/**
+ * JtagTransport which is a Papilio board in memory: one Spartan-3E or Spartan-6 FPGA
+ * in the JTAG chain, with SPI Flash behind it. Lets scanning, configuring the FPGA and
+ * programming the flash be run and timed without hardware.
+ * <P>
+ * The FPGA knows IDCODE, USERCODE, BYPASS, JPROGRAM, CFG_IN, JSHUTDOWN, JSTART and
+ * USER1; other instructions select a 1-bit bypass register. Its instruction capture
+ * reports INIT and DONE as the real parts do. Data shifted into CFG_IN is kept, and
+ * JSTART with 12 or more clocks in Run-Test/Idle brings the FPGA up if it contained
+ * the sync word. Any design brought up that way is taken to be bscan_spi: USER1 then
+ * passes SPI commands to the flash, in the framing papilio-prog uses (0x59a6 and a
+ * 16-bit bit count, MISO 8 clocks behind MOSI).
+ */
+public class SimulatedBoard implements JtagTransport
+{
+	private static final int IR_LENGTH = 6;
+	private static final int USER1 = 0x02, CFG_IN = 0x05, USERCODE = 0x08, IDCODE = 0x09;
+	private static final int JPROGRAM = 0x0b, JSTART = 0x0c, JSHUTDOWN = 0x0d;
+	private static final int SYNC_WORD = 0xAA995566;
+	private static final int STARTUP_CLOCKS = 12;
+	private static final int SPI_MAGIC = 0x59a6;
+
+	private final int idcode;
+	private final SimulatedFlash flash;
+	private TapState state = TapState.TEST_LOGIC_RESET;
+	private int instruction = IDCODE, irShift;
+	private long drShift;
+	private int drLength;
+	// Configuration memory as received through CFG_IN, bit-reversed per byte.
+	private byte[] configData = new byte[0];
+	private int configBits = 0;
+	private boolean done = false, startupPending = false;
+	private int idleClocks = 0;
+	// bscan_spi: clocks since Capture-DR, header received, bits left, MISO delay line.
+	private int spiClock, spiHeader, spiBitsLeft, spiDelay;
+	private long clocks = 0, flushes = 0;
+
+	public SimulatedBoard(int idcode, SimulatedFlash flash)
+	{
+		this.idcode = idcode;
+		this.flash = flash;
+	}
+
+	/** @return XC3S500E with a W25X40, i.e. a Papilio One 500K */
+	public static SimulatedBoard PapilioOne500K() {
+		return new SimulatedBoard(0x01c22093, SimulatedFlash.W25X40());
+	}
+
+	/** @return XC6SLX9 with an MX25L6445E, i.e. a Papilio Pro */
+	public static SimulatedBoard PapilioPro() {
+		return new SimulatedBoard(0x24001093, SimulatedFlash.MX25L6445E());
+	}
+
+	public SimulatedFlash getFlash() {
+		return flash;
+	}
+
+	/** @return true once a bitstream has been loaded and started */
+	public boolean isDone() {
+		return done;
+	}
+
+	/** @return configuration data received since the last JPROGRAM, in .bit file bit order */
+	public byte[] getConfigData()
+	{
+		byte[] data = Arrays.copyOf(configData, configBits / 8);
+
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) (Integer.reverse(data[i] & 0xFF) >>> 24);
+		return data;
+	}
+
+	/** @return e.g. "Simulated board: 2750512 TCK cycles, 12 flushes, flash busy 1.5 ms" */
+	public String Statistics()
+	{
+		return String.format("Simulated board: %d TCK cycles, %d flushes, flash busy %.1f ms", 
+							 clocks, flushes, flash.getBusyMicros() / 1000.0);
+	}
+
+	@Override
+	public void ClockTms(boolean[] tms, boolean tdi)
+	{
+		for (boolean bit : tms)
+			Clock(bit, tdi);
+	}
+
+	@Override
+	public void Shift(byte[] tdi, byte[] tdo, int bitCount, boolean exitShift)
+	{
+		boolean in, out;
+
+		for (int i = 0; i < bitCount; i++) {
+			in = (tdi != null) && (((tdi[i / 8] >> (i % 8)) & 1) != 0);
+			out = Clock(exitShift && (i == bitCount - 1), in);
+			if (tdo != null) {
+				if (out)
+					tdo[i / 8] |= 1 << (i % 8);
+				else
+					tdo[i / 8] &= ~(1 << (i % 8));
+			}
+		}
+	}
+
+	@Override
+	public void ClockTck(int count)
+	{
+		for (int i = 0; i < count; i++)
+			Clock(false, true);
+	}
+
+	@Override
+	public void Flush() {
+		flushes++;
+	}
+
+	@Override
+	public void Close() {
+		flash.Deselect();
+	}
+
+	/**
+	 * One TCK cycle: TDO is what the shift register held before the rising edge, on
+	 * which the state moves on. Capture and Update happen on entering their states.
+	 */
+	private boolean Clock(boolean tms, boolean tdi)
+	{
+		boolean tdo = false;
+		TapState next;
+
+		clocks++;
+		if (state == TapState.SHIFT_IR) {
+			tdo = (irShift & 1) != 0;
+			irShift = (irShift >>> 1) | (tdi ? 1 << (IR_LENGTH - 1) : 0);
+		}
+		else if (state == TapState.SHIFT_DR)
+			tdo = ShiftDR(tdi);
+		else if ((state == TapState.RUN_TEST_IDLE) && startupPending && (++idleClocks >= STARTUP_CLOCKS))
+			Startup();
+
+		next = state.Next(tms);
+		if ((state == TapState.SHIFT_DR) && (next != TapState.SHIFT_DR))
+			flash.Deselect();
+		switch (next) {
+		case TEST_LOGIC_RESET:
+			instruction = IDCODE;
+			break;
+		case CAPTURE_IR:
+			irShift = 0x01 | 0x10 | (done ? 0x20 : 0);		// INIT high, DONE
+			break;
+		case UPDATE_IR:
+			UpdateIR(irShift);
+			break;
+		case CAPTURE_DR:
+			CaptureDR();
+			break;
+		default:
+			break;
+		}
+		state = next;
+		return tdo;
+	}
+
+	private void UpdateIR(int value)
+	{
+		instruction = value & ((1 << IR_LENGTH) - 1);
+		switch (instruction) {
+		case JPROGRAM:
+			done = false;
+			startupPending = false;
+			configData = new byte[0];
+			configBits = 0;
+			break;
+		case JSHUTDOWN:
+			done = false;
+			break;
+		case JSTART:
+			startupPending = true;
+			idleClocks = 0;
+			break;
+		}
+	}
+
+	private void CaptureDR()
+	{
+		switch (instruction) {
+		case IDCODE:
+			drShift = idcode & 0xFFFFFFFFL;
+			drLength = 32;
+			break;
+		case USERCODE:
+			drShift = 0xFFFFFFFFL;
+			drLength = 32;
+			break;
+		case USER1:
+			spiClock = 0;
+			spiHeader = 0;
+			spiBitsLeft = 0;
+			spiDelay = 0;
+			break;
+		default:
+			drShift = 0;
+			drLength = 1;
+		}
+	}
+
+	private boolean ShiftDR(boolean tdi)
+	{
+		boolean tdo;
+
+		switch (instruction) {
+		case CFG_IN:
+			if (configBits == 8 * configData.length)
+				configData = Arrays.copyOf(configData, Math.max(4096, 2 * configData.length));
+			if (tdi)
+				configData[configBits / 8] |= 1 << (configBits % 8);
+			configBits++;
+			return false;
+		case USER1:
+			return done && ShiftSpi(tdi);
+		default:
+			tdo = (drShift & 1) != 0;
+			drShift = (drShift >>> 1) | (tdi ? 1L << (drLength - 1) : 0);
+			return tdo;
+		}
+	}
+
+	/*	bscan_spi: 32 header bits, then MOSI for as many clocks as the header says. */
+	private boolean ShiftSpi(boolean tdi)
+	{
+		boolean miso = false, tdo = ((spiDelay >> 7) & 1) != 0;
+
+		if (spiClock < 32) {
+			spiHeader = (spiHeader << 1) | (tdi ? 1 : 0);
+			if ((spiClock == 31) && ((spiHeader >>> 16) == SPI_MAGIC)) {
+				spiBitsLeft = spiHeader & 0xFFFF;
+				if (spiBitsLeft > 0)
+					flash.Select();
+			}
+		}
+		else if (spiBitsLeft > 0) {
+			miso = flash.Clock(tdi);
+			if (--spiBitsLeft == 0)
+				flash.Deselect();
+		}
+		spiDelay = (spiDelay << 1) | (miso ? 1 : 0);
+		spiClock++;
+		return tdo;
+	}
+
+	private void Startup()
+	{
+		startupPending = false;
+		done = ContainsSync(getConfigData());
+	}
+
+	private static boolean ContainsSync(byte[] data)
+	{
+		int word = 0;
+
+		for (byte b : data) {
+			word = (word << 8) | (b & 0xFF);
+			if (word == SYNC_WORD)
+				return true;
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,214 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader.jtag;
+
+import java.util.Arrays;
+
+/**
+ * SPI Flash in memory, with the command set papilio-prog uses for Winbond, Macronix
+ * and Numonyx parts (its GENERIC and MacronixFLASH types): RDID, RDSR, WREN, WRDI,
+ * READ, PP, 4 KB and 64 KB sector erase and chip erase, all with 24-bit addresses.
+ * Bits are clocked MSB first, as on the SPI bus.
+ * <P>
+ * Program and erase finish at once, but the time a real part would be busy is added
+ * up, and WIP reads back as set once after each of them so that status polling loops
+ * get exercised.
+ */
+public class SimulatedFlash
+{
+	private static final int PAGE_SIZE = 256;
+	// Typical program and erase times of a W25X40, in microseconds.
+	private static final long PAGE_PROGRAM_MICROS = 1500, SECTOR_4K_MICROS = 150000, 
+							  SECTOR_64K_MICROS = 1000000, CHIP_ERASE_MICROS = 4000000;
+
+	private final byte[] jedecID;
+	private final byte[] memory;
+	private boolean selected = false, writeEnabled = false, busy = false;
+	private int bitCount, inByte, outByte, byteIndex;
+	private int command, address;
+	private final byte[] pageBuffer = new byte[PAGE_SIZE];
+	private int pageBytes;
+	private long busyMicros = 0;
+	private long pagePrograms = 0, sectorErases = 0;
+
+	/**
+	 * @param jedecID	manufacturer, memory type and capacity as returned by RDID
+	 */
+	public SimulatedFlash(int jedecID, int sizeBytes)
+	{
+		this.jedecID = new byte[] {(byte) (jedecID >> 16), (byte) (jedecID >> 8), (byte) jedecID};
+		memory = new byte[sizeBytes];
+		Arrays.fill(memory, (byte) 0xFF);
+	}
+
+	/** @return Winbond W25X40, 512 KB, as on the Papilio One */
+	public static SimulatedFlash W25X40() {
+		return new SimulatedFlash(0xef3013, 512 * 1024);
+	}
+
+	/** @return Macronix MX25L6445E, 8 MB, as on the Papilio Pro */
+	public static SimulatedFlash MX25L6445E() {
+		return new SimulatedFlash(0xc22017, 8 * 1024 * 1024);
+	}
+
+	/** @return the memory array itself */
+	public byte[] getContents() {
+		return memory;
+	}
+
+	/** @return how long a real part would have been busy programming and erasing */
+	public long getBusyMicros() {
+		return busyMicros;
+	}
+
+	public long getPagePrograms() {
+		return pagePrograms;
+	}
+
+	public long getSectorErases() {
+		return sectorErases;
+	}
+
+	/** Chip select goes low. */
+	public void Select()
+	{
+		selected = true;
+		bitCount = 0;
+		inByte = 0;
+		outByte = 0;
+		byteIndex = 0;
+		pageBytes = 0;
+	}
+
+	/** Chip select goes high, which starts the program and erase commands. */
+	public void Deselect()
+	{
+		if (!selected)
+			return;
+		selected = false;
+		if (byteIndex == 0)
+			return;
+		switch (command) {
+		case 0x06:
+			writeEnabled = true;
+			break;
+		case 0x04:
+			writeEnabled = false;
+			break;
+		case 0x02:
+			if (writeEnabled && (byteIndex >= 4)) {
+				for (int i = 0; i < pageBytes; i++)
+					memory[(address & ~(PAGE_SIZE - 1)) + ((address + i) & (PAGE_SIZE - 1))] &= pageBuffer[i];
+				Busy(PAGE_PROGRAM_MICROS);
+				pagePrograms++;
+			}
+			break;
+		case 0x20:
+			if (writeEnabled && (byteIndex >= 4))
+				Erase(address & ~0xFFF, 0x1000, SECTOR_4K_MICROS);
+			break;
+		case 0xd8:
+			if (writeEnabled && (byteIndex >= 4))
+				Erase(address & ~0xFFFF, 0x10000, SECTOR_64K_MICROS);
+			break;
+		case 0xc7:
+		case 0x60:
+			if (writeEnabled)
+				Erase(0, memory.length, CHIP_ERASE_MICROS);
+			break;
+		}
+	}
+
+	/**
+	 * One SCK cycle.
+	 * @return MISO
+	 */
+	public boolean Clock(boolean mosi)
+	{
+		boolean miso = ((outByte >> (7 - bitCount)) & 1) != 0;
+
+		if (!selected)
+			return false;
+		inByte = (inByte << 1) | (mosi ? 1 : 0);
+		if (++bitCount == 8) {
+			outByte = ByteReceived(inByte & 0xFF);
+			bitCount = 0;
+			inByte = 0;
+			byteIndex++;
+		}
+		return miso;
+	}
+
+	/*	@return byte to send while the next one is received */
+	private int ByteReceived(int value)
+	{
+		if (byteIndex == 0) {
+			command = value;
+			address = 0;
+		}
+		else if ((byteIndex <= 3) && ((command == 0x03) || (command == 0x02) || (command == 0x20) || (command == 0xd8)))
+			address = (address << 8) | value;
+		else if (command == 0x02) {
+			// Bytes beyond a page wrap around, keeping the last 256.
+			if (pageBytes < PAGE_SIZE)
+				pageBuffer[pageBytes++] = (byte) value;
+			else {
+				System.arraycopy(pageBuffer, 1, pageBuffer, 0, PAGE_SIZE - 1);
+				pageBuffer[PAGE_SIZE - 1] = (byte) value;
+			}
+		}
+
+		switch (command) {
+		case 0x9f:
+			return (byteIndex < 3) ? jedecID[byteIndex] & 0xFF : 0;
+		case 0x05:
+			return Status();
+		case 0x03:
+			if (byteIndex >= 3)
+				return memory[(address + byteIndex - 3) % memory.length] & 0xFF;
+			return 0xFF;
+		default:
+			return 0xFF;
+		}
+	}
+
+	private int Status()
+	{
+		int status = (busy ? 1 : 0) | (writeEnabled ? 2 : 0);
+
+		busy = false;
+		return status;
+	}
+
+	private void Erase(int start, int length, long micros)
+	{
+		Arrays.fill(memory, start, Math.min(memory.length, start + length), (byte) 0xFF);
+		Busy(micros);
+		sectorErases++;
+	}
+
+	private void Busy(long micros)
+	{
+		writeEnabled = false;
+		busy = true;
+		busyMicros += micros;
+	}
+
+}
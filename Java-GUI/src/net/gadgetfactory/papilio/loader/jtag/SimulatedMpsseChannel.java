@@ -0,0 +1,205 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader.jtag;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * MpsseTransport.Channel which is an FT2232 in MPSSE mode wired to a board in memory:
+ * decodes the MPSSE commands written to it, clocks them into the JtagTransport of the
+ * board one TCK cycle at a time and queues the TDO bytes the commands ask for, packed
+ * the way the FT2232 packs them. Lets MpsseTransport be run without an FTDI device.
+ * <P>
+ * Only the commands MpsseTransport and IOFtdi send are known; any other byte, a shift
+ * before the pins have been set up, or a Read of more bytes than have been produced
+ * is an IOException, where the real part would answer 0xFA or block.
+ */
+public class SimulatedMpsseChannel implements MpsseTransport.Channel
+{
+	private static final int WRITE_NEG = 0x01, BITMODE = 0x02, LSB = 0x08;
+	private static final int DO_WRITE = 0x10, DO_READ = 0x20, WRITE_TMS = 0x40;
+	private static final int SET_BITS_LOW = 0x80, LOOPBACK_END = 0x85, TCK_DIVISOR = 0x86, SEND_IMMEDIATE = 0x87;
+	// TCK, TDI and TMS have to be outputs.
+	private static final int JTAG_OUTPUTS = 0x0b;
+
+	private final JtagTransport target;
+	private final ByteArrayOutputStream tdoBytes = new ByteArrayOutputStream();
+	private byte[] pending = new byte[0];
+	private int readPos = 0;
+	private boolean pinsSet = false;
+	private int tckDivisor = -1;
+	private long writes = 0, bytesWritten = 0, bytesRead = 0;
+	// Single clock buffers, see Clock.
+	private final byte[] tdiBit = new byte[1], tdoBit = new byte[1];
+
+	/**
+	 * @param target	board the JTAG pins are wired to, e.g. a SimulatedBoard
+	 */
+	public SimulatedMpsseChannel(JtagTransport target) {
+		this.target = target;
+	}
+
+	/** @return TCK divisor last set, -1 if none */
+	public int getTckDivisor() {
+		return tckDivisor;
+	}
+
+	/** @return e.g. "MPSSE: 12 writes, 351234 bytes written, 8 bytes read" */
+	public String Statistics() {
+		return "MPSSE: " + writes + " writes, " + bytesWritten + " bytes written, " + bytesRead + " bytes read";
+	}
+
+	/**
+	 * Commands have to arrive whole; MpsseTransport never splits one across writes.
+	 */
+	@Override
+	public void Write(byte[] data, int length) throws IOException
+	{
+		int pos = 0, opcode;
+
+		writes++;
+		bytesWritten += length;
+		while (pos < length) {
+			opcode = data[pos++] & 0xFF;
+			switch (opcode) {
+			case LOOPBACK_END:
+				break;
+			case SEND_IMMEDIATE:
+				target.Flush();
+				break;
+			case SET_BITS_LOW:
+				Need(data, pos, 2, length, opcode);
+				pinsSet = (data[pos + 1] & JTAG_OUTPUTS) == JTAG_OUTPUTS;
+				pos += 2;
+				break;
+			case TCK_DIVISOR:
+				Need(data, pos, 2, length, opcode);
+				tckDivisor = (data[pos] & 0xFF) | ((data[pos + 1] & 0xFF) << 8);
+				pos += 2;
+				break;
+			default:
+				pos = Shift(opcode, data, pos, length);
+			}
+		}
+	}
+
+	@Override
+	public void Read(byte[] buffer, int length) throws IOException
+	{
+		if (readPos + length > pending.length) {
+			pending = Remaining();
+			readPos = 0;
+		}
+		if (length > pending.length)
+			throw new IOException("MPSSE read of " + length + " bytes, only " + pending.length + " produced.");
+		System.arraycopy(pending, readPos, buffer, 0, length);
+		readPos += length;
+		bytesRead += length;
+	}
+
+	@Override
+	public void Close() throws IOException {
+		target.Close();
+	}
+
+	/*	A data shifting command at data[pos - 1]; returns the position after it. */
+	private int Shift(int opcode, byte[] data, int pos, int length) throws IOException
+	{
+		boolean read = (opcode & DO_READ) != 0, write = (opcode & DO_WRITE) != 0;
+		int bits, bytes, value, tdo;
+
+		if (((opcode & 0x80) != 0) || ((opcode & LSB) == 0) || ((opcode & WRITE_NEG) == 0))
+			throw new IOException(String.format("MPSSE command 0x%02x is not supported.", opcode));
+		if (!pinsSet)
+			throw new IOException("MPSSE shift before TCK, TDI and TMS were made outputs.");
+
+		if ((opcode & WRITE_TMS) != 0) {
+			// Up to 7 TMS bits, TDI held at bit 7.
+			Need(data, pos, 2, length, opcode);
+			bits = (data[pos] & 0xFF) + 1;
+			value = data[pos + 1] & 0xFF;
+			tdo = 0;
+			for (int i = 0; i < bits; i++)
+				tdo = (tdo >> 1) | (Clock(((value >> i) & 1) != 0, (value & 0x80) != 0) ? 0x80 : 0);
+			if (read)
+				tdoBytes.write(tdo);
+			return pos + 2;
+		}
+		if ((opcode & BITMODE) != 0) {
+			Need(data, pos, write ? 2 : 1, length, opcode);
+			bits = (data[pos] & 0xFF) + 1;
+			value = write ? data[pos + 1] & 0xFF : 0;
+			tdo = 0;
+			// Bits come in from the top of the byte.
+			for (int i = 0; i < bits; i++)
+				tdo = (tdo >> 1) | (Clock(false, ((value >> i) & 1) != 0) ? 0x80 : 0);
+			if (read)
+				tdoBytes.write(tdo);
+			return pos + (write ? 2 : 1);
+		}
+
+		Need(data, pos, 2, length, opcode);
+		bytes = ((data[pos] & 0xFF) | ((data[pos + 1] & 0xFF) << 8)) + 1;
+		pos += 2;
+		if (write)
+			Need(data, pos, bytes, length, opcode);
+		for (int b = 0; b < bytes; b++) {
+			value = write ? data[pos + b] & 0xFF : 0;
+			tdo = 0;
+			for (int i = 0; i < 8; i++) {
+				if (Clock(false, ((value >> i) & 1) != 0))
+					tdo |= 1 << i;
+			}
+			if (read)
+				tdoBytes.write(tdo);
+		}
+		return pos + (write ? bytes : 0);
+	}
+
+	/*	One TCK cycle of the target; a 1-bit Shift is the only way to give it TMS and
+		TDI together and get TDO back. */
+	private boolean Clock(boolean tms, boolean tdi) throws IOException
+	{
+		tdiBit[0] = (byte) (tdi ? 1 : 0);
+		tdoBit[0] = 0;
+		target.Shift(tdiBit, tdoBit, 1, tms);
+		return (tdoBit[0] & 1) != 0;
+	}
+
+	/*	Bytes not read yet, from the last Read and from commands since. */
+	private byte[] Remaining()
+	{
+		byte[] produced = tdoBytes.toByteArray();
+		byte[] remaining = new byte[pending.length - readPos + produced.length];
+
+		System.arraycopy(pending, readPos, remaining, 0, pending.length - readPos);
+		System.arraycopy(produced, 0, remaining, pending.length - readPos, produced.length);
+		tdoBytes.reset();
+		return remaining;
+	}
+
+	private static void Need(byte[] data, int pos, int count, int length, int opcode) throws IOException
+	{
+		if (pos + count > length)
+			throw new IOException(String.format("MPSSE command 0x%02x is cut off.", opcode));
+	}
+
+}
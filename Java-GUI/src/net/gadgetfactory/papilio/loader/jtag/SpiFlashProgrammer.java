@@ -0,0 +1,231 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader.jtag;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads, erases and writes the SPI Flash behind an FPGA which runs bscan_spi, as
+ * ProgAlgSpi of papilio-prog does for its GENERIC and Macronix parts. Atmel DataFlash
+ * and SST parts need their own command sets and are left to papilio-prog.
+ * <P>
+ * Each SPI transaction is one USER1 DR shift: 0x59a6, a 16-bit count of SPI clocks
+ * and the MOSI bytes, all MSB first; MISO follows 8 clocks behind. Transactions which
+ * return nothing are only queued, so that erasing and writing need a round trip per
+ * status poll, and reading one per call.
+ */
+public class SpiFlashProgrammer
+{
+	private static final int USER1 = 0x02;
+	private static final int PAGE_SIZE = 256, SECTOR_SIZE = 65536;
+	// Bytes per READ transaction; the SPI clock count has 16 bits.
+	private static final int READ_CHUNK = 4096;
+	private static final int MAX_POLLS = 100000;
+	private static final byte[] BIT_REVERSE = new byte[256];
+
+	static {
+		for (int i = 0; i < 256; i++)
+			BIT_REVERSE[i] = (byte) (Integer.reverse(i) >>> 24);
+	}
+
+	private final JtagChain chain;
+	private int jedecID = 0, sizeBytes = 0;
+	private String partName = "";
+
+	/**
+	 * @param chain	with the FPGA selected, its IR length set and bscan_spi loaded
+	 */
+	public SpiFlashProgrammer(JtagChain chain) {
+		this.chain = chain;
+	}
+
+	/** @return e.g. "W25X40", empty before Identify */
+	public String getPartName() {
+		return partName;
+	}
+
+	public int getSizeBytes() {
+		return sizeBytes;
+	}
+
+	/**
+	 * Reads the JEDEC ID of the flash.
+	 * @throws IOException if no flash answers or it is not one this class can program
+	 */
+	public void Identify() throws IOException
+	{
+		byte[] id;
+
+		chain.ShiftIR(USER1, null);
+		id = Transfer(new byte[] {(byte) 0x9f, 0, 0, 0});
+
+		jedecID = ((id[1] & 0xFF) << 16) | ((id[2] & 0xFF) << 8) | (id[3] & 0xFF);
+		switch (jedecID) {
+		case 0xef3013:	partName = "W25X40";		sizeBytes = 512 * 1024;			break;
+		case 0xef4014:	partName = "W25Q80";		sizeBytes = 1024 * 1024;		break;
+		case 0xef4015:	partName = "W25Q16";		sizeBytes = 2 * 1024 * 1024;	break;
+		case 0xc22017:	partName = "MX25L6445E";	sizeBytes = 8 * 1024 * 1024;	break;
+		case 0x202014:	partName = "N25P80";		sizeBytes = 1024 * 1024;		break;
+		case 0x20ba16:	partName = "N25Q32";		sizeBytes = 4 * 1024 * 1024;	break;
+		case 0x20ba17:	partName = "N25Q64";		sizeBytes = 8 * 1024 * 1024;	break;
+		case 0x20ba18:	partName = "N25Q128";		sizeBytes = 16 * 1024 * 1024;	break;
+		default:
+			if ((jedecID == 0) || (jedecID == 0xFFFFFF))
+				throw new IOException("No SPI Flash answers; is bscan_spi loaded?");
+			throw new IOException(String.format("SPI Flash with JEDEC ID %06x is not supported here.", jedecID));
+		}
+	}
+
+	/**
+	 * Reads length bytes from address on, in transactions which are all sent at once.
+	 */
+	public byte[] Read(int address, int length) throws IOException
+	{
+		List<byte[]> replies = new ArrayList<byte[]>();
+		byte[] data = new byte[length], command, reply;
+		int chunk;
+
+		chain.ShiftIR(USER1, null);
+		for (int pos = 0; pos < length; pos += chunk) {
+			chunk = Math.min(READ_CHUNK, length - pos);
+			command = new byte[4 + chunk];
+			SetCommand(command, 0x03, address + pos);
+			replies.add(Queue(command, true));
+		}
+		chain.Flush();
+		for (int i = 0; i < replies.size(); i++) {
+			reply = Unpack(replies.get(i), Math.min(READ_CHUNK, length - i * READ_CHUNK) + 4);
+			System.arraycopy(reply, 4, data, i * READ_CHUNK, reply.length - 4);
+		}
+		return data;
+	}
+
+	/**
+	 * Erases the 64 KB sectors image needs and writes it from address 0, leaving out
+	 * pages which are all 0xFF.
+	 */
+	public void Program(byte[] image) throws IOException
+	{
+		byte[] command;
+		int length;
+
+		if (image.length > sizeBytes)
+			throw new IOException("Image does not fit into " + partName + ".");
+		chain.ShiftIR(USER1, null);
+		for (int address = 0; address < image.length; address += SECTOR_SIZE) {
+			Queue(new byte[] {0x06}, false);
+			command = new byte[4];
+			SetCommand(command, 0xd8, address);
+			Queue(command, false);
+			WaitReady();
+		}
+		for (int address = 0; address < image.length; address += PAGE_SIZE) {
+			length = Math.min(PAGE_SIZE, image.length - address);
+			if (isBlank(image, address, length))
+				continue;
+			Queue(new byte[] {0x06}, false);
+			command = new byte[4 + length];
+			SetCommand(command, 0x02, address);
+			System.arraycopy(image, address, command, 4, length);
+			Queue(command, false);
+			WaitReady();
+		}
+	}
+
+	/**
+	 * @return offset of the first byte which differs from image, -1 if none does
+	 */
+	public int Verify(byte[] image) throws IOException
+	{
+		byte[] contents = Read(0, image.length);
+
+		for (int i = 0; i < image.length; i++) {
+			if (contents[i] != image[i])
+				return i;
+		}
+		return -1;
+	}
+
+	private void WaitReady() throws IOException
+	{
+		for (int polls = 0; polls < MAX_POLLS; polls++) {
+			if ((Transfer(new byte[] {0x05, 0})[1] & 0x01) == 0)
+				return;
+		}
+		throw new IOException(partName + " stays busy.");
+	}
+
+	private static void SetCommand(byte[] command, int opcode, int address)
+	{
+		command[0] = (byte) opcode;
+		command[1] = (byte) (address >> 16);
+		command[2] = (byte) (address >> 8);
+		command[3] = (byte) address;
+	}
+
+	private static boolean isBlank(byte[] data, int offset, int length)
+	{
+		for (int i = offset; i < offset + length; i++) {
+			if (data[i] != (byte) 0xFF)
+				return false;
+		}
+		return true;
+	}
+
+	/*	Queues a transaction and waits for its MISO bytes. */
+	private byte[] Transfer(byte[] mosi) throws IOException
+	{
+		byte[] reply = Queue(mosi, true);
+
+		chain.Flush();
+		return Unpack(reply, mosi.length);
+	}
+
+	/**
+	 * @return raw TDO of the transaction, to be unpacked once flushed; null if not read
+	 */
+	private byte[] Queue(byte[] mosi, boolean read) throws IOException
+	{
+		byte[] tdi = new byte[mosi.length + 5], tdo = read ? new byte[tdi.length] : null;
+		int bits = 8 * mosi.length;
+
+		tdi[0] = BIT_REVERSE[0x59];
+		tdi[1] = BIT_REVERSE[0xa6];
+		tdi[2] = BIT_REVERSE[(bits >> 8) & 0xFF];
+		tdi[3] = BIT_REVERSE[bits & 0xFF];
+		for (int i = 0; i < mosi.length; i++)
+			tdi[i + 4] = BIT_REVERSE[mosi[i] & 0xFF];
+		chain.ShiftDR(tdi, tdo, 8 * tdi.length);
+		return tdo;
+	}
+
+	/*	MISO starts 8 clocks after MOSI, i.e. one byte after the 4 header bytes. */
+	private static byte[] Unpack(byte[] tdo, int length)
+	{
+		byte[] miso = new byte[length];
+
+		for (int i = 0; i < length; i++)
+			miso[i] = BIT_REVERSE[tdo[i + 5] & 0xFF];
+		return miso;
+	}
+
+}
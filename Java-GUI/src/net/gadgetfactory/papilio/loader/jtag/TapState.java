@@ -0,0 +1,93 @@
+/*
+  Part of the Papilio Loader
+
+  Copyright (c) 2010-11 GadgetFactory LLC
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License version 2
+  as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package net.gadgetfactory.papilio.loader.jtag;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+/**
+ * The 16 states of the IEEE 1149.1 TAP controller, and the TMS sequences which move
+ * between them (as IOBase::setTapState does in papilio-prog).
+ */
+public enum TapState
+{
+	TEST_LOGIC_RESET, RUN_TEST_IDLE, 
+	SELECT_DR_SCAN, CAPTURE_DR, SHIFT_DR, EXIT1_DR, PAUSE_DR, EXIT2_DR, UPDATE_DR, 
+	SELECT_IR_SCAN, CAPTURE_IR, SHIFT_IR, EXIT1_IR, PAUSE_IR, EXIT2_IR, UPDATE_IR;
+
+	// Shortest TMS sequence from every state to every other, first bit first.
+	private static final boolean[][][] PATHS = new boolean[16][16][];
+
+	static {
+		TapState[] states = values();
+		Queue<TapState> queue = new ArrayDeque<TapState>();
+		TapState state, next;
+		boolean[] path;
+
+		for (TapState from : states) {
+			PATHS[from.ordinal()][from.ordinal()] = new boolean[0];
+			queue.add(from);
+			while ((state = queue.poll()) != null) {
+				path = PATHS[from.ordinal()][state.ordinal()];
+				for (int tms = 0; tms < 2; tms++) {
+					next = state.Next(tms == 1);
+					if (PATHS[from.ordinal()][next.ordinal()] == null) {
+						PATHS[from.ordinal()][next.ordinal()] = Arrays.copyOf(path, path.length + 1);
+						PATHS[from.ordinal()][next.ordinal()][path.length] = (tms == 1);
+						queue.add(next);
+					}
+				}
+			}
+		}
+	}
+
+	/** @return state the TAP controller goes to on a TCK rising edge with TMS at tms */
+	public TapState Next(boolean tms)
+	{
+		switch (this) {
+		case TEST_LOGIC_RESET:	return tms ? TEST_LOGIC_RESET : RUN_TEST_IDLE;
+		case RUN_TEST_IDLE:		return tms ? SELECT_DR_SCAN : RUN_TEST_IDLE;
+		case SELECT_DR_SCAN:	return tms ? SELECT_IR_SCAN : CAPTURE_DR;
+		case CAPTURE_DR:		return tms ? EXIT1_DR : SHIFT_DR;
+		case SHIFT_DR:			return tms ? EXIT1_DR : SHIFT_DR;
+		case EXIT1_DR:			return tms ? UPDATE_DR : PAUSE_DR;
+		case PAUSE_DR:			return tms ? EXIT2_DR : PAUSE_DR;
+		case EXIT2_DR:			return tms ? UPDATE_DR : SHIFT_DR;
+		case UPDATE_DR:			return tms ? SELECT_DR_SCAN : RUN_TEST_IDLE;
+		case SELECT_IR_SCAN:	return tms ? TEST_LOGIC_RESET : CAPTURE_IR;
+		case CAPTURE_IR:		return tms ? EXIT1_IR : SHIFT_IR;
+		case SHIFT_IR:			return tms ? EXIT1_IR : SHIFT_IR;
+		case EXIT1_IR:			return tms ? UPDATE_IR : PAUSE_IR;
+		case PAUSE_IR:			return tms ? EXIT2_IR : PAUSE_IR;
+		case EXIT2_IR:			return tms ? UPDATE_IR : SHIFT_IR;
+		default:				return tms ? SELECT_DR_SCAN : RUN_TEST_IDLE;	// UPDATE_IR
+		}
+	}
+
+	/**
+	 * @return TMS bits which lead from this state to target, first bit first; empty if
+	 * 		   target is this state
+	 */
+	public boolean[] PathTo(TapState target) {
+		return PATHS[ordinal()][target.ordinal()].clone();
+	}
+
+}
@@ -56,52 +56,69 @@ void BitFile::print()
 // Read in file
 void BitFile::readFile(char const * fname, bool flip)
 {
+    if (!strcmp(fname, "-"))
+    {
+        // The .bit file follows on stdin, and so may whatever comes after it.
+        filename = "<stdin>";
+        readStream(stdin, flip, false);
+        return;
+    }
+
     FILE *const  fp=fopen(fname,"rb");
     if(!fp)
         throw  io_exception(std::string("Cannot open file ") );
     filename = fname;
-    size_t rsize;
 
     try
     {
-        // Skip the header
-        fseek(fp, 13, 0);
-
-        char         key;
-        std::string *field;
-        std::string  dummy;
-
-        while(!feof(fp))
-        {
-            rsize = fread(&key, 1, 1, fp);
-            if (rsize != 1)
-                throw io_exception("Unexpected end of file");
-            switch(key)
-            {
-                case 'a': field = &ncdFilename; break;
-                case 'b': field = &partName;    break;
-                case 'c': field = &date;        break;
-                case 'd': field = &time;        break;
-                case 'e':
-                    processData(fp, flip);
-                    fclose(fp);
-                    return;
-                default:
-                    fprintf(stderr, "Ignoring unknown field '%c'\n", key);
-                    field = &dummy;
-            }
-            readField(*field, fp);
-        }
-        throw  io_exception("Unexpected end of file");
+        readStream(fp, flip, true);
     }
     catch(...)
     {
         fclose(fp);
         throw;
     }
+    fclose(fp);
+}
+
+void BitFile::readStream(FILE *fp, bool flip, bool wholeFile)
+{
+    size_t rsize;
+    byte header[13];
+
+    // Skip the header
+    rsize = fread(header, 1, sizeof(header), fp);
+    if (rsize != sizeof(header))
+        throw io_exception("Unexpected end of file");
+
+    char         key;
+    std::string *field;
+    std::string  dummy;
+
+    while(!feof(fp))
+    {
+        rsize = fread(&key, 1, 1, fp);
+        if (rsize != 1)
+            throw io_exception("Unexpected end of file");
+        switch(key)
+        {
+            case 'a': field = &ncdFilename; break;
+            case 'b': field = &partName;    break;
+            case 'c': field = &date;        break;
+            case 'd': field = &time;        break;
+            case 'e':
+                processData(fp, flip, wholeFile);
+                return;
+            default:
+                fprintf(stderr, "Ignoring unknown field '%c'\n", key);
+                field = &dummy;
+        }
+        readField(*field, fp);
+    }
+    throw  io_exception("Unexpected end of file");
 }
 
-void BitFile::processData(FILE *fp, bool flip)
+void BitFile::processData(FILE *fp, bool flip, bool wholeFile)
 {
     byte t[4];
     size_t rsize;
@@ -113,16 +130,15 @@ void BitFile::processData(FILE *fp, bool flip)
         delete [] buffer;
     buffer=new byte[length];
 
-    for(unsigned int i=0; i<length&&!feof(fp); i++)
-    {
-        byte b;
-        rsize = fread(&b,1,1,fp);
-	if (rsize != 1)
-            throw  io_exception("Unexpected end of file");
-        buffer[i]=(flip?bitRevTable[b]:b); // Reverse the bit order.
-    }
-    if(feof(fp))
+    rsize = fread(buffer, 1, length, fp);
+    if (rsize != length)
         throw  io_exception("Unexpected end of file");
+    if (flip)
+        for(unsigned int i=0; i<length; i++)
+            buffer[i]=bitRevTable[buffer[i]]; // Reverse the bit order.
+
+    if (!wholeFile)
+        return;
 
     rsize = fread(t,1,1,fp);
     if (rsize != 0)
@@ -90,7 +90,8 @@ private:
     void initFlip();
     void error(const std::string &str);
     void readField(std::string &field, FILE *fp);
-    void processData(FILE *fp, bool flip);
+    void readStream(FILE *fp, bool flip, bool wholeFile);
+    void processData(FILE *fp, bool flip, bool wholeFile);
 
 public:
     BitFile();
@@ -100,7 +101,7 @@ public:
     void appendZeros(unsigned cnt);
     void append(unsigned long  val, unsigned cnt);
     void append(char const *file, bool flip=true);
-    void readFile(char const *fname, bool flip=true);
+    void readFile(char const *fname, bool flip=true); // "-" reads from stdin
 
 public:
     inline byte *getData(){return buffer;}
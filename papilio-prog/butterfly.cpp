@@ -35,6 +35,10 @@ Mike Field [hamster@snap.net.nz] 15 Oct 2012
 
 // C POSIX
 #include <unistd.h> // getopt()
+#ifdef _WIN32
+#include <fcntl.h> // _O_BINARY
+#include <io.h> // _setmode()
+#endif
 
 // C++ standard libraries
 #include <iostream>
@@ -96,15 +100,24 @@ unsigned int get_id(Jtag &jtag, DeviceDB &db, int chainpos, bool verbose)
 void usage(char *name)
 {
     fprintf(stderr,
-      "\nUsage:\%s [-v] [-j] [-f <bitfile>] [-b <bitfile>] [-s e|v|p|a] [-c] [-C] [-r] [-A <addr>:<binfile>]\n"
+      "\nUsage:\%s [-v] [-P] [-j] [-l] [-i] [-f <bitfile>] [-b <bitfile>] [-s e|v|p|a|n|w|d|c] [-c] [-C] [-r] [-A <addr>:<binfile>]\n"
       "   -h\t\t\tprint this help\n"
       "   -v\t\t\tverbose output\n"
+      "   -P\t\t\tReport progress as \"@@progress <phase> <done> <total>\" lines\n"
       "   -j\t\t\tDetect JTAG chain, nothing else\n"
+      "   -i\t\t\tSession mode: keep the device open and read commands from stdin\n"
+      "   -l\t\t\tList attached FTDI devices, nothing else\n"
       "   -d\t\t\tFTDI device name\n"
-      "   -f <bitfile>\t\tMain bit file\n"
-      "   -b <bitfile>\t\tbscan_spi bit file (enables spi access via JTAG)\n"
-      "   -s [e|v|p|a]\t\tSPI Flash options: e=Erase Only, v=Verify Only,\n"
-      "               \t\tp=Program Only or a=ALL (Default)\n"
+      "   -S <serial>\t\tFTDI device serial number (takes precedence over -d)\n"
+      "   -f <bitfile>\t\tMain bit file, - to read it from stdin\n"
+      "   -b <bitfile>\t\tbscan_spi bit file (enables spi access via JTAG), - for stdin\n"
+      "   -s [e|v|p|a|n|w|d|c]\tSPI Flash options: e=Erase Only, v=Verify Only,\n"
+      "               \t\tp=Program Only, a=ALL (Default),\n"
+      "               \t\tn=ALL but the blank check,\n"
+      "               \t\tw=ALL but erase and blank check if a page per\n"
+      "               \t\tsector shows the flash is blank,\n"
+      "               \t\td=Delta, rewrite only the sectors which differ or\n"
+      "               \t\tc=Check, succeed if the flash already holds the bit file\n"
       "   -c\t\t\tDisplay current status of FPGA\n"
       "   -C\t\t\tDisplay STAT Register of FPGA\n"
       "   -r\t\t\tTrigger a reconfiguration of FPGA\n"
@@ -146,6 +159,216 @@ int append_data(BitFile &fpga_bit, char *append_str, bool flip, int verbose)
     return 1;
 }
 
+/* Session mode (-i)
+
+   The FTDI device is opened and the JTAG chain is scanned once. After that one
+   command is read per line from stdin and executed against the open device:
+
+     scan                   Rescan the JTAG chain (prints the Desc: line)
+     fpga <bitfile>         Write <bitfile> to the FPGA
+     bscan <bitfile>        Upload the bscan_spi bit file (enables spi access)
+     spi e|v|p|a|n|w|d|c [<bitfile>] SPI Flash operation, same letters as -s
+     reconfigure            Trigger a reconfiguration of the FPGA
+     status                 Display current status of FPGA
+     quit                   Leave session mode
+
+   A <bitfile> of "-" means that the .bit file itself follows the command line
+   on stdin, so that callers can hand over a bitstream they hold in memory.
+
+   Every command, as well as the initial scan, is answered with a line
+   "@@done <rc>" where rc is 0 on success. A line "@@session <version> <features>"
+   is printed before the device is opened so that callers can tell a programmer
+   with session support from an older one, and what it supports. */
+
+#define SESSION_BANNER   "@@session"
+#define SESSION_FEATURES "stdin delta check noblank noerase progress"
+#define SESSION_DONE     "@@done"
+
+// Set while a message without a line end is on stdout, e.g. "Uploading ...".
+static bool session_line_open = false;
+
+static void session_done(int rc)
+{
+    // The marker has to start a line of its own, even after an exception.
+    if (session_line_open)
+        putchar('\n');
+    session_line_open = false;
+    printf("%s %d\n", SESSION_DONE, rc);
+    fflush(stdout);
+}
+
+int run_session(Jtag &jtag, IOBase &io, DeviceDB &db, int chainpos, int family)
+{
+    char line[1024];
+    char *arg;
+    size_t len;
+    int rc;
+    bool bscan_loaded = false;
+    bool reading_stdin;
+    ProgAlgXC3S alg(jtag, io, family);
+
+    session_done(0);
+
+    while (fgets(line, sizeof(line), stdin))
+    {
+        // Strip line ending, both Unix and Windows style.
+        len = strlen(line);
+        while (len > 0 && (line[len-1] == '\n' || line[len-1] == '\r'))
+            line[--len] = 0;
+        if (len == 0)
+            continue;
+
+        // Command is the first word, argument is the rest of line (file names may contain spaces).
+        arg = strchr(line, ' ');
+        if (arg)
+        {
+            *arg++ = 0;
+            while (*arg == ' ')
+                arg++;
+        }
+        else
+            arg = line + len;
+
+        rc = 0;
+        reading_stdin = false;
+        try
+        {
+            if (!strcmp(line, "quit"))
+            {
+                session_done(0);
+                return 0;
+            }
+            else if (!strcmp(line, "scan"))
+            {
+                if (get_id(jtag, db, chainpos, true) == 0)
+                    rc = 1;
+            }
+            else if (!strcmp(line, "fpga") || !strcmp(line, "bscan"))
+            {
+                bool bscan = !strcmp(line, "bscan");
+                BitFile fpga_bit;
+
+                if (*arg == 0)
+                {
+                    fprintf(stderr, "Please specify a bit file for %s.\n", line);
+                    rc = 1;
+                }
+                else
+                {
+                    reading_stdin = !strcmp(arg, "-");
+                    fpga_bit.readFile(arg);
+                    reading_stdin = false;
+                    if (!bscan)
+                        fpga_bit.print();
+                    printf("\nUploading \"%s\". ", arg);
+                    session_line_open = true;
+                    alg.array_program(fpga_bit);
+                    session_line_open = false;
+                    bscan_loaded = bscan;
+                }
+            }
+            else if (!strcmp(line, "spi"))
+            {
+                ProgAlgSpi::Spi_Options_t spi_options = ProgAlgSpi::FULL;
+                char *fn = arg;
+                bool result;
+
+                switch (*arg)
+                {
+                    case 'e': case 'E': spi_options = ProgAlgSpi::ERASE_ONLY; break;
+                    case 'p': case 'P': spi_options = ProgAlgSpi::WRITE_ONLY; break;
+                    case 'v': case 'V': spi_options = ProgAlgSpi::VERIFY_ONLY; break;
+                    case 'a': case 'A': spi_options = ProgAlgSpi::FULL; break;
+                    case 'n': case 'N': spi_options = ProgAlgSpi::FULL_NO_BLANK; break;
+                    case 'w': case 'W': spi_options = ProgAlgSpi::FULL_NO_ERASE; break;
+                    case 'd': case 'D': spi_options = ProgAlgSpi::DELTA; break;
+                    case 'c': case 'C': spi_options = ProgAlgSpi::CHECK; break;
+                    default:
+                        fprintf(stderr, "Unknown SPI Flash option \"%s\".\n", arg);
+                        session_done(1);
+                        continue;
+                }
+                if (*fn)
+                    fn++;
+                while (*fn == ' ')
+                    fn++;
+
+                if (!bscan_loaded)
+                {
+                    fprintf(stderr, "Please upload the bscan_spi bit file first (bscan <bitfile>).\n");
+                    rc = 1;
+                }
+                else if (spi_options != ProgAlgSpi::ERASE_ONLY && *fn == 0)
+                {
+                    printf("Please specify main bit file (spi %c <bitfile>)\n", *arg);
+                    rc = 1;
+                }
+                else
+                {
+                    ProgAlgSpi alg1(jtag, io, 0);
+
+                    if (spi_options != ProgAlgSpi::ERASE_ONLY)
+                    {
+                        BitFile flash_bit;
+                        reading_stdin = !strcmp(fn, "-");
+                        flash_bit.readFile(fn, false);
+                        reading_stdin = false;
+                        if (spi_options == ProgAlgSpi::CHECK)
+                            printf("\nChecking External Flash Memory for \"%s\".\n", fn);
+                        else
+                            printf("\nProgramming External Flash Memory with \"%s\".\n", fn);
+                        result = alg1.ProgramSpi(flash_bit, spi_options);
+                        // A full or delta program ends with JPROGRAM, which clears the bscan_spi design.
+                        if (spi_options == ProgAlgSpi::FULL || spi_options == ProgAlgSpi::FULL_NO_BLANK || 
+                            spi_options == ProgAlgSpi::FULL_NO_ERASE || spi_options == ProgAlgSpi::DELTA)
+                            bscan_loaded = false;
+                    }
+                    else
+                    {
+                        printf("Erasing External Flash Memory.\n");
+                        result = alg1.EraseSpi();
+                    }
+                    if (!result)
+                    {
+                        // A check which finds another image is not an error, just rc 1.
+                        if (spi_options != ProgAlgSpi::CHECK)
+                            printf("Error occured.\n");
+                        rc = 1;
+                    }
+                }
+            }
+            else if (!strcmp(line, "reconfigure"))
+            {
+                printf("Triggering a reconfiguration of the FPGA.\n");
+                alg.Reconfigure();
+                bscan_loaded = false;
+            }
+            else if (!strcmp(line, "status"))
+            {
+                alg.DisplayStatus();
+            }
+            else
+            {
+                fprintf(stderr, "Unknown session command \"%s\".\n", line);
+                rc = 1;
+            }
+        }
+        catch(io_exception& e)
+        {
+            fprintf(stderr, "IOException: %s\n", e.getMessage().c_str());
+            rc = 1;
+        }
+        session_done(rc);
+        if (reading_stdin)
+        {
+            // The rest of the .bit file would be taken for commands.
+            fprintf(stderr, "Bit file on stdin is incomplete, leaving session mode.\n");
+            return 1;
+        }
+    }
+    return 0;
+}
+
 int main(int argc, char **argv)
 {
     int chainpos = 0;
@@ -156,6 +379,8 @@ int main(int argc, char **argv)
     bool spiflash = false;
     bool reconfigure = false;
     bool detectchain = false;
+    bool session = false;
+    bool listdevices = false;
     int displaystatus = 0; // 0=no status, 1=JTAG IR data, 2=STAT Register readback
     bool result;
     char *desc = 0;
@@ -172,8 +397,12 @@ int main(int argc, char **argv)
 
     std::auto_ptr<IOBase>  io;
 
+#ifdef _WIN32
+    // Bit files may be passed on stdin ("-"), which must not be translated.
+    _setmode(_fileno(stdin), _O_BINARY);
+#endif
 
-    while ((c = getopt (argc, argv, "hd:b:f:s:A:a:jvcCr")) != EOF)
+    while ((c = getopt (argc, argv, "hd:S:b:f:s:A:a:jlvPcCri")) != EOF)
         switch (c)
         {
         case 'r':
@@ -188,9 +417,21 @@ int main(int argc, char **argv)
         case 'v':
             verbose=true;
             break;
+        case 'P':
+            progress_lines=true;
+            break;
         case 'j':
             detectchain=true;
             break;
+        case 'i':
+            session=true;
+            break;
+        case 'l':
+            listdevices=true;
+            break;
+        case 'S':
+            serial=optarg;
+            break;
         case 'd':
             desc=(char*)malloc(strlen(optarg)+1);
             strcpy(desc,optarg);
@@ -232,6 +473,22 @@ int main(int argc, char **argv)
                 case 'A':
                     spi_options=ProgAlgSpi::FULL;
                     break;
+                case 'n':
+                case 'N':
+                    spi_options=ProgAlgSpi::FULL_NO_BLANK;
+                    break;
+                case 'w':
+                case 'W':
+                    spi_options=ProgAlgSpi::FULL_NO_ERASE;
+                    break;
+                case 'd':
+                case 'D':
+                    spi_options=ProgAlgSpi::DELTA;
+                    break;
+                case 'c':
+                case 'C':
+                    spi_options=ProgAlgSpi::CHECK;
+                    break;
                 default:
                     printf("Unknown argument: \"%c\" to option: \"%c\"\n",c, optarg[0]);
                     usage(argv[0]);
@@ -263,7 +520,7 @@ int main(int argc, char **argv)
         }
 
     }
-    else if( !cFpga_fn && !displaystatus && !detectchain && !reconfigure)
+    else if( !cFpga_fn && !displaystatus && !detectchain && !reconfigure && !session && !listdevices)
     {
         //no option specified
         printf("No or ambiguous options specified.\n");
@@ -274,6 +531,31 @@ int main(int argc, char **argv)
         //nothing todo here..
     }
 
+    if(listdevices)
+    {
+        int num;
+
+        if (vendor == 0)
+            vendor = VENDOR;
+        if(product == 0)
+            product = DEVICE;
+        num = IOFtdi::listDevices(vendor, product);
+        // Papilio DUO
+        num += IOFtdi::listDevices(vendor, 0x7bc0);
+        if (num == 0)
+        {
+            fprintf(stderr, "No FTDI device found.\n");
+            return 1;
+        }
+        return 0;
+    }
+
+    if(session)
+    {
+        printf("%s %s %s\n", SESSION_BANNER, VERSION, SESSION_FEATURES);
+        fflush(stdout);
+    }
+
     try
     {
         if (vendor == 0)
@@ -312,6 +594,9 @@ int main(int argc, char **argv)
     if(detectchain)
         return 0;
 
+    if(session)
+        return run_session(jtag, io.operator*(), db, chainpos, family);
+
 
     ProgAlgXC3S alg(jtag,io.operator*(), family);
     //alg.getStatusRegister();
@@ -348,7 +633,10 @@ int main(int argc, char **argv)
                     return 1;
                 
                 //flash_file.print();
-                printf("\nProgramming External Flash Memory with \"%s\".\n", cFpga_fn);
+                if(spi_options==ProgAlgSpi::CHECK)
+                    printf("\nChecking External Flash Memory for \"%s\".\n", cFpga_fn);
+                else
+                    printf("\nProgramming External Flash Memory with \"%s\".\n", cFpga_fn);
                 result=alg1.ProgramSpi(flash_bit, spi_options);
                 if (reconfigure)
                 {
@@ -361,7 +649,7 @@ int main(int argc, char **argv)
                 result=alg1.EraseSpi();
             }
 
-            if(!result)
+            if(!result&&spi_options!=ProgAlgSpi::CHECK)
                 printf("Error occured.\n");
         }
         else
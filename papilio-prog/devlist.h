@@ -1,12 +1,12 @@
 const char fb_string[]={
-"01C10093 6 XC3S100E;"
-"01C1A093 6 XC3S250E;"
-"01C22093 6 XC3S500E;"
-"01C2E093 6 XC3S1200E;"
-"01C3A093 6 XC3S1600E;"
-"04000093 6 XC6SLX4;"
-"04001093 6 XC6SLX9;"
-"04002093 6 XC6SLX16;"
-"04004093 6 XC6SLX25;"
-"04008093 6 XC6SLX45;"
+"01C10093 6 XC3S100E proxy=bscan_spi_xc3s100e.bit bits=581344;"
+"01C1A093 6 XC3S250E proxy=bscan_spi_xc3s250e.bit bits=1353728 flash=512K/64K;"
+"01C22093 6 XC3S500E proxy=bscan_spi_xc3s500e.bit bits=2270208 flash=512K/64K;"
+"01C2E093 6 XC3S1200E bits=3841184;"
+"01C3A093 6 XC3S1600E bits=5969696;"
+"04000093 6 XC6SLX4 proxy=bscan_spi_xc6slx4.bit bits=2724832;"
+"04001093 6 XC6SLX9 proxy=bscan_spi_xc6slx9.bit bits=2724832 flash=2M/64K;"
+"04002093 6 XC6SLX16 bits=3731264;"
+"04004093 6 XC6SLX25 bits=6440432;"
+"04008093 6 XC6SLX45 bits=11939296;"
 };
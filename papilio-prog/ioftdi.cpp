@@ -118,6 +118,57 @@ IOFtdi::IOFtdi(int const vendor, int const product, char const *desc, char const
   mpsse_send();
 }
 
+int IOFtdi::listDevices(int const vendor, int const product)
+{
+  int count = 0;
+#if defined (USE_FTD2XX)
+  DWORD num = 0;
+  FT_DEVICE_LIST_INFO_NODE *info;
+
+  if (FT_CreateDeviceInfoList(&num) != FT_OK || num == 0)
+    return 0;
+  info = new FT_DEVICE_LIST_INFO_NODE[num];
+  if (FT_GetDeviceInfoList(info, &num) == FT_OK)
+    {
+      for (DWORD i = 0; i < num; i++)
+	{
+	  if (info[i].ID != (ULONG)((vendor << 16) | product))
+	    continue;
+	  printf("Device: %s\tSerial: %s\n", info[i].Description, info[i].SerialNumber);
+	  count++;
+	}
+    }
+  delete [] info;
+#else
+  struct ftdi_context ctx;
+  struct ftdi_device_list *devlist, *curdev;
+  char description[128], serial[128];
+
+  ftdi_init(&ctx);
+  if (ftdi_usb_find_all(&ctx, &devlist, vendor, product) < 0)
+    {
+      ftdi_deinit(&ctx);
+      return 0;
+    }
+  for (curdev = devlist; curdev != NULL; curdev = curdev->next)
+    {
+      description[0] = serial[0] = 0;
+      if (ftdi_usb_get_strings(&ctx, curdev->dev, NULL, 0, description, sizeof(description),
+			       serial, sizeof(serial)) < 0)
+	{
+	  fprintf(stderr, "ftdi_usb_get_strings: %s\n", ftdi_get_error_string(&ctx));
+	  continue;
+	}
+      printf("Device: %s\tSerial: %s\n", description, serial);
+      count++;
+    }
+  ftdi_list_free(&devlist);
+  ftdi_deinit(&ctx);
+#endif
+  fflush(stdout);
+  return count;
+}
+
 void IOFtdi::settype(int sub_type)
 {
   subtype = sub_type;
@@ -108,6 +108,9 @@ class IOFtdi : public IOBase
   IOFtdi(int vendor, int product, char const *desc, char const *serial, int subtype);
   ~IOFtdi();
 
+  // Print "Device: <description>\tSerial: <serial>" for every attached device.
+  static int listDevices(int vendor, int product);
+
  public:
   void settype(int subtype);
   void txrx_block(const unsigned char *tdi, unsigned char *tdo, int length, bool last);
@@ -450,6 +450,7 @@ bool ProgAlgSpi::Spi_Erase(bool verbose)
 		}			
 		
 		Spi_Command((byte*)"\x60",0,8);	//Chip Erase
+		progress("erase", 0, 0, false);
 		for(x=0;x<=Max_Retries;x++)
 		{
 			fail=!Spi_Check();
@@ -483,8 +484,7 @@ bool ProgAlgSpi::Spi_Erase(bool verbose)
 			if(fail==false)
 				break;
 			Sleep(MacronixtCE);
-			printf(".");
-			fflush(stdout);
+			progress("erase", 0, 0, true);
 		}	
 
 		if(verbose)
@@ -512,8 +512,7 @@ bool ProgAlgSpi::Spi_Erase(bool verbose)
 			if(fail==false)
 				break;
 			Sleep(1000);
-			printf(".");
-			fflush(stdout);
+			progress("erase", 0, 0, true);
 		}	
 
 		if(verbose)
@@ -540,11 +539,7 @@ bool ProgAlgSpi::Spi_Erase(bool verbose)
 					break;
 				Sleep(tPE);
 			}
-			if((i%256)==0&&verbose)
-			{
-				printf(".");
-				fflush(stdout);
-			}
+			progress("erase", (unsigned long)i*PageSize, (unsigned long)Pages*PageSize, (i%256)==0&&verbose);
 		}
 		if(verbose)
 		{
@@ -554,6 +549,8 @@ bool ProgAlgSpi::Spi_Erase(bool verbose)
 				printf("Failed (@ Page: %d)\n", i);
 		}
 	}
+	if(!fail)
+		progress("erase", (unsigned long)Pages*PageSize, (unsigned long)Pages*PageSize, false);
 
     return !fail;
 }
@@ -564,6 +561,7 @@ bool ProgAlgSpi::Spi_PartialErase(int length, bool verbose)
 	bool fail=false;
 	byte data[4];
 	byte WRSR_Cmd[2]={0x01,0x00};
+	unsigned long erased=(unsigned long)Pages*PageSize;
 
 	if(verbose)
 	{	
@@ -594,6 +592,7 @@ bool ProgAlgSpi::Spi_PartialErase(int length, bool verbose)
 		}			
 		
 		Spi_Command((byte*)"\x60",0,8);	//Chip Erase
+		progress("erase", 0, 0, false);
 		for(x=0;x<=Max_Retries;x++)
 		{
 			fail=!Spi_Check();
@@ -628,8 +627,7 @@ bool ProgAlgSpi::Spi_PartialErase(int length, bool verbose)
 			if(fail==false)
 				break;
 			Sleep(MacronixtCE);
-			printf(".");
-			fflush(stdout);
+			progress("erase", 0, 0, true);
 		}	
 
 		if(verbose)
@@ -647,6 +645,7 @@ bool ProgAlgSpi::Spi_PartialErase(int length, bool verbose)
     // use partial erase
     unsigned int wBytes=(length+7)/8;
     unsigned int DoPages=(wBytes+PageSize-1)/PageSize;    
+    erased=(unsigned long)DoPages*PageSize;
     for(i=0;i<DoPages&&!fail;i++)
     {
         if ((i*PageSize)%SectorSize == 0)
@@ -670,11 +669,7 @@ bool ProgAlgSpi::Spi_PartialErase(int length, bool verbose)
                 Sleep(1000);
             }
         }
-        if((i%256)==0&&verbose)
-        {
-            printf(".");
-            fflush(stdout);
-        }
+        progress("erase", (unsigned long)i*PageSize, (unsigned long)DoPages*PageSize, (i%256)==0&&verbose);
     }        
 
 		if(verbose)
@@ -701,11 +696,7 @@ bool ProgAlgSpi::Spi_PartialErase(int length, bool verbose)
 					break;
 				Sleep(tPE);
 			}
-			if((i%256)==0&&verbose)
-			{
-				printf(".");
-				fflush(stdout);
-			}
+			progress("erase", (unsigned long)i*PageSize, (unsigned long)Pages*PageSize, (i%256)==0&&verbose);
 		}
 		if(verbose)
 		{
@@ -715,6 +706,8 @@ bool ProgAlgSpi::Spi_PartialErase(int length, bool verbose)
 				printf("Failed (@ Page: %d)\n", i);
 		}
 	}
+	if(!fail)
+		progress("erase", erased, erased, false);
 
     return !fail;
 }
@@ -770,11 +763,7 @@ bool ProgAlgSpi::Spi_Write(const byte *write_data, int length, bool verbose)
 
 			usleep(tBP);
 
-			if((i%20000)==0&&verbose)
-			{
-				printf(".");			
-				fflush(stdout);
-			}
+			progress("write", i, wBytes, (i%20000)==0&&verbose);
 		}
 	
 		printf("Finished Programming\n");
@@ -830,11 +819,7 @@ bool ProgAlgSpi::Spi_Write(const byte *write_data, int length, bool verbose)
 					break;
 				Sleep(tP);
 			}
-			if((i%256)==0&&verbose)
-			{
-				printf(".");			
-				fflush(stdout);
-			}
+			progress("write", (unsigned long)i*PageSize, wBytes, (i%256)==0&&verbose);
 
 		}
 
@@ -878,6 +863,8 @@ bool ProgAlgSpi::Spi_Write(const byte *write_data, int length, bool verbose)
 			}
 		}
 	}
+    if(!fail)
+        progress("write", wBytes, wBytes, false);
     if(verbose)
     {
         if(!fail)
@@ -888,7 +875,7 @@ bool ProgAlgSpi::Spi_Write(const byte *write_data, int length, bool verbose)
     return !fail;
 }
 
-bool ProgAlgSpi::Spi_Verify(const byte *verify_data, int length, bool verbose)
+bool ProgAlgSpi::Spi_Verify(const byte *verify_data, int length, bool verbose, const char *phase)
 {
     unsigned int i;
     bool fail=false;
@@ -921,11 +908,7 @@ bool ProgAlgSpi::Spi_Verify(const byte *verify_data, int length, bool verbose)
             fail=true;
 			printf("Error in Verify: first byte of data [0x%02X] ..\n",tdo[4]);
 		}
-        if((i%256)==0&&verbose)
-			{
-				printf(".");			
-				fflush(stdout);
-			}
+        progress(phase, (unsigned long)i*PageSize, wBytes, (i%256)==0&&verbose);
     }
 
     // partial Page
@@ -945,6 +928,8 @@ bool ProgAlgSpi::Spi_Verify(const byte *verify_data, int length, bool verbose)
             fail=true;
     }
 
+    if(!fail)
+        progress(phase, wBytes, wBytes, false);
     if(verbose)
     {
         if(!fail)
@@ -956,6 +941,190 @@ bool ProgAlgSpi::Spi_Verify(const byte *verify_data, int length, bool verbose)
     return !fail;
 }
 
+/* Delta programming
+
+   Reads back the part of the flash the new image goes to and compares it, erase
+   unit by erase unit (64 KB sectors, or single pages on Atmel DataFlash), with the
+   image. Only units which differ are erased, written and verified. The image bytes
+   end up the same as with FULL, but the rest of the flash does not: FULL erases the
+   whole last unit, while a last unit found unchanged keeps whatever follows the
+   image (and its marker) in it.
+*/
+bool ProgAlgSpi::Spi_DeltaWrite(const byte *write_data, int length, bool verbose)
+{
+    unsigned int u,p;
+    bool fail=false, differs;
+    unsigned int wBytes=(length+7)/8;
+    unsigned int unitSize=(FlashType==MacronixFLASH||FlashType==GENERIC) ? SectorSize : PageSize;
+    unsigned int pagesPerUnit=unitSize/PageSize;
+    unsigned int units=(wBytes+unitSize-1)/unitSize;
+    unsigned int changed=0, start, count, pageCount;
+    byte *flash;
+
+    flash=(byte*)malloc(PageSize);
+    if(verbose)
+    {
+        printf("Comparing  :\n");
+        fflush(stdout);
+    }
+    for(u=0;u<units&&!fail;u++)
+    {
+        start=u*unitSize;
+        count=(wBytes-start<unitSize) ? wBytes-start : unitSize;
+
+        // Stops reading at the first page which differs, the unit is rewritten anyway.
+        differs=false;
+        for(p=0;p<pagesPerUnit&&p*PageSize<count&&!differs;p++)
+        {
+            pageCount=(count-p*PageSize<PageSize) ? count-p*PageSize : PageSize;
+            Spi_ReadPage(u*pagesPerUnit+p, flash, pageCount);
+            differs=(memcmp(flash, &write_data[start+p*PageSize], pageCount)!=0);
+        }
+        progress("compare", (unsigned long)start+count, wBytes, false);
+        if(!differs)
+            continue;
+
+        changed++;
+        fail=!Spi_EraseUnit(u, unitSize, verbose);
+        for(p=0;p<pagesPerUnit&&p*PageSize<count&&!fail;p++)
+        {
+            pageCount=(count-p*PageSize<PageSize) ? count-p*PageSize : PageSize;
+            fail=!Spi_WritePage(u*pagesPerUnit+p, &write_data[start+p*PageSize], pageCount, verbose);
+            if(!fail)
+            {
+                Spi_ReadPage(u*pagesPerUnit+p, flash, pageCount);
+                fail=(memcmp(flash, &write_data[start+p*PageSize], pageCount)!=0);
+                if(fail)
+                    printf("Error in Verify: first byte of data [0x%02X] ..\n",flash[0]);
+            }
+        }
+        progress("write", (unsigned long)start+count, wBytes, false);
+    }
+    free(flash);
+
+    if(verbose)
+    {
+        if(!fail)
+            printf("Ok\n");
+        else
+            printf("Failed (@ Unit: %d)\n", u-1);
+    }
+    printf("Delta: %u of %u %s rewritten (%u bytes).\n", changed, units,
+           (unitSize==PageSize) ? "pages" : "sectors", changed*unitSize);
+    return !fail;
+}
+
+// Reads the first count bytes of page into read_data.
+void ProgAlgSpi::Spi_ReadPage(unsigned int page, byte *read_data, unsigned int count)
+{
+    unsigned int bufsize=sizeof(byte)*(PageSize+4);
+    byte *data, *tdo;
+
+    data=(byte*)malloc(bufsize);
+    tdo=(byte*)malloc(bufsize);
+    memset(data, 0, bufsize);
+    memset(tdo, 0, bufsize);
+    if ((FlashType==SSTFLASH) || (FlashType==MacronixFLASH) || (FlashType==GENERIC))
+        Spi_SetCommandRW('\x03',data,page*PageSize);
+    else
+        Spi_SetCommandRW('\x03',data,page);
+    Spi_Command(data,tdo,(bufsize)*8);
+    memcpy(read_data, &tdo[4], count);
+    free(data);
+    free(tdo);
+}
+
+// Erases the sector (Macronix, generic) or page (Atmel) unit.
+bool ProgAlgSpi::Spi_EraseUnit(unsigned int unit, unsigned int unitSize, bool verbose)
+{
+    unsigned int x;
+    bool fail=false;
+    byte data[4];
+
+    memset(data, 0, sizeof(data));
+    if ((FlashType==MacronixFLASH) || (FlashType==GENERIC))
+    {
+        Spi_Command((byte*)"\x06",0,7);	//Write Enable
+        for(x=0;x<=Max_Retries;x++)
+        {
+            fail=!Spi_Write_Check(verbose);
+            if(fail==false)
+                break;
+            Sleep(tCE);
+        }
+        Spi_SetCommandRW('\xd8',data,unit*unitSize);	//Sector Erase
+        Spi_Command(data,0,31);
+        Sleep(tCE);
+        for(x=0;x<=SectorErase;x++)
+        {
+            fail=!Spi_Check();
+            if(!fail)
+                break;
+            Sleep(1000);
+        }
+    }
+    else
+    {
+        Spi_SetCommandRW('\x81',data,unit);	//Page Erase
+        Spi_Command(data,0,32);
+        Sleep(tCE);
+        for(x=0;x<=Max_Retries;x++)
+        {
+            fail=!Spi_Write_Check(verbose);
+            if(!fail)
+                break;
+            Sleep(tPE);
+        }
+    }
+    return !fail;
+}
+
+// Writes count bytes to the erased page, as Spi_Write does for every page.
+bool ProgAlgSpi::Spi_WritePage(unsigned int page, const byte *write_data, unsigned int count, bool verbose)
+{
+    unsigned int x;
+    bool fail=false;
+    byte *data;
+    unsigned int bufsize=sizeof(byte)*(PageSize+4);
+
+    data=(byte*)malloc(bufsize);
+    memset(data, 0, bufsize);
+    if ((FlashType==MacronixFLASH) || (FlashType==GENERIC)){
+        Spi_Command((byte*)"\x06",0,7);	//Write Enable
+        for(x=0;x<=Max_Retries;x++)
+        {
+            fail=!Spi_Write_Check(verbose);
+            if(fail==false)
+                break;
+            Sleep(tCE);
+        }
+        Spi_SetCommandRW('\x02',data,page*PageSize);
+    }
+    else{
+        Spi_SetCommand((byte*)"\x84",data,1);
+    }
+    // Bytes after count stay 0xff, i.e. erased.
+    memset(&data[4], 0xff, PageSize);
+    memcpy(&data[4], write_data, count);
+    Spi_Command(data,0, 8*(bufsize)-1);
+
+    // Write buffer to mem
+    if (FlashType!=MacronixFLASH && FlashType!=GENERIC){
+        memset(data, 0, bufsize);
+        Spi_SetCommandRW('\x88',data,page);
+        Spi_Command(data,0,4*8);
+    }
+    for(x=0;x<=Max_Retries;x++)
+    {
+        fail=!Spi_Check();
+        if(!fail)
+            break;
+        Sleep(tP);
+    }
+    free(data);
+    return !fail;
+}
+
 bool ProgAlgSpi::EraseSpi()
 {
     struct timeval tv[2];
@@ -975,7 +1144,7 @@ bool ProgAlgSpi::EraseSpi()
     int emptylen=PageSize*Pages;
     empty=(byte*)malloc(emptylen);
     memset(empty, 0xff, emptylen);
-    res=Spi_Verify(empty, 8*emptylen, verbose);
+    res=Spi_Verify(empty, 8*emptylen, verbose, "blank");
     free(empty);
     if(!res)
         return false;
@@ -992,11 +1161,149 @@ bool ProgAlgSpi::EraseSpi()
   return true;
 }
 
+/* Image marker
+
+   FULL and DELTA write a marker page right after the image: MARKER_MAGIC, the
+   image length (4 bytes, big endian) and its 32-bit FNV-1a and CRC-32, the rest
+   of the page 0xff. The FPGA stops reading at the end of its bitstream, so the
+   page does no harm. CHECK reads back the marker page, the first page of the
+   image and the last image page of every sector the image occupies, which tells
+   in a few page reads whether the flash already holds the image. A shorter image
+   written over ours by another tool leaves our marker and our last page in place,
+   and may well start with the same preamble; but it erases every sector up to its
+   end, so the last page of one of those sectors holds its data or 0xff instead of
+   ours. An image which differs from ours only within a sector is not caught.
+
+   The marker is only written where it is erased along with the image, i.e. into
+   the last sector the image occupies, so nothing beyond that sector is touched.
+*/
+#define MARKER_MAGIC "PAPILIO-IMG1"
+#define MARKER_BYTES 24
+
+static void make_marker(const byte *data, unsigned int bytes, byte *marker)
+{
+    unsigned int i, bit;
+    unsigned int fnv=2166136261u, crc=0xffffffffu;
+
+    for(i=0;i<bytes;i++)
+    {
+        fnv=(fnv^data[i])*16777619u;
+        crc^=data[i];
+        for(bit=0;bit<8;bit++)
+            crc=(crc&1) ? (crc>>1)^0xedb88320u : crc>>1;
+    }
+    crc^=0xffffffffu;
+
+    memcpy(marker, MARKER_MAGIC, 12);
+    for(i=0;i<4;i++)
+    {
+        marker[12+i]=(bytes>>(24-8*i))&0xff;
+        marker[16+i]=(fnv>>(24-8*i))&0xff;
+        marker[20+i]=(crc>>(24-8*i))&0xff;
+    }
+}
+
+/* Page which holds the marker of an image of wBytes, 0 if there is none (the image
+   ends at a sector boundary or at the end of the flash). Atmel DataFlash erases page
+   by page, so the marker page would be erased and written past the image, over
+   whatever is stored there; images get no marker on it. */
+unsigned int ProgAlgSpi::Spi_MarkerPage(unsigned int wBytes)
+{
+    unsigned int page=(wBytes+PageSize-1)/PageSize;
+
+    if(wBytes==0||page+1>Pages)
+        return 0;
+    if(FlashType!=SSTFLASH&&FlashType!=MacronixFLASH&&FlashType!=GENERIC)
+        return 0;
+    if((FlashType==MacronixFLASH||FlashType==GENERIC)&&(page*PageSize)/SectorSize!=(wBytes-1)/SectorSize)
+        return 0;
+    return page;
+}
+
+/* Quick test of what the caller of FULL_NO_ERASE believes: that the flash is still
+   erased where the image goes. Reads the first page of every sector of that region,
+   and its last page. Anything written there since, by another tool or another PC,
+   starts at a sector (an image at page 0), so it shows up in these pages; data which
+   does not is left to the verify pass. */
+bool ProgAlgSpi::Spi_LooksBlank(unsigned int wBytes)
+{
+    unsigned int sector, i, lastPage=(wBytes-1)/PageSize;
+    bool blank=true;
+    byte *flash;
+
+    if(wBytes==0)
+        return true;
+    flash=(byte*)malloc(PageSize);
+    for(sector=0;blank&&sector*SectorSize<=lastPage*PageSize;sector++)
+    {
+        Spi_ReadPage((sector*SectorSize)/PageSize, flash, PageSize);
+        for(i=0;i<PageSize&&blank;i++)
+            blank=(flash[i]==0xff);
+    }
+    if(blank&&(lastPage*PageSize)%SectorSize!=0)
+    {
+        Spi_ReadPage(lastPage, flash, PageSize);
+        for(i=0;i<PageSize&&blank;i++)
+            blank=(flash[i]==0xff);
+    }
+    free(flash);
+    return blank;
+}
+
+bool ProgAlgSpi::Spi_Check_Image(const byte *image_data, int length, bool verbose)
+{
+    unsigned int wBytes=(length+7)/8;
+    unsigned int markerPage=Spi_MarkerPage(wBytes);
+    unsigned int lastPage=(wBytes-1)/PageSize;
+    unsigned int lastCount=wBytes-lastPage*PageSize;
+    unsigned int sector, page, count;
+    byte marker[MARKER_BYTES];
+    byte *flash;
+    bool same;
+
+    if(markerPage==0)
+    {
+        printf("SPI Flash cannot be checked for this image, it cannot carry a marker.\n");
+        return false;
+    }
+    make_marker(image_data, wBytes, marker);
+    flash=(byte*)malloc(PageSize);
+    Spi_ReadPage(markerPage, flash, PageSize);
+    same=(memcmp(flash, marker, MARKER_BYTES)==0);
+    if(same)
+    {
+        Spi_ReadPage(0, flash, (wBytes<PageSize) ? wBytes : PageSize);
+        same=(memcmp(flash, image_data, (wBytes<PageSize) ? wBytes : PageSize)==0);
+    }
+    // Last page of each sector, the image's last page for the last sector.
+    for(sector=0;same&&sector*SectorSize<wBytes;sector++)
+    {
+        page=((sector+1)*SectorSize)/PageSize-1;
+        if(page>=lastPage)
+            page=lastPage;
+        count=(page==lastPage) ? lastCount : PageSize;
+        Spi_ReadPage(page, flash, count);
+        same=(memcmp(flash, &image_data[page*PageSize], count)==0);
+    }
+    free(flash);
+
+    if(same)
+        printf("SPI Flash already holds this image.\n");
+    else
+        printf("SPI Flash does not hold this image.\n");
+    return same;
+}
+
 bool ProgAlgSpi::ProgramSpi(BitFile &file, Spi_Options_t options)
 {
     struct timeval tv[2];
     bool verbose=io->getVerbose();
-    bool res;
+    bool res=true;
+    const byte *image=file.getData();
+    unsigned long imageBits=file.getLength();
+    unsigned int markerPage;
+    byte *marked=NULL;
+    bool blankCheck=true, erase=true;
     gettimeofday(tv, NULL);
     // Switch to USER1 register, to access SPI FLash..
     jtag->shiftIR(&USER1,0);
@@ -1012,32 +1319,86 @@ bool ProgAlgSpi::ProgramSpi(BitFile &file, Spi_Options_t options)
         return false;
     }
 
+    if(options==FULL_NO_BLANK)
+    {
+        // The verify pass after writing catches a failed erase as well, only later.
+        options=FULL;
+        blankCheck=false;
+    }
+    else if(options==FULL_NO_ERASE)
+    {
+        // For flash the caller believes blank; Spi_LooksBlank confirms it below.
+        options=FULL;
+        blankCheck=false;
+        erase=false;
+    }
+
+    if(options==CHECK)
+    {
+        res=Spi_Check_Image(image, imageBits, verbose);
+        jtag->shiftIR(&BYPASS);
+        return res;
+    }
+
+    if(options==DELTA&&FlashType==SSTFLASH)
+    {
+        // Only whole chip erase is done on SST flash, so every byte has to be written anyway.
+        printf("Delta programming is not supported by this flash, writing all of it.\n");
+        options=FULL;
+    }
+
+    if(options==FULL||options==DELTA)
+    {
+        markerPage=Spi_MarkerPage(imageBits/8);
+        if(markerPage)
+        {
+            marked=(byte*)malloc((markerPage+1)*PageSize);
+            memset(marked, 0xff, (markerPage+1)*PageSize);
+            memcpy(marked, image, imageBits/8);
+            make_marker(image, imageBits/8, &marked[markerPage*PageSize]);
+            image=marked;
+            imageBits=8UL*(markerPage+1)*PageSize;
+        }
+    }
+
+    if(options==DELTA)
+        res=Spi_DeltaWrite(image, imageBits, verbose);
+
     if(options==FULL)
     {
-        if(!Spi_PartialErase(file.getLength(), verbose))
-            return false;
-        byte *empty;
-        int emptylen=file.getLength()/8 + 1;
-        empty=(byte*)malloc(emptylen);
-        memset(empty, 0xff, emptylen);
-        res=Spi_Verify(empty, file.getLength(), verbose);
-        free(empty);
-        if(!res)
-            return false;
+        if(!erase&&!Spi_LooksBlank(imageBits/8))
+        {
+            printf("SPI Flash is not blank, erasing it after all.\n");
+            erase=true;
+            blankCheck=true;
+        }
+        if(erase)
+            res=Spi_PartialErase(imageBits, verbose);
+        if(res&&blankCheck)
+        {
+            byte *empty;
+            int emptylen=imageBits/8 + 1;
+            empty=(byte*)malloc(emptylen);
+            memset(empty, 0xff, emptylen);
+            res=Spi_Verify(empty, imageBits, verbose, "blank");
+            free(empty);
+        }
     }
 
-    if(options==FULL||options==WRITE_ONLY)
-        if(!Spi_Write(file.getData(), file.getLength(), verbose))
-            return false;
+    if(res&&(options==FULL||options==WRITE_ONLY))
+        res=Spi_Write(image, imageBits, verbose);
 
-    if(options==FULL||options==VERIFY_ONLY)
-        if(!Spi_Verify(file.getData(), file.getLength(), verbose))
-            return false;
+    if(res&&(options==FULL||options==VERIFY_ONLY))
+        res=Spi_Verify(image, imageBits, verbose);
 
+    if(marked)
+        free(marked);
+    if(!res)
+        return false;
 
     /* JPROGAM: Trigerr reconfiguration, not explained in ug332, but
      DS099 Figure 28:  Boundary-Scan Configuration Flow Diagram (p.49) */
-    if(options==FULL)
+    if(options==FULL||options==DELTA)
     {
         jtag->shiftIR(&JPROGRAM);
         Sleep(1000);//just wait a bit to make sure everything is done..
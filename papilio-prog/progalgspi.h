@@ -68,7 +68,14 @@ class ProgAlgSpi
         bool Spi_Erase(bool verbose=false);
         bool Spi_PartialErase(int length, bool verbose=false);
         bool Spi_Write(const byte *write_data, int length, bool verbose=false);
-        bool Spi_Verify(const byte *verify_data, int length, bool verbose);
+        bool Spi_Verify(const byte *verify_data, int length, bool verbose, const char *phase="verify");
+        bool Spi_DeltaWrite(const byte *write_data, int length, bool verbose=false);
+        bool Spi_Check_Image(const byte *image_data, int length, bool verbose=false);
+        unsigned int Spi_MarkerPage(unsigned int wBytes);
+        bool Spi_LooksBlank(unsigned int wBytes);
+        void Spi_ReadPage(unsigned int page, byte *read_data, unsigned int count);
+        bool Spi_EraseUnit(unsigned int unit, unsigned int unitSize, bool verbose=false);
+        bool Spi_WritePage(unsigned int page, const byte *write_data, unsigned int count, bool verbose=false);
         void Spi_SetCommand(const byte *command, byte *data, const int bytes);
         void Spi_SetCommandRW(const byte command, byte *data, const int address);
     public:
@@ -77,7 +84,11 @@ class ProgAlgSpi
             ERASE_ONLY,
             VERIFY_ONLY,
             WRITE_ONLY,
-            FULL
+            FULL,
+            DELTA,
+            CHECK,
+            FULL_NO_BLANK,
+            FULL_NO_ERASE
         };
         ProgAlgSpi(Jtag &j, IOBase &i, int family);
         bool ProgramSpi(BitFile &file, Spi_Options_t options);
@@ -91,12 +91,9 @@ void ProgAlgXC3S::flow_array_program(BitFile &file)
       jtag->shiftIR(&ISC_PROGRAM);
       jtag->shiftDR(&(file.getData())[i/8],0,array_transfer_len);
       io->cycleTCK(1);
-      if((i % (10000*array_transfer_len)) == 0)
-	{
-	  fprintf(stdout,".");
-	  fflush(stdout);
-	}
+      progress("fpga", i/8, file.getLength()/8, (i % (10000*array_transfer_len)) == 0);
     }
+  progress("fpga", file.getLength()/8, file.getLength()/8, false);
   gettimeofday(tv+1, NULL);
 
   // Print the timing summary
@@ -113,7 +110,9 @@ void ProgAlgXC3S::flow_program_legacy(BitFile &file)
   jtag->shiftIR(&JSHUTDOWN);
   io->cycleTCK(tck_len);
   jtag->shiftIR(&CFG_IN);
+  progress("fpga", 0, file.getLength()/8, false);
   jtag->shiftDR((file.getData()),0,file.getLength());
+  progress("fpga", file.getLength()/8, file.getLength()/8, false);
   io->cycleTCK(1);
   jtag->shiftIR(&JSTART);
   io->cycleTCK(2*tck_len);
@@ -1,6 +1,41 @@
 #include "config.h"
+#include <stdio.h>
+#include <string.h>
+#include <sys/time.h>
 #include "tools.h"
 
+#define PROGRESS_INTERVAL_US 100000
+
+bool progress_lines = false;
+
+/* Reports progress of phase. Without -P only a dot is printed, and only when the
+   caller asks for one (as before). With -P a progress line is printed at most every
+   PROGRESS_INTERVAL_US, but always at the start of a phase and once it is complete. */
+void progress(const char *phase, unsigned long done, unsigned long total, bool dot)
+{
+    static struct timeval last;
+    static const char *last_phase = 0;
+    struct timeval now;
+
+    if (!progress_lines)
+    {
+        if (dot)
+        {
+            printf(".");
+            fflush(stdout);
+        }
+        return;
+    }
+    gettimeofday(&now, NULL);
+    if (last_phase && strcmp(last_phase, phase) == 0 && (total == 0 || done < total)
+        && deltaT(&last, &now) < PROGRESS_INTERVAL_US)
+        return;
+    last = now;
+    last_phase = phase;
+    printf("@@progress %s %lu %lu\n", phase, done, total);
+    fflush(stdout);
+}
+
 
 byte bRevTable[256]={\
 0x00,0x80,0x40,0xC0,0x20,0xA0,0x60,0xE0,0x10,0x90,0x50,0xD0,0x30,0xB0,0x70,0xF0,\
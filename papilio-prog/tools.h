@@ -9,6 +9,12 @@ typedef unsigned char byte;
 
 extern byte bRevTable[256];
 
+/* Progress reporting (-P). When progress_lines is set, long operations print
+   "@@progress <phase> <done> <total>" lines (bytes, total 0 if unknown) instead
+   of dots, so that a front end can show a progress bar and throughput. */
+extern bool progress_lines;
+void progress(const char *phase, unsigned long done, unsigned long total, bool dot);
+
 #define deltaT(tvp1, tvp2) (((tvp2)->tv_sec-(tvp1)->tv_sec)*1000000 + \
                               (tvp2)->tv_usec - (tvp1)->tv_usec)
 #endif